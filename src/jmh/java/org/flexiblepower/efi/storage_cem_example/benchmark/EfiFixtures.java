@@ -0,0 +1,195 @@
+package org.flexiblepower.efi.storage_cem_example.benchmark;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.UUID;
+
+import org.flexiblepower.efi.storage_cem_example.EfiTestMessages;
+import org.flexiblepower.efi.storage_cem_example.xml.XmlUtil;
+import org.flexiblepower.efi.xml.Actuator;
+import org.flexiblepower.efi.xml.ActuatorBehaviour;
+import org.flexiblepower.efi.xml.ActuatorBehaviours;
+import org.flexiblepower.efi.xml.ActuatorInstruction;
+import org.flexiblepower.efi.xml.ActuatorInstructions;
+import org.flexiblepower.efi.xml.ActuatorStatus;
+import org.flexiblepower.efi.xml.ActuatorStatuses;
+import org.flexiblepower.efi.xml.Actuators;
+import org.flexiblepower.efi.xml.CommodityEnum;
+import org.flexiblepower.efi.xml.DeviceClass;
+import org.flexiblepower.efi.xml.DeviceDescription;
+import org.flexiblepower.efi.xml.EfiMessage;
+import org.flexiblepower.efi.xml.EfiMessage.Header;
+import org.flexiblepower.efi.xml.LeakageElement;
+import org.flexiblepower.efi.xml.LeakageFunction;
+import org.flexiblepower.efi.xml.Measurement;
+import org.flexiblepower.efi.xml.Measurement.ElectricityMeasurement;
+import org.flexiblepower.efi.xml.StorageContinuousRunningMode;
+import org.flexiblepower.efi.xml.StorageContinuousRunningMode.ContinuousRunningModeElement;
+import org.flexiblepower.efi.xml.StorageContinuousRunningMode.ContinuousRunningModeElement.LowerBound;
+import org.flexiblepower.efi.xml.StorageContinuousRunningMode.ContinuousRunningModeElement.UpperBound;
+import org.flexiblepower.efi.xml.StorageDiscreteRunningMode;
+import org.flexiblepower.efi.xml.StorageDiscreteRunningMode.DiscreteRunningModeElement;
+import org.flexiblepower.efi.xml.StorageInstruction;
+import org.flexiblepower.efi.xml.StorageRegistration;
+import org.flexiblepower.efi.xml.StorageRunningModes;
+import org.flexiblepower.efi.xml.StorageStatus;
+import org.flexiblepower.efi.xml.StorageSystemDescription;
+import org.flexiblepower.efi.xml.Timer;
+import org.flexiblepower.efi.xml.TimerReferences;
+import org.flexiblepower.efi.xml.TimerReferences.TimerReference;
+import org.flexiblepower.efi.xml.TimerUpdate;
+import org.flexiblepower.efi.xml.TimerUpdates;
+import org.flexiblepower.efi.xml.Timers;
+import org.flexiblepower.efi.xml.Transition;
+import org.flexiblepower.efi.xml.Transitions;
+
+/**
+ * Generates realistic EFI Storage messages for the benchmarks. Every actuator
+ * gets the same number of running modes and timers, every running mode can
+ * transition to every other running mode, and every transition is guarded by
+ * a blocking timer and starts another one.
+ */
+public class EfiFixtures {
+
+	public static final String RESOURCE_ID = "benchmark-rm";
+	public static final String FLEXIBILITY_UPDATE_ID = "benchmark-flexibility-update";
+
+	private final int actuators;
+	private final int runningModes;
+	private final int timers;
+
+	public EfiFixtures(int actuators, int runningModes, int timers) {
+		this.actuators = actuators;
+		this.runningModes = runningModes;
+		this.timers = timers;
+	}
+
+	private static Header header() {
+		return EfiTestMessages.header(RESOURCE_ID);
+	}
+
+	public StorageRegistration storageRegistration() {
+		final Actuators a = new Actuators();
+		for (int i = 0; i < this.actuators; i++) {
+			a.withActuator(new Actuator().withId(i).withLabel("Actuator " + i)
+					.withSupportedCommodity(CommodityEnum.ELECTRICITY));
+		}
+		return new StorageRegistration().withEfiVersion("2.0").withHeader(header())
+				.withInstructionProcessingDelay(XmlUtil.duration(1000))
+				.withDeviceDescription(new DeviceDescription().withDeviceClass(DeviceClass.WATER_HEATER)
+						.withLabel("Benchmark boiler"))
+				.withFillLevelLabel("Temperature").withFillLevelUnit("degC").withActuators(a);
+	}
+
+	public StorageSystemDescription storageSystemDescription() {
+		final ActuatorBehaviours behaviours = new ActuatorBehaviours();
+		for (int i = 0; i < this.actuators; i++) {
+			behaviours.withActuatorBehaviour(this.actuatorBehaviour(i));
+		}
+		return new StorageSystemDescription().withEfiVersion("2.0").withHeader(header())
+				.withFlexibilityUpdateId(FLEXIBILITY_UPDATE_ID).withValidFrom(XmlUtil.date(new Date()))
+				.withActuatorBehaviours(behaviours)
+				.withLeakageBehaviour(new LeakageFunction().withLeakageElement(new LeakageElement()
+						.withFillLevelLowerBound(0).withFillLevelUpperBound(100).withLeakageRate(0.01)));
+	}
+
+	private ActuatorBehaviour actuatorBehaviour(int actuatorId) {
+		final StorageRunningModes modes = new StorageRunningModes();
+		for (int rm = 0; rm < this.runningModes; rm++) {
+			final double power = rm * 1000d;
+			if (rm % 2 == 0) {
+				modes.getDiscreteRunningModeOrContinuousRunningMode()
+						.add(new StorageDiscreteRunningMode().withId(rm).withLabel("Discrete " + rm)
+								.withDiscreteRunningModeElement(new DiscreteRunningModeElement()
+										.withFillLevelLowerBound(0).withFillLevelUpperBound(100)
+										.withFillingRate(rm * 0.01).withElectricalPower(power)
+										.withRunningCost(BigDecimal.valueOf(rm))));
+			} else {
+				modes.getDiscreteRunningModeOrContinuousRunningMode()
+						.add(new StorageContinuousRunningMode().withId(rm).withLabel("Continuous " + rm)
+								.withContinuousRunningModeElement(new ContinuousRunningModeElement()
+										.withFillLevelLowerBound(0).withFillLevelUpperBound(100)
+										.withLowerBound(new LowerBound().withFillingRate(0).withElectricalPower(0d))
+										.withUpperBound(new UpperBound().withFillingRate(rm * 0.01)
+												.withElectricalPower(power))));
+			}
+		}
+		final Timers t = new Timers();
+		for (int i = 0; i < this.timers; i++) {
+			t.withTimer(new Timer().withId(i).withLabel("Timer " + i).withDuration(XmlUtil.duration(60000L * (i + 1))));
+		}
+		final Transitions transitions = new Transitions();
+		for (int from = 0; from < this.runningModes; from++) {
+			for (int to = 0; to < this.runningModes; to++) {
+				if (from != to) {
+					transitions.withTransition(new Transition().withFromRunningModeId(from).withToRunningModeId(to)
+							.withTransitionCost(1d)
+							.withStartTimers(new TimerReferences()
+									.withTimerReference(new TimerReference().withTimerId(from % this.timers)))
+							.withBlockingTimers(new TimerReferences()
+									.withTimerReference(new TimerReference().withTimerId(to % this.timers))));
+				}
+			}
+		}
+		return new ActuatorBehaviour().withActuatorId(actuatorId).withRunningModes(modes).withTimers(t)
+				.withTransitions(transitions);
+	}
+
+	public StorageStatus storageStatus() {
+		final Date now = new Date();
+		final ActuatorStatuses statuses = new ActuatorStatuses();
+		for (int i = 0; i < this.actuators; i++) {
+			final TimerUpdates updates = new TimerUpdates();
+			for (int t = 0; t < this.timers; t++) {
+				// Half of the timers are still running, the other half finished
+				final long offset = (t % 2 == 0 ? 1 : -1) * 60000L;
+				updates.withTimerUpdate(new TimerUpdate().withTimerId(t)
+						.withFinishedAt(XmlUtil.date(new Date(now.getTime() + offset))));
+			}
+			statuses.withActuatorStatus(new ActuatorStatus().withActuatorId(i).withCurrentRunningMode(0)
+					.withPreviousRunningModeId(1).withTransitionTimestamp(XmlUtil.date(now)).withTimerUpdates(updates));
+		}
+		return new StorageStatus().withEfiVersion("2.0").withHeader(header())
+				.withFlexibilityUpdateId(FLEXIBILITY_UPDATE_ID).withValidFrom(XmlUtil.date(now))
+				.withCurrentFillLevel(42.5).withActuatorStatuses(statuses);
+	}
+
+	public Measurement measurement() {
+		return new Measurement().withEfiVersion("2.0").withHeader(header())
+				.withMeasurementTimestamp(XmlUtil.date(new Date()))
+				.withElectricityMeasurement(new ElectricityMeasurement().withPower(2300));
+	}
+
+	public StorageInstruction storageInstruction() {
+		final ActuatorInstructions instructions = new ActuatorInstructions();
+		for (int i = 0; i < this.actuators; i++) {
+			instructions.withActuatorInstruction(new ActuatorInstruction().withActuatorId(i).withRunningModeId(1)
+					.withRunningModeFactor(0.5).withStartTime(XmlUtil.date(new Date())));
+		}
+		return new StorageInstruction().withEfiVersion("2.0").withHeader(header())
+				.withFlexibilityUpdateId(FLEXIBILITY_UPDATE_ID).withInstructionId(UUID.randomUUID().toString())
+				.withIsEmergencyInstruction(false).withActuatorInstructions(instructions);
+	}
+
+	/**
+	 * @param messageType
+	 *            The simple name of a message type of the Storage category
+	 */
+	public EfiMessage message(String messageType) {
+		switch (messageType) {
+		case "StorageRegistration":
+			return this.storageRegistration();
+		case "StorageSystemDescription":
+			return this.storageSystemDescription();
+		case "StorageStatus":
+			return this.storageStatus();
+		case "Measurement":
+			return this.measurement();
+		case "StorageInstruction":
+			return this.storageInstruction();
+		default:
+			throw new IllegalArgumentException("Unknown message type " + messageType);
+		}
+	}
+
+}
@@ -0,0 +1,107 @@
+package org.flexiblepower.efi.storage_cem_example.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageModel;
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageState;
+import org.flexiblepower.efi.xml.StorageStatus;
+import org.flexiblepower.efi.xml.Transition;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures message handling by {@link EfiStorageModel} and the queries the
+ * user interface performs on every refresh.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ModelBenchmark {
+
+	@Param({ "1", "16" })
+	public int actuators;
+
+	@Param({ "6", "24" })
+	public int runningModes;
+
+	@Param({ "8" })
+	public int timers;
+
+	private EfiStorageModel model;
+	private StorageStatus storageStatus;
+	private Transition transition;
+	private int lastActuator;
+
+	@Setup
+	public void setUp() {
+		final EfiFixtures fixtures = new EfiFixtures(this.actuators, this.runningModes, this.timers);
+		this.model = new EfiStorageModel();
+		this.model.handleEfiMessage(fixtures.storageRegistration());
+		this.model.handleEfiMessage(fixtures.storageSystemDescription());
+		this.storageStatus = fixtures.storageStatus();
+		this.model.handleEfiMessage(this.storageStatus);
+		this.lastActuator = this.actuators - 1;
+		this.transition = this.model.getState().getOutgoingTransitions(this.lastActuator, 0).get(0);
+	}
+
+	@Benchmark
+	public void handleStorageStatus() {
+		this.model.handleEfiMessage(this.storageStatus);
+	}
+
+	@Benchmark
+	public List<Transition> getOutgoingTransitions() {
+		return this.model.getState().getOutgoingTransitions(this.lastActuator, 0);
+	}
+
+	@Benchmark
+	public boolean isTransitionBlocked() {
+		return this.model.getState().isTransitionBlocked(this.lastActuator, this.transition);
+	}
+
+	/**
+	 * The work the user interface does for every refresh: for every running
+	 * mode of every actuator, find the transition to it and check if it is
+	 * blocked.
+	 */
+	@Benchmark
+	public void refreshAllRunningModes(Blackhole bh) {
+		final EfiStorageState state = this.model.getState();
+		for (int a = 0; a < this.actuators; a++) {
+			final int active = state.getActiveRunningMode(a);
+			for (int rm = 0; rm < this.runningModes; rm++) {
+				final Transition t = state.getTransition(a, active, rm);
+				bh.consume(t != null && state.isTransitionBlocked(a, t));
+			}
+		}
+	}
+
+	/**
+	 * The earliest time every running mode of every actuator can be reached,
+	 * possibly through other running modes.
+	 */
+	@Benchmark
+	public void earliestReachableAllRunningModes(Blackhole bh) {
+		final EfiStorageState state = this.model.getState();
+		for (int a = 0; a < this.actuators; a++) {
+			for (int rm = 0; rm < this.runningModes; rm++) {
+				bh.consume(state.earliestReachableMillis(a, rm));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,73 @@
+package org.flexiblepower.efi.storage_cem_example.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageModel;
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageState;
+import org.flexiblepower.efi.storage_cem_example.optimizer.Planner;
+import org.flexiblepower.efi.storage_cem_example.optimizer.PlanningProblem;
+import org.flexiblepower.efi.storage_cem_example.optimizer.Schedule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a planning run of one actuator over a day in slots of a quarter of
+ * an hour. Run with JMH's -t option to see how it scales over cores.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlannerBenchmark {
+
+	private static final long SLOT = 15 * 60 * 1000;
+
+	@Param({ "6", "24" })
+	public int runningModes;
+
+	@Param({ "51", "101" })
+	public int levels;
+
+	@Param({ "96" })
+	public int slots;
+
+	private EfiStorageState state;
+	private Planner planner;
+	private PlanningProblem problem;
+
+	@Setup
+	public void setUp() {
+		final EfiFixtures fixtures = new EfiFixtures(1, this.runningModes, 8);
+		final EfiStorageModel model = new EfiStorageModel();
+		model.handleEfiMessage(fixtures.storageSystemDescription());
+		model.handleEfiMessage(fixtures.storageStatus());
+		this.state = model.getState();
+		this.planner = new Planner(this.levels, Planner.DEFAULT_CONTINUOUS_STEPS, Planner.DEFAULT_TARGET_PENALTY);
+
+		final double[] prices = new double[this.slots];
+		final double[] lower = new double[this.slots];
+		for (int i = 0; i < this.slots; i++) {
+			// A day with expensive mornings and evenings
+			prices[i] = 0.2 + 0.1 * Math.sin(i * 2 * Math.PI / this.slots);
+			lower[i] = i % 24 == 23 ? 60 : Double.NaN;
+		}
+		this.problem = new PlanningProblem(System.currentTimeMillis(), SLOT, prices).withTargetProfile(lower, null);
+	}
+
+	@Benchmark
+	public Schedule plan() {
+		return this.planner.plan(this.state, 0, this.problem);
+	}
+
+}
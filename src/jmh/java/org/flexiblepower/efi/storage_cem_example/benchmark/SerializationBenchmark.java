@@ -0,0 +1,89 @@
+package org.flexiblepower.efi.storage_cem_example.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBException;
+
+import org.flexiblepower.efi.storage_cem_example.xml.EfiSchema;
+import org.flexiblepower.efi.storage_cem_example.xml.EfiStreamingDecoder;
+import org.flexiblepower.efi.storage_cem_example.xml.EfiStreamingDecoder.Kind;
+import org.flexiblepower.efi.storage_cem_example.xml.EfiXmlSerializer;
+import org.flexiblepower.efi.xml.EfiMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.SAXException;
+
+/**
+ * Measures {@link EfiXmlSerializer} for every message type of the Storage
+ * category.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+	@Param({ "StorageRegistration", "StorageSystemDescription", "StorageStatus", "Measurement",
+			"StorageInstruction" })
+	public String messageType;
+
+	@Param({ "4" })
+	public int actuators;
+
+	@Param({ "6" })
+	public int runningModes;
+
+	@Param({ "8" })
+	public int timers;
+
+	private EfiMessage message;
+	private String xml;
+	private final EfiStreamingDecoder decoder = new EfiStreamingDecoder();
+
+	@Setup
+	public void setUp() throws JAXBException {
+		final EfiFixtures fixtures = new EfiFixtures(this.actuators, this.runningModes, this.timers);
+		this.message = fixtures.message(this.messageType);
+		this.xml = EfiXmlSerializer.serialize(this.message);
+	}
+
+	@Benchmark
+	public String serialize() throws JAXBException {
+		return EfiXmlSerializer.serialize(this.message);
+	}
+
+	@Benchmark
+	public EfiMessage deserialize() throws JAXBException {
+		return EfiXmlSerializer.deserialize(this.xml);
+	}
+
+	/**
+	 * Decoding using the StAX fast path, which only applies to Measurement and
+	 * StorageStatus. Other message types measure the fallback overhead.
+	 */
+	@Benchmark
+	public Kind decodeStreaming() throws JAXBException {
+		return this.decoder.decode(this.xml);
+	}
+
+	/**
+	 * Validation against the schema, which every message pays in strict mode
+	 * and one in every interval messages in sampled mode.
+	 */
+	@Benchmark
+	public void validate() throws SAXException {
+		EfiSchema.validate(this.xml);
+	}
+
+}
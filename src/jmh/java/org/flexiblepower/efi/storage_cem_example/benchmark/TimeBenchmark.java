@@ -0,0 +1,133 @@
+package org.flexiblepower.efi.storage_cem_example.benchmark;
+
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.Duration;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import org.flexiblepower.efi.storage_cem_example.xml.XmlUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the time conversions of {@link XmlUtil} with the JAXP and
+ * GregorianCalendar based ones they replace. Run with -prof gc to see the
+ * allocations; the parse and format benchmarks on a reused builder should not
+ * allocate at all.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TimeBenchmark {
+
+	private static final long TIME = 1525348800123L;
+
+	private DatatypeFactory datatypeFactory;
+	private String dateTime;
+	private String duration;
+	private XMLGregorianCalendar calendar;
+	private Duration xmlDuration;
+	private final StringBuilder sb = new StringBuilder(32);
+
+	@Setup
+	public void setUp() throws DatatypeConfigurationException {
+		this.datatypeFactory = DatatypeFactory.newInstance();
+		this.dateTime = XmlUtil.formatDateTime(TIME);
+		this.duration = "PT15M30.5S";
+		this.calendar = XmlUtil.date(TIME);
+		this.xmlDuration = this.datatypeFactory.newDuration(this.duration);
+	}
+
+	@Benchmark
+	public long parseDateTime() {
+		return XmlUtil.millis(this.dateTime);
+	}
+
+	@Benchmark
+	public long parseDateTimeDatatypeConverter() {
+		return DatatypeConverter.parseDateTime(this.dateTime).getTimeInMillis();
+	}
+
+	@Benchmark
+	public long parseDateTimeDatatypeFactory() {
+		return this.datatypeFactory.newXMLGregorianCalendar(this.dateTime).toGregorianCalendar().getTimeInMillis();
+	}
+
+	@Benchmark
+	public int formatDateTime() {
+		this.sb.setLength(0);
+		return XmlUtil.appendDateTime(this.sb, TIME).length();
+	}
+
+	@Benchmark
+	public String formatDateTimeDatatypeFactory() {
+		final GregorianCalendar c = new GregorianCalendar();
+		c.setTime(new Date(TIME));
+		return this.datatypeFactory.newXMLGregorianCalendar(c).toXMLFormat();
+	}
+
+	@Benchmark
+	public long parseDuration() {
+		return XmlUtil.durationMillis(this.duration, TIME);
+	}
+
+	@Benchmark
+	public long parseDurationDatatypeFactory() {
+		return this.datatypeFactory.newDuration(this.duration).getTimeInMillis(new Date(TIME));
+	}
+
+	@Benchmark
+	public int formatDuration() {
+		this.sb.setLength(0);
+		return XmlUtil.appendDuration(this.sb, 930500).length();
+	}
+
+	@Benchmark
+	public long calendarMillis() {
+		return XmlUtil.millis(this.calendar);
+	}
+
+	@Benchmark
+	public long calendarMillisGregorianCalendar() {
+		return this.calendar.toGregorianCalendar().getTimeInMillis();
+	}
+
+	@Benchmark
+	public long durationMillis() {
+		return XmlUtil.duration(this.xmlDuration, TIME);
+	}
+
+	@Benchmark
+	public long durationMillisDate() {
+		return this.xmlDuration.getTimeInMillis(new Date(TIME));
+	}
+
+	@Benchmark
+	public XMLGregorianCalendar createCalendar() {
+		return XmlUtil.date(TIME);
+	}
+
+	@Benchmark
+	public XMLGregorianCalendar createCalendarGregorianCalendar() {
+		final GregorianCalendar c = new GregorianCalendar();
+		c.setTime(new Date(TIME));
+		return this.datatypeFactory.newXMLGregorianCalendar(c);
+	}
+
+}
@@ -0,0 +1,90 @@
+package org.flexiblepower.efi.storage_cem_example.benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import javax.xml.bind.JAXBException;
+
+import org.flexiblepower.efi.storage_cem_example.log.Log;
+import org.flexiblepower.efi.storage_cem_example.log.Logging;
+import org.flexiblepower.efi.storage_cem_example.xml.EfiCompactCodec;
+import org.flexiblepower.efi.storage_cem_example.xml.EfiXmlSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the wire encodings for every message type of the Storage category.
+ * The text benchmarks measure the UTF-8 conversion the WebSocket implementation
+ * does for a text frame, the compact benchmarks {@link EfiCompactCodec}. Both
+ * come on top of serializing or decoding the XML. The size of every message on
+ * the wire is logged when the benchmark starts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WireEncodingBenchmark {
+
+	private static final Log LOG = Logging.get("benchmark");
+
+	@Param({ "StorageRegistration", "StorageSystemDescription", "StorageStatus", "Measurement",
+			"StorageInstruction" })
+	public String messageType;
+
+	@Param({ "4" })
+	public int actuators;
+
+	@Param({ "6" })
+	public int runningModes;
+
+	@Param({ "8" })
+	public int timers;
+
+	private String xml;
+	private byte[] text;
+	private ByteBuffer compact;
+
+	@Setup
+	public void setUp() throws JAXBException {
+		final EfiFixtures fixtures = new EfiFixtures(this.actuators, this.runningModes, this.timers);
+		this.xml = EfiXmlSerializer.serialize(fixtures.message(this.messageType));
+		this.text = this.xml.getBytes(StandardCharsets.UTF_8);
+		this.compact = EfiCompactCodec.encode(this.xml);
+		LOG.info("Wire size", "type", this.messageType, "textBytes", this.text.length, "compactBytes",
+				this.compact.remaining());
+	}
+
+	@Benchmark
+	public byte[] encodeText() {
+		return this.xml.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public String decodeText() {
+		return new String(this.text, StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public ByteBuffer encodeCompact() {
+		return EfiCompactCodec.encode(this.xml);
+	}
+
+	@Benchmark
+	public String decodeCompact() throws DataFormatException {
+		return EfiCompactCodec.decode(this.compact.duplicate());
+	}
+
+}
@@ -1,17 +1,89 @@
 package org.flexiblepower.efi.storage_cem_example;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
 
+import javax.management.JMException;
+
+import org.flexiblepower.efi.storage_cem_example.api.ControlApiServer;
+import org.flexiblepower.efi.storage_cem_example.cem.ConnectionManager;
+import org.flexiblepower.efi.storage_cem_example.cem.InstructionLedger;
+import org.flexiblepower.efi.storage_cem_example.cem.ResourceRegistry;
 import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageModel;
+import org.flexiblepower.efi.storage_cem_example.fleet.FleetAggregator;
+import org.flexiblepower.efi.storage_cem_example.fleet.FleetFlexibility;
 import org.flexiblepower.efi.storage_cem_example.gui.UserInterface;
+import org.flexiblepower.efi.storage_cem_example.history.HistoryRecorder;
+import org.flexiblepower.efi.storage_cem_example.history.HistoryStore;
+import org.flexiblepower.efi.storage_cem_example.journal.MessageJournal;
+import org.flexiblepower.efi.storage_cem_example.log.Log;
+import org.flexiblepower.efi.storage_cem_example.log.Logging;
+import org.flexiblepower.efi.storage_cem_example.log.LoggingControl;
+import org.flexiblepower.efi.storage_cem_example.metrics.MetricsHttpServer;
+import org.flexiblepower.efi.storage_cem_example.metrics.MetricsMBean;
+import org.flexiblepower.efi.storage_cem_example.metrics.MetricsRegistry;
+import org.flexiblepower.efi.storage_cem_example.optimizer.Planner;
+import org.flexiblepower.efi.storage_cem_example.optimizer.PlanningService;
+import org.flexiblepower.efi.storage_cem_example.optimizer.PlanningService.PriceForecast;
+import org.flexiblepower.efi.storage_cem_example.replay.TraceWriter;
 import org.flexiblepower.efi.storage_cem_example.websocket.WebsocketClientEndpoint;
+import org.flexiblepower.efi.storage_cem_example.xml.ValidationPolicy;
 
 public class App {
 
-	public static void main(String[] args) {
-		if (args.length != 1) {
-			System.err.println("Usage: java App.class <websocket url>");
+	private static final Log LOG = Logging.get("app");
+
+	private static final long PLANNING_SLOT_MILLIS = 15 * 60 * 1000;
+	private static final int PLANNING_SLOTS = 96;
+	private static final long PLANNING_INTERVAL_MILLIS = 5000;
+	private static final long FLEET_SLOT_MILLIS = 60 * 1000;
+	private static final int FLEET_SLOTS = 60;
+	private static final long FLEET_REPORT_MILLIS = 15 * 60 * 1000;
+
+	public static void main(String[] arguments) {
+		final List<String> args = new ArrayList<>(Arrays.asList(arguments));
+		configureLogging(args);
+		final HistoryStore history = openHistory(args);
+		final MessageJournal journal = openJournal(args);
+		final TraceWriter trace = openTrace(args);
+		final boolean plan = args.remove("--plan");
+		final boolean headless = args.remove("--headless");
+		final boolean compact = args.remove("--compact");
+		final ValidationPolicy validation = parseValidation(args);
+		startMetrics(args);
+		final String apiPort = CommandLineOptions.removeOption(args, "--api");
+		final String apiToken = CommandLineOptions.removeOption(args, "--api-token");
+
+		if (args.size() == 2 && "--config".equals(args.get(0))) {
+			runMultiResource(args.get(1), history, journal, trace, plan, apiPort, apiToken, compact, validation);
+			return;
+		}
+		if (args.size() != 1) {
+			System.err.println("Usage: java App.class [options] <websocket url>");
+			System.err.println("   or: java App.class [options] --config <file with one websocket url per line>");
+			System.err.println("Options: --history <directory>  record the history of every resource");
+			System.err.println("         --journal <directory>  journal all messages and restore the state on restart");
+			System.err.println("         --record <file>        record all received messages, replay them with Replay.class");
+			System.err.println("         --plan                 plan the running modes automatically");
+			System.err.println("         --headless             run without the graphical user interface");
+			System.err.println("         --api <port>           serve the control API on http://localhost:<port>/resources");
+			System.err.println("         --api-token <token>    the token for instructions over the API, random by default");
+			System.err.println("         --compact              offer the compact binary encoding to the resource managers");
+			System.err.println("         --validate <modes>     validate the messages against the schema: off, sampled[:<n>]");
+			System.err.println("                                or strict, per resource like sampled:1000,rm-7=strict");
+			System.err.println("         --metrics <port>       serve metrics on http://localhost:<port>/metrics");
+			System.err.println("         --log <levels>         log levels, such as info,websocket=debug");
+			System.err.println("         --capture <id>         log all messages of a resource, * for all");
 			System.err.println("For example: java App.class ws://localhost:9090/storage");
 			System.exit(1);
 		}
@@ -20,19 +92,46 @@ public class App {
 			// create StorageModel
 			final EfiStorageModel storageModel = new EfiStorageModel();
 
-			// create UI
-			final UserInterface ui = new UserInterface(storageModel);
-			ui.setUp();
+			if (headless) {
+				// Make sure no AWT resources are used
+				System.setProperty("java.awt.headless", "true");
+			} else {
+				// create UI
+				final UserInterface ui = new UserInterface(storageModel);
+				ui.setUp();
+
+				// Register UI with StorageModel
+				storageModel.addListener(ui);
+			}
+			final InstructionLedger ledger = new InstructionLedger();
+			storageModel.addListener(ledger);
+			if (history != null) {
+				storageModel.addListener(new HistoryRecorder(history));
+			}
+			if (plan) {
+				startPlanning(() -> Collections.singleton(storageModel));
+			}
+			if (apiPort != null) {
+				startApi(() -> Collections.singleton(storageModel), null, apiPort, apiToken);
+			}
 
-			// Register UI with StorageModel
-			storageModel.addObserver(ui);
+			final URI uri = new URI(args.get(0));
+			if (journal != null) {
+				journal.restore(uri.toString(), storageModel);
+			}
 
-			// open websocket
-			final WebsocketClientEndpoint clientEndPoint = new WebsocketClientEndpoint(new URI(args[0]), storageModel);
+			// open websocket, it reconnects by itself when the connection is lost
+			final WebsocketClientEndpoint clientEndPoint = new WebsocketClientEndpoint(uri, storageModel, compact,
+					journal);
+			// Before the handshake has completed
+			clientEndPoint.setTrace(trace);
+			clientEndPoint.setValidation(validation);
+			logStarted();
 
-			// Wait until the application is killed
+			// Report the instruction latencies until the application is killed
 			while (true) {
 				Thread.sleep(10000);
+				logReport(ledger.report());
 			}
 
 		} catch (final InterruptedException ex) {
@@ -41,4 +140,252 @@ public class App {
 			System.err.println("URISyntaxException exception: " + ex.getMessage());
 		}
 	}
+
+	/**
+	 * Apply the --log and --capture options and remove them from the arguments.
+	 * The logging configuration can be changed later over JMX.
+	 */
+	private static void configureLogging(List<String> args) {
+		final Logging logging = Logging.getInstance();
+		final String levels = CommandLineOptions.removeOption(args, "--log");
+		if (levels != null) {
+			try {
+				logging.configure(levels);
+			} catch (final IllegalArgumentException ex) {
+				System.err.println("Invalid log levels " + levels + ": " + ex.getMessage());
+				System.exit(1);
+			}
+		}
+		final String capture = CommandLineOptions.removeOption(args, "--capture");
+		if (capture != null) {
+			logging.capturePayloads(capture);
+		}
+		try {
+			LoggingControl.register();
+		} catch (final JMException ex) {
+			LOG.warn("Could not register logging with JMX", "error", ex.getMessage());
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(logging::close));
+	}
+
+	private static void logReport(String report) {
+		for (final String line : report.split("\n")) {
+			if (!line.isEmpty()) {
+				LOG.info(line);
+			}
+		}
+	}
+
+	/**
+	 * Parse the --validate option and remove it from the arguments.
+	 *
+	 * @return The validation policy, or null if the option is absent
+	 */
+	private static ValidationPolicy parseValidation(List<String> args) {
+		final String modes = CommandLineOptions.removeOption(args, "--validate");
+		if (modes == null) {
+			return null;
+		}
+		try {
+			final ValidationPolicy validation = ValidationPolicy.parse(modes);
+			LOG.info("Validating messages", "modes", validation);
+			return validation;
+		} catch (final IllegalArgumentException ex) {
+			System.err.println("Invalid validation modes " + modes + ": " + ex.getMessage());
+			System.exit(1);
+			return null;
+		}
+	}
+
+	/**
+	 * Open the history store if the --history option is given, and remove the
+	 * option from the arguments.
+	 *
+	 * @return The store, or null if the option is absent
+	 */
+	private static HistoryStore openHistory(List<String> args) {
+		final String directory = CommandLineOptions.removeOption(args, "--history");
+		if (directory == null) {
+			return null;
+		}
+		try {
+			final HistoryStore history = new HistoryStore(Paths.get(directory), HistoryStore.DEFAULT_SEGMENT_CAPACITY);
+			Runtime.getRuntime().addShutdownHook(new Thread(history::close));
+			LOG.info("Loaded history", "resources", history.getResources().size(), "directory", directory);
+			return history;
+		} catch (final IOException ex) {
+			System.err.println("Could not open history: " + ex.getMessage());
+			System.exit(1);
+			return null;
+		}
+	}
+
+	/**
+	 * Open the message journal if the --journal option is given, and remove the
+	 * option from the arguments.
+	 *
+	 * @return The journal, or null if the option is absent
+	 */
+	private static MessageJournal openJournal(List<String> args) {
+		final String directory = CommandLineOptions.removeOption(args, "--journal");
+		if (directory == null) {
+			return null;
+		}
+		try {
+			final MessageJournal journal = new MessageJournal(Paths.get(directory));
+			Runtime.getRuntime().addShutdownHook(new Thread(journal::close));
+			return journal;
+		} catch (final IOException ex) {
+			System.err.println("Could not open journal: " + ex.getMessage());
+			System.exit(1);
+			return null;
+		}
+	}
+
+	/**
+	 * Create the trace if the --record option is given, and remove the option
+	 * from the arguments.
+	 *
+	 * @return The trace, or null if the option is absent
+	 */
+	private static TraceWriter openTrace(List<String> args) {
+		final String file = CommandLineOptions.removeOption(args, "--record");
+		if (file == null) {
+			return null;
+		}
+		try {
+			final TraceWriter trace = new TraceWriter(Paths.get(file));
+			Runtime.getRuntime().addShutdownHook(new Thread(trace::close));
+			LOG.info("Recording messages", "file", file);
+			return trace;
+		} catch (final IOException ex) {
+			System.err.println("Could not create trace: " + ex.getMessage());
+			System.exit(1);
+			return null;
+		}
+	}
+
+	/**
+	 * Register the metrics with JMX, and serve them over HTTP if the --metrics
+	 * option is given. The option is removed from the arguments.
+	 */
+	private static void startMetrics(List<String> args) {
+		final MetricsRegistry registry = MetricsRegistry.getDefault();
+		try {
+			MetricsMBean.register(registry);
+		} catch (final JMException ex) {
+			LOG.warn("Could not register metrics with JMX", "error", ex.getMessage());
+		}
+		final String port = CommandLineOptions.removeOption(args, "--metrics");
+		if (port == null) {
+			return;
+		}
+		try {
+			final MetricsHttpServer server = new MetricsHttpServer(registry, Integer.parseInt(port));
+			Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+			LOG.info("Serving metrics", "url", "http://localhost:" + server.getPort() + "/metrics");
+		} catch (final IOException | NumberFormatException ex) {
+			System.err.println("Could not serve metrics on port " + port + ": " + ex.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Serve the control API for the models on a port of the loopback interface.
+	 * Without a token a random one is generated and logged.
+	 */
+	private static void startApi(Supplier<? extends Collection<EfiStorageModel>> models, FleetAggregator fleet,
+			String port, String token) {
+		try {
+			final ControlApiServer server = token == null ? new ControlApiServer(models, Integer.parseInt(port))
+					: new ControlApiServer(models, Integer.parseInt(port), token);
+			server.setFleet(fleet);
+			Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+			if (token == null) {
+				LOG.info("Serving control API", "url", "http://localhost:" + server.getPort() + "/resources", "token",
+						server.getToken());
+			} else {
+				LOG.info("Serving control API", "url", "http://localhost:" + server.getPort() + "/resources");
+			}
+		} catch (final IOException | NumberFormatException ex) {
+			System.err.println("Could not serve the control API on port " + port + ": " + ex.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Log how long starting took and how much heap is used, to keep an eye on
+	 * the footprint of the application.
+	 */
+	private static void logStarted() {
+		final MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+		LOG.info("Started", "millis", ManagementFactory.getRuntimeMXBean().getUptime(), "heapUsedKiB",
+				heap.getUsed() / 1024, "threads", Thread.activeCount());
+	}
+
+	/**
+	 * Plan all models automatically for the next day in slots of a quarter of an
+	 * hour. There is no price source yet, so the price is the same in every slot.
+	 */
+	private static void startPlanning(Supplier<? extends Collection<EfiStorageModel>> models) {
+		final PlanningService planning = new PlanningService(models, PriceForecast.flat(1), new Planner(),
+				PLANNING_SLOT_MILLIS, PLANNING_SLOTS, Runtime.getRuntime().availableProcessors());
+		planning.start(PLANNING_INTERVAL_MILLIS);
+		Runtime.getRuntime().addShutdownHook(new Thread(planning::close));
+	}
+
+	/**
+	 * Manage all Resource Managers listed in a configuration file.
+	 */
+	private static void runMultiResource(String configFile, HistoryStore history, MessageJournal journal,
+			TraceWriter trace, boolean plan, String apiPort, String apiToken, boolean compact,
+			ValidationPolicy validation) {
+		final List<URI> uris;
+		try {
+			uris = ConnectionManager.readConfig(Paths.get(configFile));
+		} catch (final IOException ex) {
+			System.err.println("Could not read configuration file: " + ex.getMessage());
+			System.exit(1);
+			return;
+		}
+
+		final ResourceRegistry registry = new ResourceRegistry();
+		final InstructionLedger ledger = new InstructionLedger();
+		registry.addListener(ledger);
+		final FleetAggregator fleet = new FleetAggregator(FLEET_SLOT_MILLIS, FLEET_SLOTS);
+		registry.addListener(fleet);
+		if (history != null) {
+			registry.addListener(new HistoryRecorder(history));
+		}
+		if (plan) {
+			startPlanning(registry::getModels);
+		}
+		if (apiPort != null) {
+			startApi(registry::getModels, fleet, apiPort, apiToken);
+		}
+		try (final ConnectionManager connectionManager = new ConnectionManager(registry,
+				Runtime.getRuntime().availableProcessors())) {
+			connectionManager.setCompactEncodingOffered(compact);
+			connectionManager.setJournal(journal);
+			connectionManager.setTrace(trace);
+			connectionManager.setValidation(validation);
+			connectionManager.open(uris);
+			logStarted();
+
+			// Report progress until the application is killed
+			while (true) {
+				Thread.sleep(10000);
+				LOG.info("Connections", "open", connectionManager.getOpenConnectionCount(), "configured", uris.size(),
+						"registered", registry.size());
+				final FleetFlexibility flexibility = fleet.getFlexibility();
+				LOG.info("Fleet flexibility for the next 15 minutes", "devices", flexibility.getDeviceCount(),
+						"baselineWatts", Math.round(flexibility.getBaselinePower()), "upWatts",
+						Math.round(flexibility.getSustainableUpPower(FLEET_REPORT_MILLIS)), "downWatts",
+						Math.round(flexibility.getSustainableDownPower(FLEET_REPORT_MILLIS)));
+				logReport(ledger.report());
+			}
+		} catch (final InterruptedException ex) {
+			System.err.println("InterruptedException exception: " + ex.getMessage());
+		}
+	}
 }
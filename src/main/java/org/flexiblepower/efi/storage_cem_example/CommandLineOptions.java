@@ -0,0 +1,34 @@
+package org.flexiblepower.efi.storage_cem_example;
+
+import java.util.List;
+
+/**
+ * Parsing of the command line options which the main classes have in common.
+ * Invalid options end the application with a message, like the usage of each
+ * main class does.
+ */
+public final class CommandLineOptions {
+
+	private CommandLineOptions() {
+	}
+
+	/**
+	 * Remove an option and its value from the arguments.
+	 *
+	 * @return The value, or null if the option is absent
+	 */
+	public static String removeOption(List<String> args, String option) {
+		final int index = args.indexOf(option);
+		if (index < 0) {
+			return null;
+		}
+		if (index + 1 >= args.size()) {
+			System.err.println("Missing value after " + option);
+			System.exit(1);
+		}
+		final String value = args.remove(index + 1);
+		args.remove(index);
+		return value;
+	}
+
+}
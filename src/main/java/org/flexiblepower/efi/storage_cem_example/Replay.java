@@ -0,0 +1,107 @@
+package org.flexiblepower.efi.storage_cem_example;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageModel;
+import org.flexiblepower.efi.storage_cem_example.fleet.FleetAggregator;
+import org.flexiblepower.efi.storage_cem_example.fleet.FleetFlexibility;
+import org.flexiblepower.efi.storage_cem_example.log.Log;
+import org.flexiblepower.efi.storage_cem_example.log.Logging;
+import org.flexiblepower.efi.storage_cem_example.replay.TraceReader;
+import org.flexiblepower.efi.storage_cem_example.replay.TraceReplayer;
+
+/**
+ * Replays a trace recorded with the --record option of {@link App} into fresh
+ * models, to reproduce a session or to measure how fast the models handle it.
+ */
+public class Replay {
+
+	private static final Log LOG = Logging.get("replay");
+
+	private static final long FLEET_SLOT_MILLIS = 60 * 1000;
+	private static final int FLEET_SLOTS = 60;
+	private static final long FLEET_REPORT_MILLIS = 15 * 60 * 1000;
+
+	public static void main(String[] arguments) throws InterruptedException {
+		final List<String> args = new ArrayList<>(Arrays.asList(arguments));
+		final boolean fleet = args.remove("--fleet");
+		final String levels = CommandLineOptions.removeOption(args, "--log");
+		final String speed = CommandLineOptions.removeOption(args, "--speed");
+		final String repeat = CommandLineOptions.removeOption(args, "--repeat");
+		if (args.size() != 1) {
+			System.err.println("Usage: java Replay.class [options] <trace>");
+			System.err.println("Options: --speed <factor>  replay paced at this many times the recorded speed,");
+			System.err.println("                           as fast as possible by default");
+			System.err.println("         --repeat <n>      replay the trace n times, into new models every time");
+			System.err.println("         --fleet           aggregate the flexibility of the models");
+			System.err.println("         --log <levels>    log levels, such as info,replay=debug");
+			System.exit(1);
+		}
+		if (levels != null) {
+			try {
+				Logging.getInstance().configure(levels);
+			} catch (final IllegalArgumentException ex) {
+				System.err.println("Invalid log levels " + levels + ": " + ex.getMessage());
+				System.exit(1);
+			}
+		}
+		final double factor;
+		final int times;
+		try {
+			factor = speed == null ? Double.POSITIVE_INFINITY : Double.parseDouble(speed);
+			times = repeat == null ? 1 : Integer.parseInt(repeat);
+		} catch (final NumberFormatException ex) {
+			System.err.println("Invalid number: " + ex.getMessage());
+			System.exit(1);
+			return;
+		}
+
+		try {
+			for (int i = 0; i < times; i++) {
+				replay(args.get(0), factor, fleet);
+			}
+		} catch (final IOException | IllegalArgumentException ex) {
+			System.err.println("Could not replay " + args.get(0) + ": " + ex.getMessage());
+			System.exit(1);
+		} finally {
+			Logging.getInstance().close();
+		}
+	}
+
+	private static void replay(String file, double speed, boolean fleet) throws IOException, InterruptedException {
+		final TraceReplayer replayer = new TraceReplayer();
+		final FleetAggregator aggregator = fleet ? new FleetAggregator(FLEET_SLOT_MILLIS, FLEET_SLOTS) : null;
+		if (aggregator != null) {
+			replayer.addListener(aggregator);
+		}
+		final long start = System.nanoTime();
+		try (TraceReader reader = new TraceReader(Paths.get(file))) {
+			replayer.replay(reader, speed);
+		}
+		final double seconds = (System.nanoTime() - start) / 1e9;
+		LOG.info("Replayed", "file", file, "messages", replayer.getMessageCount(), "connections",
+				replayer.getModels().size(), "seconds", String.format("%.3f", seconds), "messagesPerSecond",
+				Math.round(replayer.getMessageCount() / seconds), "decodeErrors", replayer.getDecodeErrorCount());
+		LOG.info("Decode latency in microseconds", "histogram", replayer.getDecodeLatency());
+		LOG.info("Handle latency in microseconds", "histogram", replayer.getHandleLatency());
+		int registered = 0;
+		for (final EfiStorageModel model : replayer.getModels().values()) {
+			if (model.getState().getStorageSystemDescription() != null) {
+				registered++;
+			}
+		}
+		LOG.info("Models", "withSystemDescription", registered);
+		if (aggregator != null) {
+			final FleetFlexibility flexibility = aggregator.getFlexibility();
+			LOG.info("Fleet flexibility for the next 15 minutes", "devices", flexibility.getDeviceCount(),
+					"baselineWatts", Math.round(flexibility.getBaselinePower()), "upWatts",
+					Math.round(flexibility.getSustainableUpPower(FLEET_REPORT_MILLIS)), "downWatts",
+					Math.round(flexibility.getSustainableDownPower(FLEET_REPORT_MILLIS)));
+		}
+	}
+
+}
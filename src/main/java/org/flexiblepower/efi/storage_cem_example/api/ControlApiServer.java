@@ -0,0 +1,520 @@
+package org.flexiblepower.efi.storage_cem_example.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageModel;
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageState;
+import org.flexiblepower.efi.storage_cem_example.fleet.FleetAggregator;
+import org.flexiblepower.efi.storage_cem_example.fleet.FleetFlexibility;
+import org.flexiblepower.efi.storage_cem_example.log.Log;
+import org.flexiblepower.efi.storage_cem_example.log.Logging;
+import org.flexiblepower.efi.storage_cem_example.xml.MeasurementView;
+import org.flexiblepower.efi.xml.ActuatorBehaviour;
+import org.flexiblepower.efi.xml.RunningMode;
+import org.flexiblepower.efi.xml.StorageContinuousRunningMode;
+import org.flexiblepower.efi.xml.Transition;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Small HTTP/JSON API to inspect and control the storages without the
+ * graphical user interface. Like the
+ * {@link org.flexiblepower.efi.storage_cem_example.metrics.MetricsHttpServer
+ * metrics server} it only listens on the loopback interface and uses a single
+ * thread of its own.
+ *
+ * <ul>
+ * <li>{@code GET /resources} lists the IDs of all registered resources</li>
+ * <li>{@code GET /resources/<id>} returns the fill level, power and the
+ * running modes of every actuator with their status</li>
+ * <li>{@code GET /resources/<id>/actuators/<actuatorId>} returns the running
+ * modes of one actuator</li>
+ * <li>{@code POST /resources/<id>/actuators/<actuatorId>/running-modes/<runningModeId>/activate}
+ * instructs the Resource Manager to activate a running mode; a continuous
+ * running mode needs a {@code factor} query parameter from 0 to 1</li>
+ * <li>{@code GET /fleet} returns the power up and down the whole fleet can
+ * deliver in every slot of the horizon of the {@link FleetAggregator}, if one
+ * has been set</li>
+ * </ul>
+ *
+ * The status of a running mode is {@code active}, {@code reachable},
+ * {@code blocked} (by a timer, until {@code blockedUntil}),
+ * {@code unreachable} (there is no transition from the active running mode,
+ * {@code reachableAt} tells when it can be reached through other running modes)
+ * or {@code unknown} (no StorageStatus has been received yet). Only reachable
+ * running modes can be activated, and a continuous running mode which is
+ * active can get a new factor. Errors are returned as
+ * {@code {"error":"..."}} with status 400, 401, 403, 404, 405, 409 or 503.
+ *
+ * Listening on the loopback interface does not keep out web pages in a
+ * browser on the same machine, so requests with a Host other than the
+ * loopback interface (DNS rebinding) or with an Origin of another site are
+ * rejected with 403. Instructions must carry the token of the server in an
+ * {@code Authorization: Bearer <token>} header, otherwise they are rejected
+ * with 401.
+ *
+ * A resource can only be addressed after its Resource Manager has sent a
+ * StorageRegistration.
+ */
+public class ControlApiServer implements Closeable {
+
+	private static final Log LOG = Logging.get("api");
+
+	private static final String JSON = "application/json; charset=utf-8";
+
+	private final Supplier<? extends Collection<EfiStorageModel>> models;
+	private final String token;
+	private final byte[] authorization;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private volatile FleetAggregator fleet;
+
+	/**
+	 * Serve the API with a random token.
+	 *
+	 * @see #ControlApiServer(Supplier, int, String)
+	 * @see #getToken()
+	 */
+	public ControlApiServer(Supplier<? extends Collection<EfiStorageModel>> models, int port) throws IOException {
+		this(models, port, randomToken());
+	}
+
+	/**
+	 * @param models
+	 *            Supplies the models which can be controlled, asked again on
+	 *            every request
+	 * @param port
+	 *            The port to listen on, or 0 for any free port
+	 * @param token
+	 *            The token which instructions must carry
+	 */
+	public ControlApiServer(Supplier<? extends Collection<EfiStorageModel>> models, int port, String token)
+			throws IOException {
+		if (token == null || token.isEmpty()) {
+			throw new IllegalArgumentException("The API token must not be empty");
+		}
+		this.models = models;
+		this.token = token;
+		this.authorization = ("Bearer " + token).getBytes(StandardCharsets.UTF_8);
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		this.server.createContext("/resources", this::handle);
+		this.server.createContext("/fleet", this::handle);
+		this.executor = Executors.newSingleThreadExecutor(r -> {
+			final Thread t = new Thread(r, "efi-api");
+			t.setDaemon(true);
+			return t;
+		});
+		this.server.setExecutor(this.executor);
+		this.server.start();
+	}
+
+	/**
+	 * Serve the flexibility of the fleet from this aggregator on /fleet.
+	 */
+	public void setFleet(FleetAggregator fleet) {
+		this.fleet = fleet;
+	}
+
+	private static String randomToken() {
+		final byte[] bytes = new byte[24];
+		new SecureRandom().nextBytes(bytes);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			Response response = this.authorize(exchange);
+			if (response == null) {
+				response = this.route(exchange.getRequestMethod(), exchange.getRequestURI().getRawPath(),
+						query(exchange.getRequestURI().getRawQuery()));
+			}
+			final byte[] body = response.body.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", JSON);
+			exchange.sendResponseHeaders(response.status, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		} catch (final RuntimeException e) {
+			LOG.error("Error while handling API request", e, "path", exchange.getRequestURI());
+			exchange.sendResponseHeaders(500, -1);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * @return The error response if the request is not allowed, or null
+	 */
+	private Response authorize(HttpExchange exchange) {
+		if (!isLoopbackHost(exchange.getRequestHeaders().getFirst("Host"))) {
+			LOG.warn("Rejected API request for another host", "host", exchange.getRequestHeaders().getFirst("Host"));
+			return Response.error(403, "Unknown host");
+		}
+		final String origin = exchange.getRequestHeaders().getFirst("Origin");
+		if (origin != null && !isLoopbackOrigin(origin)) {
+			LOG.warn("Rejected API request from another site", "origin", origin);
+			return Response.error(403, "Cross-origin requests are not allowed");
+		}
+		if (!"GET".equals(exchange.getRequestMethod())) {
+			final String header = exchange.getRequestHeaders().getFirst("Authorization");
+			if (header == null
+					|| !MessageDigest.isEqual(this.authorization, header.getBytes(StandardCharsets.UTF_8))) {
+				LOG.warn("Rejected API request without a valid token", "path", exchange.getRequestURI().getRawPath());
+				return Response.error(401, "Missing or invalid token");
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param host
+	 *            The Host header, with or without a port
+	 * @return true if the host is the loopback interface
+	 */
+	static boolean isLoopbackHost(String host) {
+		if (host == null) {
+			return false;
+		}
+		final String name;
+		if (host.startsWith("[")) {
+			final int end = host.indexOf(']');
+			name = end < 0 ? host : host.substring(1, end);
+		} else {
+			final int colon = host.indexOf(':');
+			name = colon < 0 ? host : host.substring(0, colon);
+		}
+		return "localhost".equalsIgnoreCase(name) || "127.0.0.1".equals(name) || "::1".equals(name);
+	}
+
+	/**
+	 * @return true if the Origin header is a site on the loopback interface
+	 */
+	static boolean isLoopbackOrigin(String origin) {
+		try {
+			final URI uri = new URI(origin);
+			return ("http".equals(uri.getScheme()) || "https".equals(uri.getScheme()))
+					&& isLoopbackHost(uri.getRawAuthority());
+		} catch (final URISyntaxException e) {
+			return false;
+		}
+	}
+
+	private static Map<String, String> query(String rawQuery) {
+		final Map<String, String> result = new HashMap<>();
+		if (rawQuery == null) {
+			return result;
+		}
+		for (final String parameter : rawQuery.split("&")) {
+			final int eq = parameter.indexOf('=');
+			try {
+				if (eq < 0) {
+					result.put(URLDecoder.decode(parameter, "UTF-8"), "");
+				} else {
+					result.put(URLDecoder.decode(parameter.substring(0, eq), "UTF-8"),
+							URLDecoder.decode(parameter.substring(eq + 1), "UTF-8"));
+				}
+			} catch (final IOException | IllegalArgumentException e) {
+				// Ignore malformed parameters
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param path
+	 *            The raw path, starting with /resources or /fleet
+	 */
+	Response route(String method, String path, Map<String, String> query) {
+		final String[] parts = path.split("/");
+		if (parts.length == 2 && "fleet".equals(parts[1])) {
+			return "GET".equals(method) ? this.fleet() : Response.methodNotAllowed();
+		}
+		// parts[0] is empty and parts[1] is "resources"
+		if (parts.length < 2 || !"resources".equals(parts[1])) {
+			return Response.error(404, "Unknown path " + path);
+		}
+		if (parts.length == 2) {
+			return "GET".equals(method) ? this.resources() : Response.methodNotAllowed();
+		}
+		final EfiStorageModel model;
+		try {
+			model = this.find(URLDecoder.decode(parts[2], "UTF-8"));
+		} catch (final IOException | IllegalArgumentException e) {
+			return Response.error(400, "Invalid resource ID " + parts[2]);
+		}
+		if (model == null) {
+			return Response.error(404, "Unknown resource " + parts[2]);
+		}
+		if (parts.length == 3) {
+			return "GET".equals(method) ? new Response(200, state(model.getState())) : Response.methodNotAllowed();
+		}
+		if (parts.length < 5 || !"actuators".equals(parts[3])) {
+			return Response.error(404, "Unknown path " + path);
+		}
+		final int actuatorId;
+		try {
+			actuatorId = Integer.parseInt(parts[4]);
+		} catch (final NumberFormatException e) {
+			return Response.error(400, "Invalid actuator ID " + parts[4]);
+		}
+		final EfiStorageState state = model.getState();
+		if (state.getActuatorBehaviourById(actuatorId) == null) {
+			return Response.error(404, "Unknown actuator " + actuatorId);
+		}
+		if (parts.length == 5) {
+			if (!"GET".equals(method)) {
+				return Response.methodNotAllowed();
+			}
+			final StringBuilder sb = new StringBuilder();
+			actuator(sb, state, state.getActuatorBehaviourById(actuatorId));
+			return new Response(200, sb.toString());
+		}
+		if (parts.length == 8 && "running-modes".equals(parts[5]) && "activate".equals(parts[7])) {
+			if (!"POST".equals(method)) {
+				return Response.methodNotAllowed();
+			}
+			try {
+				return activate(model, state, actuatorId, Integer.parseInt(parts[6]), query.get("factor"));
+			} catch (final NumberFormatException e) {
+				return Response.error(400, "Invalid running mode ID " + parts[6]);
+			}
+		}
+		return Response.error(404, "Unknown path " + path);
+	}
+
+	private EfiStorageModel find(String efiResourceId) {
+		for (final EfiStorageModel model : this.models.get()) {
+			if (efiResourceId.equals(model.getState().getEfiResourceId())) {
+				return model;
+			}
+		}
+		return null;
+	}
+
+	private Response resources() {
+		final StringBuilder sb = new StringBuilder("[");
+		for (final EfiStorageModel model : this.models.get()) {
+			final String efiResourceId = model.getState().getEfiResourceId();
+			if (efiResourceId != null) {
+				if (sb.length() > 1) {
+					sb.append(',');
+				}
+				Json.string(sb, efiResourceId);
+			}
+		}
+		return new Response(200, sb.append(']').toString());
+	}
+
+	private Response fleet() {
+		final FleetAggregator aggregator = this.fleet;
+		if (aggregator == null) {
+			return Response.error(404, "The flexibility of the fleet is not aggregated");
+		}
+		final FleetFlexibility flexibility = aggregator.getFlexibility();
+		final StringBuilder sb = new StringBuilder("{");
+		Json.string(Json.name(sb, "start"), Instant.ofEpochMilli(flexibility.getStartMillis()).toString());
+		Json.name(sb, "slotMillis").append(flexibility.getSlotMillis());
+		Json.number(Json.name(sb, "devices"), flexibility.getDeviceCount());
+		Json.number(Json.name(sb, "baselinePower"), flexibility.getBaselinePower());
+		Json.name(sb, "up").append('[');
+		for (int s = 0; s < flexibility.getSlotCount(); s++) {
+			Json.number(s == 0 ? sb : sb.append(','), flexibility.getUpPower(s));
+		}
+		Json.name(sb.append(']'), "down").append('[');
+		for (int s = 0; s < flexibility.getSlotCount(); s++) {
+			Json.number(s == 0 ? sb : sb.append(','), flexibility.getDownPower(s));
+		}
+		return new Response(200, sb.append("]}").toString());
+	}
+
+	private static Response activate(EfiStorageModel model, EfiStorageState state, int actuatorId,
+			int runningModeId, String factorParameter) {
+		final RunningMode runningMode = state.getRunningMode(actuatorId, runningModeId);
+		if (runningMode == null) {
+			return Response.error(404, "Unknown running mode " + runningModeId);
+		}
+		final boolean continuous = runningMode instanceof StorageContinuousRunningMode;
+		double factor = Double.NaN;
+		if (continuous) {
+			try {
+				factor = factorParameter == null ? Double.NaN : Double.parseDouble(factorParameter);
+			} catch (final NumberFormatException e) {
+				// Reported below
+			}
+			if (!(factor >= 0 && factor <= 1)) {
+				return Response.error(400, "A continuous running mode needs a factor from 0 to 1");
+			}
+		} else if (factorParameter != null) {
+			return Response.error(400, "A discrete running mode has no factor");
+		}
+		final Status status = status(state, actuatorId, runningModeId);
+		if (status != Status.REACHABLE && !(continuous && status == Status.ACTIVE)) {
+			return Response.error(409, "Running mode " + runningModeId + " is " + status.label);
+		}
+		final boolean queued;
+		try {
+			queued = continuous ? model.activateContinuousRunningMode(actuatorId, runningModeId, factor)
+					: model.activateDiscreteRunningMode(actuatorId, runningModeId);
+		} catch (final IllegalStateException e) {
+			return Response.error(409, e.getMessage());
+		} catch (final IllegalArgumentException e) {
+			return Response.error(400, e.getMessage());
+		}
+		if (!queued) {
+			return Response.error(503, "The instruction could not be queued for sending");
+		}
+		LOG.info("Instructed over API", "resource", state.getEfiResourceId(), "actuator", actuatorId,
+				"runningMode", runningModeId, "factor", factor);
+		return new Response(202, "{\"instructed\":true}");
+	}
+
+	static String state(EfiStorageState state) {
+		final StringBuilder sb = new StringBuilder("{");
+		Json.string(Json.name(sb, "efiResourceId"), state.getEfiResourceId());
+		Json.string(Json.name(sb, "lastMessage"),
+				state.getLastMessageType() == null ? null : state.getLastMessageType().getSimpleName());
+		Json.number(Json.name(sb, "fillLevel"), state.getFillLevel());
+		final MeasurementView measurement = state.getLastMeasurement();
+		final boolean power = measurement != null && measurement.hasElectricityMeasurement();
+		Json.number(Json.name(sb, "power"), power ? measurement.getPower() : null);
+		Json.string(Json.name(sb, "measuredAt"),
+				power ? Instant.ofEpochMilli(measurement.getMeasurementTimestamp()).toString() : null);
+		Json.name(sb, "actuators").append('[');
+		final List<ActuatorBehaviour> actuators = state.getActuatorBehaviours();
+		if (actuators != null) {
+			for (int i = 0; i < actuators.size(); i++) {
+				if (i > 0) {
+					sb.append(',');
+				}
+				actuator(sb, state, actuators.get(i));
+			}
+		}
+		return sb.append("]}").toString();
+	}
+
+	private static void actuator(StringBuilder sb, EfiStorageState state, ActuatorBehaviour actuator) {
+		final int actuatorId = actuator.getActuatorId();
+		sb.append('{');
+		sb.append("\"id\":").append(actuatorId);
+		Json.number(Json.name(sb, "activeRunningMode"), state.getActiveRunningMode(actuatorId));
+		Json.number(Json.name(sb, "runningModeFactor"), state.getRunningModeFactor(actuatorId));
+		Json.name(sb, "runningModes").append('[');
+		final List<RunningMode> runningModes = state.getRunningModes(actuatorId);
+		for (int i = 0; i < runningModes.size(); i++) {
+			final RunningMode rm = runningModes.get(i);
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append("{\"id\":").append(rm.getId());
+			Json.string(Json.name(sb, "label"), rm.getLabel());
+			Json.string(Json.name(sb, "type"),
+					rm instanceof StorageContinuousRunningMode ? "continuous" : "discrete");
+			final Status status = status(state, actuatorId, rm.getId());
+			Json.string(Json.name(sb, "status"), status.label);
+			if (status == Status.BLOCKED) {
+				final Transition transition = state.getTransition(actuatorId, state.getActiveRunningMode(actuatorId),
+						rm.getId());
+				Json.string(Json.name(sb, "blockedUntil"),
+						Instant.ofEpochMilli(state.transitionBlockedUntilMillis(actuatorId, transition)).toString());
+			} else if (status == Status.UNREACHABLE) {
+				final long reachableAt = state.earliestReachableMillis(actuatorId, rm.getId());
+				if (reachableAt != Long.MAX_VALUE) {
+					Json.string(Json.name(sb, "reachableAt"), Instant.ofEpochMilli(reachableAt).toString());
+				}
+			}
+			sb.append('}');
+		}
+		sb.append("]}");
+	}
+
+	/**
+	 * Whether a running mode can be activated from the active running mode, the
+	 * same way the graphical user interface decides it.
+	 */
+	private static Status status(EfiStorageState state, int actuatorId, int runningModeId) {
+		final Integer active = state.getActiveRunningMode(actuatorId);
+		if (active == null) {
+			return Status.UNKNOWN;
+		}
+		if (active == runningModeId) {
+			return Status.ACTIVE;
+		}
+		final Transition transition = state.getTransition(actuatorId, active, runningModeId);
+		if (transition == null) {
+			return Status.UNREACHABLE;
+		}
+		return state.isTransitionBlocked(actuatorId, transition) ? Status.BLOCKED : Status.REACHABLE;
+	}
+
+	/**
+	 * @return The token which instructions must carry
+	 */
+	public String getToken() {
+		return this.token;
+	}
+
+	/**
+	 * @return The port the server listens on, useful when it was created with
+	 *         port 0
+	 */
+	public int getPort() {
+		return this.server.getAddress().getPort();
+	}
+
+	@Override
+	public void close() {
+		this.server.stop(0);
+		this.executor.shutdown();
+	}
+
+	private enum Status {
+		ACTIVE("active"), REACHABLE("reachable"), BLOCKED("blocked"), UNREACHABLE("unreachable"), UNKNOWN("unknown");
+
+		private final String label;
+
+		Status(String label) {
+			this.label = label;
+		}
+	}
+
+	static final class Response {
+		final int status;
+		final String body;
+
+		Response(int status, String body) {
+			this.status = status;
+			this.body = body;
+		}
+
+		static Response error(int status, String message) {
+			final StringBuilder sb = new StringBuilder("{");
+			Json.string(Json.name(sb, "error"), message);
+			return new Response(status, sb.append('}').toString());
+		}
+
+		static Response methodNotAllowed() {
+			return error(405, "Method not allowed");
+		}
+	}
+
+}
@@ -0,0 +1,71 @@
+package org.flexiblepower.efi.storage_cem_example.api;
+
+/**
+ * Just enough JSON writing for the control API, so no JSON library has to be
+ * loaded.
+ */
+final class Json {
+
+	private Json() {
+	}
+
+	static StringBuilder string(StringBuilder sb, String value) {
+		if (value == null) {
+			return sb.append("null");
+		}
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		return sb.append('"');
+	}
+
+	/**
+	 * Append a number, or null if it is unknown or not finite.
+	 */
+	static StringBuilder number(StringBuilder sb, Double value) {
+		if (value == null || value.isNaN() || value.isInfinite()) {
+			return sb.append("null");
+		}
+		return sb.append(value.doubleValue());
+	}
+
+	static StringBuilder number(StringBuilder sb, Integer value) {
+		return value == null ? sb.append("null") : sb.append(value.intValue());
+	}
+
+	/**
+	 * Append the name of a field, preceded by a comma unless it is the first
+	 * field of an object.
+	 */
+	static StringBuilder name(StringBuilder sb, String name) {
+		if (sb.charAt(sb.length() - 1) != '{') {
+			sb.append(',');
+		}
+		return string(sb, name).append(':');
+	}
+
+}
@@ -0,0 +1,219 @@
+package org.flexiblepower.efi.storage_cem_example.cem;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.websocket.ContainerProvider;
+import javax.websocket.WebSocketContainer;
+
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageModel;
+import org.flexiblepower.efi.storage_cem_example.journal.MessageJournal;
+import org.flexiblepower.efi.storage_cem_example.replay.TraceWriter;
+import org.flexiblepower.efi.storage_cem_example.websocket.WebsocketClientEndpoint;
+import org.flexiblepower.efi.storage_cem_example.xml.ValidationPolicy;
+
+/**
+ * Opens and maintains the WebSocket connections to many Resource Managers.
+ *
+ * All connections share one WebSocket container. Incoming messages are handled
+ * by a fixed pool of worker threads instead of the container threads. Every
+ * connection has its own {@link SerialExecutor} on top of that pool, so the
+ * messages of one Resource Manager are handled in order, and a slow Resource
+ * Manager does not hold up the others. Outgoing messages are serialized and
+ * sent on the same pool.
+ *
+ * Connections are opened in the background by a small pool of connect
+ * threads. Every endpoint reconnects by itself with a jittered exponential
+ * backoff when connecting fails or the connection is lost.
+ *
+ * The compact encoding can be offered to all Resource Managers, every
+ * connection uses it only if its Resource Manager selects it.
+ *
+ * With a {@link MessageJournal}, the model of every connection is first
+ * restored from the journal, on the thread which handles its messages, and
+ * the messages of the connection are journaled from then on. With a
+ * {@link TraceWriter}, the messages of all connections are recorded in one
+ * trace.
+ */
+public class ConnectionManager implements Closeable {
+
+	private static final int CONNECT_THREADS = 8;
+
+	private final ResourceRegistry registry;
+	private final WebSocketContainer container;
+	private final ExecutorService workers;
+	private final ScheduledExecutorService connectors;
+	private final List<WebsocketClientEndpoint> endpoints = new CopyOnWriteArrayList<>();
+	private volatile boolean compactEncodingOffered = false;
+	private volatile MessageJournal journal;
+	private volatile TraceWriter trace;
+	private volatile ValidationPolicy validation;
+
+	/**
+	 * @param registry
+	 *            The registry in which the model of every connection is tracked
+	 * @param workerThreads
+	 *            The number of threads which handle incoming messages
+	 */
+	public ConnectionManager(ResourceRegistry registry, int workerThreads) {
+		this.registry = registry;
+		this.container = ContainerProvider.getWebSocketContainer();
+		this.workers = Executors.newFixedThreadPool(workerThreads, namedThreads("efi-worker"));
+		this.connectors = Executors.newScheduledThreadPool(CONNECT_THREADS, namedThreads("efi-connect"));
+	}
+
+	private static ThreadFactory namedThreads(String prefix) {
+		final AtomicInteger counter = new AtomicInteger();
+		return r -> {
+			final Thread t = new Thread(r, prefix + "-" + counter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	/**
+	 * Read the WebSocket URLs of the Resource Managers from a configuration file.
+	 * The file contains one URL per line. Empty lines and lines starting with #
+	 * are ignored.
+	 *
+	 * @param file
+	 *            The configuration file
+	 * @return The URLs in the file
+	 * @throws IOException
+	 *             When the file could not be read or contains an invalid URL
+	 */
+	public static List<URI> readConfig(Path file) throws IOException {
+		final List<URI> uris = new ArrayList<>();
+		int lineNumber = 0;
+		for (final String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+			lineNumber++;
+			final String trimmed = line.trim();
+			if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+				continue;
+			}
+			try {
+				uris.add(new URI(trimmed));
+			} catch (final URISyntaxException e) {
+				throw new IOException("Invalid URL on line " + lineNumber + " of " + file + ": " + e.getMessage(), e);
+			}
+		}
+		return uris;
+	}
+
+	/**
+	 * Offer the compact encoding to the Resource Managers which are opened
+	 * afterwards.
+	 *
+	 * @see WebsocketClientEndpoint#setCompactEncodingOffered(boolean)
+	 */
+	public void setCompactEncodingOffered(boolean offered) {
+		this.compactEncodingOffered = offered;
+	}
+
+	/**
+	 * Restore the models of the Resource Managers which are opened afterwards
+	 * from a journal, and journal their messages.
+	 *
+	 * @param journal
+	 *            The journal, or null
+	 */
+	public void setJournal(MessageJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Record the messages of the Resource Managers which are opened afterwards.
+	 *
+	 * @param trace
+	 *            The trace, or null
+	 */
+	public void setTrace(TraceWriter trace) {
+		this.trace = trace;
+	}
+
+	/**
+	 * Validate the incoming messages of the Resource Managers which are opened
+	 * afterwards.
+	 *
+	 * @param validation
+	 *            The validation mode of every resource, or null
+	 */
+	public void setValidation(ValidationPolicy validation) {
+		this.validation = validation;
+	}
+
+	/**
+	 * Create a model for every URL and connect to it in the background.
+	 *
+	 * @param uris
+	 *            The WebSocket URLs of the Resource Managers
+	 */
+	public void open(List<URI> uris) {
+		final List<WebsocketClientEndpoint> newEndpoints = new ArrayList<>(uris.size());
+		for (final URI uri : uris) {
+			final EfiStorageModel model = new EfiStorageModel();
+			this.registry.track(model);
+			final SerialExecutor inbound = new SerialExecutor(this.workers);
+			final WebsocketClientEndpoint endpoint = new WebsocketClientEndpoint(uri, model, this.container, inbound,
+					this.workers, this.connectors);
+			endpoint.setCompactEncodingOffered(this.compactEncodingOffered);
+			endpoint.setTrace(this.trace);
+			endpoint.setValidation(this.validation);
+			final MessageJournal journal = this.journal;
+			if (journal != null) {
+				endpoint.setJournal(journal);
+				// Before any message of the Resource Manager
+				inbound.execute(() -> journal.restore(uri.toString(), model));
+			}
+			newEndpoints.add(endpoint);
+		}
+		this.endpoints.addAll(newEndpoints);
+		for (final WebsocketClientEndpoint endpoint : newEndpoints) {
+			endpoint.start();
+		}
+	}
+
+	/**
+	 * @return All endpoints managed by this ConnectionManager
+	 */
+	public List<WebsocketClientEndpoint> getEndpoints() {
+		return Collections.unmodifiableList(this.endpoints);
+	}
+
+	/**
+	 * @return The number of connections which are currently open
+	 */
+	public int getOpenConnectionCount() {
+		int open = 0;
+		for (final WebsocketClientEndpoint endpoint : this.endpoints) {
+			if (endpoint.isOpen()) {
+				open++;
+			}
+		}
+		return open;
+	}
+
+	@Override
+	public void close() {
+		for (final WebsocketClientEndpoint endpoint : this.endpoints) {
+			endpoint.close();
+		}
+		this.connectors.shutdownNow();
+		this.workers.shutdown();
+	}
+
+}
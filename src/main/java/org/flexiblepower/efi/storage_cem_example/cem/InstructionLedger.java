@@ -0,0 +1,245 @@
+package org.flexiblepower.efi.storage_cem_example.cem;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageListener;
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageState;
+import org.flexiblepower.efi.storage_cem_example.metrics.LatencyHistogram;
+import org.flexiblepower.efi.xml.EfiMessage.Header;
+import org.flexiblepower.efi.xml.InstructionStatus;
+import org.flexiblepower.efi.xml.InstructionStatusUpdate;
+import org.flexiblepower.efi.xml.StorageInstruction;
+
+/**
+ * Follows every StorageInstruction from the moment it is sent until the
+ * Resource Manager reports that it has succeeded, was rejected or was
+ * aborted. Add the ledger as a listener to every model, for example through
+ * {@link ResourceRegistry#addListener(EfiStorageListener)}.
+ *
+ * For every resource the ledger keeps two latency histograms in
+ * milliseconds: from sending until the first InstructionStatusUpdate
+ * (whatever its status), and from sending until the STARTED status. Latencies
+ * are measured with the local clock when the messages are sent and handled,
+ * so clock differences with the Resource Manager do not matter.
+ *
+ * Instructions which are not finished are kept up to a maximum number per
+ * resource; the oldest are forgotten first and counted as unanswered. An
+ * instruction which was never sent, because it was rejected or replaced
+ * while it waited, is not followed at all.
+ */
+public class InstructionLedger implements EfiStorageListener {
+
+	public static final int DEFAULT_MAX_OPEN_INSTRUCTIONS = 1024;
+	/** One hour, longer latencies are counted as one hour */
+	public static final long HIGHEST_TRACKABLE_LATENCY_MILLIS = 60 * 60 * 1000;
+
+	private static final String UNKNOWN_RESOURCE = "";
+
+	private final LongSupplier clock;
+	private final int maxOpenInstructions;
+	private final Map<String, ResourceLedger> resources = new ConcurrentHashMap<>();
+
+	public InstructionLedger() {
+		this(() -> System.nanoTime() / 1000000, DEFAULT_MAX_OPEN_INSTRUCTIONS);
+	}
+
+	/**
+	 * @param clock
+	 *            Monotonic time in milliseconds
+	 * @param maxOpenInstructions
+	 *            The maximum number of unfinished instructions kept per resource
+	 */
+	public InstructionLedger(LongSupplier clock, int maxOpenInstructions) {
+		if (maxOpenInstructions < 1) {
+			throw new IllegalArgumentException("Invalid maximum number of instructions " + maxOpenInstructions);
+		}
+		this.clock = clock;
+		this.maxOpenInstructions = maxOpenInstructions;
+	}
+
+	private static String efiResourceId(EfiStorageState state, Header header) {
+		if (header != null && header.getEfiResourceId() != null) {
+			return header.getEfiResourceId();
+		}
+		return state.getEfiResourceId();
+	}
+
+	private ResourceLedger resource(String efiResourceId) {
+		return this.resources.computeIfAbsent(efiResourceId == null ? UNKNOWN_RESOURCE : efiResourceId,
+				id -> new ResourceLedger(this.maxOpenInstructions));
+	}
+
+	@Override
+	public void instructionSent(EfiStorageState state, StorageInstruction instruction) {
+		this.resource(efiResourceId(state, instruction.getHeader())).sent(instruction.getInstructionId(),
+				this.clock.getAsLong());
+	}
+
+	@Override
+	public void stateChanged(EfiStorageState state) {
+		if (!InstructionStatusUpdate.class.equals(state.getLastMessageType())) {
+			return;
+		}
+		final InstructionStatusUpdate update = state.getLastInstructionStatusUpdate();
+		if (update == null || update.getInstructionId() == null || update.getStatus() == null) {
+			return;
+		}
+		this.resource(efiResourceId(state, update.getHeader())).statusUpdate(update.getInstructionId(),
+				update.getStatus(), this.clock.getAsLong());
+	}
+
+	/**
+	 * @return The IDs of all resources an instruction has been sent to
+	 */
+	public Set<String> getResources() {
+		return Collections.unmodifiableSet(this.resources.keySet());
+	}
+
+	/**
+	 * @return The milliseconds from sending until the first status update, or
+	 *         null if no instruction has been sent to the resource
+	 */
+	public LatencyHistogram getAcknowledgeLatency(String efiResourceId) {
+		final ResourceLedger resource = this.resources.get(efiResourceId);
+		return resource == null ? null : resource.acknowledgeLatency;
+	}
+
+	/**
+	 * @return The milliseconds from sending until the instruction started, or
+	 *         null if no instruction has been sent to the resource
+	 */
+	public LatencyHistogram getStartLatency(String efiResourceId) {
+		final ResourceLedger resource = this.resources.get(efiResourceId);
+		return resource == null ? null : resource.startLatency;
+	}
+
+	/**
+	 * @return The number of status updates with this status for instructions
+	 *         the ledger knows about
+	 */
+	public long getStatusCount(String efiResourceId, InstructionStatus status) {
+		final ResourceLedger resource = this.resources.get(efiResourceId);
+		return resource == null ? 0 : resource.statusCounts.get(status.ordinal());
+	}
+
+	/**
+	 * @return The current status of an instruction, or null if it has not been
+	 *         acknowledged yet or the ledger does not know it (anymore)
+	 */
+	public InstructionStatus getStatus(String efiResourceId, String instructionId) {
+		final ResourceLedger resource = this.resources.get(efiResourceId);
+		return resource == null ? null : resource.status(instructionId);
+	}
+
+	/**
+	 * @return The number of instructions sent to a resource
+	 */
+	public long getSentCount(String efiResourceId) {
+		final ResourceLedger resource = this.resources.get(efiResourceId);
+		return resource == null ? 0 : resource.sent.get();
+	}
+
+	/**
+	 * @return The number of unfinished instructions which were forgotten
+	 */
+	public long getUnansweredCount(String efiResourceId) {
+		final ResourceLedger resource = this.resources.get(efiResourceId);
+		return resource == null ? 0 : resource.unanswered.get();
+	}
+
+	/**
+	 * @return The number of status updates for instructions the ledger does not
+	 *         know, for example because they were sent before a restart
+	 */
+	public long getUnknownUpdateCount(String efiResourceId) {
+		final ResourceLedger resource = this.resources.get(efiResourceId);
+		return resource == null ? 0 : resource.unknown.get();
+	}
+
+	/**
+	 * @return One line per resource with its counts and latencies
+	 */
+	public String report() {
+		final StringBuilder sb = new StringBuilder();
+		for (final Map.Entry<String, ResourceLedger> e : this.resources.entrySet()) {
+			final ResourceLedger resource = e.getValue();
+			sb.append(e.getKey().isEmpty() ? "(unregistered)" : e.getKey()).append(": sent=")
+					.append(resource.sent.get()).append(", unanswered=").append(resource.unanswered.get())
+					.append(", acknowledge ms [").append(resource.acknowledgeLatency).append("], start ms [")
+					.append(resource.startLatency).append("]\n");
+		}
+		return sb.toString();
+	}
+
+	private static final class ResourceLedger {
+		private final int maxOpenInstructions;
+		private final LatencyHistogram acknowledgeLatency = new LatencyHistogram(HIGHEST_TRACKABLE_LATENCY_MILLIS);
+		private final LatencyHistogram startLatency = new LatencyHistogram(HIGHEST_TRACKABLE_LATENCY_MILLIS);
+		private final AtomicLongArray statusCounts = new AtomicLongArray(InstructionStatus.values().length);
+		private final AtomicLong sent = new AtomicLong();
+		private final AtomicLong unanswered = new AtomicLong();
+		private final AtomicLong unknown = new AtomicLong();
+		// Guarded by this, in the order the instructions were sent
+		private final LinkedHashMap<String, OpenInstruction> open = new LinkedHashMap<>();
+
+		ResourceLedger(int maxOpenInstructions) {
+			this.maxOpenInstructions = maxOpenInstructions;
+		}
+
+		synchronized void sent(String instructionId, long now) {
+			this.sent.incrementAndGet();
+			this.open.put(instructionId, new OpenInstruction(now));
+			final Iterator<OpenInstruction> it = this.open.values().iterator();
+			while (this.open.size() > this.maxOpenInstructions) {
+				it.next();
+				it.remove();
+				this.unanswered.incrementAndGet();
+			}
+		}
+
+		synchronized void statusUpdate(String instructionId, InstructionStatus status, long now) {
+			final OpenInstruction instruction = this.open.get(instructionId);
+			if (instruction == null) {
+				this.unknown.incrementAndGet();
+				return;
+			}
+			this.statusCounts.incrementAndGet(status.ordinal());
+			final long latency = now - instruction.sentAt;
+			if (instruction.status == null) {
+				this.acknowledgeLatency.record(latency);
+			}
+			if (status == InstructionStatus.STARTED && instruction.status != InstructionStatus.STARTED) {
+				this.startLatency.record(latency);
+			}
+			instruction.status = status;
+			if (status == InstructionStatus.SUCCEEDED || status == InstructionStatus.REJECTED
+					|| status == InstructionStatus.ABORTED) {
+				this.open.remove(instructionId);
+			}
+		}
+
+		synchronized InstructionStatus status(String instructionId) {
+			final OpenInstruction instruction = this.open.get(instructionId);
+			return instruction == null ? null : instruction.status;
+		}
+	}
+
+	private static final class OpenInstruction {
+		private final long sentAt;
+		// Guarded by the ResourceLedger
+		private InstructionStatus status;
+
+		OpenInstruction(long sentAt) {
+			this.sentAt = sentAt;
+		}
+	}
+
+}
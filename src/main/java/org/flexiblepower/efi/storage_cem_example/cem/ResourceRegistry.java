@@ -0,0 +1,88 @@
+package org.flexiblepower.efi.storage_cem_example.cem;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageListener;
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageModel;
+import org.flexiblepower.efi.storage_cem_example.log.Log;
+import org.flexiblepower.efi.storage_cem_example.log.Logging;
+import org.flexiblepower.efi.xml.StorageRegistration;
+
+/**
+ * Keeps track of the EfiStorageModel of every Resource Manager, keyed by the
+ * efiResourceId. The ID is only known after the Resource Manager has sent its
+ * StorageRegistration, so models are registered as soon as that message has
+ * been handled.
+ */
+public class ResourceRegistry {
+
+	private static final Log LOG = Logging.get("cem");
+
+	private final Map<String, EfiStorageModel> resources = new ConcurrentHashMap<>();
+	private final List<EfiStorageListener> listeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Add a listener to every model which is tracked after this call.
+	 *
+	 * @param listener
+	 *            The listener, for example to record the history of all resources
+	 */
+	public void addListener(EfiStorageListener listener) {
+		this.listeners.add(listener);
+	}
+
+	/**
+	 * Start tracking a model. It becomes available in this registry once its
+	 * StorageRegistration message has been received.
+	 *
+	 * @param model
+	 *            The model of a single Resource Manager
+	 */
+	public void track(EfiStorageModel model) {
+		for (final EfiStorageListener listener : this.listeners) {
+			model.addListener(listener);
+		}
+		model.addListener(state -> {
+			if (StorageRegistration.class.equals(state.getLastMessageType())) {
+				this.register(state.getEfiResourceId(), model);
+			}
+		});
+		final String efiResourceId = model.getState().getEfiResourceId();
+		if (efiResourceId != null) {
+			this.register(efiResourceId, model);
+		}
+	}
+
+	private void register(String efiResourceId, EfiStorageModel model) {
+		final EfiStorageModel previous = this.resources.put(efiResourceId, model);
+		if (previous != null && previous != model) {
+			LOG.warn("Resource registered by more than one connection, using the latest", "resource",
+					efiResourceId);
+		}
+	}
+
+	/**
+	 * @return The model for the resource, or null if no Resource Manager with this
+	 *         ID has registered
+	 */
+	public EfiStorageModel get(String efiResourceId) {
+		return this.resources.get(efiResourceId);
+	}
+
+	/**
+	 * @return An unmodifiable view of all registered models
+	 */
+	public Collection<EfiStorageModel> getModels() {
+		return Collections.unmodifiableCollection(this.resources.values());
+	}
+
+	public int size() {
+		return this.resources.size();
+	}
+
+}
@@ -0,0 +1,51 @@
+package org.flexiblepower.efi.storage_cem_example.cem;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * Executes tasks one at a time, in submission order, on a shared executor.
+ * Each connection gets its own SerialExecutor so that its messages are handled
+ * in order, while messages of different connections are handled in parallel by
+ * the shared worker pool. A slow resource occupies at most one worker thread.
+ */
+public class SerialExecutor implements Executor {
+
+	private final Queue<Runnable> tasks = new ArrayDeque<>();
+	private final Executor executor;
+	private Runnable active;
+
+	public SerialExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public synchronized void execute(final Runnable r) {
+		this.tasks.add(() -> {
+			try {
+				r.run();
+			} finally {
+				this.scheduleNext();
+			}
+		});
+		if (this.active == null) {
+			this.scheduleNext();
+		}
+	}
+
+	private synchronized void scheduleNext() {
+		this.active = this.tasks.poll();
+		if (this.active != null) {
+			this.executor.execute(this.active);
+		}
+	}
+
+	/**
+	 * @return The number of tasks waiting to be executed
+	 */
+	public synchronized int getQueueSize() {
+		return this.tasks.size();
+	}
+
+}
@@ -0,0 +1,50 @@
+package org.flexiblepower.efi.storage_cem_example.efi_model;
+
+import org.flexiblepower.efi.xml.StorageInstruction;
+import org.flexiblepower.efi.xml.Transition;
+
+/**
+ * Listener for changes of an {@link EfiStorageModel}.
+ */
+public interface EfiStorageListener {
+
+	/**
+	 * Called after the model has published a new state, on the thread which
+	 * handled the message. Implementations should return quickly; the snapshot
+	 * is immutable and may be handed to another thread for further processing.
+	 *
+	 * @param state
+	 *            The new state, {@link EfiStorageState#getLastMessageType()}
+	 *            tells which message caused the change
+	 */
+	void stateChanged(EfiStorageState state);
+
+	/**
+	 * Called when an instruction is actually sent, on the thread which sends
+	 * it. An instruction which was rejected, replaced by a newer instruction for
+	 * the same actuator or dropped before sending is not reported.
+	 *
+	 * @param state
+	 *            The state the instruction is based on
+	 * @param instruction
+	 *            The instruction, which must not be modified
+	 */
+	default void instructionSent(EfiStorageState state, StorageInstruction instruction) {
+	}
+
+	/**
+	 * Called when a timer which blocked a transition has finished and no other
+	 * timer blocks it anymore, on the thread of the {@link TimerWheel}.
+	 * Implementations should return quickly.
+	 *
+	 * @param state
+	 *            The current state, in which the transition is not blocked
+	 * @param actuatorId
+	 *            The actuator of the transition
+	 * @param transition
+	 *            The transition which can be made again
+	 */
+	default void transitionUnblocked(EfiStorageState state, int actuatorId, Transition transition) {
+	}
+
+}
@@ -1,43 +1,84 @@
 package org.flexiblepower.efi.storage_cem_example.efi_model;
 
-import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Observable;
 import java.util.UUID;
-import java.util.stream.Collectors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 
+import javax.xml.datatype.Duration;
+
+import org.flexiblepower.efi.storage_cem_example.efi_model.SystemDescriptionIndex.ActuatorIndex;
+import org.flexiblepower.efi.storage_cem_example.efi_model.TimerWheel.Timeout;
+import org.flexiblepower.efi.storage_cem_example.log.Log;
+import org.flexiblepower.efi.storage_cem_example.log.Logging;
+import org.flexiblepower.efi.storage_cem_example.metrics.CemMetrics;
 import org.flexiblepower.efi.storage_cem_example.websocket.EfiMessageSender;
+import org.flexiblepower.efi.storage_cem_example.xml.MeasurementView;
+import org.flexiblepower.efi.storage_cem_example.xml.StorageStatusView;
 import org.flexiblepower.efi.storage_cem_example.xml.XmlUtil;
 import org.flexiblepower.efi.xml.ActuatorBehaviour;
 import org.flexiblepower.efi.xml.ActuatorInstruction;
 import org.flexiblepower.efi.xml.ActuatorInstructions;
-import org.flexiblepower.efi.xml.ActuatorStatus;
 import org.flexiblepower.efi.xml.EfiMessage;
 import org.flexiblepower.efi.xml.EfiMessage.Header;
 import org.flexiblepower.efi.xml.FlexibilityRevoke;
+import org.flexiblepower.efi.xml.InstructionStatusUpdate;
 import org.flexiblepower.efi.xml.Measurement;
+import org.flexiblepower.efi.xml.ProbabilityAttributesWithDuration;
 import org.flexiblepower.efi.xml.RunningMode;
 import org.flexiblepower.efi.xml.StorageContinuousRunningMode;
 import org.flexiblepower.efi.xml.StorageDiscreteRunningMode;
+import org.flexiblepower.efi.xml.StorageFillLevelTargetProfile;
 import org.flexiblepower.efi.xml.StorageInstruction;
 import org.flexiblepower.efi.xml.StorageRegistration;
 import org.flexiblepower.efi.xml.StorageStatus;
 import org.flexiblepower.efi.xml.StorageSystemDescription;
+import org.flexiblepower.efi.xml.StorageUsageForecast;
+import org.flexiblepower.efi.xml.StorageUsageForecast.UsageForecast;
+import org.flexiblepower.efi.xml.StorageUsageProfile;
+import org.flexiblepower.efi.xml.TargetProfile;
 import org.flexiblepower.efi.xml.Timer;
-import org.flexiblepower.efi.xml.TimerReferences.TimerReference;
-import org.flexiblepower.efi.xml.TimerUpdate;
 import org.flexiblepower.efi.xml.Transition;
 
-public class EfiStorageModel extends Observable {
+/**
+ * The CEM side state of one Resource Manager.
+ *
+ * The state is kept as an immutable {@link EfiStorageState}. Every message
+ * produces a new snapshot which replaces the previous one atomically, so
+ * readers on other threads (such as the GUI) always see a consistent state
+ * without locking. Listeners receive the new snapshot after every change.
+ *
+ * Every timer which is running according to the last TimerUpdate is scheduled
+ * on a {@link TimerWheel}, so listeners are told at the moment a transition is
+ * no longer blocked instead of having to check the timers periodically.
+ */
+public class EfiStorageModel {
+
+	private static final Log LOG = Logging.get("model");
+
+	private final AtomicReference<EfiStorageState> state = new AtomicReference<>(EfiStorageState.EMPTY);
+	private final List<EfiStorageListener> listeners = new CopyOnWriteArrayList<>();
+	private volatile EfiMessageSender efiMessageSender;
+	private final TimerWheel timerWheel;
+	// Guarded by itself, keyed by actuator and timer ID
+	private final Map<Long, Timeout> timeouts = new HashMap<>();
+	// Guarded by timeouts, the snapshot the timeouts were scheduled for
+	private EfiStorageState scheduledState = EfiStorageState.EMPTY;
 
-	private StorageRegistration storageRegistration;
-	private StorageSystemDescription lastStorageSystemDescription;
-	private StorageStatus lastStorageStatus;
-	private Measurement lastMeasurement;
-	private EfiMessageSender efiMessageSender;
-	private final Map<Integer, Map<Integer, TimerUpdate>> timerUpdates = new HashMap<>();
+	public EfiStorageModel() {
+		this(TimerWheel.getDefault());
+	}
+
+	/**
+	 * @param timerWheel
+	 *            The wheel on which the finishing of timers is scheduled
+	 */
+	public EfiStorageModel(TimerWheel timerWheel) {
+		this.timerWheel = timerWheel;
+	}
 
 	public void setEfiMessageSender(EfiMessageSender efiMessageSender) {
 		this.efiMessageSender = efiMessageSender;
@@ -47,6 +88,22 @@ public class EfiStorageModel extends Observable {
 		this.efiMessageSender = null;
 	}
 
+	public void addListener(EfiStorageListener listener) {
+		this.listeners.add(listener);
+	}
+
+	public void removeListener(EfiStorageListener listener) {
+		this.listeners.remove(listener);
+	}
+
+	/**
+	 * @return The current state. The snapshot does not change; call this method
+	 *         again to see later messages.
+	 */
+	public EfiStorageState getState() {
+		return this.state.get();
+	}
+
 	/**
 	 * Handle a new EFI message coming in from the ResourceManager. This method is
 	 * typically called by the WebsocketClientEndpoint.
@@ -56,276 +113,314 @@ public class EfiStorageModel extends Observable {
 	 */
 	public void handleEfiMessage(EfiMessage efiMessage) {
 		if (efiMessage instanceof StorageRegistration) {
-			this.storageRegistration = (StorageRegistration) efiMessage;
-			System.out.println("Received StorageRegistration message");
+			LOG.debug("Received", "type", "StorageRegistration");
+			this.update(s -> s.withStorageRegistration((StorageRegistration) efiMessage));
 		} else if (efiMessage instanceof StorageSystemDescription) {
-			this.lastStorageSystemDescription = (StorageSystemDescription) efiMessage;
-			System.out.println("Received StorageSystemDescription message");
+			final SystemDescriptionIndex index = new SystemDescriptionIndex((StorageSystemDescription) efiMessage);
+			LOG.debug("Received", "type", "StorageSystemDescription", "resource", this.state.get().getEfiResourceId());
+			this.update(s -> s.withSystemDescription(index));
 		} else if (efiMessage instanceof StorageStatus) {
-			this.lastStorageStatus = (StorageStatus) efiMessage;
-			this.updateTimerUpdates(this.lastStorageStatus);
-			System.out.println("Received StorageStatus message");
+			this.publishStorageStatus(new StorageStatusView().setFrom((StorageStatus) efiMessage));
 		} else if (efiMessage instanceof Measurement) {
-			this.lastMeasurement = (Measurement) efiMessage;
-			System.out.println("Received Measurement message");
+			this.publishMeasurement(new MeasurementView().setFrom((Measurement) efiMessage));
+		} else if (efiMessage instanceof StorageFillLevelTargetProfile) {
+			LOG.debug("Received", "type", "StorageFillLevelTargetProfile", "resource",
+					this.state.get().getEfiResourceId());
+			this.handleTargetProfile((StorageFillLevelTargetProfile) efiMessage);
+		} else if (efiMessage instanceof StorageUsageForecast) {
+			LOG.debug("Received", "type", "StorageUsageForecast", "resource", this.state.get().getEfiResourceId());
+			this.handleUsageForecast((StorageUsageForecast) efiMessage);
+		} else if (efiMessage instanceof InstructionStatusUpdate) {
+			final InstructionStatusUpdate update = (InstructionStatusUpdate) efiMessage;
+			LOG.debug("Received", "type", "InstructionStatusUpdate", "resource", this.state.get().getEfiResourceId(),
+					"instruction", update.getInstructionId(), "status", update.getStatus());
+			this.update(s -> s.withInstructionStatusUpdate(update));
 		} else if (efiMessage instanceof FlexibilityRevoke) {
-			this.revokeFlexibility();
-			System.out.println("Received FlexibilityRevoke message");
+			LOG.debug("Received", "type", "FlexibilityRevoke", "resource", this.state.get().getEfiResourceId());
+			this.update(EfiStorageState::revoked);
 		} else {
-			System.err.println("Received EfiMessage of type " + efiMessage.getClass().getSimpleName()
-					+ " but handling this message is not yet implemented");
-			return;
+			LOG.warn("Handling this message type is not implemented", "type", efiMessage.getClass().getSimpleName(),
+					"resource", this.state.get().getEfiResourceId());
 		}
-		this.setChanged();
-		this.notifyObservers(efiMessage.getClass());
 	}
 
-	private void revokeFlexibility() {
-		this.lastStorageSystemDescription = null;
-		this.lastStorageStatus = null;
-		this.timerUpdates.clear();
-	}
-
-	private void updateTimerUpdates(StorageStatus storageStatus) {
-		for (final ActuatorStatus as : storageStatus.getActuatorStatuses().getActuatorStatus()) {
-			if (!this.timerUpdates.containsKey(as.getActuatorId())) {
-				this.timerUpdates.put(as.getActuatorId(), new HashMap<>());
-			}
-			final Map<Integer, TimerUpdate> actuatorMap = this.timerUpdates.get(as.getActuatorId());
-			for (final TimerUpdate t : as.getTimerUpdates().getTimerUpdate()) {
-				actuatorMap.put(t.getTimerId(), t);
-			}
+	private void handleTargetProfile(StorageFillLevelTargetProfile message) {
+		final List<TargetProfile.Element> elements = message.getTargetProfile().getElement();
+		final long start = XmlUtil.millis(message.getValidFrom());
+		final long[] durations = new long[elements.size()];
+		final double[] lower = new double[elements.size()];
+		final double[] upper = new double[elements.size()];
+		long time = start;
+		for (int i = 0; i < elements.size(); i++) {
+			durations[i] = XmlUtil.duration(elements.get(i).getDuration(), time);
+			lower[i] = elements.get(i).getFillLevelLowerBound();
+			upper[i] = elements.get(i).getFillLevelUpperBound();
+			time += durations[i];
 		}
+		final TimeProfile lowerBounds = TimeProfile.of(start, durations, lower);
+		final TimeProfile upperBounds = TimeProfile.of(start, durations, upper);
+		final long now = System.currentTimeMillis();
+		this.update(s -> s.withTargetProfile(lowerBounds, upperBounds, now));
 	}
 
 	/**
-	 * Return the EFI Resource ID as specified by the ResourceManager.
-	 *
-	 * @return the EFI Resource ID, or null if not yet known
+	 * Only the expected usage rate of a probability profile is kept.
 	 */
-	public String getEfiResourceId() {
-		if (this.storageRegistration != null) {
-			return this.storageRegistration.getHeader().getEfiResourceId();
+	private void handleUsageForecast(StorageUsageForecast message) {
+		final UsageForecast forecast = message.getUsageForecast();
+		final int size;
+		if (forecast.getUsageProfile() != null) {
+			size = forecast.getUsageProfile().getElement().size();
+		} else if (forecast.getUsageProbabilityProfile() != null) {
+			size = forecast.getUsageProbabilityProfile().getUsageRateElement().size();
 		} else {
-			return null;
+			LOG.warn("Received StorageUsageForecast without a profile", "resource",
+					this.state.get().getEfiResourceId());
+			return;
 		}
-	}
-
-	/**
-	 * Return the currently known fill level
-	 *
-	 * @return The fill level, or null if not yet known
-	 */
-	public Double getFillLevel() {
-		if (this.lastStorageStatus != null) {
-			return this.lastStorageStatus.getCurrentFillLevel();
-		} else {
-			return null;
+		final long start = XmlUtil.millis(message.getValidFrom());
+		final long[] durations = new long[size];
+		final double[] rates = new double[size];
+		long time = start;
+		for (int i = 0; i < size; i++) {
+			final Duration duration;
+			if (forecast.getUsageProfile() != null) {
+				final StorageUsageProfile.Element element = forecast.getUsageProfile().getElement().get(i);
+				duration = element.getDuration();
+				rates[i] = element.getUsageRate();
+			} else {
+				final ProbabilityAttributesWithDuration element = forecast.getUsageProbabilityProfile()
+						.getUsageRateElement().get(i);
+				duration = element.getDuration();
+				rates[i] = element.getExpected();
+			}
+			durations[i] = XmlUtil.duration(duration, time);
+			time += durations[i];
 		}
+		final TimeProfile usage = TimeProfile.of(start, durations, rates);
+		final long now = System.currentTimeMillis();
+		this.update(s -> s.withUsageForecast(usage, now));
 	}
 
 	/**
-	 * Return the last received Measurement message from the ResourceManager.
-	 *
-	 * @return The last received Measurement, or null if no Measurement received
+	 * Invalidate the state because the connection to the Resource Manager has
+	 * been lost. Only the registration is kept until the Resource Manager sends
+	 * a new StorageSystemDescription and StorageStatus.
 	 */
-	public Measurement getLastMeasurement() {
-		return this.lastMeasurement;
+	public void invalidate() {
+		this.update(EfiStorageState::invalidated);
 	}
 
 	/**
-	 * List all the ActuatorBehavior elements from the StorageSystemDescription
-	 * message
+	 * Handle a StorageStatus message decoded by the EfiStreamingDecoder. The
+	 * values are copied, so the decoder can reuse the view afterwards.
 	 *
-	 * @return A list of all AcutatorBehavior elements, or null if no
-	 *         StorageSystemDescription received yet
+	 * @param storageStatus
+	 *            The decoded StorageStatus message
 	 */
-	public List<ActuatorBehaviour> getActuatorBehaviours() {
-		if (this.lastStorageSystemDescription != null) {
-			return this.lastStorageSystemDescription.getActuatorBehaviours().getActuatorBehaviour();
-		} else {
-			return null;
-		}
+	public void handleStorageStatus(StorageStatusView storageStatus) {
+		this.publishStorageStatus(new StorageStatusView().copyFrom(storageStatus));
 	}
 
 	/**
-	 * List the status of all actuators, as described by the last received
-	 * StorageStatus message
+	 * Handle a Measurement message decoded by the EfiStreamingDecoder. The values
+	 * are copied, so the decoder can reuse the view afterwards.
 	 *
-	 * @return A list of AcutatorStatus elements, or null if no StorageStatus
-	 *         message received yet
+	 * @param measurement
+	 *            The decoded Measurement message
 	 */
-	public List<ActuatorStatus> getActuatorStatuses() {
-		if (this.lastStorageStatus != null) {
-			return this.lastStorageStatus.getActuatorStatuses().getActuatorStatus();
-		} else {
-			return null;
-		}
+	public void handleMeasurement(MeasurementView measurement) {
+		this.publishMeasurement(new MeasurementView().copyFrom(measurement));
 	}
 
-	/**
-	 * The AcutatorBehavior for a specific Actuator ID
-	 *
-	 * @param actuatorId
-	 *            ID of the desired actuator
-	 * @return AcutatorBehavior, or null if actuator ID unknown or no
-	 *         StorageSystemDescription received yet
-	 */
-	public ActuatorBehaviour getActuatorBehaviourById(int actuatorId) {
-		final List<ActuatorBehaviour> actuators = this.getActuatorBehaviours();
-		if (actuators == null) {
-			return null;
-		} else {
-			return actuators.stream().filter(a -> a.getActuatorId() == actuatorId).findFirst().orElse(null);
-		}
+	private void publishStorageStatus(StorageStatusView storageStatus) {
+		LOG.trace("Received", "type", "StorageStatus", "resource", storageStatus.getEfiResourceId());
+		this.update(s -> s.withStorageStatus(storageStatus));
 	}
 
-	public ActuatorStatus getActuatorStatusById(int actuatorId) {
-		final List<ActuatorStatus> actuators = this.getActuatorStatuses();
-		if (actuators == null) {
-			return null;
-		} else {
-			return actuators.stream().filter(a -> a.getActuatorId() == actuatorId).findFirst().orElse(null);
-		}
+	private void publishMeasurement(MeasurementView measurement) {
+		LOG.trace("Received", "type", "Measurement", "resource", measurement.getEfiResourceId());
+		this.update(s -> s.withMeasurement(measurement));
 	}
 
-	public List<RunningMode> getRunningModes(int actuatorId) {
-		final ActuatorBehaviour actuator = this.getActuatorBehaviourById(actuatorId);
-		if (actuator == null) {
-			return null;
-		} else {
-			return actuator.getRunningModes().getDiscreteRunningModeOrContinuousRunningMode();
+	/**
+	 * Atomically replace the state and notify the listeners. The function may be
+	 * applied more than once if another thread updates the state concurrently,
+	 * so it must not have side effects.
+	 */
+	private void update(UnaryOperator<EfiStorageState> function) {
+		final EfiStorageState newState = this.state.updateAndGet(function);
+		final long start = System.nanoTime();
+		this.scheduleTimers();
+		for (final EfiStorageListener listener : this.listeners) {
+			listener.stateChanged(newState);
 		}
+		CemMetrics.NOTIFY.recordSince(start);
 	}
 
-	public RunningMode getRunningMode(int actuatorId, int runningModeId) {
-		final List<RunningMode> runningModes = this.getRunningModes(actuatorId);
-		if (runningModes == null) {
-			return null;
-		} else {
-			return runningModes.stream().filter(rm -> rm.getId() == runningModeId).findFirst().orElse(null);
-		}
+	private static long timerKey(int actuatorId, int timerId) {
+		return (long) actuatorId << 32 | timerId & 0xffffffffL;
 	}
 
-	public Integer getActiveRunningMode(int actuatorId) {
-		final ActuatorStatus actuatorStatus = this.getActuatorStatusById(actuatorId);
-		if (actuatorStatus == null) {
-			return null;
-		} else {
-			return actuatorStatus.getCurrentRunningMode();
+	/**
+	 * Schedule the finishing of every running timer, and cancel the timeouts of
+	 * timers which were updated or no longer exist. The latest state is used, in
+	 * case another thread has updated it in the meantime.
+	 */
+	private void scheduleTimers() {
+		synchronized (this.timeouts) {
+			final EfiStorageState newState = this.state.get();
+			if (newState.hasSameTimers(this.scheduledState)) {
+				return;
+			}
+			this.scheduledState = newState;
+			final Map<Long, Timeout> previous = new HashMap<>(this.timeouts);
+			this.timeouts.clear();
+			final long now = System.currentTimeMillis();
+			if (newState.getActuatorBehaviours() != null) {
+				for (final ActuatorBehaviour behaviour : newState.getActuatorBehaviours()) {
+					if (behaviour.getTimers() == null) {
+						continue;
+					}
+					final int actuatorId = behaviour.getActuatorId();
+					for (final Timer timer : behaviour.getTimers().getTimer()) {
+						final long finishedAt = newState.getTimerFinishedAtMillis(actuatorId, timer);
+						if (finishedAt <= now) {
+							continue;
+						}
+						final Long key = timerKey(actuatorId, timer.getId());
+						Timeout timeout = previous.remove(key);
+						if (timeout == null || timeout.getDeadline() != finishedAt) {
+							if (timeout != null) {
+								timeout.cancel();
+							}
+							final int timerId = timer.getId();
+							timeout = this.timerWheel.schedule(finishedAt,
+									() -> this.timerFinished(actuatorId, timerId, finishedAt));
+						}
+						this.timeouts.put(key, timeout);
+					}
+				}
+			}
+			for (final Timeout timeout : previous.values()) {
+				timeout.cancel();
+			}
 		}
 	}
 
-	private StorageInstruction createEmptyInstructionMessage() {
-		return new StorageInstruction().withEfiVersion("2.0")
-				.withHeader(new Header().withEfiResourceId(this.storageRegistration.getHeader().getEfiResourceId())
-						.withTimestamp(XmlUtil.date(new Date())))
-				.withFlexibilityUpdateId(this.lastStorageStatus.getFlexibilityUpdateId())
-				.withInstructionId(UUID.randomUUID().toString()).withIsEmergencyInstruction(false);
-	}
-
-	public List<Transition> getOutgoingTransitions(int actuatorId, int runningModeId) {
-		final ActuatorBehaviour actuator = this.getActuatorBehaviourById(actuatorId);
-		if (actuator == null || actuator.getTransitions() == null) {
-			return null;
+	private void timerFinished(int actuatorId, int timerId, long finishedAt) {
+		final EfiStorageState current = this.state.get();
+		final SystemDescriptionIndex index = current.getSystemDescriptionIndex();
+		final ActuatorIndex actuator = index == null ? null : index.getActuator(actuatorId);
+		final Timer timer = actuator == null ? null : actuator.getTimer(timerId);
+		if (timer == null || current.getTimerFinishedAtMillis(actuatorId, timer) != finishedAt) {
+			// The timer was updated in the meantime
+			return;
 		}
-		return actuator.getTransitions().getTransition().stream().filter(t -> t.getFromRunningModeId() == runningModeId)
-				.collect(Collectors.toList());
-	}
-
-	public boolean isTransitionBlocked(int actuatorId, Transition transition) {
-		for (final TimerReference tr : transition.getBlockingTimers().getTimerReference()) {
-			final Timer timer = this.getTimer(actuatorId, tr.getTimerId());
-			if (this.isTimerActive(actuatorId, timer)) {
-				// The timer is active, the transition is currently blocked
-				return true;
+		synchronized (this.timeouts) {
+			final Long key = timerKey(actuatorId, timerId);
+			final Timeout timeout = this.timeouts.get(key);
+			if (timeout != null && timeout.getDeadline() == finishedAt) {
+				this.timeouts.remove(key);
 			}
 		}
-		// If we encountered no blocking timers, the transition is not blocked
-		return false;
-	}
-
-	public Date transitionBlockedUntil(int actuatorId, Transition transition) {
-		Date end = new Date();
-		for (final TimerReference tr : transition.getBlockingTimers().getTimerReference()) {
-			final Timer timer = this.getTimer(actuatorId, tr.getTimerId());
-			final Date finishedAt = this.getTimerFinishedAt(actuatorId, timer);
-			if (finishedAt.after(end)) {
-				end = finishedAt;
+		for (final Transition transition : actuator.getTransitionsBlockedBy(timerId)) {
+			if (current.isTransitionBlocked(actuatorId, transition)) {
+				continue;
+			}
+			for (final EfiStorageListener listener : this.listeners) {
+				listener.transitionUnblocked(current, actuatorId, transition);
 			}
 		}
-		return end;
-	}
-
-	public boolean isTimerActive(int actuatorId, Timer timer) {
-		final TimerUpdate lastTimerUpdate = this.timerUpdates.get(actuatorId).get(timer.getId());
-		return XmlUtil.date(lastTimerUpdate.getFinishedAt()).after(new Date());
 	}
 
-	public Date getTimerFinishedAt(int actuatorId, Timer timer) {
-		final TimerUpdate lastTimerUpdate = this.timerUpdates.get(actuatorId).get(timer.getId());
-		return XmlUtil.date(lastTimerUpdate.getFinishedAt());
-	}
-
-	public Timer getTimer(int actuatorId, int timerId) {
-		final ActuatorBehaviour actuator = this.getActuatorBehaviourById(actuatorId);
-		if (actuator == null || actuator.getTimers() == null) {
-			return null;
-		}
-		return actuator.getTimers().getTimer().stream().filter(t -> t.getId() == timerId).findFirst().orElse(null);
+	private StorageInstruction createEmptyInstructionMessage(EfiStorageState state) {
+		return new StorageInstruction().withEfiVersion("2.0")
+				.withHeader(new Header().withEfiResourceId(state.getEfiResourceId())
+						.withTimestamp(XmlUtil.date(System.currentTimeMillis())))
+				.withFlexibilityUpdateId(state.getStorageStatus().getFlexibilityUpdateId())
+				.withInstructionId(UUID.randomUUID().toString()).withIsEmergencyInstruction(false);
 	}
 
-	public void activateDiscreteRunningMode(int actuatorId, int runningModeId) {
-		if (this.lastStorageSystemDescription == null) {
+	/**
+	 * Instruct the Resource Manager to switch an actuator to a discrete running
+	 * mode. The instruction is sent asynchronously.
+	 *
+	 * @return false if the instruction could not be queued for sending
+	 */
+	public boolean activateDiscreteRunningMode(int actuatorId, int runningModeId) {
+		final EfiStorageState state = this.state.get();
+		if (state.getStorageSystemDescription() == null) {
 			throw new IllegalStateException("No System description message received yet");
 		}
-		final RunningMode runningMode = this.getRunningMode(actuatorId, runningModeId);
+		final RunningMode runningMode = state.getRunningMode(actuatorId, runningModeId);
 		if (runningMode == null) {
 			throw new IllegalArgumentException(
 					"Runnigmode " + runningModeId + " for actuator " + actuatorId + " doesn't exist");
 		}
 		if (runningMode instanceof StorageDiscreteRunningMode) {
-			final StorageInstruction instruction = this.createEmptyInstructionMessage();
+			final StorageInstruction instruction = this.createEmptyInstructionMessage(state);
 			final ActuatorInstructions actuatorInstructions = new ActuatorInstructions();
 			actuatorInstructions.withActuatorInstruction(new ActuatorInstruction().withActuatorId(actuatorId)
-					.withRunningModeId(runningModeId).withStartTime(XmlUtil.date(new Date())));
+					.withRunningModeId(runningModeId).withStartTime(XmlUtil.date(System.currentTimeMillis())));
 			instruction.setActuatorInstructions(actuatorInstructions);
-			if (this.efiMessageSender == null) {
-				System.err.println("Could not send EFI message, no efiMessageSender registered");
-			} else {
-				this.efiMessageSender.sendEfiMessage(instruction);
-			}
+			return this.sendInstruction(state, instruction);
 		} else {
 			throw new IllegalArgumentException(
 					"Runnigmode " + runningModeId + " for actuator " + actuatorId + " is not a discrete runningmode");
 		}
 	}
 
-	public void activateContinuousRunningMode(int actuatorId, int runningModeId, double factor) {
-		if (this.lastStorageSystemDescription == null) {
+	/**
+	 * Instruct the Resource Manager to switch an actuator to a continuous running
+	 * mode. The instruction is sent asynchronously.
+	 *
+	 * @return false if the instruction could not be queued for sending
+	 */
+	public boolean activateContinuousRunningMode(int actuatorId, int runningModeId, double factor) {
+		final EfiStorageState state = this.state.get();
+		if (state.getStorageSystemDescription() == null) {
 			throw new IllegalStateException("No System description message received yet");
 		}
-		final RunningMode runningMode = this.getRunningMode(actuatorId, runningModeId);
+		final RunningMode runningMode = state.getRunningMode(actuatorId, runningModeId);
 		if (runningMode == null) {
 			throw new IllegalArgumentException(
 					"Runnigmode " + runningModeId + " for actuator " + actuatorId + " doesn't exist");
 		}
 		if (runningMode instanceof StorageContinuousRunningMode) {
-			final StorageInstruction instruction = this.createEmptyInstructionMessage();
+			final StorageInstruction instruction = this.createEmptyInstructionMessage(state);
 			final ActuatorInstructions actuatorInstructions = new ActuatorInstructions();
 			actuatorInstructions.withActuatorInstruction(
 					new ActuatorInstruction().withActuatorId(actuatorId).withRunningModeId(runningModeId)
-							.withRunningModeFactor(factor).withStartTime(XmlUtil.date(new Date())));
+							.withRunningModeFactor(factor).withStartTime(XmlUtil.date(System.currentTimeMillis())));
 			instruction.setActuatorInstructions(actuatorInstructions);
-			if (this.efiMessageSender == null) {
-				System.err.println("Could not send EFI message, no efiMessageSender registered");
-			} else {
-				this.efiMessageSender.sendEfiMessage(instruction);
-			}
+			return this.sendInstruction(state, instruction);
 		} else {
 			throw new IllegalArgumentException(
 					"Runnigmode " + runningModeId + " for actuator " + actuatorId + " is not a continuous runningmode");
 		}
 	}
 
+	private boolean sendInstruction(EfiStorageState state, StorageInstruction instruction) {
+		return this.send(instruction, () -> {
+			for (final EfiStorageListener listener : this.listeners) {
+				listener.instructionSent(state, instruction);
+			}
+		});
+	}
+
+	private boolean send(EfiMessage message, Runnable dispatched) {
+		final EfiMessageSender sender = this.efiMessageSender;
+		if (sender == null) {
+			LOG.warn("Could not send EFI message, not connected", "resource", this.state.get().getEfiResourceId());
+			return false;
+		}
+		if (!sender.sendEfiMessage(message, dispatched)) {
+			LOG.warn("Could not send EFI message, the Resource Manager does not keep up", "resource",
+					this.state.get().getEfiResourceId());
+			return false;
+		}
+		return true;
+	}
+
 }
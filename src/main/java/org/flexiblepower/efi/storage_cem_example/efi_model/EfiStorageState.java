@@ -0,0 +1,586 @@
+package org.flexiblepower.efi.storage_cem_example.efi_model;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.flexiblepower.efi.storage_cem_example.efi_model.SystemDescriptionIndex.ActuatorIndex;
+import org.flexiblepower.efi.storage_cem_example.xml.MeasurementView;
+import org.flexiblepower.efi.storage_cem_example.xml.StorageStatusView;
+import org.flexiblepower.efi.xml.ActuatorBehaviour;
+import org.flexiblepower.efi.xml.EfiMessage;
+import org.flexiblepower.efi.xml.FlexibilityRevoke;
+import org.flexiblepower.efi.xml.InstructionStatusUpdate;
+import org.flexiblepower.efi.xml.Measurement;
+import org.flexiblepower.efi.xml.RunningMode;
+import org.flexiblepower.efi.xml.StorageFillLevelTargetProfile;
+import org.flexiblepower.efi.xml.StorageRegistration;
+import org.flexiblepower.efi.xml.StorageStatus;
+import org.flexiblepower.efi.xml.StorageSystemDescription;
+import org.flexiblepower.efi.xml.StorageUsageForecast;
+import org.flexiblepower.efi.xml.Timer;
+import org.flexiblepower.efi.xml.TimerReferences.TimerReference;
+import org.flexiblepower.efi.xml.Transition;
+
+/**
+ * Immutable snapshot of everything the CEM knows about one Resource Manager.
+ * The {@link EfiStorageModel} creates a new snapshot for every message it
+ * handles, so a snapshot can be read from any thread without locking and all
+ * values in it are consistent with each other.
+ *
+ * The JAXB objects and views held by a snapshot are never modified after the
+ * snapshot has been created. Callers must not modify them either.
+ */
+public final class EfiStorageState {
+
+	/** The state before any message has been received */
+	public static final EfiStorageState EMPTY = new EfiStorageState(null, null, null, null, new long[0][],
+			Forecasts.NONE, null, null);
+
+	private final StorageRegistration storageRegistration;
+	private final SystemDescriptionIndex systemDescriptionIndex;
+	private final StorageStatusView storageStatus;
+	private final MeasurementView measurement;
+	/**
+	 * The finishedAt of the last TimerUpdate of every timer, indexed by the
+	 * position of the actuator and timer in the StorageSystemDescription
+	 */
+	private final long[][] timerFinishedAt;
+	private final Forecasts forecasts;
+	private final InstructionStatusUpdate instructionStatusUpdate;
+	private final Class<? extends EfiMessage> lastMessageType;
+
+	private EfiStorageState(StorageRegistration storageRegistration, SystemDescriptionIndex systemDescriptionIndex,
+			StorageStatusView storageStatus, MeasurementView measurement, long[][] timerFinishedAt,
+			Forecasts forecasts, InstructionStatusUpdate instructionStatusUpdate,
+			Class<? extends EfiMessage> lastMessageType) {
+		this.storageRegistration = storageRegistration;
+		this.systemDescriptionIndex = systemDescriptionIndex;
+		this.storageStatus = storageStatus;
+		this.measurement = measurement;
+		this.timerFinishedAt = timerFinishedAt;
+		this.forecasts = forecasts;
+		this.instructionStatusUpdate = instructionStatusUpdate;
+		this.lastMessageType = lastMessageType;
+	}
+
+	/**
+	 * @return Whether the timers of both snapshots finish at the same times,
+	 *         because one was derived from the other without a timer update
+	 */
+	boolean hasSameTimers(EfiStorageState other) {
+		return this.timerFinishedAt == other.timerFinishedAt;
+	}
+
+	EfiStorageState withStorageRegistration(StorageRegistration registration) {
+		return new EfiStorageState(registration, this.systemDescriptionIndex, this.storageStatus, this.measurement,
+				this.timerFinishedAt, this.forecasts, this.instructionStatusUpdate, StorageRegistration.class);
+	}
+
+	/**
+	 * Switch to the index of a new StorageSystemDescription. The state of timers
+	 * which still exist is carried over, and the timer updates of the last
+	 * StorageStatus are applied in case it arrived before the system description.
+	 */
+	EfiStorageState withSystemDescription(SystemDescriptionIndex index) {
+		final SystemDescriptionIndex previousIndex = this.systemDescriptionIndex;
+		final long[][] finishedAt = new long[index.getActuatorCount()][];
+		for (final ActuatorBehaviour behaviour : index.getSystemDescription().getActuatorBehaviours()
+				.getActuatorBehaviour()) {
+			final ActuatorIndex actuator = index.getActuator(behaviour.getActuatorId());
+			final long[] timers = new long[actuator.getTimerCount()];
+			Arrays.fill(timers, Long.MIN_VALUE);
+			final ActuatorIndex previous = previousIndex == null ? null
+					: previousIndex.getActuator(behaviour.getActuatorId());
+			if (previous != null && behaviour.getTimers() != null) {
+				for (final Timer timer : behaviour.getTimers().getTimer()) {
+					final int p = previous.getTimerPosition(timer.getId());
+					if (p >= 0) {
+						timers[actuator.getTimerPosition(timer.getId())] = this.timerFinishedAt[previous.getPosition()][p];
+					}
+				}
+			}
+			finishedAt[actuator.getPosition()] = timers;
+		}
+		if (this.storageStatus != null) {
+			applyTimerUpdates(index, finishedAt, this.storageStatus);
+		}
+		return new EfiStorageState(this.storageRegistration, index, this.storageStatus, this.measurement, finishedAt,
+				this.forecasts, this.instructionStatusUpdate, StorageSystemDescription.class);
+	}
+
+	/**
+	 * @param storageStatus
+	 *            A view which is owned by the new snapshot and must not be
+	 *            modified afterwards
+	 */
+	EfiStorageState withStorageStatus(StorageStatusView storageStatus) {
+		long[][] finishedAt = this.timerFinishedAt;
+		if (this.systemDescriptionIndex != null) {
+			finishedAt = new long[this.timerFinishedAt.length][];
+			for (int i = 0; i < finishedAt.length; i++) {
+				finishedAt[i] = this.timerFinishedAt[i].clone();
+			}
+			applyTimerUpdates(this.systemDescriptionIndex, finishedAt, storageStatus);
+		}
+		// Otherwise the timer updates are applied as soon as the
+		// StorageSystemDescription arrives
+		return new EfiStorageState(this.storageRegistration, this.systemDescriptionIndex, storageStatus,
+				this.measurement, finishedAt, this.forecasts, this.instructionStatusUpdate, StorageStatus.class);
+	}
+
+	/**
+	 * @param measurement
+	 *            A view which is owned by the new snapshot and must not be
+	 *            modified afterwards
+	 */
+	EfiStorageState withMeasurement(MeasurementView measurement) {
+		return new EfiStorageState(this.storageRegistration, this.systemDescriptionIndex, this.storageStatus,
+				measurement, this.timerFinishedAt, this.forecasts, this.instructionStatusUpdate, Measurement.class);
+	}
+
+	/**
+	 * Apply the bounds of a StorageFillLevelTargetProfile. They replace the
+	 * current bounds from the start of the new profile on.
+	 *
+	 * @param now
+	 *            Elements of the current bounds which ended before this time are
+	 *            dropped
+	 */
+	EfiStorageState withTargetProfile(TimeProfile lowerBounds, TimeProfile upperBounds, long now) {
+		final Forecasts f = new Forecasts(replace(this.forecasts.targetLowerBounds, lowerBounds, now),
+				replace(this.forecasts.targetUpperBounds, upperBounds, now), this.forecasts.usage);
+		return new EfiStorageState(this.storageRegistration, this.systemDescriptionIndex, this.storageStatus,
+				this.measurement, this.timerFinishedAt, f, this.instructionStatusUpdate,
+				StorageFillLevelTargetProfile.class);
+	}
+
+	/**
+	 * Apply the expected usage rates of a StorageUsageForecast. They replace the
+	 * current forecast from the start of the new one on.
+	 *
+	 * @param now
+	 *            Elements of the current forecast which ended before this time
+	 *            are dropped
+	 */
+	EfiStorageState withUsageForecast(TimeProfile usage, long now) {
+		final Forecasts f = new Forecasts(this.forecasts.targetLowerBounds, this.forecasts.targetUpperBounds,
+				replace(this.forecasts.usage, usage, now));
+		return new EfiStorageState(this.storageRegistration, this.systemDescriptionIndex, this.storageStatus,
+				this.measurement, this.timerFinishedAt, f, this.instructionStatusUpdate, StorageUsageForecast.class);
+	}
+
+	private static TimeProfile replace(TimeProfile current, TimeProfile newer, long now) {
+		return current == null ? newer : current.replaceFrom(newer, now);
+	}
+
+	EfiStorageState withInstructionStatusUpdate(InstructionStatusUpdate update) {
+		return new EfiStorageState(this.storageRegistration, this.systemDescriptionIndex, this.storageStatus,
+				this.measurement, this.timerFinishedAt, this.forecasts, update, InstructionStatusUpdate.class);
+	}
+
+	/**
+	 * Forget everything except the registration, since the Resource Manager may
+	 * have changed its flexibility while the connection was down. It will send a
+	 * new StorageSystemDescription and StorageStatus after reconnecting.
+	 */
+	EfiStorageState invalidated() {
+		return new EfiStorageState(this.storageRegistration, null, null, null, new long[0][], Forecasts.NONE, null,
+				null);
+	}
+
+	EfiStorageState revoked() {
+		return new EfiStorageState(this.storageRegistration, null, null, this.measurement, new long[0][],
+				Forecasts.NONE, this.instructionStatusUpdate, FlexibilityRevoke.class);
+	}
+
+	private static void applyTimerUpdates(SystemDescriptionIndex index, long[][] finishedAt,
+			StorageStatusView storageStatus) {
+		for (int i = 0; i < storageStatus.getActuatorCount(); i++) {
+			final ActuatorIndex actuator = index.getActuator(storageStatus.getActuatorId(i));
+			if (actuator == null) {
+				continue;
+			}
+			final long[] timers = finishedAt[actuator.getPosition()];
+			for (int t = 0; t < storageStatus.getTimerUpdateCount(i); t++) {
+				final int p = actuator.getTimerPosition(storageStatus.getTimerId(i, t));
+				if (p >= 0) {
+					timers[p] = storageStatus.getTimerFinishedAt(i, t);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The type of the message which led to this snapshot, so listeners can tell
+	 * what has changed.
+	 *
+	 * @return The message type, or null for {@link #EMPTY} and for a state which
+	 *         has been invalidated because the connection was lost
+	 */
+	public Class<? extends EfiMessage> getLastMessageType() {
+		return this.lastMessageType;
+	}
+
+	/**
+	 * @return The StorageRegistration, or null if not yet received
+	 */
+	public StorageRegistration getStorageRegistration() {
+		return this.storageRegistration;
+	}
+
+	/**
+	 * @return The last StorageSystemDescription, or null if not yet received or
+	 *         revoked
+	 */
+	public StorageSystemDescription getStorageSystemDescription() {
+		return this.systemDescriptionIndex == null ? null : this.systemDescriptionIndex.getSystemDescription();
+	}
+
+	/**
+	 * @return The index of the last StorageSystemDescription, or null if not yet
+	 *         received or revoked
+	 */
+	public SystemDescriptionIndex getSystemDescriptionIndex() {
+		return this.systemDescriptionIndex;
+	}
+
+	/**
+	 * @return The last StorageStatus, or null if not yet received or revoked
+	 */
+	public StorageStatusView getStorageStatus() {
+		return this.storageStatus;
+	}
+
+	/**
+	 * Return the EFI Resource ID as specified by the ResourceManager.
+	 *
+	 * @return the EFI Resource ID, or null if not yet known
+	 */
+	public String getEfiResourceId() {
+		if (this.storageRegistration != null) {
+			return this.storageRegistration.getHeader().getEfiResourceId();
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Return the currently known fill level
+	 *
+	 * @return The fill level, or null if not yet known
+	 */
+	public Double getFillLevel() {
+		if (this.storageStatus != null && !Double.isNaN(this.storageStatus.getCurrentFillLevel())) {
+			return this.storageStatus.getCurrentFillLevel();
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * @return The lower bounds of the fill level from the
+	 *         StorageFillLevelTargetProfile messages, or null if none has been
+	 *         received
+	 */
+	public TimeProfile getTargetLowerBounds() {
+		return this.forecasts.targetLowerBounds;
+	}
+
+	/**
+	 * @return The upper bounds of the fill level from the
+	 *         StorageFillLevelTargetProfile messages, or null if none has been
+	 *         received
+	 */
+	public TimeProfile getTargetUpperBounds() {
+		return this.forecasts.targetUpperBounds;
+	}
+
+	/**
+	 * @return The expected usage rates from the StorageUsageForecast messages, or
+	 *         null if none has been received
+	 */
+	public TimeProfile getUsageForecast() {
+		return this.forecasts.usage;
+	}
+
+	/**
+	 * @return The last InstructionStatusUpdate, or null if not yet received
+	 */
+	public InstructionStatusUpdate getLastInstructionStatusUpdate() {
+		return this.instructionStatusUpdate;
+	}
+
+	/**
+	 * Return the last received Measurement message from the ResourceManager.
+	 *
+	 * @return The last received Measurement, or null if no Measurement received
+	 */
+	public MeasurementView getLastMeasurement() {
+		return this.measurement;
+	}
+
+	/**
+	 * List all the ActuatorBehavior elements from the StorageSystemDescription
+	 * message
+	 *
+	 * @return A list of all AcutatorBehavior elements, or null if no
+	 *         StorageSystemDescription received yet
+	 */
+	public List<ActuatorBehaviour> getActuatorBehaviours() {
+		final StorageSystemDescription systemDescription = this.getStorageSystemDescription();
+		if (systemDescription != null) {
+			return systemDescription.getActuatorBehaviours().getActuatorBehaviour();
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * The AcutatorBehavior for a specific Actuator ID
+	 *
+	 * @param actuatorId
+	 *            ID of the desired actuator
+	 * @return AcutatorBehavior, or null if actuator ID unknown or no
+	 *         StorageSystemDescription received yet
+	 */
+	public ActuatorBehaviour getActuatorBehaviourById(int actuatorId) {
+		final ActuatorIndex actuator = this.getActuatorIndex(actuatorId);
+		if (actuator == null) {
+			return null;
+		} else {
+			return actuator.getBehaviour();
+		}
+	}
+
+	private ActuatorIndex getActuatorIndex(int actuatorId) {
+		if (this.systemDescriptionIndex == null) {
+			return null;
+		} else {
+			return this.systemDescriptionIndex.getActuator(actuatorId);
+		}
+	}
+
+	public List<RunningMode> getRunningModes(int actuatorId) {
+		final ActuatorBehaviour actuator = this.getActuatorBehaviourById(actuatorId);
+		if (actuator == null) {
+			return null;
+		} else {
+			return actuator.getRunningModes().getDiscreteRunningModeOrContinuousRunningMode();
+		}
+	}
+
+	public RunningMode getRunningMode(int actuatorId, int runningModeId) {
+		final ActuatorIndex actuator = this.getActuatorIndex(actuatorId);
+		if (actuator == null) {
+			return null;
+		} else {
+			return actuator.getRunningMode(runningModeId);
+		}
+	}
+
+	/**
+	 * The running mode which is currently active for an actuator, according to
+	 * the last received StorageStatus message
+	 *
+	 * @param actuatorId
+	 *            ID of the desired actuator
+	 * @return The active running mode ID, or null if unknown
+	 */
+	public Integer getActiveRunningMode(int actuatorId) {
+		final int index = this.indexOfActuatorStatus(actuatorId);
+		if (index < 0) {
+			return null;
+		} else {
+			return this.storageStatus.getCurrentRunningMode(index);
+		}
+	}
+
+	/**
+	 * The factor of the continuous running mode which is currently active for an
+	 * actuator, according to the last received StorageStatus message
+	 *
+	 * @param actuatorId
+	 *            ID of the desired actuator
+	 * @return The running mode factor, or null if unknown or not applicable
+	 */
+	public Double getRunningModeFactor(int actuatorId) {
+		final int index = this.indexOfActuatorStatus(actuatorId);
+		if (index < 0 || Double.isNaN(this.storageStatus.getRunningModeFactor(index))) {
+			return null;
+		} else {
+			return this.storageStatus.getRunningModeFactor(index);
+		}
+	}
+
+	private int indexOfActuatorStatus(int actuatorId) {
+		if (this.storageStatus == null) {
+			return -1;
+		}
+		return this.storageStatus.indexOfActuator(actuatorId);
+	}
+
+	/**
+	 * All transitions from a running mode.
+	 *
+	 * @return An unmodifiable list of transitions, or null if the actuator is
+	 *         unknown
+	 */
+	public List<Transition> getOutgoingTransitions(int actuatorId, int runningModeId) {
+		final ActuatorIndex actuator = this.getActuatorIndex(actuatorId);
+		if (actuator == null) {
+			return null;
+		}
+		return actuator.getOutgoingTransitions(runningModeId);
+	}
+
+	/**
+	 * The transition between two running modes.
+	 *
+	 * @return The transition, or null if the actuator is unknown or there is no
+	 *         such transition
+	 */
+	public Transition getTransition(int actuatorId, int fromRunningModeId, int toRunningModeId) {
+		final ActuatorIndex actuator = this.getActuatorIndex(actuatorId);
+		if (actuator == null) {
+			return null;
+		}
+		return actuator.getTransition(fromRunningModeId, toRunningModeId);
+	}
+
+	/**
+	 * @return The compiled transitions of an actuator, or null if the actuator is
+	 *         unknown
+	 */
+	public TransitionGraph getTransitionGraph(int actuatorId) {
+		final ActuatorIndex actuator = this.getActuatorIndex(actuatorId);
+		return actuator == null ? null : actuator.getTransitionGraph();
+	}
+
+	/**
+	 * @return Whether there is a transition from the active running mode of an
+	 *         actuator to another running mode which is not blocked by a timer
+	 */
+	public boolean canActivateNow(int actuatorId, int runningModeId) {
+		final ActuatorIndex actuator = this.getActuatorIndex(actuatorId);
+		final Integer active = this.getActiveRunningMode(actuatorId);
+		if (actuator == null || active == null) {
+			return false;
+		}
+		return actuator.getTransitionGraph().isReachableNow(active, runningModeId,
+				this.timerFinishedAt[actuator.getPosition()], System.currentTimeMillis());
+	}
+
+	/**
+	 * The earliest time a running mode can be reached from the active running
+	 * mode of an actuator, possibly through other running modes, see
+	 * {@link TransitionGraph#earliestArrival(int, int, long[], long)}.
+	 *
+	 * @return The time in epoch milliseconds, the current time for the active
+	 *         running mode, or Long.MAX_VALUE if it cannot be reached or the
+	 *         active running mode is unknown
+	 */
+	public long earliestReachableMillis(int actuatorId, int runningModeId) {
+		return this.earliestReachableMillis(actuatorId, runningModeId, System.currentTimeMillis());
+	}
+
+	/**
+	 * @param now
+	 *            The current time in epoch milliseconds
+	 * @see #earliestReachableMillis(int, int)
+	 */
+	public long earliestReachableMillis(int actuatorId, int runningModeId, long now) {
+		final ActuatorIndex actuator = this.getActuatorIndex(actuatorId);
+		final Integer active = this.getActiveRunningMode(actuatorId);
+		if (actuator == null || active == null) {
+			return Long.MAX_VALUE;
+		}
+		return actuator.getTransitionGraph().earliestArrival(active, runningModeId,
+				this.timerFinishedAt[actuator.getPosition()], now);
+	}
+
+	public boolean isTransitionBlocked(int actuatorId, Transition transition) {
+		if (transition.getBlockingTimers() == null) {
+			return false;
+		}
+		for (final TimerReference tr : transition.getBlockingTimers().getTimerReference()) {
+			final Timer timer = this.getTimer(actuatorId, tr.getTimerId());
+			if (this.isTimerActive(actuatorId, timer)) {
+				// The timer is active, the transition is currently blocked
+				return true;
+			}
+		}
+		// If we encountered no blocking timers, the transition is not blocked
+		return false;
+	}
+
+	public Date transitionBlockedUntil(int actuatorId, Transition transition) {
+		return new Date(this.transitionBlockedUntilMillis(actuatorId, transition));
+	}
+
+	/**
+	 * @return The time in epoch milliseconds the last blocking timer of the
+	 *         transition finishes, or the current time if it is not blocked
+	 */
+	public long transitionBlockedUntilMillis(int actuatorId, Transition transition) {
+		long end = System.currentTimeMillis();
+		if (transition.getBlockingTimers() == null) {
+			return end;
+		}
+		for (final TimerReference tr : transition.getBlockingTimers().getTimerReference()) {
+			final Timer timer = this.getTimer(actuatorId, tr.getTimerId());
+			end = Math.max(end, this.getTimerFinishedAtMillis(actuatorId, timer));
+		}
+		return end;
+	}
+
+	public boolean isTimerActive(int actuatorId, Timer timer) {
+		return this.getTimerFinishedAtMillis(actuatorId, timer) > System.currentTimeMillis();
+	}
+
+	public Date getTimerFinishedAt(int actuatorId, Timer timer) {
+		return new Date(this.getTimerFinishedAtMillis(actuatorId, timer));
+	}
+
+	/**
+	 * @return The finishedAt of the last TimerUpdate of the timer in epoch
+	 *         milliseconds, or Long.MIN_VALUE if the timer has never been
+	 *         started
+	 */
+	public long getTimerFinishedAtMillis(int actuatorId, Timer timer) {
+		final ActuatorIndex actuator = this.getActuatorIndex(actuatorId);
+		final int p = actuator == null ? -1 : actuator.getTimerPosition(timer.getId());
+		if (p < 0) {
+			// A timer without any update has never been started
+			return Long.MIN_VALUE;
+		}
+		return this.timerFinishedAt[actuator.getPosition()][p];
+	}
+
+	public Timer getTimer(int actuatorId, int timerId) {
+		final ActuatorIndex actuator = this.getActuatorIndex(actuatorId);
+		if (actuator == null) {
+			return null;
+		}
+		return actuator.getTimer(timerId);
+	}
+
+	/**
+	 * The profiles received from the Resource Manager. A new message creates new
+	 * profiles, so the cumulative sums in a profile never change.
+	 */
+	private static final class Forecasts {
+		static final Forecasts NONE = new Forecasts(null, null, null);
+
+		final TimeProfile targetLowerBounds;
+		final TimeProfile targetUpperBounds;
+		final TimeProfile usage;
+
+		Forecasts(TimeProfile targetLowerBounds, TimeProfile targetUpperBounds, TimeProfile usage) {
+			this.targetLowerBounds = targetLowerBounds;
+			this.targetUpperBounds = targetUpperBounds;
+			this.usage = usage;
+		}
+	}
+
+}
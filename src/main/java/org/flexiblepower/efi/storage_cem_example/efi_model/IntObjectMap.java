@@ -0,0 +1,131 @@
+package org.flexiblepower.efi.storage_cem_example.efi_model;
+
+import java.util.function.Consumer;
+
+/**
+ * Hash map from primitive int keys to objects, using open addressing with
+ * linear probing. Unlike a HashMap&lt;Integer, V&gt; it does not box keys or
+ * allocate entries, so lookups do not create any garbage.
+ *
+ * Null values are not supported. This class is not thread-safe; instances
+ * which are shared between threads must not be modified after they have been
+ * published.
+ *
+ * @param <V>
+ *            The type of the values
+ */
+public final class IntObjectMap<V> {
+
+	private int[] keys;
+	private Object[] values;
+	private int size;
+	private int mask;
+
+	public IntObjectMap() {
+		this(8);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            The number of entries the map should hold without resizing
+	 */
+	public IntObjectMap(int expectedSize) {
+		int capacity = 4;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		this.keys = new int[capacity];
+		this.values = new Object[capacity];
+		this.mask = capacity - 1;
+	}
+
+	private static int hash(int key) {
+		final int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private int slot(int key) {
+		int i = hash(key) & this.mask;
+		while (this.values[i] != null && this.keys[i] != key) {
+			i = (i + 1) & this.mask;
+		}
+		return i;
+	}
+
+	/**
+	 * @return The value for the key, or null if the map does not contain the key
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		return (V) this.values[this.slot(key)];
+	}
+
+	public boolean containsKey(int key) {
+		return this.values[this.slot(key)] != null;
+	}
+
+	/**
+	 * Associate a value with a key, replacing any previous value.
+	 *
+	 * @return The previous value, or null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("IntObjectMap does not support null values");
+		}
+		int i = this.slot(key);
+		final V previous = (V) this.values[i];
+		if (previous == null) {
+			if ((this.size + 1) * 2 > this.values.length) {
+				this.resize();
+				i = this.slot(key);
+			}
+			this.size++;
+		}
+		this.keys[i] = key;
+		this.values[i] = value;
+		return previous;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	/**
+	 * Perform an action for every value, in no particular order.
+	 */
+	@SuppressWarnings("unchecked")
+	public void forEachValue(Consumer<? super V> action) {
+		for (final Object value : this.values) {
+			if (value != null) {
+				action.accept((V) value);
+			}
+		}
+	}
+
+	private void resize() {
+		final int[] oldKeys = this.keys;
+		final Object[] oldValues = this.values;
+		this.keys = new int[oldKeys.length * 2];
+		this.values = new Object[oldValues.length * 2];
+		this.mask = this.values.length - 1;
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != null) {
+				final int slot = this.slot(oldKeys[i]);
+				this.keys[slot] = oldKeys[i];
+				this.values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "IntObjectMap[size=" + this.size + "]";
+	}
+
+}
@@ -0,0 +1,207 @@
+package org.flexiblepower.efi.storage_cem_example.efi_model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.flexiblepower.efi.xml.ActuatorBehaviour;
+import org.flexiblepower.efi.xml.RunningMode;
+import org.flexiblepower.efi.xml.StorageSystemDescription;
+import org.flexiblepower.efi.xml.Timer;
+import org.flexiblepower.efi.xml.TimerReferences.TimerReference;
+import org.flexiblepower.efi.xml.Transition;
+
+/**
+ * Immutable lookup structure for a StorageSystemDescription. It is built once
+ * when the message is received, after which actuators, running modes, timers
+ * and transitions can be found by ID in constant time instead of scanning the
+ * JAXB lists.
+ */
+public final class SystemDescriptionIndex {
+
+	private final StorageSystemDescription systemDescription;
+	private final IntObjectMap<ActuatorIndex> actuators;
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             When two actuators have the same actuatorId
+	 */
+	public SystemDescriptionIndex(StorageSystemDescription systemDescription) {
+		this.systemDescription = systemDescription;
+		final List<ActuatorBehaviour> behaviours = systemDescription.getActuatorBehaviours().getActuatorBehaviour();
+		this.actuators = new IntObjectMap<>(behaviours.size());
+		for (int i = 0; i < behaviours.size(); i++) {
+			final ActuatorBehaviour behaviour = behaviours.get(i);
+			if (this.actuators.get(behaviour.getActuatorId()) != null) {
+				throw new IllegalArgumentException("Duplicate actuatorId " + behaviour.getActuatorId()
+						+ " in StorageSystemDescription " + systemDescription.getFlexibilityUpdateId());
+			}
+			this.actuators.put(behaviour.getActuatorId(), new ActuatorIndex(i, behaviour));
+		}
+	}
+
+	public StorageSystemDescription getSystemDescription() {
+		return this.systemDescription;
+	}
+
+	/**
+	 * @return The number of actuators in the StorageSystemDescription
+	 */
+	public int getActuatorCount() {
+		return this.actuators.size();
+	}
+
+	/**
+	 * @return The index of an actuator, or null if the actuator is unknown
+	 */
+	public ActuatorIndex getActuator(int actuatorId) {
+		return this.actuators.get(actuatorId);
+	}
+
+	/**
+	 * Lookup structure for one ActuatorBehaviour.
+	 */
+	public static final class ActuatorIndex {
+
+		private final int position;
+		private final ActuatorBehaviour behaviour;
+		private final IntObjectMap<RunningMode> runningModes;
+		private final IntObjectMap<Timer> timers;
+		private final IntObjectMap<Integer> timerPositions;
+		private final int timerCount;
+		private final IntObjectMap<List<Transition>> outgoingTransitions;
+		private final TransitionGraph graph;
+		private final IntObjectMap<List<Transition>> blockedTransitions;
+
+		ActuatorIndex(int position, ActuatorBehaviour behaviour) {
+			this.position = position;
+			this.behaviour = behaviour;
+
+			final List<RunningMode> modes = behaviour.getRunningModes().getDiscreteRunningModeOrContinuousRunningMode();
+			this.runningModes = new IntObjectMap<>(modes.size());
+			for (final RunningMode rm : modes) {
+				this.runningModes.put(rm.getId(), rm);
+			}
+
+			final List<Timer> timerList = behaviour.getTimers() == null ? Collections.<Timer> emptyList()
+					: behaviour.getTimers().getTimer();
+			this.timers = new IntObjectMap<>(timerList.size());
+			this.timerPositions = new IntObjectMap<>(timerList.size());
+			for (int i = 0; i < timerList.size(); i++) {
+				this.timers.put(timerList.get(i).getId(), timerList.get(i));
+				this.timerPositions.put(timerList.get(i).getId(), i);
+			}
+			this.timerCount = timerList.size();
+
+			final List<Transition> transitionList = behaviour.getTransitions() == null
+					? Collections.<Transition> emptyList()
+					: behaviour.getTransitions().getTransition();
+			final IntObjectMap<List<Transition>> outgoing = new IntObjectMap<>(modes.size());
+			this.blockedTransitions = new IntObjectMap<>(timerList.size());
+			for (final Transition t : transitionList) {
+				if (t.getBlockingTimers() != null) {
+					for (final TimerReference tr : t.getBlockingTimers().getTimerReference()) {
+						List<Transition> blocked = this.blockedTransitions.get(tr.getTimerId());
+						if (blocked == null) {
+							blocked = new ArrayList<>();
+							this.blockedTransitions.put(tr.getTimerId(), blocked);
+						}
+						blocked.add(t);
+					}
+				}
+				List<Transition> from = outgoing.get(t.getFromRunningModeId());
+				if (from == null) {
+					from = new ArrayList<>();
+					outgoing.put(t.getFromRunningModeId(), from);
+				}
+				from.add(t);
+			}
+			this.outgoingTransitions = new IntObjectMap<>(outgoing.size());
+			for (final List<Transition> from : collectValues(outgoing)) {
+				this.outgoingTransitions.put(from.get(0).getFromRunningModeId(), Collections.unmodifiableList(from));
+			}
+			this.graph = new TransitionGraph(modes, timerList, transitionList);
+		}
+
+		private static <V> List<V> collectValues(IntObjectMap<V> map) {
+			final List<V> result = new ArrayList<>(map.size());
+			map.forEachValue(result::add);
+			return result;
+		}
+
+		/**
+		 * @return The position of this actuator in the StorageSystemDescription
+		 */
+		public int getPosition() {
+			return this.position;
+		}
+
+		public ActuatorBehaviour getBehaviour() {
+			return this.behaviour;
+		}
+
+		/**
+		 * @return The running mode, or null if it does not exist
+		 */
+		public RunningMode getRunningMode(int runningModeId) {
+			return this.runningModes.get(runningModeId);
+		}
+
+		/**
+		 * @return The timer, or null if it does not exist
+		 */
+		public Timer getTimer(int timerId) {
+			return this.timers.get(timerId);
+		}
+
+		/**
+		 * @return The number of timers of this actuator
+		 */
+		public int getTimerCount() {
+			return this.timerCount;
+		}
+
+		/**
+		 * @return The position of the timer within this actuator, or -1 if the timer
+		 *         does not exist
+		 */
+		public int getTimerPosition(int timerId) {
+			final Integer p = this.timerPositions.get(timerId);
+			return p == null ? -1 : p;
+		}
+
+		/**
+		 * @return All transitions from a running mode, or an empty list if there are
+		 *         none
+		 */
+		public List<Transition> getOutgoingTransitions(int fromRunningModeId) {
+			final List<Transition> result = this.outgoingTransitions.get(fromRunningModeId);
+			return result == null ? Collections.<Transition> emptyList() : result;
+		}
+
+		/**
+		 * @return All transitions which are blocked by a timer, or an empty list if
+		 *         there are none
+		 */
+		public List<Transition> getTransitionsBlockedBy(int timerId) {
+			final List<Transition> result = this.blockedTransitions.get(timerId);
+			return result == null ? Collections.<Transition> emptyList() : Collections.unmodifiableList(result);
+		}
+
+		/**
+		 * @return The transition between two running modes, or null if there is none
+		 */
+		public Transition getTransition(int fromRunningModeId, int toRunningModeId) {
+			return this.graph.getTransition(fromRunningModeId, toRunningModeId);
+		}
+
+		/**
+		 * @return The compiled transitions of this actuator
+		 */
+		public TransitionGraph getTransitionGraph() {
+			return this.graph;
+		}
+
+	}
+
+}
@@ -0,0 +1,205 @@
+package org.flexiblepower.efi.storage_cem_example.efi_model;
+
+import java.util.Arrays;
+
+/**
+ * Immutable step profile: a sequence of adjacent elements with a constant
+ * value each, such as the fill level bounds of a StorageFillLevelTargetProfile
+ * or the usage rates of a StorageUsageForecast.
+ *
+ * The profile is stored in primitive arrays together with the cumulative
+ * integral at every element boundary, so the value at a time and the integral
+ * over an interval are found with a binary search in O(log n). Values are
+ * per second, so the integral of a usage rate is the fill level used.
+ */
+public final class TimeProfile {
+
+	/** Element i runs from boundaries[i] until boundaries[i + 1] */
+	private final long[] boundaries;
+	private final double[] values;
+	/** The integral from the start of the profile until every boundary */
+	private final double[] integrals;
+
+	private TimeProfile(long[] boundaries, double[] values) {
+		this.boundaries = boundaries;
+		this.values = values;
+		this.integrals = new double[boundaries.length];
+		for (int i = 0; i < values.length; i++) {
+			this.integrals[i + 1] = this.integrals[i] + values[i] * (boundaries[i + 1] - boundaries[i]) / 1000d;
+		}
+	}
+
+	/**
+	 * @param start
+	 *            The start of the first element
+	 * @param durations
+	 *            The duration of every element in milliseconds
+	 * @param values
+	 *            The value of every element
+	 */
+	public static TimeProfile of(long start, long[] durations, double[] values) {
+		if (durations.length != values.length) {
+			throw new IllegalArgumentException("Expected a value for every duration");
+		}
+		final long[] boundaries = new long[durations.length + 1];
+		boundaries[0] = start;
+		for (int i = 0; i < durations.length; i++) {
+			if (durations[i] < 0) {
+				throw new IllegalArgumentException("Negative duration in element " + i);
+			}
+			boundaries[i + 1] = boundaries[i] + durations[i];
+		}
+		return new TimeProfile(boundaries, values.clone());
+	}
+
+	/**
+	 * @return The number of elements
+	 */
+	public int size() {
+		return this.values.length;
+	}
+
+	public long getStart() {
+		return this.boundaries[0];
+	}
+
+	/**
+	 * @return The end of the last element, exclusive
+	 */
+	public long getEnd() {
+		return this.boundaries[this.boundaries.length - 1];
+	}
+
+	public long getElementStart(int index) {
+		return this.boundaries[index];
+	}
+
+	public double getValue(int index) {
+		return this.values[index];
+	}
+
+	/**
+	 * @return The index of the element which contains the time, or -1 if the
+	 *         time is outside the profile
+	 */
+	public int indexOf(long time) {
+		if (time < this.getStart() || time >= this.getEnd()) {
+			return -1;
+		}
+		final int i = Arrays.binarySearch(this.boundaries, time);
+		// Elements of zero length share a boundary, use the last of them
+		return i >= 0 ? lastIndexOf(this.boundaries, i) : -i - 2;
+	}
+
+	private static int lastIndexOf(long[] boundaries, int i) {
+		while (i + 1 < boundaries.length - 1 && boundaries[i + 1] == boundaries[i]) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @return The value at a time, or NaN if the time is outside the profile
+	 */
+	public double valueAt(long time) {
+		final int i = this.indexOf(time);
+		return i < 0 ? Double.NaN : this.values[i];
+	}
+
+	/**
+	 * The integral of the values over an interval, in value times seconds. Only
+	 * the part of the interval which is covered by the profile counts.
+	 */
+	public double integral(long from, long to) {
+		final long start = Math.max(from, this.getStart());
+		final long end = Math.min(to, this.getEnd());
+		if (end <= start) {
+			return 0;
+		}
+		return this.integralUntil(end) - this.integralUntil(start);
+	}
+
+	private double integralUntil(long time) {
+		if (time >= this.getEnd()) {
+			return this.integrals[this.integrals.length - 1];
+		}
+		final int i = this.indexOf(time);
+		return this.integrals[i] + this.values[i] * (time - this.boundaries[i]) / 1000d;
+	}
+
+	/**
+	 * @return The average value over the part of an interval which is covered
+	 *         by the profile, or NaN if the profile does not cover any of it
+	 */
+	public double average(long from, long to) {
+		final long start = Math.max(from, this.getStart());
+		final long end = Math.min(to, this.getEnd());
+		if (end <= start) {
+			return Double.NaN;
+		}
+		return this.integral(start, end) * 1000d / (end - start);
+	}
+
+	/**
+	 * The average value of every slot of a horizon.
+	 *
+	 * @return The averages, NaN for slots which the profile does not cover
+	 */
+	public double[] averages(long start, long slotMillis, int slots) {
+		final double[] result = new double[slots];
+		for (int i = 0; i < slots; i++) {
+			result[i] = this.average(start + i * slotMillis, start + (i + 1) * slotMillis);
+		}
+		return result;
+	}
+
+	/**
+	 * The value at the end of every slot of a horizon.
+	 *
+	 * @return The values, NaN for slots which end outside the profile
+	 */
+	public double[] valuesAtSlotEnds(long start, long slotMillis, int slots) {
+		final double[] result = new double[slots];
+		for (int i = 0; i < slots; i++) {
+			result[i] = this.valueAt(start + (i + 1) * slotMillis - 1);
+		}
+		return result;
+	}
+
+	/**
+	 * Combine this profile with a newer one. The newer profile replaces this one
+	 * from its start on. The part of this profile before the newer one starts
+	 * stays valid, except for elements which ended before a given time.
+	 *
+	 * @param newer
+	 *            The newer profile
+	 * @param keepFrom
+	 *            Elements of this profile which end before this time are dropped
+	 * @return The combined profile
+	 */
+	public TimeProfile replaceFrom(TimeProfile newer, long keepFrom) {
+		final long from = Math.max(keepFrom, this.getStart());
+		final long until = newer.getStart();
+		if (from >= until || this.getEnd() < until) {
+			// Nothing of this profile remains, or there would be a gap
+			return newer;
+		}
+		final int first = this.indexOf(from);
+		final int last = this.indexOf(until - 1);
+		final int kept = last - first + 1;
+		final long[] boundaries = new long[kept + newer.boundaries.length];
+		final double[] values = new double[kept + newer.values.length];
+		System.arraycopy(this.boundaries, first, boundaries, 0, kept);
+		System.arraycopy(this.values, first, values, 0, kept);
+		System.arraycopy(newer.boundaries, 0, boundaries, kept, newer.boundaries.length);
+		System.arraycopy(newer.values, 0, values, kept, newer.values.length);
+		return new TimeProfile(boundaries, values);
+	}
+
+	@Override
+	public String toString() {
+		return "TimeProfile [boundaries=" + Arrays.toString(this.boundaries) + ", values="
+				+ Arrays.toString(this.values) + "]";
+	}
+
+}
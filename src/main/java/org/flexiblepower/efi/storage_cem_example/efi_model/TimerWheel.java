@@ -0,0 +1,312 @@
+package org.flexiblepower.efi.storage_cem_example.efi_model;
+
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.flexiblepower.efi.storage_cem_example.log.Log;
+import org.flexiblepower.efi.storage_cem_example.log.Logging;
+
+/**
+ * Hashed timer wheel which runs tasks at a wall clock time in epoch
+ * milliseconds, such as the finishedAt of a TimerUpdate.
+ *
+ * The wheel has a fixed number of buckets of one tick each. A task is put in
+ * the bucket of its deadline tick, so scheduling and cancelling take constant
+ * time no matter how many tasks are waiting. A single daemon thread sleeps
+ * until the end of the earliest tick with a task, then runs the tasks of all
+ * ticks which have ended, and sleeps without waking up while no tasks are
+ * waiting. Tasks run on that thread in the order of their ticks, never before
+ * their deadline and at most one tick late; they should return quickly.
+ */
+public final class TimerWheel implements Closeable {
+
+	private static final Log LOG = Logging.get("model");
+
+	public static final long DEFAULT_TICK_MILLIS = 10;
+	public static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+	private static final int PENDING = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+
+	private static TimerWheel defaultWheel;
+
+	private final long tickMillis;
+	private final Bucket[] buckets;
+	private final int mask;
+	private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+	private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+	private final Thread worker;
+	private final long startMillis;
+	private volatile boolean running = true;
+
+	// Only used by the worker thread
+	/** The first tick which has not been expired */
+	private long tick;
+	/** No task is due before this tick */
+	private long nextDeadlineTick = Long.MAX_VALUE;
+	private int waiting;
+
+	public TimerWheel() {
+		this(DEFAULT_TICK_MILLIS, DEFAULT_TICKS_PER_WHEEL, "efi-timer-wheel");
+	}
+
+	/**
+	 * @param tickMillis
+	 *            The duration of a tick, the resolution of the wheel
+	 * @param ticksPerWheel
+	 *            The number of buckets, rounded up to a power of two
+	 * @param threadName
+	 *            The name of the thread which runs the tasks
+	 */
+	public TimerWheel(long tickMillis, int ticksPerWheel, String threadName) {
+		if (tickMillis < 1) {
+			throw new IllegalArgumentException("Invalid tick duration " + tickMillis);
+		}
+		if (ticksPerWheel < 1 || ticksPerWheel > 1 << 20) {
+			throw new IllegalArgumentException("Invalid number of ticks per wheel " + ticksPerWheel);
+		}
+		this.tickMillis = tickMillis;
+		final int size = Integer.highestOneBit(ticksPerWheel - 1 << 1 | 1);
+		this.buckets = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			this.buckets[i] = new Bucket();
+		}
+		this.mask = size - 1;
+		this.startMillis = System.currentTimeMillis();
+		this.worker = new Thread(this::run, threadName);
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * @return The wheel shared by all models, created when it is first needed
+	 */
+	public static synchronized TimerWheel getDefault() {
+		if (defaultWheel == null) {
+			defaultWheel = new TimerWheel();
+		}
+		return defaultWheel;
+	}
+
+	/**
+	 * Run a task at a time. A time in the past runs the task on the next tick.
+	 *
+	 * @param deadlineMillis
+	 *            The time in epoch milliseconds
+	 * @return A handle to cancel the task
+	 */
+	public Timeout schedule(long deadlineMillis, Runnable task) {
+		final Timeout timeout = new Timeout(this, deadlineMillis, task);
+		if (!this.running) {
+			throw new IllegalStateException("The timer wheel has been closed");
+		}
+		this.added.add(timeout);
+		LockSupport.unpark(this.worker);
+		return timeout;
+	}
+
+	private void run() {
+		while (this.running) {
+			this.transferAdded();
+			if (this.waiting == 0) {
+				// Nothing to do until a task is scheduled
+				LockSupport.park(this);
+				this.tick = Math.max(this.tick, this.currentTick());
+				continue;
+			}
+			final long dueTick = Math.max(this.nextDeadlineTick, this.tick);
+			final long sleep = this.startMillis + (dueTick + 1) * this.tickMillis - System.currentTimeMillis();
+			if (sleep > 0) {
+				LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(sleep));
+				// Woken early when a task is added, which may be due sooner
+				continue;
+			}
+			this.transferAdded();
+			this.removeCancelled();
+			// Every tick before the current one has ended. A bucket holds the ticks
+			// which are whole rounds apart, so one round covers all of them.
+			final long lastTick = this.currentTick() - 1;
+			for (long t = Math.max(this.tick, lastTick - this.buckets.length + 1); t <= lastTick; t++) {
+				this.expire(this.buckets[(int) (t & this.mask)], t);
+			}
+			this.tick = lastTick + 1;
+			this.nextDeadlineTick = this.findNextDeadlineTick();
+		}
+	}
+
+	private long currentTick() {
+		return (System.currentTimeMillis() - this.startMillis) / this.tickMillis;
+	}
+
+	private void transferAdded() {
+		Timeout timeout;
+		while ((timeout = this.added.poll()) != null) {
+			if (timeout.state.get() != PENDING) {
+				continue;
+			}
+			// The task runs when its tick has ended, so never before its deadline
+			final long deadlineTick = Math.max(ceilDiv(timeout.deadline - this.startMillis, this.tickMillis) - 1,
+					this.tick);
+			timeout.deadlineTick = deadlineTick;
+			this.buckets[(int) (deadlineTick & this.mask)].add(timeout);
+			this.waiting++;
+			this.nextDeadlineTick = Math.min(this.nextDeadlineTick, deadlineTick);
+		}
+	}
+
+	/**
+	 * Look for the earliest deadline from the current tick, bucket by bucket.
+	 * Usually the first bucket with a task has it, unless all tasks are more
+	 * than a round away.
+	 */
+	private long findNextDeadlineTick() {
+		long next = Long.MAX_VALUE;
+		for (int i = 0; i < this.buckets.length && this.waiting > 0; i++) {
+			final long t = this.tick + i;
+			for (Timeout timeout = this.buckets[(int) (t & this.mask)].head; timeout != null; timeout = timeout.next) {
+				next = Math.min(next, timeout.deadlineTick);
+			}
+			if (next <= t) {
+				// Tasks in later buckets are due later
+				return next;
+			}
+		}
+		return next;
+	}
+
+	private static long ceilDiv(long x, long y) {
+		return -Math.floorDiv(-x, y);
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = this.cancelled.poll()) != null) {
+			if (timeout.bucket != null) {
+				timeout.bucket.remove(timeout);
+				this.waiting--;
+			}
+		}
+	}
+
+	/**
+	 * Run the tasks of a bucket which are due at or before a tick.
+	 */
+	private void expire(Bucket bucket, long tick) {
+		Timeout timeout = bucket.head;
+		while (timeout != null) {
+			final Timeout next = timeout.next;
+			if (timeout.deadlineTick <= tick) {
+				bucket.remove(timeout);
+				this.waiting--;
+				if (timeout.state.compareAndSet(PENDING, EXPIRED)) {
+					try {
+						timeout.task.run();
+					} catch (final RuntimeException e) {
+						LOG.error("Error in timer task", e);
+					}
+				}
+			}
+			timeout = next;
+		}
+	}
+
+	/**
+	 * Stop the wheel. Tasks which are still waiting do not run.
+	 */
+	@Override
+	public void close() {
+		this.running = false;
+		LockSupport.unpark(this.worker);
+	}
+
+	/**
+	 * A task waiting in the wheel.
+	 */
+	public static final class Timeout {
+		private final TimerWheel wheel;
+		private final long deadline;
+		private final Runnable task;
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+
+		// Only used by the worker thread
+		private long deadlineTick;
+		private Bucket bucket;
+		private Timeout next;
+		private Timeout previous;
+
+		Timeout(TimerWheel wheel, long deadline, Runnable task) {
+			this.wheel = wheel;
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		/**
+		 * @return The time in epoch milliseconds the task runs at
+		 */
+		public long getDeadline() {
+			return this.deadline;
+		}
+
+		/**
+		 * Prevent the task from running.
+		 *
+		 * @return false if the task has already run or was cancelled before
+		 */
+		public boolean cancel() {
+			if (!this.state.compareAndSet(PENDING, CANCELLED)) {
+				return false;
+			}
+			this.wheel.cancelled.add(this);
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return this.state.get() == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return this.state.get() == EXPIRED;
+		}
+	}
+
+	/**
+	 * Doubly linked list of the timeouts of one tick.
+	 */
+	private static final class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (this.head == null) {
+				this.head = timeout;
+			} else {
+				this.tail.next = timeout;
+				timeout.previous = this.tail;
+			}
+			this.tail = timeout;
+		}
+
+		void remove(Timeout timeout) {
+			if (timeout.previous == null) {
+				this.head = timeout.next;
+			} else {
+				timeout.previous.next = timeout.next;
+			}
+			if (timeout.next == null) {
+				this.tail = timeout.previous;
+			} else {
+				timeout.next.previous = timeout.previous;
+			}
+			timeout.bucket = null;
+			timeout.next = null;
+			timeout.previous = null;
+		}
+	}
+
+}
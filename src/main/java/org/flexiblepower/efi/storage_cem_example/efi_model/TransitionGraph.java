@@ -0,0 +1,307 @@
+package org.flexiblepower.efi.storage_cem_example.efi_model;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.flexiblepower.efi.storage_cem_example.xml.XmlUtil;
+import org.flexiblepower.efi.xml.RunningMode;
+import org.flexiblepower.efi.xml.Timer;
+import org.flexiblepower.efi.xml.TimerReferences;
+import org.flexiblepower.efi.xml.TimerReferences.TimerReference;
+import org.flexiblepower.efi.xml.Transition;
+
+/**
+ * The transitions of one actuator compiled into primitive arrays, to answer
+ * reachability questions without looking at the JAXB objects.
+ *
+ * Running modes and timers are numbered by their position in the
+ * ActuatorBehaviour. The successors of every running mode and the running
+ * modes it can ever reach are kept as bitsets, and every transition is
+ * reduced to the positions of its blocking and start timers and its duration.
+ * The time dependent queries take the finishedAt of every timer of the
+ * actuator in epoch milliseconds, in the order of their positions, as kept by
+ * {@link EfiStorageState}.
+ *
+ * Durations are converted to milliseconds once, as if they start at the epoch,
+ * so durations in months or years are approximate. The graph is immutable.
+ */
+public final class TransitionGraph {
+
+	private final int[] runningModeIds;
+	private final IntObjectMap<Integer> positions;
+	private final int size;
+	/** The successors of every running mode, as a bitset */
+	private final long[][] successors;
+	/** The running modes which can be reached in one or more transitions */
+	private final long[][] closure;
+	/** The transition from running mode i to j at i * size + j, or -1 */
+	private final int[] edges;
+	private final Transition[] transitions;
+	private final int[][] blockingTimers;
+	private final int[][] startTimers;
+	private final long[] transitionDurations;
+	private final long[] timerDurations;
+
+	/**
+	 * @param runningModes
+	 *            The running modes of the actuator
+	 * @param timers
+	 *            The timers of the actuator, in the order of their positions
+	 * @param transitions
+	 *            The transitions of the actuator; of two transitions between the
+	 *            same running modes only the first is used
+	 */
+	TransitionGraph(List<RunningMode> runningModes, List<Timer> timers, List<Transition> transitions) {
+		this.size = runningModes.size();
+		this.runningModeIds = new int[this.size];
+		this.positions = new IntObjectMap<>(this.size);
+		for (int i = 0; i < this.size; i++) {
+			this.runningModeIds[i] = runningModes.get(i).getId();
+			this.positions.put(this.runningModeIds[i], i);
+		}
+		final IntObjectMap<Integer> timerPositions = new IntObjectMap<>(timers.size());
+		this.timerDurations = new long[timers.size()];
+		for (int i = 0; i < timers.size(); i++) {
+			timerPositions.put(timers.get(i).getId(), i);
+			this.timerDurations[i] = timers.get(i).getDuration() == null ? 0
+					: XmlUtil.duration(timers.get(i).getDuration(), 0);
+		}
+
+		final int words = (this.size + 63) >>> 6;
+		this.successors = new long[this.size][words];
+		this.edges = new int[this.size * this.size];
+		Arrays.fill(this.edges, -1);
+		this.transitions = new Transition[transitions.size()];
+		this.blockingTimers = new int[transitions.size()][];
+		this.startTimers = new int[transitions.size()][];
+		this.transitionDurations = new long[transitions.size()];
+		int count = 0;
+		for (final Transition t : transitions) {
+			final Integer from = this.positions.get(t.getFromRunningModeId());
+			final Integer to = this.positions.get(t.getToRunningModeId());
+			if (from == null || to == null || this.edges[from * this.size + to] >= 0) {
+				continue;
+			}
+			this.edges[from * this.size + to] = count;
+			this.successors[from][to >>> 6] |= 1L << to;
+			this.transitions[count] = t;
+			this.blockingTimers[count] = timerPositions(t.getBlockingTimers(), timerPositions);
+			this.startTimers[count] = timerPositions(t.getStartTimers(), timerPositions);
+			this.transitionDurations[count] = t.getTransitionDuration() == null ? 0
+					: XmlUtil.duration(t.getTransitionDuration(), 0);
+			count++;
+		}
+
+		// Transitive closure, Warshall's algorithm on bitsets
+		this.closure = new long[this.size][];
+		for (int i = 0; i < this.size; i++) {
+			this.closure[i] = this.successors[i].clone();
+		}
+		for (int k = 0; k < this.size; k++) {
+			final long[] viaK = this.closure[k];
+			for (int i = 0; i < this.size; i++) {
+				if ((this.closure[i][k >>> 6] & 1L << k) != 0) {
+					final long[] row = this.closure[i];
+					for (int w = 0; w < words; w++) {
+						row[w] |= viaK[w];
+					}
+				}
+			}
+		}
+	}
+
+	private static int[] timerPositions(TimerReferences references, IntObjectMap<Integer> timerPositions) {
+		if (references == null) {
+			return new int[0];
+		}
+		final int[] result = new int[references.getTimerReference().size()];
+		int count = 0;
+		for (final TimerReference reference : references.getTimerReference()) {
+			final Integer p = timerPositions.get(reference.getTimerId());
+			if (p != null) {
+				result[count++] = p;
+			}
+		}
+		return count == result.length ? result : Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * @return The number of running modes
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return The position of a running mode, or -1 if it does not exist
+	 */
+	public int indexOf(int runningModeId) {
+		final Integer p = this.positions.get(runningModeId);
+		return p == null ? -1 : p;
+	}
+
+	/**
+	 * @return The ID of the running mode at a position
+	 */
+	public int getRunningModeId(int index) {
+		return this.runningModeIds[index];
+	}
+
+	private int edge(int fromRunningModeId, int toRunningModeId) {
+		final int from = this.indexOf(fromRunningModeId);
+		final int to = this.indexOf(toRunningModeId);
+		return from < 0 || to < 0 ? -1 : this.edges[from * this.size + to];
+	}
+
+	/**
+	 * @return The transition between two running modes, or null if there is none
+	 */
+	public Transition getTransition(int fromRunningModeId, int toRunningModeId) {
+		final int e = this.edge(fromRunningModeId, toRunningModeId);
+		return e < 0 ? null : this.transitions[e];
+	}
+
+	/**
+	 * @return Whether a running mode can be reached in one or more transitions,
+	 *         if no timer would block them
+	 */
+	public boolean canEverReach(int fromRunningModeId, int toRunningModeId) {
+		final int from = this.indexOf(fromRunningModeId);
+		final int to = this.indexOf(toRunningModeId);
+		return from >= 0 && to >= 0 && (this.closure[from][to >>> 6] & 1L << to) != 0;
+	}
+
+	/**
+	 * @return Whether there is a transition between two running modes which is
+	 *         not blocked by a timer at a time
+	 */
+	public boolean isReachableNow(int fromRunningModeId, int toRunningModeId, long[] timerFinishedAt, long now) {
+		final int e = this.edge(fromRunningModeId, toRunningModeId);
+		return e >= 0 && this.blockedUntil(e, timerFinishedAt) <= now;
+	}
+
+	/**
+	 * @return The time the last blocking timer of a transition finishes, or
+	 *         Long.MIN_VALUE if it has no timers which ever ran
+	 */
+	private long blockedUntil(int edge, long[] timerFinishedAt) {
+		long until = Long.MIN_VALUE;
+		for (final int t : this.blockingTimers[edge]) {
+			until = Math.max(until, timerFinishedAt[t]);
+		}
+		return until;
+	}
+
+	/**
+	 * The earliest time a running mode can be reached from another one in one or
+	 * more transitions. A transition can start when its blocking timers have
+	 * finished and takes its transition duration; the timers it starts are taken
+	 * into account for the following transitions. Of all ways to reach a running
+	 * mode only the earliest is followed further.
+	 *
+	 * @param timerFinishedAt
+	 *            The finishedAt of every timer of the actuator
+	 * @param now
+	 *            The current time
+	 * @return The time in epoch milliseconds, now if both running modes are the
+	 *         same, or Long.MAX_VALUE if the running mode cannot be reached
+	 */
+	public long earliestArrival(int fromRunningModeId, int toRunningModeId, long[] timerFinishedAt, long now) {
+		final int from = this.indexOf(fromRunningModeId);
+		final int to = this.indexOf(toRunningModeId);
+		if (from < 0 || to < 0) {
+			return Long.MAX_VALUE;
+		}
+		return this.search(from, to, timerFinishedAt, now, null);
+	}
+
+	/**
+	 * The running modes to pass to reach a running mode as early as possible,
+	 * see {@link #earliestArrival(int, int, long[], long)}.
+	 *
+	 * @return The IDs of the running modes from the first to the last, or null if
+	 *         the running mode cannot be reached
+	 */
+	public int[] fastestPath(int fromRunningModeId, int toRunningModeId, long[] timerFinishedAt, long now) {
+		final int from = this.indexOf(fromRunningModeId);
+		final int to = this.indexOf(toRunningModeId);
+		if (from < 0 || to < 0) {
+			return null;
+		}
+		final int[] previous = new int[this.size];
+		if (this.search(from, to, timerFinishedAt, now, previous) == Long.MAX_VALUE) {
+			return null;
+		}
+		int length = 1;
+		for (int m = to; m != from; m = previous[m]) {
+			length++;
+		}
+		final int[] path = new int[length];
+		for (int m = to, i = length - 1; i >= 0; m = previous[m], i--) {
+			path[i] = this.runningModeIds[m];
+		}
+		return path;
+	}
+
+	/**
+	 * Dijkstra's algorithm with the arrival time as distance. Transitions never
+	 * arrive before they depart, so the first time a running mode is taken from
+	 * the queue is the earliest.
+	 */
+	private long search(int from, int to, long[] timerFinishedAt, long now, int[] previous) {
+		final long[] arrival = new long[this.size];
+		Arrays.fill(arrival, Long.MAX_VALUE);
+		final boolean[] done = new boolean[this.size];
+		// The timers as they are when a running mode is reached, shared until a
+		// transition starts a timer
+		final long[][] timers = new long[this.size][];
+		arrival[from] = now;
+		timers[from] = timerFinishedAt;
+		while (true) {
+			int current = -1;
+			for (int m = 0; m < this.size; m++) {
+				if (!done[m] && arrival[m] != Long.MAX_VALUE && (current < 0 || arrival[m] < arrival[current])) {
+					current = m;
+				}
+			}
+			if (current < 0 || current == to) {
+				return arrival[to];
+			}
+			done[current] = true;
+			final long[] next = this.successors[current];
+			for (int w = 0; w < next.length; w++) {
+				long bits = next[w];
+				while (bits != 0) {
+					final int m = w << 6 | Long.numberOfTrailingZeros(bits);
+					bits &= bits - 1;
+					if (done[m]) {
+						continue;
+					}
+					final int e = this.edges[current * this.size + m];
+					final long departure = Math.max(arrival[current], this.blockedUntil(e, timers[current]));
+					final long arrives = departure + this.transitionDurations[e];
+					if (arrives < arrival[m]) {
+						arrival[m] = arrives;
+						timers[m] = this.startTimers(e, timers[current], departure);
+						if (previous != null) {
+							previous[m] = current;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private long[] startTimers(int edge, long[] timerFinishedAt, long departure) {
+		final int[] started = this.startTimers[edge];
+		if (started.length == 0) {
+			return timerFinishedAt;
+		}
+		final long[] result = timerFinishedAt.clone();
+		for (final int t : started) {
+			result[t] = departure + this.timerDurations[t];
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,309 @@
+package org.flexiblepower.efi.storage_cem_example.fleet;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageState;
+import org.flexiblepower.efi.storage_cem_example.xml.StorageStatusView;
+import org.flexiblepower.efi.xml.ActuatorBehaviour;
+import org.flexiblepower.efi.xml.LeakageElement;
+import org.flexiblepower.efi.xml.LeakageFunction;
+import org.flexiblepower.efi.xml.RunningMode;
+import org.flexiblepower.efi.xml.StorageContinuousRunningMode;
+import org.flexiblepower.efi.xml.StorageContinuousRunningMode.ContinuousRunningModeElement;
+import org.flexiblepower.efi.xml.StorageDiscreteRunningMode;
+import org.flexiblepower.efi.xml.StorageDiscreteRunningMode.DiscreteRunningModeElement;
+import org.flexiblepower.efi.xml.StorageRunningModeElement;
+
+/**
+ * The flexibility of one storage over a horizon of slots: how much more
+ * (upward) or less (downward) power it can take in every slot than it takes
+ * now.
+ *
+ * For every actuator all running modes are considered, continuous running
+ * modes at factor 0 and 1. A running mode counts from the earliest time it can
+ * be reached, taking the running timers into account, for as long as the
+ * storage stays within its fill level range in that running mode, starting from
+ * the fill level reported in the last StorageStatus. A slot only
+ * counts when the running mode can be held for the whole slot. The best
+ * running mode of every actuator is taken per slot and the actuators are added
+ * up, with the other actuators in their current running mode; when several
+ * actuators fill the same storage at once it fills faster, so the flexibility
+ * of a storage with more than one actuator is somewhat optimistic.
+ *
+ * Powers are kept in whole milliwatts, so they can be added up and subtracted
+ * again without rounding errors. Instances are immutable.
+ */
+public final class DeviceFlexibility {
+
+	private final String efiResourceId;
+	private final long firstSlot;
+	private final long baselineMilliwatts;
+	private final long[] upMilliwatts;
+	private final long[] downMilliwatts;
+
+	private DeviceFlexibility(String efiResourceId, long firstSlot, long baselineMilliwatts, long[] upMilliwatts,
+			long[] downMilliwatts) {
+		this.efiResourceId = efiResourceId;
+		this.firstSlot = firstSlot;
+		this.baselineMilliwatts = baselineMilliwatts;
+		this.upMilliwatts = upMilliwatts;
+		this.downMilliwatts = downMilliwatts;
+	}
+
+	/**
+	 * Determine the flexibility of a storage.
+	 *
+	 * @param state
+	 *            The state of the storage
+	 * @param now
+	 *            The current time in epoch milliseconds
+	 * @param firstSlot
+	 *            The first slot of the horizon, counted in slots since the
+	 *            epoch; it should contain now
+	 * @param slotMillis
+	 *            The length of a slot
+	 * @param slots
+	 *            The number of slots in the horizon
+	 * @return The flexibility, or null if the system description, status or fill
+	 *         level of the storage is not known
+	 */
+	public static DeviceFlexibility of(EfiStorageState state, long now, long firstSlot, long slotMillis, int slots) {
+		final Double fillLevel = state.getFillLevel();
+		if (state.getEfiResourceId() == null || state.getStorageSystemDescription() == null || fillLevel == null) {
+			return null;
+		}
+		final double fill = fillLevel;
+		// The fill level is the one at the time of the status
+		final long statusTime = state.getStorageStatus().getTimestamp();
+		final long fillTime = statusTime == StorageStatusView.NO_TIME ? now : Math.min(statusTime, now);
+		final List<ActuatorBehaviour> behaviours = state.getActuatorBehaviours();
+		final int actuatorCount = behaviours.size();
+
+		// The current power and filling rate of every actuator, NaN if unknown
+		final double[] sample = new double[2];
+		final double[] currentPower = new double[actuatorCount];
+		final double[] currentRate = new double[actuatorCount];
+		double minLevel = Double.POSITIVE_INFINITY;
+		double maxLevel = Double.NEGATIVE_INFINITY;
+		double rate = -leakageRate(state.getStorageSystemDescription().getLeakageBehaviour(), fill);
+		long baseline = 0;
+		for (int a = 0; a < actuatorCount; a++) {
+			final ActuatorBehaviour behaviour = behaviours.get(a);
+			for (final RunningMode mode : behaviour.getRunningModes().getDiscreteRunningModeOrContinuousRunningMode()) {
+				for (final StorageRunningModeElement element : elements(mode)) {
+					minLevel = Math.min(minLevel, element.getFillLevelLowerBound());
+					maxLevel = Math.max(maxLevel, element.getFillLevelUpperBound());
+				}
+			}
+			final Integer active = state.getActiveRunningMode(behaviour.getActuatorId());
+			final RunningMode mode = active == null ? null : state.getRunningMode(behaviour.getActuatorId(), active);
+			final Double factor = state.getRunningModeFactor(behaviour.getActuatorId());
+			if (mode != null && sample(mode, factor == null ? Double.NaN : factor, fill, sample)) {
+				currentRate[a] = sample[0];
+				currentPower[a] = sample[1];
+				rate += sample[0];
+				baseline += Math.round(sample[1] * 1000);
+			} else {
+				currentRate[a] = Double.NaN;
+			}
+		}
+
+		final long horizonStart = firstSlot * slotMillis;
+		final long[] up = new long[slots];
+		final long[] down = new long[slots];
+		final long[] actuatorUp = new long[slots];
+		final long[] actuatorDown = new long[slots];
+		for (int a = 0; a < actuatorCount; a++) {
+			if (Double.isNaN(currentRate[a])) {
+				continue;
+			}
+			final ActuatorBehaviour behaviour = behaviours.get(a);
+			final Integer active = state.getActiveRunningMode(behaviour.getActuatorId());
+			Arrays.fill(actuatorUp, 0);
+			Arrays.fill(actuatorDown, 0);
+			for (final RunningMode mode : behaviour.getRunningModes().getDiscreteRunningModeOrContinuousRunningMode()) {
+				final long arrival = mode.getId() == active ? now
+						: state.earliestReachableMillis(behaviour.getActuatorId(), mode.getId(), now);
+				if (arrival == Long.MAX_VALUE) {
+					continue;
+				}
+				final double[] factors = mode instanceof StorageContinuousRunningMode ? new double[] { 0, 1 }
+						: new double[] { Double.NaN };
+				for (final double factor : factors) {
+					if (!sample(mode, factor, fill, sample)) {
+						continue;
+					}
+					final long delta = Math.round((sample[1] - currentPower[a]) * 1000);
+					if (delta == 0) {
+						continue;
+					}
+					// The fill level when the running mode is reached, and how long it lasts
+					final double arrivalFill = clamp(fill + rate * (arrival - fillTime) / 1000d, minLevel, maxLevel);
+					final double optionRate = rate - currentRate[a] + sample[0];
+					final long end = addSaturated(arrival, millisInRange(arrivalFill, optionRate, minLevel, maxLevel));
+					for (int s = 0; s < slots; s++) {
+						final long slotStart = Math.max(horizonStart + s * slotMillis, now);
+						final long slotEnd = horizonStart + (s + 1) * slotMillis;
+						if (arrival > slotStart) {
+							continue;
+						}
+						if (end < slotEnd) {
+							break;
+						}
+						if (delta > 0) {
+							actuatorUp[s] = Math.max(actuatorUp[s], delta);
+						} else {
+							actuatorDown[s] = Math.max(actuatorDown[s], -delta);
+						}
+					}
+				}
+			}
+			for (int s = 0; s < slots; s++) {
+				up[s] += actuatorUp[s];
+				down[s] += actuatorDown[s];
+			}
+		}
+		return new DeviceFlexibility(state.getEfiResourceId(), firstSlot, baseline, up, down);
+	}
+
+	private static double clamp(double value, double min, double max) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+	private static long addSaturated(long a, long b) {
+		final long sum = a + b;
+		return sum < a ? Long.MAX_VALUE : sum;
+	}
+
+	/**
+	 * @param rate
+	 *            The change of the fill level per second
+	 * @return How long the fill level stays within its range, Long.MAX_VALUE if
+	 *         it does not leave it
+	 */
+	private static long millisInRange(double fill, double rate, double minLevel, double maxLevel) {
+		final double seconds;
+		if (rate > 0) {
+			seconds = (maxLevel - fill) / rate;
+		} else if (rate < 0) {
+			seconds = (fill - minLevel) / -rate;
+		} else {
+			return Long.MAX_VALUE;
+		}
+		return seconds * 1000 >= Long.MAX_VALUE ? Long.MAX_VALUE : (long) (seconds * 1000);
+	}
+
+	private static List<? extends StorageRunningModeElement> elements(RunningMode mode) {
+		if (mode instanceof StorageDiscreteRunningMode) {
+			return ((StorageDiscreteRunningMode) mode).getDiscreteRunningModeElement();
+		} else if (mode instanceof StorageContinuousRunningMode) {
+			return ((StorageContinuousRunningMode) mode).getContinuousRunningModeElement();
+		}
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Look up the filling rate and power of a running mode at a fill level.
+	 *
+	 * @param factor
+	 *            The factor of a continuous running mode, NaN for 1
+	 * @param result
+	 *            Receives the filling rate and the power
+	 * @return false if the running mode is not available at this fill level
+	 */
+	private static boolean sample(RunningMode mode, double factor, double level, double[] result) {
+		for (final StorageRunningModeElement element : elements(mode)) {
+			if (level < element.getFillLevelLowerBound() || level > element.getFillLevelUpperBound()) {
+				continue;
+			}
+			if (element instanceof DiscreteRunningModeElement) {
+				final DiscreteRunningModeElement e = (DiscreteRunningModeElement) element;
+				result[0] = e.getFillingRate();
+				result[1] = valueOf(e.getElectricalPower());
+				return true;
+			} else if (element instanceof ContinuousRunningModeElement) {
+				final ContinuousRunningModeElement e = (ContinuousRunningModeElement) element;
+				final double f = Double.isNaN(factor) ? 1 : factor;
+				result[0] = e.getLowerBound().getFillingRate()
+						+ f * (e.getUpperBound().getFillingRate() - e.getLowerBound().getFillingRate());
+				final double lower = valueOf(e.getLowerBound().getElectricalPower());
+				result[1] = lower + f * (valueOf(e.getUpperBound().getElectricalPower()) - lower);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static double valueOf(Double value) {
+		return value == null ? 0 : value;
+	}
+
+	private static double valueOf(BigDecimal value) {
+		return value == null ? 0 : value.doubleValue();
+	}
+
+	private static double leakageRate(LeakageFunction leakage, double level) {
+		if (leakage == null) {
+			return 0;
+		}
+		for (final LeakageElement element : leakage.getLeakageElement()) {
+			if (level >= element.getFillLevelLowerBound() && level <= element.getFillLevelUpperBound()) {
+				return element.getLeakageRate();
+			}
+		}
+		return 0;
+	}
+
+	public String getEfiResourceId() {
+		return this.efiResourceId;
+	}
+
+	/**
+	 * @return The first slot of the horizon, counted in slots since the epoch
+	 */
+	public long getFirstSlot() {
+		return this.firstSlot;
+	}
+
+	public int getSlotCount() {
+		return this.upMilliwatts.length;
+	}
+
+	/**
+	 * @return The power the storage takes now, in milliwatts
+	 */
+	public long getBaselineMilliwatts() {
+		return this.baselineMilliwatts;
+	}
+
+	/**
+	 * @return How much more power the storage can take during a whole slot, in
+	 *         milliwatts
+	 */
+	public long getUpMilliwatts(int slot) {
+		return this.upMilliwatts[slot];
+	}
+
+	/**
+	 * @return How much less power the storage can take during a whole slot, in
+	 *         milliwatts
+	 */
+	public long getDownMilliwatts(int slot) {
+		return this.downMilliwatts[slot];
+	}
+
+	/**
+	 * Add (sign 1) or subtract (sign -1) this flexibility from the totals of a
+	 * fleet with the same horizon.
+	 */
+	void addTo(long[] up, long[] down, int sign) {
+		for (int s = 0; s < up.length; s++) {
+			up[s] += sign * this.upMilliwatts[s];
+			down[s] += sign * this.downMilliwatts[s];
+		}
+	}
+
+}
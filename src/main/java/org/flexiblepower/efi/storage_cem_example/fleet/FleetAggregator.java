@@ -0,0 +1,328 @@
+package org.flexiblepower.efi.storage_cem_example.fleet;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.LongSupplier;
+
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageListener;
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageState;
+import org.flexiblepower.efi.storage_cem_example.log.Log;
+import org.flexiblepower.efi.storage_cem_example.log.Logging;
+import org.flexiblepower.efi.xml.FlexibilityRevoke;
+import org.flexiblepower.efi.xml.StorageRegistration;
+import org.flexiblepower.efi.xml.StorageStatus;
+import org.flexiblepower.efi.xml.StorageSystemDescription;
+import org.flexiblepower.efi.xml.Transition;
+
+/**
+ * Adds up the flexibility of a fleet of storages into one
+ * {@link FleetFlexibility}: how much power up or down the fleet can deliver in
+ * every slot of a horizon. Add the aggregator as a listener to every model, for
+ * example through
+ * {@link org.flexiblepower.efi.storage_cem_example.cem.ResourceRegistry#addListener(EfiStorageListener)}.
+ *
+ * The totals are kept up to date incrementally: when a storage sends a new
+ * StorageStatus or StorageSystemDescription only its own
+ * {@link DeviceFlexibility} is determined again, and its old contribution is
+ * replaced by the new one; the same happens when a timer which blocked a
+ * transition of the storage finishes. So the flexibility of a storage is the
+ * one at the time of its last StorageStatus, which it sends regularly. Since
+ * the horizon starts at the current slot, all storages are determined again
+ * when the time has moved on to the next slot.
+ * That is done in parallel on a ForkJoinPool, splitting the fleet until every
+ * task has at most {@link #LEAF_DEVICES} storages. Messages which arrive in the
+ * meantime are applied to the new totals afterwards.
+ */
+public class FleetAggregator implements EfiStorageListener {
+
+	private static final Log LOG = Logging.get("cem");
+
+	/** The number of storages a rebuild task determines without splitting */
+	static final int LEAF_DEVICES = 64;
+
+	private final long slotMillis;
+	private final int slots;
+	private final LongSupplier clock;
+	private final ForkJoinPool pool;
+
+	// Guarded by this
+	private final Map<String, Entry> entries = new HashMap<>();
+	private long firstSlot;
+	private long[] up;
+	private long[] down;
+	private long baseline = 0;
+	private int devices = 0;
+
+	/**
+	 * @param slotMillis
+	 *            The length of a slot
+	 * @param slots
+	 *            The number of slots in the horizon
+	 */
+	public FleetAggregator(long slotMillis, int slots) {
+		this(slotMillis, slots, System::currentTimeMillis, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param clock
+	 *            The current time in epoch milliseconds
+	 * @param pool
+	 *            The pool which determines the flexibility of all storages when
+	 *            the horizon moves
+	 */
+	public FleetAggregator(long slotMillis, int slots, LongSupplier clock, ForkJoinPool pool) {
+		if (slotMillis <= 0 || slots <= 0) {
+			throw new IllegalArgumentException("Invalid horizon of " + slots + " slots of " + slotMillis + " ms");
+		}
+		this.slotMillis = slotMillis;
+		this.slots = slots;
+		this.clock = clock;
+		this.pool = pool;
+		this.firstSlot = Math.floorDiv(clock.getAsLong(), slotMillis);
+		this.up = new long[slots];
+		this.down = new long[slots];
+	}
+
+	/**
+	 * The last state and the flexibility of one storage.
+	 */
+	private static final class Entry {
+		final EfiStorageState state;
+		final DeviceFlexibility flexibility;
+
+		Entry(EfiStorageState state, DeviceFlexibility flexibility) {
+			this.state = state;
+			this.flexibility = flexibility;
+		}
+	}
+
+	@Override
+	public void stateChanged(EfiStorageState state) {
+		final Class<?> type = state.getLastMessageType();
+		// Only these messages change the flexibility; a lost connection leaves a
+		// state without message type and without system description
+		if (type == null || type == StorageStatus.class || type == StorageSystemDescription.class
+				|| type == StorageRegistration.class || type == FlexibilityRevoke.class) {
+			this.update(state, false);
+		}
+	}
+
+	/**
+	 * A running mode can be reached earlier than it could when the flexibility
+	 * of the storage was determined.
+	 */
+	@Override
+	public void transitionUnblocked(EfiStorageState state, int actuatorId, Transition transition) {
+		this.update(state, true);
+	}
+
+	/**
+	 * @param sameState
+	 *            Only update the flexibility if it was determined from this same
+	 *            state, so a newer state is not replaced by an older one
+	 */
+	private void update(EfiStorageState state, boolean sameState) {
+		final String efiResourceId = state.getEfiResourceId();
+		if (efiResourceId == null) {
+			return;
+		}
+		long window;
+		synchronized (this) {
+			window = this.firstSlot;
+		}
+		while (true) {
+			// Determine the flexibility outside the lock, so storages are handled in
+			// parallel; try again when the horizon has moved in the meantime
+			final long now = this.clock.getAsLong();
+			final DeviceFlexibility flexibility = DeviceFlexibility.of(state, now, window, this.slotMillis,
+					this.slots);
+			synchronized (this) {
+				if (sameState) {
+					final Entry current = this.entries.get(efiResourceId);
+					if (current == null || current.state != state) {
+						return;
+					}
+				}
+				if (window == this.firstSlot) {
+					this.replace(efiResourceId, new Entry(state, flexibility));
+					return;
+				}
+				window = this.firstSlot;
+			}
+		}
+	}
+
+	private void replace(String efiResourceId, Entry entry) {
+		final Entry old = this.entries.put(efiResourceId, entry);
+		if (old != null && old.flexibility != null) {
+			old.flexibility.addTo(this.up, this.down, -1);
+			this.baseline -= old.flexibility.getBaselineMilliwatts();
+			this.devices--;
+		}
+		if (entry.flexibility != null) {
+			entry.flexibility.addTo(this.up, this.down, 1);
+			this.baseline += entry.flexibility.getBaselineMilliwatts();
+			this.devices++;
+		}
+	}
+
+	/**
+	 * Forget a storage, for example when it has been removed from the fleet.
+	 */
+	public synchronized void remove(String efiResourceId) {
+		final Entry old = this.entries.get(efiResourceId);
+		if (old != null) {
+			this.replace(efiResourceId, new Entry(old.state, null));
+			this.entries.remove(efiResourceId);
+		}
+	}
+
+	/**
+	 * @return The flexibility of the fleet from the current slot on, which is
+	 *         rebuilt first if the horizon has moved since the last call
+	 */
+	public FleetFlexibility getFlexibility() {
+		final long now = this.clock.getAsLong();
+		synchronized (this) {
+			if (this.firstSlot == Math.floorDiv(now, this.slotMillis)) {
+				return this.snapshot();
+			}
+		}
+		return this.rebuild();
+	}
+
+	private FleetFlexibility snapshot() {
+		return new FleetFlexibility(this.firstSlot * this.slotMillis, this.slotMillis, this.devices, this.baseline,
+				this.up.clone(), this.down.clone());
+	}
+
+	/**
+	 * Determine the flexibility of every storage again, for a horizon which
+	 * starts at the current slot.
+	 *
+	 * @return The new flexibility of the fleet
+	 */
+	public FleetFlexibility rebuild() {
+		final long now = this.clock.getAsLong();
+		final long newFirstSlot = Math.floorDiv(now, this.slotMillis);
+		final EfiStorageState[] states;
+		synchronized (this) {
+			states = new EfiStorageState[this.entries.size()];
+			int i = 0;
+			for (final Entry entry : this.entries.values()) {
+				states[i++] = entry.state;
+			}
+		}
+		final long start = System.nanoTime();
+		final DeviceFlexibility[] result = new DeviceFlexibility[states.length];
+		final Totals totals = this.pool.invoke(new Rebuild(states, result, 0, states.length, now, newFirstSlot));
+
+		synchronized (this) {
+			this.firstSlot = newFirstSlot;
+			this.up = totals.up;
+			this.down = totals.down;
+			this.baseline = totals.baseline;
+			this.devices = totals.devices;
+			final Map<String, Entry> previous = new HashMap<>(this.entries);
+			this.entries.clear();
+			for (int i = 0; i < states.length; i++) {
+				this.entries.put(states[i].getEfiResourceId(), new Entry(states[i], result[i]));
+			}
+			// Apply what happened during the rebuild
+			int changed = 0;
+			for (final EfiStorageState state : states) {
+				if (!previous.containsKey(state.getEfiResourceId())) {
+					this.remove(state.getEfiResourceId());
+					changed++;
+				}
+			}
+			for (final Entry entry : previous.values()) {
+				final Entry rebuilt = this.entries.get(entry.state.getEfiResourceId());
+				if (rebuilt == null || rebuilt.state != entry.state) {
+					this.replace(entry.state.getEfiResourceId(), new Entry(entry.state, DeviceFlexibility.of(entry.state,
+							now, newFirstSlot, this.slotMillis, this.slots)));
+					changed++;
+				}
+			}
+			LOG.debug("Rebuilt fleet flexibility", "devices", states.length, "changed", changed, "micros",
+					(System.nanoTime() - start) / 1000);
+			return this.snapshot();
+		}
+	}
+
+	/**
+	 * The sums of a part of the fleet.
+	 */
+	private static final class Totals {
+		final long[] up;
+		final long[] down;
+		long baseline = 0;
+		int devices = 0;
+
+		Totals(int slots) {
+			this.up = new long[slots];
+			this.down = new long[slots];
+		}
+
+		Totals add(Totals other) {
+			for (int s = 0; s < this.up.length; s++) {
+				this.up[s] += other.up[s];
+				this.down[s] += other.down[s];
+			}
+			this.baseline += other.baseline;
+			this.devices += other.devices;
+			return this;
+		}
+	}
+
+	/**
+	 * Determines the flexibility of a range of storages, splitting it in halves
+	 * while it is larger than {@link #LEAF_DEVICES}.
+	 */
+	private final class Rebuild extends RecursiveTask<Totals> {
+		private static final long serialVersionUID = 1L;
+
+		private final EfiStorageState[] states;
+		private final DeviceFlexibility[] result;
+		private final int from;
+		private final int to;
+		private final long now;
+		private final long window;
+
+		Rebuild(EfiStorageState[] states, DeviceFlexibility[] result, int from, int to, long now, long window) {
+			this.states = states;
+			this.result = result;
+			this.from = from;
+			this.to = to;
+			this.now = now;
+			this.window = window;
+		}
+
+		@Override
+		protected Totals compute() {
+			if (this.to - this.from > LEAF_DEVICES) {
+				final int middle = (this.from + this.to) >>> 1;
+				final Rebuild left = new Rebuild(this.states, this.result, this.from, middle, this.now, this.window);
+				left.fork();
+				final Totals right = new Rebuild(this.states, this.result, middle, this.to, this.now, this.window)
+						.compute();
+				return left.join().add(right);
+			}
+			final Totals totals = new Totals(FleetAggregator.this.slots);
+			for (int i = this.from; i < this.to; i++) {
+				final DeviceFlexibility flexibility = DeviceFlexibility.of(this.states[i], this.now, this.window,
+						FleetAggregator.this.slotMillis, FleetAggregator.this.slots);
+				this.result[i] = flexibility;
+				if (flexibility != null) {
+					flexibility.addTo(totals.up, totals.down, 1);
+					totals.baseline += flexibility.getBaselineMilliwatts();
+					totals.devices++;
+				}
+			}
+			return totals;
+		}
+	}
+
+}
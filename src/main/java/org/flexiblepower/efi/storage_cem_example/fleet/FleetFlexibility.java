@@ -0,0 +1,131 @@
+package org.flexiblepower.efi.storage_cem_example.fleet;
+
+/**
+ * The flexibility of a whole fleet of storages over a horizon of slots, as
+ * computed by the {@link FleetAggregator}. It is the sum of the
+ * {@link DeviceFlexibility} of every storage. Instances are immutable.
+ */
+public final class FleetFlexibility {
+
+	private final long startMillis;
+	private final long slotMillis;
+	private final int devices;
+	private final long baselineMilliwatts;
+	private final long[] upMilliwatts;
+	private final long[] downMilliwatts;
+
+	FleetFlexibility(long startMillis, long slotMillis, int devices, long baselineMilliwatts, long[] upMilliwatts,
+			long[] downMilliwatts) {
+		this.startMillis = startMillis;
+		this.slotMillis = slotMillis;
+		this.devices = devices;
+		this.baselineMilliwatts = baselineMilliwatts;
+		this.upMilliwatts = upMilliwatts;
+		this.downMilliwatts = downMilliwatts;
+	}
+
+	/**
+	 * @return The start of the first slot in epoch milliseconds
+	 */
+	public long getStartMillis() {
+		return this.startMillis;
+	}
+
+	public long getSlotMillis() {
+		return this.slotMillis;
+	}
+
+	public int getSlotCount() {
+		return this.upMilliwatts.length;
+	}
+
+	/**
+	 * @return The number of storages of which the flexibility is known
+	 */
+	public int getDeviceCount() {
+		return this.devices;
+	}
+
+	/**
+	 * @return The power the fleet takes now, in watt
+	 */
+	public double getBaselinePower() {
+		return this.baselineMilliwatts / 1000d;
+	}
+
+	/**
+	 * @return How much more power the fleet can take during a whole slot, in
+	 *         watt
+	 */
+	public double getUpPower(int slot) {
+		return this.upMilliwatts[slot] / 1000d;
+	}
+
+	/**
+	 * @return How much less power the fleet can take during a whole slot, in
+	 *         watt
+	 */
+	public double getDownPower(int slot) {
+		return this.downMilliwatts[slot] / 1000d;
+	}
+
+	/**
+	 * @return How much more power the fleet can take during the whole of the
+	 *         next minutes, in watt
+	 */
+	public double getSustainableUpPower(long durationMillis) {
+		return minimum(this.upMilliwatts, this.slotsFor(durationMillis)) / 1000d;
+	}
+
+	/**
+	 * @return How much less power the fleet can take during the whole of the
+	 *         next minutes, in watt
+	 */
+	public double getSustainableDownPower(long durationMillis) {
+		return minimum(this.downMilliwatts, this.slotsFor(durationMillis)) / 1000d;
+	}
+
+	/**
+	 * @return For how long from the start of the horizon the fleet can take at
+	 *         least this much more power, in milliseconds; the length of the
+	 *         horizon if it can do so in all slots
+	 */
+	public long getUpDurationMillis(double watts) {
+		return this.duration(this.upMilliwatts, watts);
+	}
+
+	/**
+	 * @return For how long from the start of the horizon the fleet can take at
+	 *         least this much less power, in milliseconds; the length of the
+	 *         horizon if it can do so in all slots
+	 */
+	public long getDownDurationMillis(double watts) {
+		return this.duration(this.downMilliwatts, watts);
+	}
+
+	private int slotsFor(long durationMillis) {
+		final long slots = (durationMillis + this.slotMillis - 1) / this.slotMillis;
+		if (slots < 1 || slots > this.upMilliwatts.length) {
+			throw new IllegalArgumentException("Duration of " + durationMillis + " ms is not within the horizon");
+		}
+		return (int) slots;
+	}
+
+	private static long minimum(long[] values, int count) {
+		long min = Long.MAX_VALUE;
+		for (int s = 0; s < count; s++) {
+			min = Math.min(min, values[s]);
+		}
+		return min;
+	}
+
+	private long duration(long[] values, double watts) {
+		final long milliwatts = Math.round(watts * 1000);
+		int s = 0;
+		while (s < values.length && values[s] >= milliwatts) {
+			s++;
+		}
+		return s * this.slotMillis;
+	}
+
+}
@@ -0,0 +1,80 @@
+package org.flexiblepower.efi.storage_cem_example.gui;
+
+/**
+ * The last samples of a value, such as the power or the fill level, for a
+ * {@link Sparkline}. When the ring is full the oldest sample is overwritten,
+ * so it takes the same memory however long the application runs.
+ *
+ * Thread-safe: samples are added by the thread which handles the messages and
+ * read by the event dispatch thread.
+ */
+public class SampleRing {
+
+	private final long[] times;
+	private final double[] values;
+	private int next = 0;
+	private int size = 0;
+	private long added = 0;
+
+	/**
+	 * @param capacity
+	 *            The number of samples which are kept
+	 */
+	public SampleRing(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Invalid capacity " + capacity);
+		}
+		this.times = new long[capacity];
+		this.values = new double[capacity];
+	}
+
+	/**
+	 * Add a sample, replacing the oldest one when the ring is full.
+	 *
+	 * @param time
+	 *            The time of the sample in epoch milliseconds
+	 */
+	public synchronized void add(long time, double value) {
+		this.times[this.next] = time;
+		this.values[this.next] = value;
+		this.next = (this.next + 1) % this.times.length;
+		this.size = Math.min(this.size + 1, this.times.length);
+		this.added++;
+	}
+
+	public int getCapacity() {
+		return this.times.length;
+	}
+
+	public synchronized int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return The number of samples which have ever been added, which tells
+	 *         whether the ring has changed since it was last copied
+	 */
+	public synchronized long getAddedCount() {
+		return this.added;
+	}
+
+	/**
+	 * Copy the samples from the oldest to the newest.
+	 *
+	 * @param times
+	 *            Receives the times, at least {@link #getCapacity()} long
+	 * @param values
+	 *            Receives the values, at least {@link #getCapacity()} long
+	 * @return The number of samples which have been copied
+	 */
+	public synchronized int copyTo(long[] times, double[] values) {
+		final int first = (this.next - this.size + this.times.length) % this.times.length;
+		final int tail = Math.min(this.size, this.times.length - first);
+		System.arraycopy(this.times, first, times, 0, tail);
+		System.arraycopy(this.values, first, values, 0, tail);
+		System.arraycopy(this.times, 0, times, tail, this.size - tail);
+		System.arraycopy(this.values, 0, values, tail, this.size - tail);
+		return this.size;
+	}
+
+}
@@ -0,0 +1,114 @@
+package org.flexiblepower.efi.storage_cem_example.gui;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+
+import javax.swing.JComponent;
+
+/**
+ * A small line chart of the samples in a {@link SampleRing}, with the range of
+ * the values. The x axis runs from the oldest to the newest sample in the
+ * ring; a sample with an earlier timestamp than the oldest one, or a later
+ * one than the newest, is drawn at the edge.
+ *
+ * Like every Swing component it must only be used on the event dispatch
+ * thread. It only repaints when {@link #refresh()} finds new samples.
+ */
+class Sparkline extends JComponent {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int LABEL_WIDTH = 150;
+	private static final Color LINE_COLOR = Color.BLUE.darker();
+
+	private final String unit;
+	private final SampleRing ring;
+	// Reused by every paint, only touched on the EDT
+	private final long[] times;
+	private final double[] values;
+	private final int[] xs;
+	private final int[] ys;
+	private long painted = -1;
+	// The label of the range, which is only formatted again when it changes
+	private String label;
+	private double labelMin = Double.NaN;
+	private double labelMax = Double.NaN;
+
+	Sparkline(String unit, SampleRing ring) {
+		this.unit = unit;
+		this.ring = ring;
+		this.times = new long[ring.getCapacity()];
+		this.values = new double[ring.getCapacity()];
+		this.xs = new int[ring.getCapacity()];
+		this.ys = new int[ring.getCapacity()];
+		this.setPreferredSize(new Dimension(460, 48));
+		this.setAlignmentX(LEFT_ALIGNMENT);
+	}
+
+	/**
+	 * Repaint if samples have been added since the last paint.
+	 */
+	void refresh() {
+		if (this.ring.getAddedCount() != this.painted) {
+			this.repaint();
+		}
+	}
+
+	@Override
+	protected void paintComponent(Graphics graphics) {
+		this.painted = this.ring.getAddedCount();
+		final int count = this.ring.copyTo(this.times, this.values);
+		if (count == 0) {
+			return;
+		}
+		// Restored afterwards instead of painting on a copy of the graphics
+		final Graphics2D g = (Graphics2D) graphics;
+		final Object antialiasing = g.getRenderingHint(RenderingHints.KEY_ANTIALIASING);
+		final Color color = g.getColor();
+		try {
+			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			final FontMetrics metrics = g.getFontMetrics();
+			final int height = this.getHeight();
+			double min = this.values[0];
+			double max = this.values[0];
+			for (int i = 1; i < count; i++) {
+				min = Math.min(min, this.values[i]);
+				max = Math.max(max, this.values[i]);
+			}
+			g.setColor(Color.GRAY);
+			if (min != this.labelMin || max != this.labelMax) {
+				this.label = format(min) + " .. " + format(max) + " " + this.unit;
+				this.labelMin = min;
+				this.labelMax = max;
+			}
+			g.drawString(this.label, 0, (height + metrics.getAscent()) / 2);
+
+			final int left = LABEL_WIDTH;
+			final int width = this.getWidth() - left - 2;
+			if (width <= 0 || count < 2) {
+				return;
+			}
+			final long span = Math.max(1, this.times[count - 1] - this.times[0]);
+			final double range = max > min ? max - min : 1;
+			for (int i = 0; i < count; i++) {
+				final long offset = Math.max(0, Math.min(span, this.times[i] - this.times[0]));
+				this.xs[i] = left + (int) (offset * width / span);
+				this.ys[i] = height - 2 - (int) ((this.values[i] - min) * (height - 4) / range);
+			}
+			g.setColor(LINE_COLOR);
+			g.drawPolyline(this.xs, this.ys, count);
+		} finally {
+			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, antialiasing);
+			g.setColor(color);
+		}
+	}
+
+	private static String format(double value) {
+		return Math.abs(value) >= 100 ? Long.toString(Math.round(value)) : String.format("%.2f", value);
+	}
+
+}
@@ -5,14 +5,18 @@ import java.awt.Container;
 import java.awt.Dimension;
 import java.awt.EventQueue;
 import java.awt.GridLayout;
-import java.util.HashMap;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Observable;
-import java.util.Observer;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
@@ -20,10 +24,18 @@ import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JScrollPane;
 import javax.swing.JSpinner;
 import javax.swing.SpinnerNumberModel;
+import javax.swing.Timer;
 
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageListener;
 import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageModel;
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageState;
+import org.flexiblepower.efi.storage_cem_example.log.Log;
+import org.flexiblepower.efi.storage_cem_example.log.Logging;
+import org.flexiblepower.efi.storage_cem_example.xml.MeasurementView;
+import org.flexiblepower.efi.storage_cem_example.xml.StorageStatusView;
 import org.flexiblepower.efi.xml.ActuatorBehaviour;
 import org.flexiblepower.efi.xml.Measurement;
 import org.flexiblepower.efi.xml.RunningMode;
@@ -32,31 +44,61 @@ import org.flexiblepower.efi.xml.StorageStatus;
 import org.flexiblepower.efi.xml.StorageSystemDescription;
 import org.flexiblepower.efi.xml.Transition;
 
-public class UserInterface implements Observer {
+/**
+ * Shows the state of one storage and lets the user activate its running
+ * modes.
+ *
+ * The listener methods only record the power and fill level for the
+ * sparklines and mark the window as changed, so the thread which handles the
+ * messages is not slowed down and the event dispatch thread is not flooded
+ * when messages arrive quickly. A Swing timer shows the current state of the
+ * model at most once every {@link #FRAME_MILLIS}, however many messages
+ * arrived in between. The panels of the actuators and running modes are only
+ * created again for the actuators and running modes which changed in a new
+ * StorageSystemDescription.
+ */
+public class UserInterface implements EfiStorageListener {
 
-	private boolean actuatorPanelCreated = false;
+	private static final Log LOG = Logging.get("gui");
+
+	/** The minimum interval between two updates of the window */
+	public static final int FRAME_MILLIS = 40;
+	/** The number of samples shown by the power and fill level sparklines */
+	public static final int SPARKLINE_SAMPLES = 600;
+
+	private static final int ACTUATOR_COLUMNS = 4;
+
+	private final EfiStorageModel model;
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+	private final AtomicBoolean changed = new AtomicBoolean(true);
+	private final SampleRing powerSamples = new SampleRing(SPARKLINE_SAMPLES);
+	private final SampleRing fillLevelSamples = new SampleRing(SPARKLINE_SAMPLES);
+
+	// Only used on the EDT
 	private JLabel fillLevelLabel;
 	private JLabel powerLabel;
+	private Sparkline fillLevelLine;
+	private Sparkline powerLine;
 	private JPanel actuatorsPanel;
 	private JFrame frame;
-	private final Map<Integer, Map<Integer, JLabel>> rmStatusLabels = new HashMap<>();
-	private final Map<Integer, Map<Integer, JButton>> rmActivateButtons = new HashMap<>();
-	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
-	private final EfiStorageModel model;
+	private final Map<Integer, ActuatorPanel> actuatorPanels = new LinkedHashMap<>();
+	private StorageSystemDescription shownSystemDescription;
 
 	public UserInterface(EfiStorageModel model) {
 		this.model = model;
 	}
 
 	public void setUp() {
-		this.fillLevelLabel = new JLabel("FillLevel: ?");
-		this.fillLevelLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
-		this.powerLabel = new JLabel("Power: ?");
-		this.powerLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
-		this.actuatorsPanel = new JPanel();
-		this.actuatorsPanel.setAlignmentX(Component.LEFT_ALIGNMENT);
-
 		EventQueue.invokeLater(() -> {
+			this.fillLevelLabel = new JLabel("FillLevel: ?");
+			this.fillLevelLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
+			this.fillLevelLine = new Sparkline("", this.fillLevelSamples);
+			this.powerLabel = new JLabel("Power: ?");
+			this.powerLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
+			this.powerLine = new Sparkline("watt", this.powerSamples);
+			this.actuatorsPanel = new JPanel();
+			this.actuatorsPanel.setAlignmentX(Component.LEFT_ALIGNMENT);
+
 			this.frame = new JFrame("EFI Storage demo client");
 			this.frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 			this.frame.setPreferredSize(new Dimension(500, 600));
@@ -71,144 +113,265 @@ public class UserInterface implements Observer {
 			statusPanel.setBorder(BorderFactory.createTitledBorder("Storage status information"));
 
 			statusPanel.add(this.fillLevelLabel);
+			statusPanel.add(this.fillLevelLine);
 			statusPanel.add(this.powerLabel);
+			statusPanel.add(this.powerLine);
 
 			pane.add(statusPanel);
 
-			pane.add(this.actuatorsPanel);
+			// Dozens of actuators do not fit in the window
+			pane.add(new JScrollPane(this.actuatorsPanel));
 
 			// Display the window.
 			this.frame.pack();
 			this.frame.setVisible(true);
+
+			// Fires on the EDT, and is skipped while the EDT is still busy with
+			// the previous frame
+			final Timer timer = new Timer(FRAME_MILLIS, e -> this.showFrame());
+			timer.setCoalesce(true);
+			timer.start();
 		});
+	}
 
-		this.executor.scheduleAtFixedRate(() -> {
-			EventQueue.invokeLater(() -> {
-				this.updateRunningModes(this.model);
-			});
-		}, 5, 5, TimeUnit.SECONDS);
+	@Override
+	public void stateChanged(EfiStorageState state) {
+		final Class<?> msgType = state.getLastMessageType();
+		if (Measurement.class.equals(msgType)) {
+			final MeasurementView measurement = state.getLastMeasurement();
+			if (measurement != null && measurement.hasElectricityMeasurement()) {
+				this.powerSamples.add(measurement.getMeasurementTimestamp(), measurement.getPower());
+			}
+		} else if (StorageStatus.class.equals(msgType) && state.getFillLevel() != null) {
+			final long timestamp = state.getStorageStatus().getTimestamp();
+			this.fillLevelSamples.add(timestamp == StorageStatusView.NO_TIME ? System.currentTimeMillis() : timestamp,
+					state.getFillLevel());
+		}
+		this.changed.set(true);
 	}
 
 	@Override
-	public void update(Observable o, Object msgType) {
+	public void transitionUnblocked(EfiStorageState state, int actuatorId, Transition transition) {
+		// Called by the model the moment the blocking timer finishes
+		this.changed.set(true);
+	}
+
+	/**
+	 * Show the current state of the model, if it has changed since the last
+	 * frame.
+	 */
+	private void showFrame() {
+		if (!this.changed.getAndSet(false)) {
+			return;
+		}
+		final long start = System.nanoTime();
 		try {
-			if (Measurement.class.equals(msgType)) {
-				// We received an new Mesaurement, update the Power label
-				this.powerLabel.setText("Power: " + (this.model.getLastMeasurement() == null ? "?"
-						: this.model.getLastMeasurement().getElectricityMeasurement().getPower() + " watt ("
-								+ this.model.getLastMeasurement().getMeasurementTimestamp() + ")"));
-			} else if (StorageStatus.class.equals(msgType)) {
-				// We received a StorageStatus message, update the fillevel
-				this.fillLevelLabel
-						.setText("FillLevel: " + (this.model.getFillLevel() == null ? "?" : this.model.getFillLevel()));
-				if (!this.actuatorPanelCreated) {
-					this.createActuatorPanels(this.model);
-				}
-				this.updateRunningModes(this.model);
-			} else if (StorageSystemDescription.class.equals(msgType)) {
-				this.createActuatorPanels(this.model);
-			}
+			this.update(this.model.getState());
 		} catch (final Exception e) {
-			System.err.println("Error while updating UI");
-			e.printStackTrace(System.err);
+			LOG.error("Error while updating UI", e);
+		}
+		final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		if (millis > FRAME_MILLIS) {
+			LOG.debug("Updating the UI took longer than a frame", "millis", millis, "actuators",
+					this.actuatorPanels.size());
 		}
 	}
 
-	private void createActuatorPanels(EfiStorageModel model) {
-		// cleanup
-		this.rmStatusLabels.clear();
-		this.rmActivateButtons.clear();
-		this.actuatorsPanel.removeAll();
-		if (model.getActuatorBehaviours().isEmpty()) {
-			return;
+	private void update(EfiStorageState state) {
+		final MeasurementView measurement = state.getLastMeasurement();
+		this.powerLabel.setText("Power: "
+				+ (measurement == null || !measurement.hasElectricityMeasurement() ? "?"
+						: measurement.getPower() + " watt ("
+								+ Instant.ofEpochMilli(measurement.getMeasurementTimestamp()) + ")"));
+		this.fillLevelLabel.setText("FillLevel: " + (state.getFillLevel() == null ? "?" : state.getFillLevel()));
+		this.powerLine.refresh();
+		this.fillLevelLine.refresh();
+		if (state.getStorageSystemDescription() != this.shownSystemDescription && this.updateActuatorPanels(state)) {
+			this.shownSystemDescription = state.getStorageSystemDescription();
+		}
+		for (final ActuatorPanel panel : this.actuatorPanels.values()) {
+			panel.updateRunningModes(state);
 		}
+	}
 
-		this.actuatorsPanel.setLayout(new GridLayout(1, model.getActuatorBehaviours().size()));
-		for (final ActuatorBehaviour a : model.getActuatorBehaviours()) {
-			if (model.getActiveRunningMode(a.getActuatorId()) == null) {
+	/**
+	 * Add, replace and remove the panels of the actuators which changed in the
+	 * system description. Without a system description all panels are removed.
+	 *
+	 * @return false if the panels could not be updated yet, because the status
+	 *         of an actuator has not been received
+	 */
+	private boolean updateActuatorPanels(EfiStorageState state) {
+		final List<ActuatorBehaviour> behaviours = state.getActuatorBehaviours() == null
+				? Collections.<ActuatorBehaviour> emptyList()
+				: state.getActuatorBehaviours();
+		for (final ActuatorBehaviour a : behaviours) {
+			if (state.getActiveRunningMode(a.getActuatorId()) == null) {
 				// No status update message yet, we don't have enough information to create the
 				// Acutators panel
-				return;
+				return false;
 			}
-			this.rmActivateButtons.put(a.getActuatorId(), new HashMap<>());
-			this.rmStatusLabels.put(a.getActuatorId(), new HashMap<>());
-			final JPanel actuatorPanel = new JPanel();
-			this.actuatorsPanel.add(actuatorPanel);
-			actuatorPanel.setLayout(new BoxLayout(actuatorPanel, BoxLayout.Y_AXIS));
-			actuatorPanel.setAlignmentX(Component.LEFT_ALIGNMENT);
-			actuatorPanel.setBorder(BorderFactory.createTitledBorder("Actuator " + a.getActuatorId()));
-			for (final RunningMode rm : model.getRunningModes(a.getActuatorId())) {
-				actuatorPanel.add(new JLabel("RunningMode " + rm.getId() + " (" + rm.getLabel() + ")"));
-				final JLabel statusLabel = new JLabel("Status: "
-						+ (rm.getId() == model.getActiveRunningMode(a.getActuatorId()) ? "ACTIVE" : "INACTIVE"));
-				actuatorPanel.add(statusLabel);
-				this.rmStatusLabels.get(a.getActuatorId()).put(rm.getId(), statusLabel);
-				final JButton activateButton;
-				if (rm instanceof StorageContinuousRunningMode) {
-					actuatorPanel.add(new JLabel("Type: Continuous"));
-					actuatorPanel.add(new JLabel("Factor:"));
-					final JSpinner spinner = new JSpinner(new SpinnerNumberModel(0.0, 0.0, 1.0, 0.1));
-					actuatorPanel.add(spinner);
-					activateButton = new JButton("Activate");
-					activateButton.addActionListener(e -> {
-						this.executor.submit(() -> {
-							model.activateContinuousRunningMode(a.getActuatorId(), rm.getId(),
-									(double) spinner.getValue());
-						});
-					});
-					actuatorPanel.add(activateButton);
-				} else {
-					actuatorPanel.add(new JLabel("Type: Discrete"));
-					activateButton = new JButton("Activate");
-					activateButton.addActionListener(e -> {
-						this.executor.submit(() -> {
-							model.activateDiscreteRunningMode(a.getActuatorId(), rm.getId());
-						});
-					});
-					actuatorPanel.add(activateButton);
-				}
-				this.rmActivateButtons.get(a.getActuatorId()).put(rm.getId(), activateButton);
+		}
+		final List<ActuatorPanel> panels = new ArrayList<>(behaviours.size());
+		boolean modified = false;
+		for (final ActuatorBehaviour a : behaviours) {
+			ActuatorPanel panel = this.actuatorPanels.get(a.getActuatorId());
+			if (panel == null) {
+				panel = new ActuatorPanel(a.getActuatorId());
+				modified = true;
 			}
+			modified |= panel.updateRunningModes(state.getRunningModes(a.getActuatorId()));
+			panels.add(panel);
 		}
-		this.actuatorsPanel.validate();
-		this.actuatorPanelCreated = true;
+		final List<ActuatorPanel> shown = new ArrayList<>(this.actuatorPanels.values());
+		if (!modified && panels.equals(shown)) {
+			return true;
+		}
+
+		this.actuatorPanels.clear();
+		this.actuatorsPanel.removeAll();
+		this.actuatorsPanel.setLayout(new GridLayout(0, Math.max(1, Math.min(panels.size(), ACTUATOR_COLUMNS))));
+		for (final ActuatorPanel panel : panels) {
+			this.actuatorPanels.put(panel.actuatorId, panel);
+			this.actuatorsPanel.add(panel.panel);
+		}
+		this.actuatorsPanel.revalidate();
+		this.actuatorsPanel.repaint();
+		return true;
 	}
 
-	private void updateRunningModes(EfiStorageModel model) {
-		for (final ActuatorBehaviour a : model.getActuatorBehaviours()) {
-			if (this.rmStatusLabels.containsKey(a.getActuatorId())) {
-				final int activeRunningModeId = model.getActiveRunningMode(a.getActuatorId());
-				final List<Transition> outgoingTransitions = model.getOutgoingTransitions(a.getActuatorId(),
-						activeRunningModeId);
-				for (final RunningMode rm : model.getRunningModes(a.getActuatorId())) {
-					final JLabel label = this.rmStatusLabels.get(a.getActuatorId()).get(rm.getId());
-					final JButton button = this.rmActivateButtons.get(a.getActuatorId()).get(rm.getId());
-					final Transition transition = this.getTransitionTo(outgoingTransitions, rm.getId());
-					if (rm.getId() == activeRunningModeId) {
-						label.setText("Status: Active");
-						button.setEnabled(false);
-					} else if (transition != null) {
-						// There is a transition to this runnigmode... is it blocked by a timer?
-						if (model.isTransitionBlocked(a.getActuatorId(), transition)) {
-							label.setText("Status: Blocked by timer until "
-									+ model.transitionBlockedUntil(a.getActuatorId(), transition));
-							button.setEnabled(false);
-						} else {
-							label.setText("Status: Ready to be activated");
-							button.setEnabled(true);
-						}
+	/**
+	 * The panel of one actuator, with a row for each of its running modes.
+	 */
+	private final class ActuatorPanel {
+		final int actuatorId;
+		final JPanel panel = new JPanel();
+		private final Map<Integer, RunningModeRow> rows = new LinkedHashMap<>();
+
+		ActuatorPanel(int actuatorId) {
+			this.actuatorId = actuatorId;
+			this.panel.setLayout(new BoxLayout(this.panel, BoxLayout.Y_AXIS));
+			this.panel.setAlignmentX(Component.LEFT_ALIGNMENT);
+			this.panel.setBorder(BorderFactory.createTitledBorder("Actuator " + actuatorId));
+		}
+
+		/**
+		 * Keep the rows of the running modes which did not change, so the
+		 * factor a user entered is kept as well, and create the others.
+		 *
+		 * @return true if a row has been added, replaced, removed or moved
+		 */
+		boolean updateRunningModes(List<RunningMode> runningModes) {
+			final List<RunningModeRow> newRows = new ArrayList<>(runningModes.size());
+			boolean modified = false;
+			for (final RunningMode rm : runningModes) {
+				RunningModeRow row = this.rows.get(rm.getId());
+				if (row == null || !row.shows(rm)) {
+					row = new RunningModeRow(this.actuatorId, rm);
+					modified = true;
+				}
+				newRows.add(row);
+			}
+			if (!modified && newRows.equals(new ArrayList<>(this.rows.values()))) {
+				return false;
+			}
+			this.rows.clear();
+			this.panel.removeAll();
+			for (final RunningModeRow row : newRows) {
+				this.rows.put(row.runningModeId, row);
+				this.panel.add(row.panel);
+			}
+			this.panel.revalidate();
+			return true;
+		}
+
+		void updateRunningModes(EfiStorageState state) {
+			final Integer activeRunningModeId = state.getActiveRunningMode(this.actuatorId);
+			if (activeRunningModeId == null || state.getActuatorBehaviourById(this.actuatorId) == null) {
+				return;
+			}
+			for (final RunningModeRow row : this.rows.values()) {
+				final Transition transition = state.getTransition(this.actuatorId, activeRunningModeId,
+						row.runningModeId);
+				if (row.runningModeId == activeRunningModeId) {
+					row.show("Status: Active", false);
+				} else if (transition != null) {
+					// There is a transition to this runnigmode... is it blocked by a timer?
+					if (state.isTransitionBlocked(this.actuatorId, transition)) {
+						row.show("Status: Blocked by timer until "
+								+ state.transitionBlockedUntil(this.actuatorId, transition), false);
 					} else {
-						// There is no transition to this runningmode
-						label.setText("Status: Not reachable");
-						button.setEnabled(false);
+						row.show("Status: Ready to be activated", true);
 					}
+				} else {
+					// There is no transition to this runningmode, maybe through other ones
+					final long reachableAt = state.earliestReachableMillis(this.actuatorId, row.runningModeId);
+					row.show(reachableAt == Long.MAX_VALUE ? "Status: Not reachable"
+							: "Status: Not directly reachable, through other running modes at "
+									+ new Date(reachableAt), false);
 				}
 			}
 		}
 	}
 
-	private Transition getTransitionTo(List<Transition> outgoingTransitions, int runningModeId) {
-		return outgoingTransitions.stream().filter(t -> t.getToRunningModeId() == runningModeId).findAny().orElse(null);
+	/**
+	 * The labels and the Activate button of one running mode.
+	 */
+	private final class RunningModeRow {
+		final int runningModeId;
+		final JPanel panel = new JPanel();
+		private final String label;
+		private final boolean continuous;
+		private final JLabel statusLabel = new JLabel("Status: ?");
+		private final JButton activateButton = new JButton("Activate");
+
+		RunningModeRow(int actuatorId, RunningMode rm) {
+			this.runningModeId = rm.getId();
+			this.label = rm.getLabel();
+			this.continuous = rm instanceof StorageContinuousRunningMode;
+			this.panel.setLayout(new BoxLayout(this.panel, BoxLayout.Y_AXIS));
+			this.panel.setAlignmentX(Component.LEFT_ALIGNMENT);
+			this.panel.add(new JLabel("RunningMode " + rm.getId() + " (" + rm.getLabel() + ")"));
+			this.panel.add(this.statusLabel);
+			if (this.continuous) {
+				this.panel.add(new JLabel("Type: Continuous"));
+				this.panel.add(new JLabel("Factor:"));
+				final JSpinner spinner = new JSpinner(new SpinnerNumberModel(0.0, 0.0, 1.0, 0.1));
+				this.panel.add(spinner);
+				this.activateButton.addActionListener(e -> {
+					final double factor = (double) spinner.getValue();
+					UserInterface.this.executor.submit(() -> {
+						UserInterface.this.model.activateContinuousRunningMode(actuatorId, this.runningModeId,
+								factor);
+					});
+				});
+			} else {
+				this.panel.add(new JLabel("Type: Discrete"));
+				this.activateButton.addActionListener(e -> {
+					UserInterface.this.executor.submit(() -> {
+						UserInterface.this.model.activateDiscreteRunningMode(actuatorId, this.runningModeId);
+					});
+				});
+			}
+			this.activateButton.setEnabled(false);
+			this.panel.add(this.activateButton);
+		}
+
+		/**
+		 * @return true if this row shows the running mode as it is described
+		 */
+		boolean shows(RunningMode rm) {
+			return Objects.equals(this.label, rm.getLabel())
+					&& this.continuous == rm instanceof StorageContinuousRunningMode;
+		}
+
+		/**
+		 * Only changed texts cause a repaint.
+		 */
+		void show(String status, boolean activatable) {
+			this.statusLabel.setText(status);
+			this.activateButton.setEnabled(activatable);
+		}
 	}
 
 }
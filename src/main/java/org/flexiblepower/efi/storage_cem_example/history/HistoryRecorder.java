@@ -0,0 +1,49 @@
+package org.flexiblepower.efi.storage_cem_example.history;
+
+import java.io.IOException;
+
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageListener;
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageState;
+import org.flexiblepower.efi.storage_cem_example.log.Log;
+import org.flexiblepower.efi.storage_cem_example.log.Logging;
+import org.flexiblepower.efi.storage_cem_example.xml.MeasurementView;
+import org.flexiblepower.efi.storage_cem_example.xml.StorageStatusView;
+import org.flexiblepower.efi.xml.Measurement;
+import org.flexiblepower.efi.xml.StorageStatus;
+
+/**
+ * Records every Measurement and StorageStatus of the models it listens to in a
+ * {@link HistoryStore}. One recorder can listen to many models.
+ */
+public class HistoryRecorder implements EfiStorageListener {
+
+	private static final Log LOG = Logging.get("history");
+
+	private final HistoryStore store;
+
+	public HistoryRecorder(HistoryStore store) {
+		this.store = store;
+	}
+
+	@Override
+	public void stateChanged(EfiStorageState state) {
+		try {
+			if (Measurement.class.equals(state.getLastMessageType())) {
+				final MeasurementView measurement = state.getLastMeasurement();
+				final String efiResourceId = measurement.getEfiResourceId();
+				if (efiResourceId != null) {
+					this.store.getOrCreate(efiResourceId).record(measurement);
+				}
+			} else if (StorageStatus.class.equals(state.getLastMessageType())) {
+				final StorageStatusView storageStatus = state.getStorageStatus();
+				final String efiResourceId = storageStatus.getEfiResourceId();
+				if (efiResourceId != null) {
+					this.store.getOrCreate(efiResourceId).record(storageStatus);
+				}
+			}
+		} catch (final IOException e) {
+			LOG.error("Could not record history", "error", e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,127 @@
+package org.flexiblepower.efi.storage_cem_example.history;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The history of all resources managed by the CEM. Every resource has its own
+ * subdirectory, named after its URL-encoded efiResourceId. The history of all
+ * resources in the directory is opened when the store is created.
+ */
+public class HistoryStore implements Closeable {
+
+	/** 1 MiB segment files, which hold about 18 hours of samples at 1 Hz */
+	public static final int DEFAULT_SEGMENT_CAPACITY = 65536;
+
+	private final Path directory;
+	private final int segmentCapacity;
+	private final Map<String, ResourceHistory> resources = new ConcurrentHashMap<>();
+
+	/**
+	 * Create a store which keeps the history in memory only.
+	 */
+	public HistoryStore() {
+		this.directory = null;
+		this.segmentCapacity = DEFAULT_SEGMENT_CAPACITY;
+	}
+
+	/**
+	 * Open the store in a directory.
+	 *
+	 * @param directory
+	 *            The directory with the history, it is created if it does not
+	 *            exist
+	 * @param segmentCapacity
+	 *            The number of samples per segment file
+	 * @throws IOException
+	 *             When the existing history could not be opened
+	 */
+	public HistoryStore(Path directory, int segmentCapacity) throws IOException {
+		this.directory = directory;
+		this.segmentCapacity = segmentCapacity;
+		Files.createDirectories(directory);
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, Files::isDirectory)) {
+			for (final Path path : stream) {
+				final String efiResourceId = decode(path.getFileName().toString());
+				this.resources.put(efiResourceId, new ResourceHistory(efiResourceId, path, segmentCapacity));
+			}
+		}
+	}
+
+	/**
+	 * @return The history of a resource, which is created if it does not exist
+	 *         yet
+	 * @throws IOException
+	 *             When the directory of the resource could not be created
+	 */
+	public ResourceHistory getOrCreate(String efiResourceId) throws IOException {
+		final ResourceHistory history = this.resources.get(efiResourceId);
+		if (history != null) {
+			return history;
+		}
+		synchronized (this.resources) {
+			ResourceHistory created = this.resources.get(efiResourceId);
+			if (created == null) {
+				created = new ResourceHistory(efiResourceId,
+						this.directory == null ? null : this.directory.resolve(encode(efiResourceId)),
+						this.segmentCapacity);
+				this.resources.put(efiResourceId, created);
+			}
+			return created;
+		}
+	}
+
+	/**
+	 * @return The history of a resource, or null if nothing has been recorded for
+	 *         it
+	 */
+	public ResourceHistory get(String efiResourceId) {
+		return this.resources.get(efiResourceId);
+	}
+
+	/**
+	 * @return An unmodifiable view of the history of all resources
+	 */
+	public Collection<ResourceHistory> getResources() {
+		return Collections.unmodifiableCollection(this.resources.values());
+	}
+
+	public void flush() {
+		for (final ResourceHistory history : this.resources.values()) {
+			history.flush();
+		}
+	}
+
+	@Override
+	public void close() {
+		this.flush();
+	}
+
+	private static String encode(String efiResourceId) {
+		try {
+			// Dots are encoded as well, so an ID can never be "." or ".."
+			return URLEncoder.encode(efiResourceId, "UTF-8").replace(".", "%2E");
+		} catch (final UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static String decode(String directoryName) {
+		try {
+			return URLDecoder.decode(directoryName, "UTF-8");
+		} catch (final UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+}
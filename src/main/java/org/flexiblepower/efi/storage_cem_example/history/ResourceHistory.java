@@ -0,0 +1,186 @@
+package org.flexiblepower.efi.storage_cem_example.history;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.flexiblepower.efi.storage_cem_example.xml.MeasurementView;
+import org.flexiblepower.efi.storage_cem_example.xml.StorageStatusView;
+
+/**
+ * The history of a single resource: its power, fill level and the running
+ * mode and factor of every actuator. Each of these is a separate
+ * {@link TimeSeries}, stored in its own subdirectory.
+ */
+public final class ResourceHistory implements Closeable {
+
+	private static final String POWER = "power";
+	private static final String FILL_LEVEL = "fillLevel";
+	private static final String RUNNING_MODE = "runningMode";
+	private static final String FACTOR = "factor";
+	private static final Pattern ACTUATOR_SERIES = Pattern.compile("actuator-(-?\\d+)-(" + RUNNING_MODE + "|"
+			+ FACTOR + ")");
+
+	private final String efiResourceId;
+	private final Path directory;
+	private final int segmentCapacity;
+	private final TimeSeries power;
+	private final TimeSeries fillLevel;
+	private final Map<Integer, TimeSeries> runningModes = new ConcurrentHashMap<>();
+	private final Map<Integer, TimeSeries> runningModeFactors = new ConcurrentHashMap<>();
+
+	/**
+	 * @param efiResourceId
+	 *            The ID of the resource
+	 * @param directory
+	 *            The directory of the resource, or null to keep the history in
+	 *            memory only
+	 * @param segmentCapacity
+	 *            The number of samples per segment file
+	 * @throws IOException
+	 *             When the existing history could not be opened
+	 */
+	public ResourceHistory(String efiResourceId, Path directory, int segmentCapacity) throws IOException {
+		this.efiResourceId = efiResourceId;
+		this.directory = directory;
+		this.segmentCapacity = segmentCapacity;
+		this.power = this.openSeries(POWER);
+		this.fillLevel = this.openSeries(FILL_LEVEL);
+		if (directory != null) {
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+				for (final Path path : stream) {
+					final Matcher matcher = ACTUATOR_SERIES.matcher(path.getFileName().toString());
+					if (matcher.matches()) {
+						final int actuatorId = Integer.parseInt(matcher.group(1));
+						final TimeSeries series = new TimeSeries(path, segmentCapacity);
+						(RUNNING_MODE.equals(matcher.group(2)) ? this.runningModes : this.runningModeFactors)
+								.put(actuatorId, series);
+					}
+				}
+			}
+		}
+	}
+
+	private TimeSeries openSeries(String name) throws IOException {
+		return new TimeSeries(this.directory == null ? null : this.directory.resolve(name), this.segmentCapacity);
+	}
+
+	private TimeSeries actuatorSeries(Map<Integer, TimeSeries> map, int actuatorId, String name)
+			throws IOException {
+		TimeSeries series = map.get(actuatorId);
+		if (series == null) {
+			series = this.openSeries("actuator-" + actuatorId + "-" + name);
+			map.put(actuatorId, series);
+		}
+		return series;
+	}
+
+	/**
+	 * Record the power of a Measurement, at the time it was measured.
+	 *
+	 * @throws IOException
+	 *             When the history could not be written
+	 */
+	public void record(MeasurementView measurement) throws IOException {
+		if (!measurement.hasElectricityMeasurement()) {
+			return;
+		}
+		final long time = measurement.getMeasurementTimestamp() != StorageStatusView.NO_TIME
+				? measurement.getMeasurementTimestamp()
+				: measurement.getTimestamp();
+		if (time != StorageStatusView.NO_TIME) {
+			this.power.append(time, measurement.getPower());
+		}
+	}
+
+	/**
+	 * Record the fill level and the running modes of a StorageStatus, at the
+	 * time of the message. Running modes are stored as doubles; absent factors
+	 * are stored as NaN.
+	 *
+	 * @throws IOException
+	 *             When the history could not be written
+	 */
+	public void record(StorageStatusView storageStatus) throws IOException {
+		final long time = storageStatus.getTimestamp();
+		if (time == StorageStatusView.NO_TIME) {
+			return;
+		}
+		if (!Double.isNaN(storageStatus.getCurrentFillLevel())) {
+			this.fillLevel.append(time, storageStatus.getCurrentFillLevel());
+		}
+		for (int i = 0; i < storageStatus.getActuatorCount(); i++) {
+			final int actuatorId = storageStatus.getActuatorId(i);
+			this.actuatorSeries(this.runningModes, actuatorId, RUNNING_MODE).append(time,
+					storageStatus.getCurrentRunningMode(i));
+			this.actuatorSeries(this.runningModeFactors, actuatorId, FACTOR).append(time,
+					storageStatus.getRunningModeFactor(i));
+		}
+	}
+
+	public String getEfiResourceId() {
+		return this.efiResourceId;
+	}
+
+	/**
+	 * @return The electrical power in watt
+	 */
+	public TimeSeries getPower() {
+		return this.power;
+	}
+
+	public TimeSeries getFillLevel() {
+		return this.fillLevel;
+	}
+
+	/**
+	 * @return The running mode IDs of an actuator, or null if nothing has been
+	 *         recorded for the actuator
+	 */
+	public TimeSeries getRunningMode(int actuatorId) {
+		return this.runningModes.get(actuatorId);
+	}
+
+	/**
+	 * @return The running mode factors of an actuator, or null if nothing has
+	 *         been recorded for the actuator
+	 */
+	public TimeSeries getRunningModeFactor(int actuatorId) {
+		return this.runningModeFactors.get(actuatorId);
+	}
+
+	/**
+	 * @return The IDs of all actuators with recorded running modes, sorted
+	 */
+	public List<Integer> getActuatorIds() {
+		final List<Integer> ids = new ArrayList<>(this.runningModes.keySet());
+		Collections.sort(ids);
+		return ids;
+	}
+
+	public void flush() {
+		this.power.flush();
+		this.fillLevel.flush();
+		for (final TimeSeries series : this.runningModes.values()) {
+			series.flush();
+		}
+		for (final TimeSeries series : this.runningModeFactors.values()) {
+			series.flush();
+		}
+	}
+
+	@Override
+	public void close() {
+		this.flush();
+	}
+
+}
@@ -0,0 +1,414 @@
+package org.flexiblepower.efi.storage_cem_example.history;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Append-only series of (time, value) samples, ordered by time.
+ *
+ * Samples are stored in fixed size segments with two columns: the times as
+ * epoch milliseconds and the values as doubles. When the series has a
+ * directory, every segment is a memory-mapped file in that directory. Opening
+ * an existing series only maps the files, so history is available right away
+ * without reading or parsing it. Without a directory the segments are kept in
+ * off-heap buffers.
+ *
+ * Segment file layout, big-endian: magic, version, capacity, size (all int),
+ * followed by capacity times (long) and capacity values (double).
+ *
+ * Appending must be done by one thread at a time. Queries can be performed
+ * concurrently from any thread without locking; they see every sample which
+ * was appended before the query started.
+ */
+public final class TimeSeries implements Closeable {
+
+	/** Returned by time getters when the series is empty */
+	public static final long NO_TIME = Long.MIN_VALUE;
+
+	static final int MAGIC = 0x45465453; // "EFTS"
+	static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	/** The largest capacity of a segment, whose file can still be mapped */
+	static final int MAX_SEGMENT_CAPACITY = (Integer.MAX_VALUE - HEADER_SIZE) / 16;
+	private static final int SIZE_OFFSET = 12;
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	/**
+	 * Callback for range queries.
+	 */
+	public interface SampleConsumer {
+		void accept(long time, double value);
+	}
+
+	private final Path directory;
+	private final int segmentCapacity;
+	private volatile Segment[] segments;
+	private int nextSequence;
+
+	/**
+	 * Open the series in a directory, or create an empty one.
+	 *
+	 * @param directory
+	 *            The directory for the segment files, or null to keep the series
+	 *            in memory only
+	 * @param segmentCapacity
+	 *            The number of samples per segment, for new segments, at most
+	 *            {@link #MAX_SEGMENT_CAPACITY}
+	 * @throws IOException
+	 *             When existing segments could not be mapped or are corrupt
+	 */
+	public TimeSeries(Path directory, int segmentCapacity) throws IOException {
+		if (segmentCapacity < 1 || segmentCapacity > MAX_SEGMENT_CAPACITY) {
+			throw new IllegalArgumentException("segmentCapacity must be between 1 and " + MAX_SEGMENT_CAPACITY);
+		}
+		this.directory = directory;
+		this.segmentCapacity = segmentCapacity;
+		this.segments = directory == null ? new Segment[0] : this.openSegments(directory);
+	}
+
+	private Segment[] openSegments(Path directory) throws IOException {
+		Files.createDirectories(directory);
+		final List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+			for (final Path file : stream) {
+				files.add(file);
+			}
+		}
+		// File names are zero-padded sequence numbers
+		files.sort(null);
+		final List<Segment> result = new ArrayList<>(files.size());
+		for (final Path file : files) {
+			final String name = file.getFileName().toString();
+			try {
+				this.nextSequence = Math.max(this.nextSequence,
+						Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())) + 1);
+			} catch (final NumberFormatException e) {
+				throw new IOException("Unexpected segment file " + file);
+			}
+			final Segment segment = Segment.open(file);
+			if (segment.size > 0) {
+				result.add(segment);
+			}
+		}
+		return result.toArray(new Segment[result.size()]);
+	}
+
+	/**
+	 * Append a sample. Samples must be appended in chronological order; a sample
+	 * with the same time as the last sample is allowed.
+	 *
+	 * @return true if the sample was appended, false if it is older than the last
+	 *         sample
+	 * @throws IOException
+	 *             When a new segment file could not be created
+	 */
+	public synchronized boolean append(long time, double value) throws IOException {
+		final Segment[] current = this.segments;
+		Segment last = current.length == 0 ? null : current[current.length - 1];
+		if (last != null && time < last.time(last.size - 1)) {
+			return false;
+		}
+		if (last == null || last.size == last.capacity) {
+			last = this.newSegment(this.nextSequence++);
+			last.append(time, value);
+			final Segment[] next = Arrays.copyOf(current, current.length + 1);
+			next[current.length] = last;
+			this.segments = next;
+		} else {
+			last.append(time, value);
+		}
+		return true;
+	}
+
+	private Segment newSegment(int sequence) throws IOException {
+		if (this.directory == null) {
+			return new Segment(
+					ByteBuffer.allocateDirect((int) Segment.fileSize(this.segmentCapacity)).putInt(0, MAGIC)
+							.putInt(4, VERSION).putInt(8, this.segmentCapacity),
+					this.segmentCapacity, 0);
+		}
+		return Segment.create(this.directory.resolve(String.format("%08d", sequence) + SEGMENT_SUFFIX),
+				this.segmentCapacity);
+	}
+
+	/**
+	 * @return The number of samples
+	 */
+	public long size() {
+		long size = 0;
+		for (final Segment segment : this.segments) {
+			size += segment.size;
+		}
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return this.segments.length == 0;
+	}
+
+	/**
+	 * @return The time of the first sample, or {@link #NO_TIME} if empty
+	 */
+	public long getFirstTime() {
+		final Segment[] current = this.segments;
+		return current.length == 0 ? NO_TIME : current[0].time(0);
+	}
+
+	/**
+	 * @return The time of the last sample, or {@link #NO_TIME} if empty
+	 */
+	public long getLastTime() {
+		final Segment[] current = this.segments;
+		if (current.length == 0) {
+			return NO_TIME;
+		}
+		final Segment last = current[current.length - 1];
+		return last.time(last.size - 1);
+	}
+
+	/**
+	 * The value which was valid at a moment, which is the value of the last
+	 * sample at or before that time.
+	 *
+	 * @return The value, or NaN if there is no sample at or before the time
+	 */
+	public double valueAt(long time) {
+		final Segment[] current = this.segments;
+		// The last segment which starts at or before the time
+		int lo = 0;
+		int hi = current.length - 1;
+		int found = -1;
+		while (lo <= hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (current[mid].time(0) <= time) {
+				found = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		if (found < 0) {
+			return Double.NaN;
+		}
+		final Segment segment = current[found];
+		return segment.value(segment.upperBound(time, segment.size) - 1);
+	}
+
+	/**
+	 * Visit all samples in a time range, in chronological order.
+	 *
+	 * @param from
+	 *            Start of the range, inclusive
+	 * @param to
+	 *            End of the range, exclusive
+	 * @param consumer
+	 *            Receives the samples
+	 * @return The number of samples visited
+	 */
+	public int forEach(long from, long to, SampleConsumer consumer) {
+		final Segment[] current = this.segments;
+		int visited = 0;
+		for (int s = this.firstSegment(current, from); s < current.length; s++) {
+			final Segment segment = current[s];
+			final int size = segment.size;
+			for (int i = segment.lowerBound(from, size); i < size; i++) {
+				final long time = segment.time(i);
+				if (time >= to) {
+					return visited;
+				}
+				consumer.accept(time, segment.value(i));
+				visited++;
+			}
+		}
+		return visited;
+	}
+
+	/**
+	 * @return The number of samples in a time range, from inclusive and to
+	 *         exclusive
+	 */
+	public long count(long from, long to) {
+		if (from >= to) {
+			return 0;
+		}
+		return this.position(to) - this.position(from);
+	}
+
+	/**
+	 * @return The number of samples before a time
+	 */
+	private long position(long time) {
+		final Segment[] current = this.segments;
+		final int first = this.firstSegment(current, time);
+		long position = 0;
+		for (int s = 0; s < first; s++) {
+			position += current[s].size;
+		}
+		for (int s = first; s < current.length; s++) {
+			final Segment segment = current[s];
+			final int size = segment.size;
+			final int index = segment.lowerBound(time, size);
+			position += index;
+			if (index < size) {
+				break;
+			}
+		}
+		return position;
+	}
+
+	/**
+	 * @return The last segment which starts before the time, all samples at or
+	 *         after the time are in this segment or later ones
+	 */
+	private int firstSegment(Segment[] current, long time) {
+		int lo = 0;
+		int hi = current.length - 1;
+		int found = 0;
+		while (lo <= hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (current[mid].time(0) < time) {
+				found = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Write the segments of a persistent series to disk.
+	 */
+	public void flush() {
+		for (final Segment segment : this.segments) {
+			if (segment.buffer instanceof MappedByteBuffer) {
+				((MappedByteBuffer) segment.buffer).force();
+			}
+		}
+	}
+
+	/**
+	 * Flushes the series. The mapped files are released by the garbage collector.
+	 */
+	@Override
+	public void close() {
+		this.flush();
+	}
+
+	@Override
+	public String toString() {
+		return "TimeSeries[" + (this.directory == null ? "memory" : this.directory) + ", size=" + this.size() + "]";
+	}
+
+	private static final class Segment {
+
+		private final ByteBuffer buffer;
+		private final int capacity;
+		private final int valuesOffset;
+		private volatile int size;
+
+		Segment(ByteBuffer buffer, int capacity, int size) {
+			this.buffer = buffer;
+			this.capacity = capacity;
+			this.valuesOffset = HEADER_SIZE + capacity * 8;
+			this.size = size;
+		}
+
+		static long fileSize(int capacity) {
+			return HEADER_SIZE + capacity * 16L;
+		}
+
+		static Segment create(Path file, int capacity) throws IOException {
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+					StandardOpenOption.WRITE)) {
+				final MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE, 0, fileSize(capacity));
+				buffer.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, capacity).putInt(SIZE_OFFSET, 0);
+				return new Segment(buffer, capacity, 0);
+			}
+		}
+
+		static Segment open(Path file) throws IOException {
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				if (channel.size() < HEADER_SIZE) {
+					throw new IOException("Segment " + file + " is truncated");
+				}
+				final MappedByteBuffer header = channel.map(MapMode.READ_ONLY, 0, HEADER_SIZE);
+				if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+					throw new IOException("Segment " + file + " is not a time series segment of version " + VERSION);
+				}
+				final int capacity = header.getInt(8);
+				final int size = header.getInt(SIZE_OFFSET);
+				if (capacity < 1 || capacity > MAX_SEGMENT_CAPACITY || size < 0 || size > capacity
+						|| channel.size() < fileSize(capacity)) {
+					throw new IOException("Segment " + file + " is corrupt");
+				}
+				return new Segment(channel.map(MapMode.READ_WRITE, 0, fileSize(capacity)), capacity, size);
+			}
+		}
+
+		void append(long time, double value) {
+			final int i = this.size;
+			this.buffer.putLong(HEADER_SIZE + i * 8, time);
+			this.buffer.putDouble(this.valuesOffset + i * 8, value);
+			// The size in the header is written last, so if the process dies a
+			// reload never sees a partially written sample
+			this.buffer.putInt(SIZE_OFFSET, i + 1);
+			this.size = i + 1;
+		}
+
+		long time(int i) {
+			return this.buffer.getLong(HEADER_SIZE + i * 8);
+		}
+
+		double value(int i) {
+			return this.buffer.getDouble(this.valuesOffset + i * 8);
+		}
+
+		/**
+		 * @return The index of the first sample at or after the time
+		 */
+		int lowerBound(long time, int size) {
+			int lo = 0;
+			int hi = size;
+			while (lo < hi) {
+				final int mid = (lo + hi) >>> 1;
+				if (this.time(mid) < time) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		/**
+		 * @return The index of the first sample after the time
+		 */
+		int upperBound(long time, int size) {
+			int lo = 0;
+			int hi = size;
+			while (lo < hi) {
+				final int mid = (lo + hi) >>> 1;
+				if (this.time(mid) <= time) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+	}
+
+}
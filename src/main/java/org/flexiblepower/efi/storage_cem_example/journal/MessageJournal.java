@@ -0,0 +1,675 @@
+package org.flexiblepower.efi.storage_cem_example.journal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+
+import javax.xml.bind.JAXBException;
+
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageModel;
+import org.flexiblepower.efi.storage_cem_example.journal.ResourceMessages.Message;
+import org.flexiblepower.efi.storage_cem_example.log.Log;
+import org.flexiblepower.efi.storage_cem_example.log.Logging;
+import org.flexiblepower.efi.storage_cem_example.metrics.CemMetrics;
+import org.flexiblepower.efi.storage_cem_example.xml.EfiCompactCodec;
+import org.flexiblepower.efi.storage_cem_example.xml.EfiStreamingDecoder;
+
+/**
+ * A write-ahead journal of the EFI messages of all connections, so that after
+ * a restart the CEM can rebuild the state of every model at once, instead of
+ * knowing nothing until each Resource Manager sends its StorageRegistration and
+ * StorageSystemDescription again.
+ *
+ * Every message accepted from or sent to a Resource Manager is appended as a
+ * record: a sequence number, the time, the direction, the type and the key of
+ * the connection, followed by the message in the {@link EfiCompactCodec}
+ * encoding, all protected by a CRC-32. Appending only queues the record. A
+ * writer thread takes everything that has been queued, writes it at once and
+ * forces it to disk (group commit), so one force covers all messages which
+ * arrived in the meantime. {@link #flush()} waits until all appended records
+ * are on disk, and reports records which could not be written.
+ *
+ * Records are written to segment files. When a segment is full the writer
+ * writes a snapshot which holds, per connection, the last messages needed to
+ * rebuild the state of its model, and deletes the older segments and
+ * snapshots. Opening the journal reads the newest valid snapshot and the
+ * records after it; reading a segment stops at a record which was not written
+ * completely. When a write fails the writer cuts the segment back to the end
+ * of the last complete batch, or continues in a new segment if it cannot, so
+ * the records written after the failure can still be read. Opening and closing
+ * the journal also write a snapshot, so a restart normally reads a single file.
+ */
+public class MessageJournal implements Closeable {
+
+	private static final Log LOG = Logging.get("journal");
+
+	/** 16 MiB segment files, a few minutes of messages of a thousand resources */
+	public static final long DEFAULT_SEGMENT_BYTES = 16L * 1024 * 1024;
+
+	/** Appending waits while this many bytes have not been written yet */
+	static final int MAX_PENDING_BYTES = 8 * 1024 * 1024;
+
+	/** The length and CRC-32 in front of every record */
+	private static final int RECORD_HEADER_BYTES = 8;
+	/** Sequence number, time, direction, type and key length */
+	private static final int RECORD_FIXED_BYTES = 20;
+	private static final int SNAPSHOT_MAGIC = 0x45464A53; // "EFJS"
+	private static final int SNAPSHOT_VERSION = 1;
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final String SNAPSHOT_SUFFIX = ".bin";
+
+	private final Path directory;
+	private final long segmentBytes;
+	/** The messages per key when the journal was opened */
+	private final Map<String, List<Message>> restored;
+	private final SegmentOpener opener;
+	private final Thread writer;
+
+	// Only used by the writer thread once it has been started
+	private final Map<String, ResourceMessages> resources = new HashMap<>();
+	private final CRC32 crc = new CRC32();
+	private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+	private FileChannel segment;
+	private Path segmentPath;
+	private long segmentSize;
+
+	// Guarded by this
+	private List<Record> pending = new ArrayList<>();
+	private int pendingBytes = 0;
+	private long lastSequence;
+	/** The last record which has been written, or could not be */
+	private long processedSequence;
+	/** The last record on disk, every record before it is on disk or lost */
+	private long durableSequence;
+	/** The last batch which could not be written */
+	private long lostFirstSequence = 0;
+	private long lostLastSequence = 0;
+	/** Losses up to this record have been reported by {@link #flush()} */
+	private long reportedSequence = 0;
+	private boolean closed = false;
+
+	/**
+	 * Opens segment files, so that tests can make writes fail.
+	 */
+	interface SegmentOpener {
+		FileChannel open(Path path) throws IOException;
+	}
+
+	/**
+	 * Open the journal in a directory with segments of
+	 * {@link #DEFAULT_SEGMENT_BYTES}.
+	 *
+	 * @see #MessageJournal(Path, long)
+	 */
+	public MessageJournal(Path directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_BYTES);
+	}
+
+	/**
+	 * Open the journal in a directory, and read the messages which have been
+	 * journaled before.
+	 *
+	 * @param directory
+	 *            The directory of the journal, it is created if it does not
+	 *            exist
+	 * @param segmentBytes
+	 *            The size from which a new segment file is started
+	 * @throws IOException
+	 *             When the journal could not be read or a new segment could not
+	 *             be created
+	 */
+	public MessageJournal(Path directory, long segmentBytes) throws IOException {
+		this(directory, segmentBytes, path -> FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+	}
+
+	MessageJournal(Path directory, long segmentBytes, SegmentOpener opener) throws IOException {
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.opener = opener;
+		Files.createDirectories(directory);
+		final long start = System.nanoTime();
+		long last = this.readSnapshot();
+		int records = 0;
+		for (final Path path : this.files(SEGMENT_PREFIX, SEGMENT_SUFFIX).values()) {
+			final ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(path));
+			while (bytes.hasRemaining()) {
+				final Record record = readRecord(bytes, this.crc);
+				if (record == null) {
+					LOG.warn("Journal segment ends with an incomplete record", "file", path, "offset",
+							bytes.position());
+					break;
+				}
+				if (record.sequence > last) {
+					this.apply(record);
+					last = record.sequence;
+					records++;
+				}
+			}
+		}
+		final Map<String, List<Message>> messages = new HashMap<>();
+		for (final Map.Entry<String, ResourceMessages> entry : this.resources.entrySet()) {
+			messages.put(entry.getKey(), entry.getValue().getMessages());
+		}
+		this.restored = Collections.unmodifiableMap(messages);
+		this.lastSequence = last;
+		this.processedSequence = last;
+		this.durableSequence = last;
+		this.writeSnapshot(last);
+		this.openSegment(last + 1);
+		LOG.info("Opened journal", "directory", directory, "connections", this.restored.size(), "records", records,
+				"millis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+		this.writer = new Thread(this::run, "efi-journal");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * A message waiting to be written.
+	 */
+	private static final class Record {
+		long sequence;
+		final long time;
+		final boolean inbound;
+		final MessageType type;
+		final String key;
+		final byte[] keyBytes;
+		final byte[] payload;
+
+		Record(long time, boolean inbound, MessageType type, String key, byte[] keyBytes, byte[] payload) {
+			this.time = time;
+			this.inbound = inbound;
+			this.type = type;
+			this.key = key;
+			this.keyBytes = keyBytes;
+			this.payload = payload;
+		}
+
+		int size() {
+			return RECORD_HEADER_BYTES + RECORD_FIXED_BYTES + this.keyBytes.length + this.payload.length;
+		}
+
+		void writeTo(ByteBuffer buffer, CRC32 crc) {
+			final int start = buffer.position();
+			final int length = RECORD_FIXED_BYTES + this.keyBytes.length + this.payload.length;
+			buffer.putInt(length).putInt(0).putLong(this.sequence).putLong(this.time).put((byte) (this.inbound ? 1 : 0))
+					.put(this.type.getCode()).putShort((short) this.keyBytes.length).put(this.keyBytes)
+					.put(this.payload);
+			crc.reset();
+			crc.update(buffer.array(), buffer.arrayOffset() + start + RECORD_HEADER_BYTES, length);
+			buffer.putInt(start + 4, (int) crc.getValue());
+		}
+	}
+
+	/**
+	 * @return The next record, or null if the rest of the buffer does not hold a
+	 *         complete and valid record
+	 */
+	private static Record readRecord(ByteBuffer bytes, CRC32 crc) {
+		if (bytes.remaining() < RECORD_HEADER_BYTES + RECORD_FIXED_BYTES) {
+			return null;
+		}
+		final int start = bytes.position();
+		final int length = bytes.getInt(start);
+		if (length < RECORD_FIXED_BYTES || length > bytes.remaining() - RECORD_HEADER_BYTES) {
+			return null;
+		}
+		crc.reset();
+		crc.update(bytes.array(), bytes.arrayOffset() + start + RECORD_HEADER_BYTES, length);
+		if ((int) crc.getValue() != bytes.getInt(start + 4)) {
+			return null;
+		}
+		bytes.position(start + RECORD_HEADER_BYTES);
+		final long sequence = bytes.getLong();
+		final long time = bytes.getLong();
+		final boolean inbound = bytes.get() != 0;
+		final MessageType type = MessageType.forCode(bytes.get());
+		final byte[] keyBytes = new byte[bytes.getShort() & 0xffff];
+		if (keyBytes.length > length - RECORD_FIXED_BYTES) {
+			bytes.position(start);
+			return null;
+		}
+		bytes.get(keyBytes);
+		final byte[] payload = new byte[length - RECORD_FIXED_BYTES - keyBytes.length];
+		bytes.get(payload);
+		final Record record = new Record(time, inbound, type, new String(keyBytes, StandardCharsets.UTF_8), keyBytes,
+				payload);
+		record.sequence = sequence;
+		return record;
+	}
+
+	private void apply(Record record) {
+		if (record.inbound) {
+			this.resources.computeIfAbsent(record.key, k -> new ResourceMessages()).apply(record.type,
+					record.payload);
+		}
+	}
+
+	/**
+	 * @return The files with a prefix and suffix, by the sequence number in
+	 *         their name
+	 */
+	private NavigableMap<Long, Path> files(String prefix, String suffix) throws IOException {
+		final NavigableMap<Long, Path> files = new TreeMap<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory, prefix + "*" + suffix)) {
+			for (final Path path : stream) {
+				final String name = path.getFileName().toString();
+				try {
+					files.put(Long.parseUnsignedLong(name.substring(prefix.length(), name.length() - suffix.length()),
+							16), path);
+				} catch (final NumberFormatException e) {
+					LOG.warn("Ignoring unknown file in the journal", "file", path);
+				}
+			}
+		}
+		return files;
+	}
+
+	private Path file(String prefix, long sequence, String suffix) {
+		return this.directory.resolve(String.format("%s%016x%s", prefix, sequence, suffix));
+	}
+
+	/**
+	 * Read the newest snapshot which is valid.
+	 *
+	 * @return The sequence number of the last record in the snapshot, 0 if there
+	 *         is none
+	 */
+	private long readSnapshot() throws IOException {
+		for (final Path path : this.files(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX).descendingMap().values()) {
+			this.resources.clear();
+			final ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(path));
+			try {
+				final int end = bytes.limit() - 4;
+				this.crc.reset();
+				this.crc.update(bytes.array(), 0, Math.max(end, 0));
+				if (end < 20 || (int) this.crc.getValue() != bytes.getInt(end) || bytes.getInt() != SNAPSHOT_MAGIC
+						|| bytes.getInt() != SNAPSHOT_VERSION) {
+					throw new IOException("Invalid header or checksum");
+				}
+				final long sequence = bytes.getLong();
+				final int resourceCount = bytes.getInt();
+				for (int r = 0; r < resourceCount; r++) {
+					final byte[] key = new byte[bytes.getShort() & 0xffff];
+					bytes.get(key);
+					final ResourceMessages messages = new ResourceMessages();
+					final int messageCount = bytes.getInt();
+					for (int m = 0; m < messageCount; m++) {
+						final MessageType type = MessageType.forCode(bytes.get());
+						final byte[] payload = new byte[bytes.getInt()];
+						bytes.get(payload);
+						messages.apply(type, payload);
+					}
+					this.resources.put(new String(key, StandardCharsets.UTF_8), messages);
+				}
+				return sequence;
+			} catch (final IOException | RuntimeException e) {
+				LOG.warn("Ignoring invalid journal snapshot", "file", path, "error", e.getMessage());
+			}
+		}
+		this.resources.clear();
+		return 0;
+	}
+
+	/**
+	 * Write a snapshot of the messages of every connection up to a sequence
+	 * number, and delete the segments and snapshots it replaces.
+	 */
+	private void writeSnapshot(long sequence) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(SNAPSHOT_MAGIC);
+		out.writeInt(SNAPSHOT_VERSION);
+		out.writeLong(sequence);
+		out.writeInt(this.resources.size());
+		for (final Map.Entry<String, ResourceMessages> entry : this.resources.entrySet()) {
+			final byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+			out.writeShort(key.length);
+			out.write(key);
+			final List<Message> messages = entry.getValue().getMessages();
+			out.writeInt(messages.size());
+			for (final Message message : messages) {
+				out.writeByte(message.type.getCode());
+				out.writeInt(message.payload.length);
+				out.write(message.payload);
+			}
+		}
+		out.flush();
+		final byte[] data = bytes.toByteArray();
+		this.crc.reset();
+		this.crc.update(data, 0, data.length);
+		final ByteBuffer checksum = ByteBuffer.allocate(4).putInt(0, (int) this.crc.getValue());
+
+		final Path path = this.file(SNAPSHOT_PREFIX, sequence, SNAPSHOT_SUFFIX);
+		final Path temporary = this.directory.resolve(path.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			final ByteBuffer content = ByteBuffer.wrap(data);
+			while (content.hasRemaining()) {
+				channel.write(content);
+			}
+			while (checksum.hasRemaining()) {
+				channel.write(checksum);
+			}
+			channel.force(true);
+		}
+		Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+		for (final Path old : this.files(SEGMENT_PREFIX, SEGMENT_SUFFIX).headMap(sequence, true).values()) {
+			Files.deleteIfExists(old);
+		}
+		for (final Path old : this.files(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX).headMap(sequence, false).values()) {
+			Files.deleteIfExists(old);
+		}
+		LOG.debug("Wrote journal snapshot", "file", path, "connections", this.resources.size(), "bytes",
+				data.length + 4);
+	}
+
+	private void openSegment(long firstSequence) throws IOException {
+		this.segmentPath = this.file(SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX);
+		// A segment with this name can only be left over without valid records
+		this.segment = this.opener.open(this.segmentPath);
+		this.segmentSize = 0;
+	}
+
+	/**
+	 * Queue a message to be journaled. This only waits when the writer has
+	 * fallen behind by {@link #MAX_PENDING_BYTES}. Messages appended after
+	 * {@link #close()} are ignored.
+	 *
+	 * @param key
+	 *            The connection of the message, such as the URI of the Resource
+	 *            Manager
+	 * @param inbound
+	 *            true for a message from the Resource Manager, false for a
+	 *            message to it
+	 * @param xml
+	 *            The message
+	 */
+	public void append(String key, boolean inbound, String xml) {
+		final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		if (keyBytes.length > 0xffff) {
+			throw new IllegalArgumentException("Key too long: " + key);
+		}
+		final ByteBuffer encoded = EfiCompactCodec.encode(xml);
+		final byte[] payload = new byte[encoded.remaining()];
+		encoded.get(payload);
+		final Record record = new Record(System.currentTimeMillis(), inbound, MessageType.of(xml), key, keyBytes,
+				payload);
+		boolean interrupted = false;
+		synchronized (this) {
+			while (!this.closed && this.pendingBytes >= MAX_PENDING_BYTES) {
+				try {
+					this.wait();
+				} catch (final InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (!this.closed) {
+				record.sequence = ++this.lastSequence;
+				this.pending.add(record);
+				this.pendingBytes += record.size();
+				if (this.pending.size() == 1) {
+					this.notifyAll();
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Wait until all messages which have been appended so far are on disk.
+	 *
+	 * @throws IOException
+	 *             When some of these messages could not be written, and that has
+	 *             not been reported by an earlier flush, or when the writer has
+	 *             stopped before writing them
+	 */
+	public synchronized void flush() throws InterruptedException, IOException {
+		final long sequence = this.lastSequence;
+		while (this.processedSequence < sequence && this.writer.isAlive()) {
+			this.wait(100);
+		}
+		if (this.processedSequence < sequence) {
+			throw new IOException("The journal writer has stopped");
+		}
+		final boolean lost = this.lostLastSequence > this.reportedSequence && this.lostFirstSequence <= sequence;
+		this.reportedSequence = Math.max(this.reportedSequence, sequence);
+		if (lost) {
+			throw new IOException("Could not write journal records " + this.lostFirstSequence + " to "
+					+ this.lostLastSequence);
+		}
+	}
+
+	/**
+	 * @return The sequence number of the last appended message
+	 */
+	public synchronized long getLastSequence() {
+		return this.lastSequence;
+	}
+
+	/**
+	 * @return The keys of the connections which had messages in the journal when
+	 *         it was opened
+	 */
+	public Set<String> getRestoredKeys() {
+		return this.restored.keySet();
+	}
+
+	/**
+	 * Rebuild the state of a model from the messages of a connection, as they
+	 * were when the journal was opened. The model handles them like messages
+	 * from the Resource Manager, so its listeners are notified as well. Call this
+	 * before the connection is opened, on the thread which handles its messages.
+	 * A message which cannot be decoded, or which the model rejects, is logged
+	 * and skipped.
+	 *
+	 * @return The number of messages which have been handled
+	 */
+	public int restore(String key, EfiStorageModel model) {
+		final List<Message> messages = this.restored.get(key);
+		if (messages == null) {
+			return 0;
+		}
+		final EfiStreamingDecoder decoder = new EfiStreamingDecoder();
+		int handled = 0;
+		for (final Message message : messages) {
+			try {
+				switch (decoder.decode(EfiCompactCodec.decode(ByteBuffer.wrap(message.payload)))) {
+				case MEASUREMENT:
+					model.handleMeasurement(decoder.getMeasurement());
+					break;
+				case STORAGE_STATUS:
+					model.handleStorageStatus(decoder.getStorageStatus());
+					break;
+				default:
+					model.handleEfiMessage(decoder.getMessage());
+					break;
+				}
+				handled++;
+			} catch (final DataFormatException | JAXBException | RuntimeException e) {
+				LOG.warn("Could not restore journaled message", "key", key, "type", message.type, "error", e);
+			}
+		}
+		return handled;
+	}
+
+	private void run() {
+		while (true) {
+			final List<Record> batch;
+			synchronized (this) {
+				while (this.pending.isEmpty() && !this.closed) {
+					try {
+						this.wait();
+					} catch (final InterruptedException e) {
+						// Only stops when closed
+					}
+				}
+				if (this.pending.isEmpty()) {
+					return;
+				}
+				batch = this.pending;
+				this.pending = new ArrayList<>();
+				this.pendingBytes = 0;
+				// Appenders may be waiting for room
+				this.notifyAll();
+			}
+			final boolean written = this.write(batch);
+			synchronized (this) {
+				final long last = batch.get(batch.size() - 1).sequence;
+				this.processedSequence = last;
+				if (written) {
+					this.durableSequence = last;
+				} else {
+					this.lostFirstSequence = batch.get(0).sequence;
+					this.lostLastSequence = last;
+				}
+				this.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Write and force a batch of records, and start a new segment when the
+	 * current one is full. The records are only added to the next snapshot once
+	 * they are on disk.
+	 *
+	 * @return false if the batch could not be written
+	 */
+	private boolean write(List<Record> batch) {
+		final long start = System.nanoTime();
+		int size = 0;
+		for (final Record record : batch) {
+			size += record.size();
+		}
+		if (this.buffer.capacity() < size) {
+			this.buffer = ByteBuffer.allocate(Math.max(size, this.buffer.capacity() * 2));
+		}
+		this.buffer.clear();
+		for (final Record record : batch) {
+			record.writeTo(this.buffer, this.crc);
+		}
+		this.buffer.flip();
+		try {
+			if (this.segment == null) {
+				// The previous segment could not be continued
+				this.openSegment(batch.get(0).sequence);
+			}
+			while (this.buffer.hasRemaining()) {
+				this.segment.write(this.buffer);
+			}
+			this.segment.force(false);
+		} catch (final IOException e) {
+			LOG.error("Could not write the journal", "file", this.segmentPath, "records", batch.size(), "error", e);
+			this.discardIncompleteBatch();
+			return false;
+		} finally {
+			CemMetrics.JOURNAL_COMMIT.recordSince(start);
+		}
+		CemMetrics.JOURNAL_BYTES.add(size);
+		this.segmentSize += size;
+		for (final Record record : batch) {
+			this.apply(record);
+		}
+		if (this.segmentSize >= this.segmentBytes) {
+			this.closeSegment();
+			final long sequence = batch.get(batch.size() - 1).sequence;
+			try {
+				this.writeSnapshot(sequence);
+				this.openSegment(sequence + 1);
+			} catch (final IOException e) {
+				// The next write tries again
+				LOG.error("Could not start a new journal segment", "directory", this.directory, "error",
+						e.getMessage());
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Cut the segment back to the end of the last batch which was written
+	 * completely, since reading stops at the first incomplete record. If that
+	 * fails the segment is closed, and the next batch starts a new one.
+	 */
+	private void discardIncompleteBatch() {
+		if (this.segment == null) {
+			return;
+		}
+		try {
+			this.segment.truncate(this.segmentSize);
+			this.segment.position(this.segmentSize);
+			this.segment.force(false);
+		} catch (final IOException e) {
+			LOG.warn("Could not truncate the journal, starting a new segment", "file", this.segmentPath, "error", e);
+			this.closeSegment();
+		}
+	}
+
+	private void closeSegment() {
+		if (this.segment == null) {
+			return;
+		}
+		try {
+			this.segment.close();
+		} catch (final IOException e) {
+			LOG.warn("Could not close journal segment", "file", this.segmentPath, "error", e.getMessage());
+		}
+		this.segment = null;
+	}
+
+	/**
+	 * Write the queued messages and a snapshot, and stop the writer thread.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+			this.notifyAll();
+		}
+		try {
+			this.writer.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		if (this.writer.isAlive()) {
+			LOG.warn("Journal writer did not stop", "directory", this.directory);
+			return;
+		}
+		this.closeSegment();
+		try {
+			this.writeSnapshot(this.durableSequence);
+		} catch (final IOException e) {
+			LOG.error("Could not write journal snapshot", "directory", this.directory, "error", e.getMessage());
+		}
+	}
+
+}
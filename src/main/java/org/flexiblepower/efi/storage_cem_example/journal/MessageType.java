@@ -0,0 +1,90 @@
+package org.flexiblepower.efi.storage_cem_example.journal;
+
+/**
+ * The type of a journaled message, stored as one byte in every record. It is
+ * taken from the name of the root element, so the message does not have to be
+ * parsed.
+ */
+enum MessageType {
+
+	OTHER("", 0),
+	STORAGE_REGISTRATION("StorageRegistration", 1),
+	STORAGE_SYSTEM_DESCRIPTION("StorageSystemDescription", 2),
+	STORAGE_STATUS("StorageStatus", 3),
+	MEASUREMENT("Measurement", 4),
+	STORAGE_FILL_LEVEL_TARGET_PROFILE("StorageFillLevelTargetProfile", 5),
+	STORAGE_USAGE_FORECAST("StorageUsageForecast", 6),
+	INSTRUCTION_STATUS_UPDATE("InstructionStatusUpdate", 7),
+	FLEXIBILITY_REVOKE("FlexibilityRevoke", 8),
+	STORAGE_INSTRUCTION("StorageInstruction", 9);
+
+	private static final MessageType[] BY_CODE = new MessageType[10];
+
+	static {
+		for (final MessageType type : values()) {
+			BY_CODE[type.code] = type;
+		}
+	}
+
+	private final String element;
+	private final byte code;
+
+	MessageType(String element, int code) {
+		this.element = element;
+		this.code = (byte) code;
+	}
+
+	byte getCode() {
+		return this.code;
+	}
+
+	/**
+	 * @return The type, OTHER for an unknown code
+	 */
+	static MessageType forCode(byte code) {
+		return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : OTHER;
+	}
+
+	/**
+	 * @return The type of an XML message, OTHER if its root element is not an
+	 *         EFI Storage message
+	 */
+	static MessageType of(String xml) {
+		final int length = xml.length();
+		int i = 0;
+		while (i < length) {
+			i = xml.indexOf('<', i);
+			if (i < 0 || i + 1 >= length) {
+				return OTHER;
+			}
+			final char next = xml.charAt(i + 1);
+			if (next != '?' && next != '!') {
+				break;
+			}
+			// Skip the XML declaration and comments
+			i = xml.indexOf('>', i);
+			if (i < 0) {
+				return OTHER;
+			}
+		}
+		int start = i + 1;
+		int end = start;
+		while (end < length) {
+			final char c = xml.charAt(end);
+			if (c == ':') {
+				start = end + 1;
+			} else if (c == '>' || c == '/' || Character.isWhitespace(c)) {
+				break;
+			}
+			end++;
+		}
+		for (final MessageType type : BY_CODE) {
+			if (type != OTHER && xml.regionMatches(start, type.element, 0, end - start)
+					&& type.element.length() == end - start) {
+				return type;
+			}
+		}
+		return OTHER;
+	}
+
+}
@@ -0,0 +1,110 @@
+package org.flexiblepower.efi.storage_cem_example.journal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The incoming messages of one connection which are needed to rebuild the
+ * state of its model: the last StorageRegistration, StorageSystemDescription,
+ * StorageStatus, Measurement and InstructionStatusUpdate, and the last few
+ * profiles and forecasts. Every other incoming message only replaces one of
+ * these. Messages are kept in their compact encoding.
+ *
+ * Not thread-safe, it is only used by the writer thread of the journal.
+ */
+final class ResourceMessages {
+
+	/** The number of target profiles and usage forecasts which are kept */
+	static final int MAX_PROFILES = 8;
+
+	private Message registration;
+	private Message systemDescription;
+	private Message status;
+	private Message measurement;
+	private Message instructionStatus;
+	private final ArrayDeque<Message> profiles = new ArrayDeque<>();
+	private final ArrayDeque<Message> forecasts = new ArrayDeque<>();
+
+	/**
+	 * A compact encoded message and its type.
+	 */
+	static final class Message {
+		final MessageType type;
+		final byte[] payload;
+
+		Message(MessageType type, byte[] payload) {
+			this.type = type;
+			this.payload = payload;
+		}
+	}
+
+	/**
+	 * Apply an incoming message.
+	 */
+	void apply(MessageType type, byte[] payload) {
+		final Message message = new Message(type, payload);
+		switch (type) {
+		case STORAGE_REGISTRATION:
+			this.registration = message;
+			break;
+		case STORAGE_SYSTEM_DESCRIPTION:
+			this.systemDescription = message;
+			break;
+		case STORAGE_STATUS:
+			this.status = message;
+			break;
+		case MEASUREMENT:
+			this.measurement = message;
+			break;
+		case INSTRUCTION_STATUS_UPDATE:
+			this.instructionStatus = message;
+			break;
+		case STORAGE_FILL_LEVEL_TARGET_PROFILE:
+			add(this.profiles, message);
+			break;
+		case STORAGE_USAGE_FORECAST:
+			add(this.forecasts, message);
+			break;
+		case FLEXIBILITY_REVOKE:
+			// Like the model, which only keeps the registration, measurement and
+			// instruction status
+			this.systemDescription = null;
+			this.status = null;
+			this.profiles.clear();
+			this.forecasts.clear();
+			break;
+		default:
+			break;
+		}
+	}
+
+	private static void add(ArrayDeque<Message> messages, Message message) {
+		if (messages.size() == MAX_PROFILES) {
+			messages.removeFirst();
+		}
+		messages.addLast(message);
+	}
+
+	/**
+	 * @return The messages in the order in which they rebuild the state
+	 */
+	List<Message> getMessages() {
+		final List<Message> messages = new ArrayList<>(5 + this.profiles.size() + this.forecasts.size());
+		addIfPresent(messages, this.registration);
+		addIfPresent(messages, this.systemDescription);
+		messages.addAll(this.profiles);
+		messages.addAll(this.forecasts);
+		addIfPresent(messages, this.status);
+		addIfPresent(messages, this.measurement);
+		addIfPresent(messages, this.instructionStatus);
+		return messages;
+	}
+
+	private static void addIfPresent(List<Message> messages, Message message) {
+		if (message != null) {
+			messages.add(message);
+		}
+	}
+
+}
@@ -0,0 +1,160 @@
+package org.flexiblepower.efi.storage_cem_example.log;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes log records on a thread of its own, so logging never blocks on
+ * console I/O.
+ *
+ * Records are put in a bounded ring buffer. Logging threads claim a slot with
+ * a compare-and-set on the tail, so they do not take a lock. When the buffer
+ * is full the record is dropped and counted instead of waiting; the number of
+ * dropped records is written once there is room again. The writer thread
+ * formats the records, writes WARN and ERROR to the error stream and the
+ * rest to the output stream, and flushes when the buffer is empty.
+ */
+public class AsyncAppender {
+
+	private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+			.withZone(ZoneOffset.UTC);
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+	private final PrintStream out;
+	private final PrintStream err;
+	private final AtomicReferenceArray<LogRecord> slots;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	/** Only written by the writer thread */
+	private volatile long head = 0;
+	private final LongAdder dropped = new LongAdder();
+	private final Thread writer;
+	private volatile boolean idle = false;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param capacity
+	 *            The number of records which can wait, rounded up to a power of
+	 *            two
+	 */
+	public AsyncAppender(PrintStream out, PrintStream err, int capacity) {
+		if (capacity < 1 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("Invalid capacity " + capacity);
+		}
+		final int size = Integer.bitCount(capacity) == 1 ? capacity : Integer.highestOneBit(capacity) << 1;
+		this.out = out;
+		this.err = err;
+		this.slots = new AtomicReferenceArray<>(size);
+		this.mask = size - 1;
+		this.writer = new Thread(this::run, "efi-log");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Queue a record without blocking.
+	 *
+	 * @return false if the record was dropped because the buffer is full
+	 */
+	boolean append(LogRecord record) {
+		long t;
+		do {
+			t = this.tail.get();
+			if (t - this.head >= this.slots.length()) {
+				this.dropped.increment();
+				return false;
+			}
+		} while (!this.tail.compareAndSet(t, t + 1));
+		this.slots.set((int) t & this.mask, record);
+		if (this.idle) {
+			LockSupport.unpark(this.writer);
+		}
+		return true;
+	}
+
+	/**
+	 * @return The number of records dropped because the buffer was full
+	 */
+	public long getDroppedCount() {
+		return this.dropped.sum();
+	}
+
+	/**
+	 * Write all queued records and stop the writer thread.
+	 */
+	public void close() {
+		this.closed = true;
+		LockSupport.unpark(this.writer);
+		try {
+			this.writer.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run() {
+		long reportedDropped = 0;
+		while (true) {
+			final long h = this.head;
+			final int index = (int) h & this.mask;
+			final LogRecord record = this.slots.get(index);
+			if (record != null) {
+				this.slots.set(index, null);
+				this.head = h + 1;
+				this.write(record);
+				continue;
+			}
+			if (this.tail.get() != h) {
+				// A slot has been claimed but not filled yet
+				Thread.yield();
+				continue;
+			}
+			final long droppedNow = this.dropped.sum();
+			if (droppedNow != reportedDropped) {
+				this.err.println(TIME.format(Instant.now()) + " WARN  [log] Dropped " + (droppedNow - reportedDropped)
+						+ " log records, the log buffer was full");
+				reportedDropped = droppedNow;
+			}
+			this.out.flush();
+			this.err.flush();
+			if (this.closed) {
+				return;
+			}
+			this.idle = true;
+			if (this.tail.get() == h) {
+				LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+			}
+			this.idle = false;
+		}
+	}
+
+	private void write(LogRecord record) {
+		final StringBuilder sb = new StringBuilder(128);
+		TIME.formatTo(Instant.ofEpochMilli(record.timeMillis), sb);
+		sb.append(' ').append(record.level);
+		for (int i = record.level.name().length(); i < 5; i++) {
+			sb.append(' ');
+		}
+		sb.append(" [").append(record.category).append("] ").append(record.message);
+		for (int i = 0; i + 1 < record.keyValues.length; i += 2) {
+			sb.append(' ').append(record.keyValues[i]).append('=').append(record.keyValues[i + 1]);
+		}
+		sb.append(" thread=").append(record.threadName);
+		if (record.thrown != null) {
+			final StringWriter trace = new StringWriter();
+			record.thrown.printStackTrace(new PrintWriter(trace));
+			sb.append('\n').append(trace.toString().trim());
+		}
+		(record.level.compareTo(Level.WARN) <= 0 ? this.err : this.out).println(sb);
+	}
+
+}
@@ -0,0 +1,18 @@
+package org.flexiblepower.efi.storage_cem_example.log;
+
+/**
+ * The severity of a log record. A logger writes records of its own level
+ * and the levels before it.
+ */
+public enum Level {
+	OFF, ERROR, WARN, INFO, DEBUG, TRACE;
+
+	/**
+	 * @return The level with this name, ignoring case
+	 * @throws IllegalArgumentException
+	 *             If there is no such level
+	 */
+	public static Level parse(String name) {
+		return Level.valueOf(name.trim().toUpperCase());
+	}
+}
@@ -0,0 +1,129 @@
+package org.flexiblepower.efi.storage_cem_example.log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logger for one category, such as "websocket" or "model". Get one with
+ * {@link Logging#get(String)} and keep it in a static field.
+ *
+ * Messages are short and constant; variable parts are passed as key-value
+ * pairs, so checking the level is the only cost of a disabled log call and
+ * formatting is done by the writer thread:
+ *
+ * <pre>
+ * LOG.debug("Received message", "type", "StorageStatus", "resource", efiResourceId);
+ * </pre>
+ *
+ * The XML of messages is logged through {@link #payload(String, String, String)},
+ * which is limited to a number of messages per second unless payload capture
+ * has been switched on for the resource.
+ */
+public final class Log {
+
+	private static final int PAYLOAD_SAMPLE_LENGTH = 200;
+
+	private final String category;
+	private final Logging logging;
+	private volatile Level level;
+
+	// Rate limiting of payloads
+	private final AtomicLong payloadSecond = new AtomicLong();
+	private final AtomicInteger payloadsThisSecond = new AtomicInteger();
+	private final AtomicInteger payloadsSuppressed = new AtomicInteger();
+
+	Log(String category, Logging logging, Level level) {
+		this.category = category;
+		this.logging = logging;
+		this.level = level;
+	}
+
+	public String getCategory() {
+		return this.category;
+	}
+
+	public Level getLevel() {
+		return this.level;
+	}
+
+	void setLevel(Level level) {
+		this.level = level;
+	}
+
+	public boolean isEnabled(Level level) {
+		return level != Level.OFF && level.compareTo(this.level) <= 0;
+	}
+
+	public void error(String message, Object... keyValues) {
+		this.log(Level.ERROR, message, keyValues, null);
+	}
+
+	public void error(String message, Throwable thrown, Object... keyValues) {
+		this.log(Level.ERROR, message, keyValues, thrown);
+	}
+
+	public void warn(String message, Object... keyValues) {
+		this.log(Level.WARN, message, keyValues, null);
+	}
+
+	public void info(String message, Object... keyValues) {
+		this.log(Level.INFO, message, keyValues, null);
+	}
+
+	public void debug(String message, Object... keyValues) {
+		this.log(Level.DEBUG, message, keyValues, null);
+	}
+
+	public void trace(String message, Object... keyValues) {
+		this.log(Level.TRACE, message, keyValues, null);
+	}
+
+	private void log(Level level, String message, Object[] keyValues, Throwable thrown) {
+		if (this.isEnabled(level)) {
+			this.logging.getAppender().append(new LogRecord(level, this.category, message, keyValues, thrown));
+		}
+	}
+
+	/**
+	 * Log the XML of a message. When payload capture is on for the resource the
+	 * whole payload is logged at INFO. Otherwise, at DEBUG, the start of the
+	 * payload is logged for a limited number of messages per second.
+	 *
+	 * @param efiResourceId
+	 *            The resource the message was received from or sent to, may be
+	 *            null if it is not known yet
+	 * @param direction
+	 *            "received" or "sent"
+	 * @param xml
+	 *            The payload
+	 */
+	public void payload(String efiResourceId, String direction, String xml) {
+		if (this.logging.isCapturingPayloads(efiResourceId)) {
+			this.logging.getAppender().append(new LogRecord(Level.INFO, this.category, "Payload",
+					new Object[] { "direction", direction, "resource", efiResourceId, "xml", xml }, null));
+		} else if (this.isEnabled(Level.DEBUG) && this.acquirePayloadPermit()) {
+			final int suppressed = this.payloadsSuppressed.getAndSet(0);
+			final String sample = xml.length() <= PAYLOAD_SAMPLE_LENGTH ? xml
+					: xml.substring(0, PAYLOAD_SAMPLE_LENGTH) + "...";
+			this.logging.getAppender()
+					.append(new LogRecord(Level.DEBUG, this.category, "Payload",
+							new Object[] { "direction", direction, "resource", efiResourceId, "length", xml.length(),
+									"suppressed", suppressed, "xml", sample },
+							null));
+		}
+	}
+
+	private boolean acquirePayloadPermit() {
+		final long second = System.currentTimeMillis() / 1000;
+		final long current = this.payloadSecond.get();
+		if (second != current && this.payloadSecond.compareAndSet(current, second)) {
+			this.payloadsThisSecond.set(0);
+		}
+		if (this.payloadsThisSecond.incrementAndGet() <= this.logging.getPayloadsPerSecond()) {
+			return true;
+		}
+		this.payloadsSuppressed.incrementAndGet();
+		return false;
+	}
+
+}
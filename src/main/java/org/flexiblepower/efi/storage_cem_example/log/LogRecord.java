@@ -0,0 +1,29 @@
+package org.flexiblepower.efi.storage_cem_example.log;
+
+/**
+ * One record waiting in the {@link AsyncAppender}. It is formatted by the
+ * writer thread, so the thread which logs only pays for this object and the
+ * arguments.
+ */
+final class LogRecord {
+
+	final long timeMillis;
+	final String threadName;
+	final Level level;
+	final String category;
+	final String message;
+	/** Alternating keys and values, may be empty */
+	final Object[] keyValues;
+	final Throwable thrown;
+
+	LogRecord(Level level, String category, String message, Object[] keyValues, Throwable thrown) {
+		this.timeMillis = System.currentTimeMillis();
+		this.threadName = Thread.currentThread().getName();
+		this.level = level;
+		this.category = category;
+		this.message = message;
+		this.keyValues = keyValues;
+		this.thrown = thrown;
+	}
+
+}
@@ -0,0 +1,164 @@
+package org.flexiblepower.efi.storage_cem_example.log;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The logging configuration of the application: a level per category, the
+ * resources for which whole payloads are captured, and the
+ * {@link AsyncAppender} all records go to.
+ *
+ * The configuration can be changed while the application runs, for example
+ * through {@link LoggingControl} over JMX. The initial configuration is read
+ * from the system properties {@code efi.log} (such as
+ * {@code "info,websocket=debug"}, where a level without a category is the
+ * default) and {@code efi.log.capture} (a comma separated list of
+ * efiResourceIds, or {@code *} for all).
+ */
+public final class Logging {
+
+	public static final int DEFAULT_CAPACITY = 8192;
+	public static final int DEFAULT_PAYLOADS_PER_SECOND = 10;
+	public static final String ALL_RESOURCES = "*";
+
+	private static final Logging INSTANCE = new Logging(
+			new AsyncAppender(System.out, System.err, DEFAULT_CAPACITY));
+
+	static {
+		INSTANCE.configure(System.getProperty("efi.log", ""));
+		for (final String id : System.getProperty("efi.log.capture", "").split(",")) {
+			if (!id.trim().isEmpty()) {
+				INSTANCE.capturePayloads(id.trim());
+			}
+		}
+	}
+
+	private final AsyncAppender appender;
+	private final Map<String, Log> logs = new ConcurrentHashMap<>();
+	private final Map<String, Level> levels = new ConcurrentHashMap<>();
+	private final Set<String> capture = ConcurrentHashMap.newKeySet();
+	private volatile Level defaultLevel = Level.INFO;
+	private volatile int payloadsPerSecond = DEFAULT_PAYLOADS_PER_SECOND;
+
+	Logging(AsyncAppender appender) {
+		this.appender = appender;
+	}
+
+	/**
+	 * @return The configuration of this application
+	 */
+	public static Logging getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @return The logger of a category in the configuration of this application
+	 */
+	public static Log get(String category) {
+		return INSTANCE.getLog(category);
+	}
+
+	public Log getLog(String category) {
+		return this.logs.computeIfAbsent(category, c -> new Log(c, this, this.levelOf(c)));
+	}
+
+	private Level levelOf(String category) {
+		final Level level = this.levels.get(category);
+		return level == null ? this.defaultLevel : level;
+	}
+
+	AsyncAppender getAppender() {
+		return this.appender;
+	}
+
+	/**
+	 * Apply a configuration such as {@code "warn,websocket=debug,model=info"}.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If a level is unknown
+	 */
+	public void configure(String spec) {
+		for (final String part : spec.split(",")) {
+			final String trimmed = part.trim();
+			if (trimmed.isEmpty()) {
+				continue;
+			}
+			final int eq = trimmed.indexOf('=');
+			if (eq < 0) {
+				this.setDefaultLevel(Level.parse(trimmed));
+			} else {
+				this.setLevel(trimmed.substring(0, eq).trim(), Level.parse(trimmed.substring(eq + 1)));
+			}
+		}
+	}
+
+	/**
+	 * Set the level of all categories which do not have a level of their own.
+	 */
+	public void setDefaultLevel(Level level) {
+		this.defaultLevel = level;
+		for (final Log log : this.logs.values()) {
+			log.setLevel(this.levelOf(log.getCategory()));
+		}
+	}
+
+	public void setLevel(String category, Level level) {
+		this.levels.put(category, level);
+		this.getLog(category).setLevel(level);
+	}
+
+	/**
+	 * Log every payload received from or sent to a resource in full.
+	 *
+	 * @param efiResourceId
+	 *            The resource, or {@link #ALL_RESOURCES}
+	 */
+	public void capturePayloads(String efiResourceId) {
+		this.capture.add(efiResourceId);
+	}
+
+	public void stopCapturingPayloads(String efiResourceId) {
+		this.capture.remove(efiResourceId);
+	}
+
+	public Set<String> getCapturedResources() {
+		return Collections.unmodifiableSet(this.capture);
+	}
+
+	boolean isCapturingPayloads(String efiResourceId) {
+		if (this.capture.isEmpty()) {
+			return false;
+		}
+		return this.capture.contains(ALL_RESOURCES) || (efiResourceId != null && this.capture.contains(efiResourceId));
+	}
+
+	public int getPayloadsPerSecond() {
+		return this.payloadsPerSecond;
+	}
+
+	/**
+	 * @param payloadsPerSecond
+	 *            The number of payloads per category which are sampled every
+	 *            second at DEBUG
+	 */
+	public void setPayloadsPerSecond(int payloadsPerSecond) {
+		this.payloadsPerSecond = payloadsPerSecond;
+	}
+
+	/**
+	 * @return The number of records dropped because the log buffer was full
+	 */
+	public long getDroppedCount() {
+		return this.appender.getDroppedCount();
+	}
+
+	/**
+	 * Write all queued records, for example when the application stops.
+	 */
+	public void close() {
+		this.appender.close();
+	}
+
+}
@@ -0,0 +1,72 @@
+package org.flexiblepower.efi.storage_cem_example.log;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Changes the {@link Logging} configuration over JMX while the application
+ * runs, for example to capture the payloads of a single misbehaving Resource
+ * Manager for a while.
+ */
+public class LoggingControl implements LoggingControlMBean {
+
+	public static final String OBJECT_NAME = "org.flexiblepower.efi:type=Logging";
+
+	private final Logging logging;
+
+	public LoggingControl(Logging logging) {
+		this.logging = logging;
+	}
+
+	/**
+	 * Register the configuration of this application with the platform MBean
+	 * server.
+	 */
+	public static void register() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new LoggingControl(Logging.getInstance()),
+				new ObjectName(OBJECT_NAME));
+	}
+
+	@Override
+	public void setLevel(String category, String level) {
+		this.logging.setLevel(category, Level.parse(level));
+	}
+
+	@Override
+	public void setDefaultLevel(String level) {
+		this.logging.setDefaultLevel(Level.parse(level));
+	}
+
+	@Override
+	public void capturePayloads(String efiResourceId) {
+		this.logging.capturePayloads(efiResourceId);
+	}
+
+	@Override
+	public void stopCapturingPayloads(String efiResourceId) {
+		this.logging.stopCapturingPayloads(efiResourceId);
+	}
+
+	@Override
+	public String[] getCapturedResources() {
+		return this.logging.getCapturedResources().toArray(new String[0]);
+	}
+
+	@Override
+	public int getPayloadsPerSecond() {
+		return this.logging.getPayloadsPerSecond();
+	}
+
+	@Override
+	public void setPayloadsPerSecond(int payloadsPerSecond) {
+		this.logging.setPayloadsPerSecond(payloadsPerSecond);
+	}
+
+	@Override
+	public long getDroppedCount() {
+		return this.logging.getDroppedCount();
+	}
+
+}
@@ -0,0 +1,24 @@
+package org.flexiblepower.efi.storage_cem_example.log;
+
+/**
+ * JMX interface of {@link LoggingControl}.
+ */
+public interface LoggingControlMBean {
+
+	void setLevel(String category, String level);
+
+	void setDefaultLevel(String level);
+
+	void capturePayloads(String efiResourceId);
+
+	void stopCapturingPayloads(String efiResourceId);
+
+	String[] getCapturedResources();
+
+	int getPayloadsPerSecond();
+
+	void setPayloadsPerSecond(int payloadsPerSecond);
+
+	long getDroppedCount();
+
+}
@@ -0,0 +1,72 @@
+package org.flexiblepower.efi.storage_cem_example.metrics;
+
+import org.flexiblepower.efi.xml.EfiMessage;
+
+/**
+ * The metrics of the message path, in the default {@link MetricsRegistry}.
+ */
+public final class CemMetrics {
+
+	private static final MetricsRegistry REGISTRY = MetricsRegistry.getDefault();
+
+	public static final Timer DESERIALIZE = REGISTRY.timer("efi_deserialize_seconds",
+			"Time to decode an incoming message");
+	public static final Timer HANDLE = REGISTRY.timer("efi_handle_seconds",
+			"Time for the model to handle a decoded message, including the listeners");
+	public static final Timer NOTIFY = REGISTRY.timer("efi_notify_listeners_seconds",
+			"Time to notify the listeners of a model of a new state");
+	public static final Counter DECODE_ERRORS = REGISTRY.counter("efi_decode_errors_total",
+			"Incoming messages which could not be decoded");
+	public static final Counter HANDLE_ERRORS = REGISTRY.counter("efi_handle_errors_total",
+			"Decoded incoming messages which the model could not handle, and which were dropped");
+	public static final Timer VALIDATE = REGISTRY.timer("efi_validate_seconds",
+			"Time to validate an incoming message against the schema");
+	public static final Counter INVALID_MESSAGES = REGISTRY.counter("efi_invalid_messages_total",
+			"Validated incoming messages which do not match the schema, including the rejected ones");
+	public static final Counter REJECTED_MESSAGES = REGISTRY.counter("efi_rejected_messages_total",
+			"Incoming messages which were not handled because strict validation failed");
+	public static final Timer SERIALIZE = REGISTRY.timer("efi_serialize_seconds",
+			"Time to serialize an outgoing message");
+	public static final Gauge OUTBOUND_OUTSTANDING = REGISTRY.gauge("efi_outbound_outstanding",
+			"Outgoing messages which have been queued but not completed, over all connections");
+	public static final Counter SENT = REGISTRY.counter("efi_messages_sent_total", "Messages sent successfully");
+	public static final Counter WIRE_BYTES_SENT = REGISTRY.counter("efi_wire_bytes_sent_total",
+			"Size of the outgoing frames, in bytes for binary and characters for text frames");
+	public static final Counter WIRE_BYTES_RECEIVED = REGISTRY.counter("efi_wire_bytes_received_total",
+			"Size of the incoming frames, in bytes for binary and characters for text frames");
+	public static final Counter SEND_FAILURES = REGISTRY.counter("efi_send_failures_total",
+			"Outgoing messages which could not be serialized or sent");
+	public static final Counter SEND_REJECTED = REGISTRY.counter("efi_send_rejected_total",
+			"Outgoing messages rejected because the queue was full");
+	public static final Counter SEND_EXPIRED = REGISTRY.counter("efi_send_expired_total",
+			"Outgoing messages dropped because they waited too long");
+	public static final Counter CONNECTIONS_LOST = REGISTRY.counter("efi_connections_lost_total",
+			"Connections to Resource Managers which were closed");
+	public static final Counter CONNECT_FAILURES = REGISTRY.counter("efi_connect_failures_total",
+			"Failed attempts to connect to a Resource Manager");
+	public static final Counter RECONNECTS = REGISTRY.counter("efi_reconnects_total",
+			"Connections which were opened again after having been lost");
+	public static final Timer JOURNAL_COMMIT = REGISTRY.timer("efi_journal_commit_seconds",
+			"Time to write and force a batch of journal records");
+	public static final Counter JOURNAL_BYTES = REGISTRY.counter("efi_journal_bytes_total",
+			"Size of the journal records written");
+
+	private static final ClassValue<Counter> RECEIVED = new ClassValue<Counter>() {
+		@Override
+		protected Counter computeValue(Class<?> type) {
+			return REGISTRY.counter("efi_messages_received_total", "Messages received, by type", "type",
+					type.getSimpleName());
+		}
+	};
+
+	private CemMetrics() {
+	}
+
+	/**
+	 * @return The counter of received messages of a type
+	 */
+	public static Counter received(Class<? extends EfiMessage> type) {
+		return RECEIVED.get(type);
+	}
+
+}
@@ -0,0 +1,45 @@
+package org.flexiblepower.efi.storage_cem_example.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count which only goes up. It is striped over cells, so threads which
+ * count at the same time do not contend.
+ */
+public class Counter extends Metric {
+
+	private final LongAdder count = new LongAdder();
+
+	Counter(String name, String help, String labels) {
+		super(name, help, labels);
+	}
+
+	public void increment() {
+		this.count.increment();
+	}
+
+	public void add(long n) {
+		this.count.add(n);
+	}
+
+	public long get() {
+		return this.count.sum();
+	}
+
+	@Override
+	String getType() {
+		return "counter";
+	}
+
+	@Override
+	void writePrometheus(StringBuilder sb) {
+		this.appendSample(sb, "", null, Long.toString(this.get()));
+	}
+
+	@Override
+	void addValues(String attributeName, Map<String, Number> values) {
+		values.put(attributeName, this.get());
+	}
+
+}
@@ -0,0 +1,50 @@
+package org.flexiblepower.efi.storage_cem_example.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A value which goes up and down, such as the number of messages waiting to
+ * be sent over all connections. Like a {@link Counter} it is striped, so
+ * many threads can update it without contention.
+ */
+public class Gauge extends Metric {
+
+	private final LongAdder value = new LongAdder();
+
+	Gauge(String name, String help, String labels) {
+		super(name, help, labels);
+	}
+
+	public void increment() {
+		this.value.increment();
+	}
+
+	public void decrement() {
+		this.value.decrement();
+	}
+
+	public void add(long n) {
+		this.value.add(n);
+	}
+
+	public long get() {
+		return this.value.sum();
+	}
+
+	@Override
+	String getType() {
+		return "gauge";
+	}
+
+	@Override
+	void writePrometheus(StringBuilder sb) {
+		this.appendSample(sb, "", null, Long.toString(this.get()));
+	}
+
+	@Override
+	void addValues(String attributeName, Map<String, Number> values) {
+		values.put(attributeName, this.get());
+	}
+
+}
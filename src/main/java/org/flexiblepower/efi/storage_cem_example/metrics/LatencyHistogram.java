@@ -0,0 +1,151 @@
+package org.flexiblepower.efi.storage_cem_example.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies with a fixed amount of memory, in the style of
+ * HdrHistogram.
+ *
+ * Values are counted in buckets which double in size; every bucket is split
+ * in 64 sub-buckets of equal width. Values below 128 are counted exactly, and
+ * larger values are rounded down by less than 1/64 (about 1.6%). Values above
+ * the highest trackable value are counted as the highest trackable value.
+ *
+ * Every sub-bucket is a {@link LongAdder}, created when its first value is
+ * recorded, so many threads can record values without contending on a shared
+ * counter and a histogram of a few distinct values stays small. The count is
+ * the sum of the sub-buckets. Any thread may record values while others read
+ * percentiles.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_COUNT_MAGNITUDE = 7;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_COUNT_MAGNITUDE;
+	private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+	private static final int SUB_BUCKET_HALF_COUNT_MAGNITUDE = SUB_BUCKET_COUNT_MAGNITUDE - 1;
+	private static final long SUB_BUCKET_MASK = SUB_BUCKET_COUNT - 1;
+
+	private final long highestTrackableValue;
+	private final AtomicReferenceArray<LongAdder> counts;
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param highestTrackableValue
+	 *            The highest value which is counted separately, at least 1
+	 */
+	public LatencyHistogram(long highestTrackableValue) {
+		if (highestTrackableValue < 1) {
+			throw new IllegalArgumentException("Invalid highest trackable value " + highestTrackableValue);
+		}
+		this.highestTrackableValue = highestTrackableValue;
+		this.counts = new AtomicReferenceArray<>(countsIndex(highestTrackableValue) + 1);
+	}
+
+	private static int countsIndex(long value) {
+		final int bucketIndex = 64 - Long.numberOfLeadingZeros(value | SUB_BUCKET_MASK) - SUB_BUCKET_COUNT_MAGNITUDE;
+		final int subBucketIndex = (int) (value >>> bucketIndex);
+		return ((bucketIndex + 1) << SUB_BUCKET_HALF_COUNT_MAGNITUDE) + subBucketIndex - SUB_BUCKET_HALF_COUNT;
+	}
+
+	/**
+	 * @return The lowest value which is counted at an index
+	 */
+	private static long valueFromIndex(int index) {
+		int bucketIndex = (index >> SUB_BUCKET_HALF_COUNT_MAGNITUDE) - 1;
+		int subBucketIndex = (index & (SUB_BUCKET_HALF_COUNT - 1)) + SUB_BUCKET_HALF_COUNT;
+		if (bucketIndex < 0) {
+			subBucketIndex -= SUB_BUCKET_HALF_COUNT;
+			bucketIndex = 0;
+		}
+		return (long) subBucketIndex << bucketIndex;
+	}
+
+	/**
+	 * Count a value. Negative values are counted as 0.
+	 */
+	public void record(long value) {
+		final long v = Math.min(Math.max(value, 0), this.highestTrackableValue);
+		final int index = countsIndex(v);
+		LongAdder count = this.counts.get(index);
+		if (count == null) {
+			this.counts.compareAndSet(index, null, new LongAdder());
+			count = this.counts.get(index);
+		}
+		count.increment();
+		this.sum.add(v);
+		long current = this.max.get();
+		while (v > current && !this.max.compareAndSet(current, v)) {
+			current = this.max.get();
+		}
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < this.counts.length(); i++) {
+			count += this.count(i);
+		}
+		return count;
+	}
+
+	private long count(int index) {
+		final LongAdder count = this.counts.get(index);
+		return count == null ? 0 : count.sum();
+	}
+
+	/**
+	 * @return The sum of all values, after counting values above the highest
+	 *         trackable value as that value
+	 */
+	public long getSum() {
+		return this.sum.sum();
+	}
+
+	/**
+	 * @return The highest value recorded, exactly
+	 */
+	public long getMax() {
+		return this.max.get();
+	}
+
+	/**
+	 * @return The average of all values, or NaN if there are none
+	 */
+	public double getMean() {
+		final long count = this.getCount();
+		return count == 0 ? Double.NaN : (double) this.sum.sum() / count;
+	}
+
+	/**
+	 * @param percentile
+	 *            The percentile, from 0 to 100
+	 * @return The value below or at which the given percentage of the values
+	 *         lies, rounded down to the resolution of the histogram, or 0 if
+	 *         there are no values
+	 */
+	public long getValueAtPercentile(double percentile) {
+		final long count = this.getCount();
+		if (count == 0) {
+			return 0;
+		}
+		final long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < this.counts.length(); i++) {
+			seen += this.count(i);
+			if (seen >= target) {
+				return Math.min(valueFromIndex(i), this.max.get());
+			}
+		}
+		// Values recorded while iterating
+		return this.max.get();
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + this.getCount() + ", p50=" + this.getValueAtPercentile(50) + ", p90="
+				+ this.getValueAtPercentile(90) + ", p99=" + this.getValueAtPercentile(99) + ", max=" + this.getMax();
+	}
+
+}
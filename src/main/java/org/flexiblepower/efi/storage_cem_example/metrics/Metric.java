@@ -0,0 +1,67 @@
+package org.flexiblepower.efi.storage_cem_example.metrics;
+
+import java.util.Map;
+
+/**
+ * A named value in a {@link MetricsRegistry}, optionally with labels which
+ * tell it apart from other metrics with the same name.
+ */
+public abstract class Metric {
+
+	private final String name;
+	private final String help;
+	private final String labels;
+
+	Metric(String name, String help, String labels) {
+		this.name = name;
+		this.help = help;
+		this.labels = labels;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public String getHelp() {
+		return this.help;
+	}
+
+	/**
+	 * @return The labels in Prometheus format, such as {@code type="Measurement"},
+	 *         or an empty string
+	 */
+	public String getLabels() {
+		return this.labels;
+	}
+
+	/**
+	 * @return The Prometheus metric type
+	 */
+	abstract String getType();
+
+	/**
+	 * Append the samples of this metric in the Prometheus text format.
+	 */
+	abstract void writePrometheus(StringBuilder sb);
+
+	/**
+	 * Add the values of this metric, keyed by attribute name for JMX.
+	 */
+	abstract void addValues(String attributeName, Map<String, Number> values);
+
+	void appendSample(StringBuilder sb, String suffix, String extraLabel, String value) {
+		sb.append(this.name).append(suffix);
+		if (!this.labels.isEmpty() || extraLabel != null) {
+			sb.append('{').append(this.labels);
+			if (extraLabel != null) {
+				if (!this.labels.isEmpty()) {
+					sb.append(',');
+				}
+				sb.append(extraLabel);
+			}
+			sb.append('}');
+		}
+		sb.append(' ').append(value).append('\n');
+	}
+
+}
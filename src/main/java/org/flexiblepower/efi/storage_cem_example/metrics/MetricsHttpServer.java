@@ -0,0 +1,68 @@
+package org.flexiblepower.efi.storage_cem_example.metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the metrics of a {@link MetricsRegistry} in the Prometheus text
+ * format on {@code http://localhost:<port>/metrics}. The server only listens
+ * on the loopback interface and uses a single thread of its own.
+ */
+public class MetricsHttpServer implements Closeable {
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	public MetricsHttpServer(MetricsRegistry registry, int port) throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		this.server.createContext("/metrics", exchange -> this.handle(registry, exchange));
+		this.executor = Executors.newSingleThreadExecutor(r -> {
+			final Thread t = new Thread(r, "efi-metrics");
+			t.setDaemon(true);
+			return t;
+		});
+		this.server.setExecutor(this.executor);
+		this.server.start();
+	}
+
+	private void handle(MetricsRegistry registry, HttpExchange exchange) throws IOException {
+		try {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			final byte[] body = registry.toPrometheus().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * @return The port the server listens on, useful when it was created with
+	 *         port 0
+	 */
+	public int getPort() {
+		return this.server.getAddress().getPort();
+	}
+
+	@Override
+	public void close() {
+		this.server.stop(0);
+		this.executor.shutdown();
+	}
+
+}
@@ -0,0 +1,90 @@
+package org.flexiblepower.efi.storage_cem_example.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes the values of a {@link MetricsRegistry} as read-only JMX
+ * attributes, for example to look at them with JConsole. Metrics which are
+ * created later show up as new attributes.
+ */
+public class MetricsMBean implements DynamicMBean {
+
+	public static final String OBJECT_NAME = "org.flexiblepower.efi:type=Metrics";
+
+	private final MetricsRegistry registry;
+
+	public MetricsMBean(MetricsRegistry registry) {
+		this.registry = registry;
+	}
+
+	/**
+	 * Register the metrics of a registry with the platform MBean server.
+	 */
+	public static void register(MetricsRegistry registry) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(registry),
+				new ObjectName(OBJECT_NAME));
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		final Number value = this.registry.getValues().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		final Map<String, Number> values = this.registry.getValues();
+		final AttributeList list = new AttributeList();
+		for (final String attribute : attributes) {
+			final Number value = values.get(attribute);
+			if (value != null) {
+				list.add(new Attribute(attribute, value));
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read-only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName), "Metrics have no operations");
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		final Map<String, Number> values = this.registry.getValues();
+		final MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+		int i = 0;
+		for (final Map.Entry<String, Number> e : values.entrySet()) {
+			attributes[i++] = new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), e.getKey(), true,
+					false, false);
+		}
+		return new MBeanInfo(MetricsMBean.class.getName(), "EFI CEM metrics", attributes, null,
+				new MBeanOperationInfo[0], null);
+	}
+
+}
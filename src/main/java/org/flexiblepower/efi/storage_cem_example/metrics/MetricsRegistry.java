@@ -0,0 +1,149 @@
+package org.flexiblepower.efi.storage_cem_example.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Keeps the metrics of the CEM by name and labels.
+ *
+ * Metrics are created once, typically in a static field, and updated on the
+ * hot path without any lookup. The registry only has to be consulted when
+ * the values are exported, through {@link MetricsHttpServer} in the
+ * Prometheus text format or through {@link MetricsMBean} over JMX.
+ */
+public class MetricsRegistry {
+
+	private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+	/** Sorted by name first, so metrics with the same name are adjacent */
+	private final ConcurrentSkipListMap<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+	/**
+	 * @return The registry which is used by the instrumentation in this
+	 *         application, see {@link CemMetrics}
+	 */
+	public static MetricsRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Get or create a counter.
+	 *
+	 * @param name
+	 *            The name, in Prometheus style such as efi_messages_total
+	 * @param help
+	 *            A description of the metric
+	 * @param labels
+	 *            Pairs of label names and values
+	 */
+	public Counter counter(String name, String help, String... labels) {
+		final String l = labels(labels);
+		return this.getOrCreate(name, l, Counter.class, new Counter(name, help, l));
+	}
+
+	/**
+	 * Get or create a gauge, see {@link #counter(String, String, String...)}
+	 */
+	public Gauge gauge(String name, String help, String... labels) {
+		final String l = labels(labels);
+		return this.getOrCreate(name, l, Gauge.class, new Gauge(name, help, l));
+	}
+
+	/**
+	 * Get or create a timer, see {@link #counter(String, String, String...)}
+	 */
+	public Timer timer(String name, String help, String... labels) {
+		final String l = labels(labels);
+		return this.getOrCreate(name, l, Timer.class, new Timer(name, help, l));
+	}
+
+	private <T extends Metric> T getOrCreate(String name, String labels, Class<T> type, T metric) {
+		final Metric existing = this.metrics.putIfAbsent(name + '\u0000' + labels, metric);
+		if (existing == null) {
+			return metric;
+		}
+		if (!type.isInstance(existing)) {
+			throw new IllegalArgumentException(
+					"Metric " + name + " already exists as a " + existing.getClass().getSimpleName());
+		}
+		return type.cast(existing);
+	}
+
+	private static String labels(String[] labels) {
+		if (labels.length % 2 != 0) {
+			throw new IllegalArgumentException("Expected pairs of label names and values");
+		}
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < labels.length; i += 2) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(labels[i]).append("=\"");
+			final String value = labels[i + 1];
+			for (int j = 0; j < value.length(); j++) {
+				final char c = value.charAt(j);
+				if (c == '\\' || c == '"') {
+					sb.append('\\').append(c);
+				} else if (c == '\n') {
+					sb.append("\\n");
+				} else {
+					sb.append(c);
+				}
+			}
+			sb.append('"');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return All metrics in the Prometheus text exposition format
+	 */
+	public String toPrometheus() {
+		final StringBuilder sb = new StringBuilder(4096);
+		String previous = null;
+		for (final Metric metric : this.metrics.values()) {
+			if (!metric.getName().equals(previous)) {
+				sb.append("# HELP ").append(metric.getName()).append(' ').append(metric.getHelp()).append('\n');
+				sb.append("# TYPE ").append(metric.getName()).append(' ').append(metric.getType()).append('\n');
+				previous = metric.getName();
+			}
+			metric.writePrometheus(sb);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return The current values, keyed by a name which combines the name and
+	 *         the label values of a metric
+	 */
+	public Map<String, Number> getValues() {
+		final Map<String, Number> values = new LinkedHashMap<>();
+		for (final Metric metric : this.metrics.values()) {
+			metric.addValues(attributeName(metric), values);
+		}
+		return values;
+	}
+
+	private static String attributeName(Metric metric) {
+		if (metric.getLabels().isEmpty()) {
+			return metric.getName();
+		}
+		final StringBuilder sb = new StringBuilder(metric.getName());
+		// Only the label values, such as efi_messages_received_total_Measurement
+		boolean inValue = false;
+		for (int i = 0; i < metric.getLabels().length(); i++) {
+			final char c = metric.getLabels().charAt(i);
+			if (c == '"' && (i == 0 || metric.getLabels().charAt(i - 1) != '\\')) {
+				inValue = !inValue;
+				if (inValue) {
+					sb.append('_');
+				}
+			} else if (inValue && Character.isJavaIdentifierPart(c)) {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,82 @@
+package org.flexiblepower.efi.storage_cem_example.metrics;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long an operation takes. The durations are kept in a
+ * {@link LatencyHistogram} in microseconds, up to a minute, which also holds
+ * their count and total.
+ *
+ * <pre>
+ * final long start = System.nanoTime();
+ * doWork();
+ * timer.recordSince(start);
+ * </pre>
+ */
+public class Timer extends Metric {
+
+	private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(1);
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+
+	private final LatencyHistogram histogram = new LatencyHistogram(HIGHEST_TRACKABLE_MICROS);
+
+	Timer(String name, String help, String labels) {
+		super(name, help, labels);
+	}
+
+	/**
+	 * @param startNanos
+	 *            The {@link System#nanoTime()} when the operation started
+	 */
+	public void recordSince(long startNanos) {
+		this.recordNanos(System.nanoTime() - startNanos);
+	}
+
+	public void recordNanos(long nanos) {
+		this.histogram.record(nanos / 1000);
+	}
+
+	public long getCount() {
+		return this.histogram.getCount();
+	}
+
+	/**
+	 * @return The total duration in whole microseconds, counting durations of
+	 *         more than a minute as a minute
+	 */
+	public long getTotalMicros() {
+		return this.histogram.getSum();
+	}
+
+	/**
+	 * @return The distribution of the durations in microseconds
+	 */
+	public LatencyHistogram getHistogram() {
+		return this.histogram;
+	}
+
+	@Override
+	String getType() {
+		return "summary";
+	}
+
+	@Override
+	void writePrometheus(StringBuilder sb) {
+		for (final double quantile : QUANTILES) {
+			this.appendSample(sb, "", "quantile=\"" + quantile + "\"",
+					Double.toString(this.histogram.getValueAtPercentile(quantile * 100) / 1e6));
+		}
+		this.appendSample(sb, "_sum", null, Double.toString(this.getTotalMicros() / 1e6));
+		this.appendSample(sb, "_count", null, Long.toString(this.getCount()));
+	}
+
+	@Override
+	void addValues(String attributeName, Map<String, Number> values) {
+		values.put(attributeName + "_count", this.getCount());
+		values.put(attributeName + "_p50_us", this.histogram.getValueAtPercentile(50));
+		values.put(attributeName + "_p99_us", this.histogram.getValueAtPercentile(99));
+		values.put(attributeName + "_max_us", this.histogram.getMax());
+	}
+
+}
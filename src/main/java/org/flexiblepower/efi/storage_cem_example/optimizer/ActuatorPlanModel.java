@@ -0,0 +1,411 @@
+package org.flexiblepower.efi.storage_cem_example.optimizer;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageState;
+import org.flexiblepower.efi.storage_cem_example.xml.XmlUtil;
+import org.flexiblepower.efi.xml.ActuatorBehaviour;
+import org.flexiblepower.efi.xml.LeakageElement;
+import org.flexiblepower.efi.xml.LeakageFunction;
+import org.flexiblepower.efi.xml.RunningMode;
+import org.flexiblepower.efi.xml.StorageContinuousRunningMode;
+import org.flexiblepower.efi.xml.StorageContinuousRunningMode.ContinuousRunningModeElement;
+import org.flexiblepower.efi.xml.StorageDiscreteRunningMode;
+import org.flexiblepower.efi.xml.StorageDiscreteRunningMode.DiscreteRunningModeElement;
+import org.flexiblepower.efi.xml.StorageRunningModeElement;
+import org.flexiblepower.efi.xml.Timer;
+import org.flexiblepower.efi.xml.TimerReferences.TimerReference;
+import org.flexiblepower.efi.xml.Transition;
+
+/**
+ * The flexibility of one actuator, compiled to primitive arrays for the
+ * {@link Planner}. The fill level range of the storage is divided in a grid
+ * of levels; the filling rate, power and running cost of every option are
+ * sampled on that grid. An option is a discrete running mode, or a
+ * continuous running mode at one of a few factors.
+ *
+ * The filling rates already include the leakage of the storage and the
+ * filling rate of the other actuators, which are assumed to stay in their
+ * current running mode.
+ *
+ * Timers are reduced to two kinds of constraints. Timers which are running
+ * now block transitions until a given slot. A timer which is started by a
+ * transition into a running mode and blocks a transition out of it becomes a
+ * minimum number of slots to stay in that running mode.
+ */
+final class ActuatorPlanModel {
+
+	final int levelCount;
+	final double minLevel;
+	final double maxLevel;
+	final double levelStep;
+
+	final int modeCount;
+	final int optionCount;
+	/** The running mode ID of every option */
+	final int[] optionModeId;
+	/** The position of the running mode of every option */
+	final int[] optionMode;
+	/** The factor of every option, NaN for discrete running modes */
+	final double[] optionFactor;
+
+	/** [option][level] The change in fill level per second, NaN if not allowed */
+	final double[][] netRate;
+	/** [option][level] The filling rate of this actuator alone */
+	final double[][] ownRate;
+	/** [option][level] Electrical power in watt */
+	final double[][] power;
+	/** [option][level] Running cost per hour */
+	final double[][] runningCost;
+
+	/** [from mode][to mode] */
+	final boolean[][] transitionAllowed;
+	final double[][] transitionCost;
+	/** [from mode][to mode] The number of slots to stay in the from mode */
+	final int[][] minDwellSlots;
+	/** [from mode][to mode] The first slot in which the transition is not blocked */
+	final int[][] blockedUntilSlot;
+	final int maxDwellSlots;
+
+	/** The option the actuator is in now, or -1 if it is not known */
+	final int startOption;
+
+	private ActuatorPlanModel(int levelCount, double minLevel, double maxLevel, List<RunningMode> modes,
+			int continuousSteps) {
+		this.levelCount = levelCount;
+		this.minLevel = minLevel;
+		this.maxLevel = maxLevel;
+		this.levelStep = (maxLevel - minLevel) / (levelCount - 1);
+
+		this.modeCount = modes.size();
+		int options = 0;
+		for (final RunningMode mode : modes) {
+			options += mode instanceof StorageContinuousRunningMode ? continuousSteps : 1;
+		}
+		this.optionCount = options;
+		this.optionModeId = new int[options];
+		this.optionMode = new int[options];
+		this.optionFactor = new double[options];
+		this.netRate = new double[options][levelCount];
+		this.ownRate = new double[options][levelCount];
+		this.power = new double[options][levelCount];
+		this.runningCost = new double[options][levelCount];
+
+		this.transitionAllowed = new boolean[this.modeCount][this.modeCount];
+		this.transitionCost = new double[this.modeCount][this.modeCount];
+		this.minDwellSlots = new int[this.modeCount][this.modeCount];
+		this.blockedUntilSlot = new int[this.modeCount][this.modeCount];
+		this.maxDwellSlots = 0;
+		this.startOption = -1;
+	}
+
+	private ActuatorPlanModel(ActuatorPlanModel model, int maxDwellSlots, int startOption) {
+		this.levelCount = model.levelCount;
+		this.minLevel = model.minLevel;
+		this.maxLevel = model.maxLevel;
+		this.levelStep = model.levelStep;
+		this.modeCount = model.modeCount;
+		this.optionCount = model.optionCount;
+		this.optionModeId = model.optionModeId;
+		this.optionMode = model.optionMode;
+		this.optionFactor = model.optionFactor;
+		this.netRate = model.netRate;
+		this.ownRate = model.ownRate;
+		this.power = model.power;
+		this.runningCost = model.runningCost;
+		this.transitionAllowed = model.transitionAllowed;
+		this.transitionCost = model.transitionCost;
+		this.minDwellSlots = model.minDwellSlots;
+		this.blockedUntilSlot = model.blockedUntilSlot;
+		this.maxDwellSlots = maxDwellSlots;
+		this.startOption = startOption;
+	}
+
+	double level(int levelIndex) {
+		return this.minLevel + levelIndex * this.levelStep;
+	}
+
+	/**
+	 * Compile the flexibility of an actuator.
+	 *
+	 * @param state
+	 *            The state of the Resource Manager, with a StorageSystemDescription
+	 * @param actuatorId
+	 *            The actuator to plan
+	 * @param startMillis
+	 *            The start of the planning horizon, to determine which timers
+	 *            are running
+	 * @param slotMillis
+	 *            The length of a slot
+	 * @param levelCount
+	 *            The number of fill levels in the grid
+	 * @param continuousSteps
+	 *            The number of factors at which continuous running modes are
+	 *            sampled
+	 * @return The model, or null if the actuator has no storage running modes
+	 *         covering a range of fill levels
+	 */
+	static ActuatorPlanModel compile(EfiStorageState state, int actuatorId, long startMillis, long slotMillis,
+			int levelCount, int continuousSteps) {
+		final List<RunningMode> allModes = state.getRunningModes(actuatorId);
+		if (allModes == null) {
+			return null;
+		}
+		final List<RunningMode> modes = new ArrayList<>(allModes.size());
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for (final RunningMode mode : allModes) {
+			final List<? extends StorageRunningModeElement> elements = elements(mode);
+			if (elements == null || elements.isEmpty()) {
+				continue;
+			}
+			modes.add(mode);
+			for (final StorageRunningModeElement element : elements) {
+				min = Math.min(min, element.getFillLevelLowerBound());
+				max = Math.max(max, element.getFillLevelUpperBound());
+			}
+		}
+		if (modes.isEmpty() || !(max > min)) {
+			return null;
+		}
+
+		final ActuatorPlanModel model = new ActuatorPlanModel(levelCount, min, max, modes, continuousSteps);
+		final double[] otherRate = otherActuatorsRate(state, actuatorId, model);
+		final LeakageFunction leakage = state.getStorageSystemDescription().getLeakageBehaviour();
+
+		final double[] sample = new double[3];
+		int option = 0;
+		for (int m = 0; m < modes.size(); m++) {
+			final RunningMode mode = modes.get(m);
+			final int steps = mode instanceof StorageContinuousRunningMode ? continuousSteps : 1;
+			for (int s = 0; s < steps; s++, option++) {
+				model.optionModeId[option] = mode.getId();
+				model.optionMode[option] = m;
+				model.optionFactor[option] = mode instanceof StorageDiscreteRunningMode ? Double.NaN
+						: (double) s / (steps - 1);
+				for (int l = 0; l < model.levelCount; l++) {
+					final double level = model.level(l);
+					if (!sample(mode, model.optionFactor[option], level, sample)) {
+						model.netRate[option][l] = Double.NaN;
+						continue;
+					}
+					model.ownRate[option][l] = sample[0];
+					model.netRate[option][l] = sample[0] + otherRate[l] - leakageRate(leakage, level);
+					model.power[option][l] = sample[1];
+					model.runningCost[option][l] = sample[2];
+				}
+			}
+		}
+
+		// Transitions and timers
+		final ActuatorBehaviour behaviour = state.getActuatorBehaviourById(actuatorId);
+		final List<Transition> transitions = behaviour.getTransitions() == null ? Collections.<Transition> emptyList()
+				: behaviour.getTransitions().getTransition();
+		int maxDwell = 0;
+		for (final Transition transition : transitions) {
+			final int from = indexOf(modes, transition.getFromRunningModeId());
+			final int to = indexOf(modes, transition.getToRunningModeId());
+			if (from < 0 || to < 0 || from == to) {
+				continue;
+			}
+			model.transitionAllowed[from][to] = true;
+			model.transitionCost[from][to] = transition.getTransitionCost() == null ? 0
+					: transition.getTransitionCost();
+			final long blockedUntil = blockedUntil(state, actuatorId, transition);
+			model.blockedUntilSlot[from][to] = blockedUntil <= startMillis ? 0
+					: (int) Math.min(Integer.MAX_VALUE, ceilDiv(blockedUntil - startMillis, slotMillis));
+		}
+		for (final Transition entering : transitions) {
+			final int mode = indexOf(modes, entering.getToRunningModeId());
+			if (mode < 0 || entering.getStartTimers() == null) {
+				continue;
+			}
+			for (final TimerReference started : entering.getStartTimers().getTimerReference()) {
+				final Timer timer = state.getTimer(actuatorId, started.getTimerId());
+				if (timer == null || timer.getDuration() == null) {
+					continue;
+				}
+				final int slots = (int) Math.min(1024, ceilDiv(XmlUtil.duration(timer.getDuration(), startMillis), slotMillis));
+				for (final Transition leaving : transitions) {
+					final int to = indexOf(modes, leaving.getToRunningModeId());
+					if (leaving.getFromRunningModeId() != entering.getToRunningModeId() || to < 0
+							|| !blocks(leaving, started.getTimerId())) {
+						continue;
+					}
+					model.minDwellSlots[mode][to] = Math.max(model.minDwellSlots[mode][to], slots);
+					maxDwell = Math.max(maxDwell, slots);
+				}
+			}
+		}
+
+		// The option the actuator is in now
+		int startOption = -1;
+		final Integer active = state.getActiveRunningMode(actuatorId);
+		final int activeMode = active == null ? -1 : indexOf(modes, active);
+		if (activeMode >= 0) {
+			final Double factor = state.getRunningModeFactor(actuatorId);
+			double bestDistance = Double.POSITIVE_INFINITY;
+			for (int o = 0; o < model.optionCount; o++) {
+				if (model.optionMode[o] != activeMode) {
+					continue;
+				}
+				final double distance = factor == null || Double.isNaN(model.optionFactor[o]) ? 0
+						: Math.abs(model.optionFactor[o] - factor);
+				if (distance < bestDistance) {
+					bestDistance = distance;
+					startOption = o;
+				}
+			}
+		}
+		return new ActuatorPlanModel(model, maxDwell, startOption);
+	}
+
+	/**
+	 * @return The time at which the last running blocking timer of a transition
+	 *         finishes, or Long.MIN_VALUE if the transition is never blocked
+	 */
+	private static long blockedUntil(EfiStorageState state, int actuatorId, Transition transition) {
+		long until = Long.MIN_VALUE;
+		if (transition.getBlockingTimers() != null) {
+			for (final TimerReference blocking : transition.getBlockingTimers().getTimerReference()) {
+				final Timer timer = state.getTimer(actuatorId, blocking.getTimerId());
+				if (timer != null) {
+					until = Math.max(until, state.getTimerFinishedAtMillis(actuatorId, timer));
+				}
+			}
+		}
+		return until;
+	}
+
+	private static long ceilDiv(long a, long b) {
+		return a <= 0 ? 0 : (a + b - 1) / b;
+	}
+
+	private static boolean blocks(Transition transition, int timerId) {
+		if (transition.getBlockingTimers() == null) {
+			return false;
+		}
+		for (final TimerReference blocking : transition.getBlockingTimers().getTimerReference()) {
+			if (blocking.getTimerId() == timerId) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int indexOf(List<RunningMode> modes, int runningModeId) {
+		for (int i = 0; i < modes.size(); i++) {
+			if (modes.get(i).getId() == runningModeId) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static List<? extends StorageRunningModeElement> elements(RunningMode mode) {
+		if (mode instanceof StorageDiscreteRunningMode) {
+			return ((StorageDiscreteRunningMode) mode).getDiscreteRunningModeElement();
+		} else if (mode instanceof StorageContinuousRunningMode) {
+			return ((StorageContinuousRunningMode) mode).getContinuousRunningModeElement();
+		}
+		return null;
+	}
+
+	private static StorageRunningModeElement element(RunningMode mode, double level) {
+		final List<? extends StorageRunningModeElement> elements = elements(mode);
+		if (elements != null) {
+			for (final StorageRunningModeElement element : elements) {
+				if (level >= element.getFillLevelLowerBound() && level <= element.getFillLevelUpperBound()) {
+					return element;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Look up the filling rate, power and running cost of a running mode at a
+	 * fill level.
+	 *
+	 * @param factor
+	 *            The factor of a continuous running mode, ignored for discrete
+	 *            running modes
+	 * @param result
+	 *            Receives the filling rate, power and running cost
+	 * @return false if the running mode is not available at this fill level
+	 */
+	private static boolean sample(RunningMode mode, double factor, double level, double[] result) {
+		final StorageRunningModeElement element = element(mode, level);
+		if (element instanceof DiscreteRunningModeElement) {
+			final DiscreteRunningModeElement e = (DiscreteRunningModeElement) element;
+			result[0] = e.getFillingRate();
+			result[1] = valueOf(e.getElectricalPower());
+			result[2] = valueOf(e.getRunningCost());
+			return true;
+		} else if (element instanceof ContinuousRunningModeElement) {
+			final ContinuousRunningModeElement e = (ContinuousRunningModeElement) element;
+			final double f = Double.isNaN(factor) ? 1 : factor;
+			result[0] = interpolate(e.getLowerBound().getFillingRate(), e.getUpperBound().getFillingRate(), f);
+			result[1] = interpolate(valueOf(e.getLowerBound().getElectricalPower()),
+					valueOf(e.getUpperBound().getElectricalPower()), f);
+			result[2] = interpolate(valueOf(e.getLowerBound().getRunningCost()),
+					valueOf(e.getUpperBound().getRunningCost()), f);
+			return true;
+		}
+		return false;
+	}
+
+	private static double valueOf(BigDecimal value) {
+		return value == null ? 0 : value.doubleValue();
+	}
+
+	private static double valueOf(Double value) {
+		return value == null ? 0 : value;
+	}
+
+	private static double interpolate(double lower, double upper, double factor) {
+		return lower + factor * (upper - lower);
+	}
+
+	private static double leakageRate(LeakageFunction leakage, double level) {
+		if (leakage == null) {
+			return 0;
+		}
+		for (final LeakageElement element : leakage.getLeakageElement()) {
+			if (level >= element.getFillLevelLowerBound() && level <= element.getFillLevelUpperBound()) {
+				return element.getLeakageRate();
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return The filling rate of all other actuators at every level, when they
+	 *         stay in their current running mode
+	 */
+	private static double[] otherActuatorsRate(EfiStorageState state, int actuatorId, ActuatorPlanModel model) {
+		final double[] rate = new double[model.levelCount];
+		final double[] sample = new double[3];
+		for (final ActuatorBehaviour other : state.getActuatorBehaviours()) {
+			if (other.getActuatorId() == actuatorId) {
+				continue;
+			}
+			final Integer active = state.getActiveRunningMode(other.getActuatorId());
+			final RunningMode mode = active == null ? null : state.getRunningMode(other.getActuatorId(), active);
+			if (mode == null) {
+				continue;
+			}
+			final Double factor = state.getRunningModeFactor(other.getActuatorId());
+			for (int l = 0; l < model.levelCount; l++) {
+				if (sample(mode, factor == null ? Double.NaN : factor, model.level(l), sample)) {
+					rate[l] += sample[0];
+				}
+			}
+		}
+		return rate;
+	}
+
+}
@@ -0,0 +1,368 @@
+package org.flexiblepower.efi.storage_cem_example.optimizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageState;
+import org.flexiblepower.efi.xml.ActuatorBehaviour;
+
+/**
+ * Plans the running modes of a storage actuator for the cheapest operation
+ * over a horizon.
+ *
+ * The planner solves a dynamic program backwards over the slots of the
+ * horizon. The state in a slot is the fill level, rounded to a grid, the
+ * option the actuator is in (a discrete running mode or a continuous running
+ * mode at a fixed factor) and the number of slots the actuator has been in
+ * its running mode, which is needed for the timers. The cost of a slot is the
+ * price of the electricity used, the running cost and the transition cost,
+ * plus a penalty for every unit the fill level ends up outside the target
+ * profile. Values between grid levels are interpolated linearly.
+ *
+ * A planning run takes a few milliseconds for a typical device. A Planner is
+ * stateless and can be used by many threads; large problems are spread over
+ * the common fork-join pool.
+ */
+public class Planner {
+
+	public static final int DEFAULT_LEVEL_COUNT = 101;
+	public static final int DEFAULT_CONTINUOUS_STEPS = 5;
+	public static final double DEFAULT_TARGET_PENALTY = 1000;
+
+	/**
+	 * The number of state transitions per slot above which a slot is evaluated
+	 * in parallel
+	 */
+	private static final int PARALLEL_THRESHOLD = 1 << 16;
+
+	private final int levelCount;
+	private final int continuousSteps;
+	private final double targetPenalty;
+
+	public Planner() {
+		this(DEFAULT_LEVEL_COUNT, DEFAULT_CONTINUOUS_STEPS, DEFAULT_TARGET_PENALTY);
+	}
+
+	/**
+	 * @param levelCount
+	 *            The number of fill levels in the grid
+	 * @param continuousSteps
+	 *            The number of factors at which continuous running modes are
+	 *            considered, including 0 and 1
+	 * @param targetPenalty
+	 *            The cost per unit of fill level outside the target profile
+	 */
+	public Planner(int levelCount, int continuousSteps, double targetPenalty) {
+		if (levelCount < 2) {
+			throw new IllegalArgumentException("levelCount must be at least 2");
+		}
+		if (continuousSteps < 2 || continuousSteps > Short.MAX_VALUE) {
+			throw new IllegalArgumentException("continuousSteps must be at least 2");
+		}
+		this.levelCount = levelCount;
+		this.continuousSteps = continuousSteps;
+		this.targetPenalty = targetPenalty;
+	}
+
+	/**
+	 * Plan one actuator. Other actuators of the same storage are assumed to
+	 * stay in their current running mode.
+	 *
+	 * @param state
+	 *            The current state of the Resource Manager
+	 * @param actuatorId
+	 *            The actuator to plan
+	 * @param problem
+	 *            The horizon, prices and targets
+	 * @return The cheapest schedule, or null if the state is not complete yet or
+	 *         the storage cannot be kept within its fill level range
+	 */
+	public Schedule plan(EfiStorageState state, int actuatorId, PlanningProblem problem) {
+		if (state.getStorageSystemDescription() == null || state.getFillLevel() == null) {
+			return null;
+		}
+		final ActuatorPlanModel model = ActuatorPlanModel.compile(state, actuatorId, problem.getStartMillis(),
+				problem.getSlotMillis(), this.levelCount, this.continuousSteps);
+		if (model == null) {
+			return null;
+		}
+		return new Solver(model, problem, this.targetPenalty).solve(actuatorId, state.getFillLevel());
+	}
+
+	/**
+	 * Plan every actuator of a storage, each one separately.
+	 *
+	 * @return The schedules of the actuators which could be planned
+	 */
+	public List<Schedule> planAll(EfiStorageState state, PlanningProblem problem) {
+		final List<Schedule> schedules = new ArrayList<>();
+		if (state.getStorageSystemDescription() == null) {
+			return schedules;
+		}
+		for (final ActuatorBehaviour behaviour : state.getActuatorBehaviours()) {
+			final Schedule schedule = this.plan(state, behaviour.getActuatorId(), problem);
+			if (schedule != null) {
+				schedules.add(schedule);
+			}
+		}
+		return schedules;
+	}
+
+	/**
+	 * The working memory of one planning run. The value and decision arrays are
+	 * flat, indexed by ((age * options) + option) * levels + level.
+	 */
+	private static final class Solver {
+
+		private final ActuatorPlanModel model;
+		private final PlanningProblem problem;
+		private final double targetPenalty;
+		private final int slots;
+		private final int ages;
+		private final int options;
+		private final int levels;
+		private final int stateCount;
+		private final double slotSeconds;
+		private final double slotHours;
+		private final double tolerance;
+
+		/** The value of every state at the start of the next slot */
+		private double[] next;
+		/** The value of every state at the start of the current slot */
+		private double[] current;
+		/** The best option for every state in every slot, -1 if there is none */
+		private final short[] choices;
+		/** The cost of the current slot for every option and level */
+		private final double[] slotCost;
+		/** The grid cell and position in it of the fill level after the slot */
+		private final int[] nextCell;
+		private final double[] nextFraction;
+		/** The slot cost plus the value afterwards, by the age after the slot */
+		private final double[] outcome;
+
+		Solver(ActuatorPlanModel model, PlanningProblem problem, double targetPenalty) {
+			this.model = model;
+			this.problem = problem;
+			this.targetPenalty = targetPenalty;
+			this.slots = problem.getSlotCount();
+			this.ages = Math.min(model.maxDwellSlots, this.slots) + 1;
+			this.options = model.optionCount;
+			this.levels = model.levelCount;
+			this.stateCount = this.ages * this.options * this.levels;
+			this.slotSeconds = problem.getSlotMillis() / 1000d;
+			this.slotHours = problem.getSlotMillis() / 3600000d;
+			this.tolerance = model.levelStep / 2;
+
+			this.next = new double[this.stateCount];
+			this.current = new double[this.stateCount];
+			this.choices = new short[this.slots * this.stateCount];
+			this.slotCost = new double[this.options * this.levels];
+			this.nextCell = new int[this.options * this.levels];
+			this.nextFraction = new double[this.options * this.levels];
+			this.outcome = new double[this.stateCount];
+		}
+
+		Schedule solve(int actuatorId, double fillLevel) {
+			final boolean parallel = (long) this.stateCount * this.options >= PARALLEL_THRESHOLD;
+			for (int t = this.slots - 1; t >= 0; t--) {
+				this.evaluateSlot(t);
+				final int slot = t;
+				if (parallel) {
+					IntStream.range(0, this.ages * this.options).parallel().forEach(row -> this.decide(slot, row));
+				} else {
+					for (int row = 0; row < this.ages * this.options; row++) {
+						this.decide(slot, row);
+					}
+				}
+				final double[] swap = this.next;
+				this.next = this.current;
+				this.current = swap;
+			}
+			// this.next now holds the values at the start of the horizon
+			return this.simulate(actuatorId, fillLevel);
+		}
+
+		/**
+		 * Compute the cost of every option at every level in a slot, and where it
+		 * leads to.
+		 */
+		private void evaluateSlot(int t) {
+			final ActuatorPlanModel m = this.model;
+			final double price = this.problem.getPrice(t);
+			final double usage = this.problem.getUsageRate(t);
+			final double lower = this.problem.getTargetLowerBound(t);
+			final double upper = this.problem.getTargetUpperBound(t);
+			for (int o = 0; o < this.options; o++) {
+				final double[] rate = m.netRate[o];
+				for (int l = 0; l < this.levels; l++) {
+					final int i = o * this.levels + l;
+					final double x = this.nextLevel(o, l, m.level(l), rate[l] - usage);
+					if (Double.isNaN(x)) {
+						this.slotCost[i] = Double.POSITIVE_INFINITY;
+						continue;
+					}
+					double cost = price * m.power[o][l] * this.slotHours / 1000 + m.runningCost[o][l] * this.slotHours;
+					if (x < lower) {
+						cost += this.targetPenalty * (lower - x);
+					} else if (x > upper) {
+						cost += this.targetPenalty * (x - upper);
+					}
+					this.slotCost[i] = cost;
+					final double position = Math.min((x - m.minLevel) / m.levelStep, this.levels - 1);
+					final int cell = Math.min((int) position, this.levels - 2);
+					this.nextCell[i] = cell;
+					this.nextFraction[i] = position - cell;
+				}
+			}
+			for (int a = 0; a < this.ages; a++) {
+				for (int o = 0; o < this.options; o++) {
+					final int base = (a * this.options + o) * this.levels;
+					for (int l = 0; l < this.levels; l++) {
+						final int i = o * this.levels + l;
+						final double cost = this.slotCost[i];
+						this.outcome[base + l] = cost == Double.POSITIVE_INFINITY ? cost
+								: cost + this.valueAt(base, this.nextCell[i], this.nextFraction[i]);
+					}
+				}
+			}
+		}
+
+		/**
+		 * @return The fill level after a slot, clamped to the range of the storage,
+		 *         or NaN if the option is not available or would push the storage
+		 *         beyond its range
+		 */
+		private double nextLevel(int option, int l, double level, double netRate) {
+			if (Double.isNaN(netRate)) {
+				return Double.NaN;
+			}
+			final ActuatorPlanModel m = this.model;
+			final double x = level + netRate * this.slotSeconds;
+			if (x < m.minLevel) {
+				// Leakage and usage stop at an empty storage, the actuator cannot
+				// empty it further
+				return x < m.minLevel - this.tolerance && m.ownRate[option][l] < 0 ? Double.NaN : m.minLevel;
+			} else if (x > m.maxLevel) {
+				return x > m.maxLevel + this.tolerance && m.ownRate[option][l] > 0 ? Double.NaN : m.maxLevel;
+			}
+			return x;
+		}
+
+		private double valueAt(int base, int cell, double fraction) {
+			final double v0 = this.next[base + cell];
+			if (fraction == 0) {
+				return v0;
+			}
+			final double v1 = this.next[base + cell + 1];
+			if (v0 == Double.POSITIVE_INFINITY || v1 == Double.POSITIVE_INFINITY) {
+				return fraction < 0.5 ? v0 : v1;
+			}
+			return v0 + fraction * (v1 - v0);
+		}
+
+		/**
+		 * Find the best option for all levels of one age and option.
+		 */
+		private void decide(int t, int row) {
+			final ActuatorPlanModel m = this.model;
+			final int a = row / this.options;
+			final int o = row % this.options;
+			final int mode = m.optionMode[o];
+			final int base = row * this.levels;
+			final int decisions = t * this.stateCount + base;
+			final int stayAge = Math.min(a + 1, this.ages - 1);
+			final int switchAge = Math.min(1, this.ages - 1);
+			// The oldest age means long enough for every timer
+			final boolean settled = a == this.ages - 1;
+
+			for (int l = 0; l < this.levels; l++) {
+				this.current[base + l] = Double.POSITIVE_INFINITY;
+				this.choices[decisions + l] = -1;
+			}
+			for (int o2 = 0; o2 < this.options; o2++) {
+				final int mode2 = m.optionMode[o2];
+				final int outcomeBase;
+				final double transitionCost;
+				if (mode2 == mode) {
+					outcomeBase = (stayAge * this.options + o2) * this.levels;
+					transitionCost = 0;
+				} else {
+					if (!m.transitionAllowed[mode][mode2] || t < m.blockedUntilSlot[mode][mode2]
+							|| (!settled && a < m.minDwellSlots[mode][mode2])) {
+						continue;
+					}
+					outcomeBase = (switchAge * this.options + o2) * this.levels;
+					transitionCost = m.transitionCost[mode][mode2];
+				}
+				for (int l = 0; l < this.levels; l++) {
+					final double value = this.outcome[outcomeBase + l] + transitionCost;
+					if (value < this.current[base + l]) {
+						this.current[base + l] = value;
+						this.choices[decisions + l] = (short) o2;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Follow the decisions from the current fill level and option.
+		 */
+		private Schedule simulate(int actuatorId, double fillLevel) {
+			final ActuatorPlanModel m = this.model;
+			double x = Math.max(m.minLevel, Math.min(m.maxLevel, fillLevel));
+			int a = this.ages - 1;
+			int o = m.startOption;
+			final int startBase = a * this.options * this.levels + this.nearest(x);
+			if (o < 0) {
+				// The running mode is not known, start in the best one
+				o = 0;
+				for (int candidate = 1; candidate < this.options; candidate++) {
+					if (this.next[startBase + candidate * this.levels] < this.next[startBase + o * this.levels]) {
+						o = candidate;
+					}
+				}
+			}
+			if (this.next[startBase + o * this.levels] == Double.POSITIVE_INFINITY) {
+				return null;
+			}
+
+			final int[] runningModeIds = new int[this.slots];
+			final double[] factors = new double[this.slots];
+			final double[] fillLevels = new double[this.slots];
+			final double[] powers = new double[this.slots];
+			double cost = 0;
+			for (int t = 0; t < this.slots; t++) {
+				final int l = this.nearest(x);
+				int o2 = this.choices[t * this.stateCount + (a * this.options + o) * this.levels + l];
+				if (o2 < 0) {
+					// Rounding to the grid led to a dead end, stay in the running mode
+					o2 = o;
+				}
+				final boolean switched = m.optionMode[o2] != m.optionMode[o];
+				runningModeIds[t] = m.optionModeId[o2];
+				factors[t] = m.optionFactor[o2];
+				powers[t] = m.power[o2][l];
+				cost += this.problem.getPrice(t) * m.power[o2][l] * this.slotHours / 1000
+						+ m.runningCost[o2][l] * this.slotHours
+						+ (switched ? m.transitionCost[m.optionMode[o]][m.optionMode[o2]] : 0);
+				final double rate = m.netRate[o2][l] - this.problem.getUsageRate(t);
+				if (!Double.isNaN(rate)) {
+					x = Math.max(m.minLevel, Math.min(m.maxLevel, x + rate * this.slotSeconds));
+				}
+				fillLevels[t] = x;
+				a = switched ? Math.min(1, this.ages - 1) : Math.min(a + 1, this.ages - 1);
+				o = o2;
+			}
+			return new Schedule(actuatorId, this.problem.getStartMillis(), this.problem.getSlotMillis(),
+					runningModeIds, factors, fillLevels, powers, cost);
+		}
+
+		private int nearest(double x) {
+			final int l = (int) Math.round((x - this.model.minLevel) / this.model.levelStep);
+			return Math.max(0, Math.min(this.levels - 1, l));
+		}
+
+	}
+
+}
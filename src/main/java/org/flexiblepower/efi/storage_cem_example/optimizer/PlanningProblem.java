@@ -0,0 +1,131 @@
+package org.flexiblepower.efi.storage_cem_example.optimizer;
+
+import java.util.Arrays;
+
+/**
+ * The inputs of a planning run which do not come from the Resource Manager's
+ * flexibility: the horizon, the electricity price and the wishes of the
+ * user. The horizon is divided in slots of equal length, the running mode of
+ * an actuator is only changed at the start of a slot.
+ *
+ * All arrays have one value per slot. A NaN target bound means that there is
+ * no bound in that slot. Instances are immutable.
+ */
+public final class PlanningProblem {
+
+	private final long startMillis;
+	private final long slotMillis;
+	private final double[] prices;
+	private final double[] targetLowerBounds;
+	private final double[] targetUpperBounds;
+	private final double[] usageRates;
+
+	/**
+	 * @param startMillis
+	 *            The start of the first slot
+	 * @param slotMillis
+	 *            The length of a slot
+	 * @param prices
+	 *            The price of electricity per kWh in every slot, the length
+	 *            determines the horizon
+	 */
+	public PlanningProblem(long startMillis, long slotMillis, double[] prices) {
+		this(startMillis, slotMillis, prices.clone(), null, null, null);
+		if (slotMillis <= 0) {
+			throw new IllegalArgumentException("slotMillis must be positive");
+		}
+		if (prices.length == 0) {
+			throw new IllegalArgumentException("The horizon must contain at least one slot");
+		}
+	}
+
+	private PlanningProblem(long startMillis, long slotMillis, double[] prices, double[] targetLowerBounds,
+			double[] targetUpperBounds, double[] usageRates) {
+		this.startMillis = startMillis;
+		this.slotMillis = slotMillis;
+		this.prices = prices;
+		this.targetLowerBounds = targetLowerBounds;
+		this.targetUpperBounds = targetUpperBounds;
+		this.usageRates = usageRates;
+	}
+
+	/**
+	 * A copy of this problem where the fill level has to stay between bounds, as
+	 * given by a StorageFillLevelTargetProfile. The bounds apply to the fill
+	 * level at the end of each slot.
+	 */
+	public PlanningProblem withTargetProfile(double[] lowerBounds, double[] upperBounds) {
+		return new PlanningProblem(this.startMillis, this.slotMillis, this.prices, this.checkLength(lowerBounds),
+				this.checkLength(upperBounds), this.usageRates);
+	}
+
+	/**
+	 * A copy of this problem where the storage is emptied at a given rate per
+	 * second, as given by a StorageUsageForecast.
+	 */
+	public PlanningProblem withUsageForecast(double[] usageRates) {
+		return new PlanningProblem(this.startMillis, this.slotMillis, this.prices, this.targetLowerBounds,
+				this.targetUpperBounds, this.checkLength(usageRates));
+	}
+
+	private double[] checkLength(double[] values) {
+		if (values == null) {
+			return null;
+		}
+		if (values.length != this.prices.length) {
+			throw new IllegalArgumentException(
+					"Expected " + this.prices.length + " values, one per slot, but got " + values.length);
+		}
+		return values.clone();
+	}
+
+	public long getStartMillis() {
+		return this.startMillis;
+	}
+
+	public long getSlotMillis() {
+		return this.slotMillis;
+	}
+
+	public int getSlotCount() {
+		return this.prices.length;
+	}
+
+	/**
+	 * @return The price of electricity per kWh
+	 */
+	public double getPrice(int slot) {
+		return this.prices[slot];
+	}
+
+	/**
+	 * @return The lowest allowed fill level at the end of the slot, or NaN if
+	 *         there is no bound
+	 */
+	public double getTargetLowerBound(int slot) {
+		return this.targetLowerBounds == null ? Double.NaN : this.targetLowerBounds[slot];
+	}
+
+	/**
+	 * @return The highest allowed fill level at the end of the slot, or NaN if
+	 *         there is no bound
+	 */
+	public double getTargetUpperBound(int slot) {
+		return this.targetUpperBounds == null ? Double.NaN : this.targetUpperBounds[slot];
+	}
+
+	/**
+	 * @return The expected usage in fill level per second, 0 if there is no
+	 *         forecast
+	 */
+	public double getUsageRate(int slot) {
+		return this.usageRates == null ? 0 : this.usageRates[slot];
+	}
+
+	@Override
+	public String toString() {
+		return "PlanningProblem [startMillis=" + this.startMillis + ", slotMillis=" + this.slotMillis + ", prices="
+				+ Arrays.toString(this.prices) + "]";
+	}
+
+}
@@ -0,0 +1,346 @@
+package org.flexiblepower.efi.storage_cem_example.optimizer;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageListener;
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageModel;
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageState;
+import org.flexiblepower.efi.storage_cem_example.efi_model.TimeProfile;
+import org.flexiblepower.efi.storage_cem_example.log.Log;
+import org.flexiblepower.efi.storage_cem_example.log.Logging;
+import org.flexiblepower.efi.xml.ActuatorInstruction;
+import org.flexiblepower.efi.xml.EfiMessage;
+import org.flexiblepower.efi.xml.FlexibilityRevoke;
+import org.flexiblepower.efi.xml.InstructionStatus;
+import org.flexiblepower.efi.xml.InstructionStatusUpdate;
+import org.flexiblepower.efi.xml.StorageInstruction;
+import org.flexiblepower.efi.xml.StorageRegistration;
+import org.flexiblepower.efi.xml.StorageSystemDescription;
+
+/**
+ * Periodically plans every storage and instructs the Resource Manager when
+ * the running mode planned for the first slot differs from the current one.
+ *
+ * Every model is planned on a pool of worker threads, so many storages are
+ * planned in parallel. A model is skipped when its previous planning run has
+ * not finished yet. An instruction is not repeated while the Resource Manager
+ * has not reported the new running mode yet, unless it rejected or aborted the
+ * instruction, registered or described its flexibility again, revoked its
+ * flexibility, or did not follow the instruction within
+ * {@link #INSTRUCTION_TIMEOUT_MILLIS}. Models which are no longer supplied are
+ * forgotten.
+ */
+public class PlanningService implements Closeable {
+
+	private static final Log LOG = Logging.get("planner");
+
+	/**
+	 * Supplies the electricity prices for a horizon.
+	 */
+	public interface PriceForecast {
+
+		/**
+		 * @return The price per kWh in every slot
+		 */
+		double[] getPrices(long startMillis, long slotMillis, int slots);
+
+		/**
+		 * @return A forecast with the same price in every slot
+		 */
+		static PriceForecast flat(double price) {
+			return (startMillis, slotMillis, slots) -> {
+				final double[] prices = new double[slots];
+				Arrays.fill(prices, price);
+				return prices;
+			};
+		}
+	}
+
+	/** How long to wait for the Resource Manager to follow an instruction */
+	public static final long INSTRUCTION_TIMEOUT_MILLIS = 60 * 1000;
+
+	private static final double FACTOR_TOLERANCE = 0.01;
+
+	private final Supplier<? extends Collection<EfiStorageModel>> models;
+	private final PriceForecast prices;
+	private final Planner planner;
+	private final long slotMillis;
+	private final int slots;
+	private final ScheduledExecutorService scheduler;
+	private final ExecutorService workers;
+	private final Set<EfiStorageModel> planning = ConcurrentHashMap.newKeySet();
+	private final Map<EfiStorageModel, List<Schedule>> schedules = new ConcurrentHashMap<>();
+	private final Map<EfiStorageModel, SentInstructions> instructed = new ConcurrentHashMap<>();
+
+	/**
+	 * @param models
+	 *            Supplies the models to plan, asked again on every run
+	 * @param prices
+	 *            The electricity prices
+	 * @param planner
+	 *            The planner
+	 * @param slotMillis
+	 *            The length of a slot
+	 * @param slots
+	 *            The number of slots in the horizon
+	 * @param threads
+	 *            The number of models which are planned at the same time
+	 */
+	public PlanningService(Supplier<? extends Collection<EfiStorageModel>> models, PriceForecast prices,
+			Planner planner, long slotMillis, int slots, int threads) {
+		this.models = models;
+		this.prices = prices;
+		this.planner = planner;
+		this.slotMillis = slotMillis;
+		this.slots = slots;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(namedThreads("efi-planner"));
+		this.workers = Executors.newFixedThreadPool(threads, namedThreads("efi-planner-worker"));
+	}
+
+	private static ThreadFactory namedThreads(String prefix) {
+		final AtomicInteger counter = new AtomicInteger();
+		return r -> {
+			final Thread t = new Thread(r, prefix + "-" + counter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	/**
+	 * Start planning all models periodically.
+	 *
+	 * @param intervalMillis
+	 *            The time between the start of two planning runs
+	 */
+	public void start(long intervalMillis) {
+		this.scheduler.scheduleAtFixedRate(this::planAll, 0, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void planAll() {
+		final Collection<EfiStorageModel> current = this.models.get();
+		this.forgetRemovedModels(current);
+		for (final EfiStorageModel model : current) {
+			if (!this.planning.add(model)) {
+				continue;
+			}
+			try {
+				this.workers.execute(() -> {
+					try {
+						this.replan(model);
+					} catch (final RuntimeException e) {
+						LOG.error("Error while planning", e, "resource", model.getState().getEfiResourceId());
+					} finally {
+						this.planning.remove(model);
+					}
+				});
+			} catch (final RejectedExecutionException e) {
+				// Closed
+				this.planning.remove(model);
+				return;
+			}
+		}
+	}
+
+	private void forgetRemovedModels(Collection<EfiStorageModel> current) {
+		final Set<EfiStorageModel> models = Collections.newSetFromMap(new IdentityHashMap<>());
+		models.addAll(current);
+		this.schedules.keySet().retainAll(models);
+		for (final Iterator<Map.Entry<EfiStorageModel, SentInstructions>> it = this.instructed.entrySet()
+				.iterator(); it.hasNext();) {
+			final Map.Entry<EfiStorageModel, SentInstructions> entry = it.next();
+			if (!models.contains(entry.getKey())) {
+				entry.getKey().removeListener(entry.getValue());
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Plan one model now and instruct its Resource Manager.
+	 *
+	 * @return The schedules of all actuators which could be planned
+	 */
+	public List<Schedule> replan(EfiStorageModel model) {
+		final EfiStorageState state = model.getState();
+		final long now = System.currentTimeMillis();
+		final PlanningProblem problem = problem(state, now, this.slotMillis,
+				this.prices.getPrices(now, this.slotMillis, this.slots));
+		final List<Schedule> result = Collections.unmodifiableList(this.planner.planAll(state, problem));
+		this.schedules.put(model, result);
+		for (final Schedule schedule : result) {
+			this.apply(model, state, schedule, now);
+		}
+		return result;
+	}
+
+	/**
+	 * Create a planning problem with the target profile and usage forecast the
+	 * Resource Manager has sent.
+	 */
+	static PlanningProblem problem(EfiStorageState state, long start, long slotMillis, double[] prices) {
+		PlanningProblem problem = new PlanningProblem(start, slotMillis, prices);
+		final int slots = prices.length;
+		final TimeProfile lower = state.getTargetLowerBounds();
+		final TimeProfile upper = state.getTargetUpperBounds();
+		if (lower != null || upper != null) {
+			problem = problem.withTargetProfile(
+					lower == null ? null : lower.valuesAtSlotEnds(start, slotMillis, slots),
+					upper == null ? null : upper.valuesAtSlotEnds(start, slotMillis, slots));
+		}
+		final TimeProfile usage = state.getUsageForecast();
+		if (usage != null) {
+			final double[] rates = usage.averages(start, slotMillis, slots);
+			for (int i = 0; i < rates.length; i++) {
+				if (Double.isNaN(rates[i])) {
+					// Beyond the forecast
+					rates[i] = 0;
+				}
+			}
+			problem = problem.withUsageForecast(rates);
+		}
+		return problem;
+	}
+
+	private void apply(EfiStorageModel model, EfiStorageState state, Schedule schedule, long now) {
+		final int actuatorId = schedule.getActuatorId();
+		final int runningModeId = schedule.getRunningModeId(0);
+		final double factor = schedule.getRunningModeFactor(0);
+		final Integer active = state.getActiveRunningMode(actuatorId);
+		final Double activeFactor = state.getRunningModeFactor(actuatorId);
+		final Map<Integer, Instruction> sent = this.instructed.computeIfAbsent(model, m -> {
+			final SentInstructions instructions = new SentInstructions();
+			m.addListener(instructions);
+			return instructions;
+		}).byActuator;
+		if (active != null && active == runningModeId && (Double.isNaN(factor)
+				|| (activeFactor != null && Math.abs(activeFactor - factor) < FACTOR_TOLERANCE))) {
+			sent.remove(actuatorId);
+			return;
+		}
+		final Instruction previous = sent.get(actuatorId);
+		if (previous != null && previous.matches(runningModeId, factor)
+				&& now - previous.sentAtMillis < INSTRUCTION_TIMEOUT_MILLIS) {
+			// Wait for the Resource Manager to follow the previous instruction
+			return;
+		}
+		// Before sending, the instruction may be reported as sent right away
+		final Instruction instruction = new Instruction(runningModeId, factor, now);
+		sent.put(actuatorId, instruction);
+		boolean queued = false;
+		try {
+			queued = Double.isNaN(factor) ? model.activateDiscreteRunningMode(actuatorId, runningModeId)
+					: model.activateContinuousRunningMode(actuatorId, runningModeId, factor);
+		} finally {
+			if (!queued) {
+				sent.remove(actuatorId, instruction);
+			}
+		}
+	}
+
+	/**
+	 * @return The schedules of the latest planning run of a model, or an empty
+	 *         list if it has not been planned yet
+	 */
+	public List<Schedule> getSchedules(EfiStorageModel model) {
+		final List<Schedule> result = this.schedules.get(model);
+		return result == null ? Collections.<Schedule> emptyList() : result;
+	}
+
+	@Override
+	public void close() {
+		this.scheduler.shutdownNow();
+		this.workers.shutdown();
+		for (final Map.Entry<EfiStorageModel, SentInstructions> entry : this.instructed.entrySet()) {
+			entry.getKey().removeListener(entry.getValue());
+		}
+		this.instructed.clear();
+	}
+
+	private static final class Instruction {
+		private final int runningModeId;
+		private final double factor;
+		private final long sentAtMillis;
+		/** Set when the instruction is actually sent */
+		private volatile String instructionId;
+
+		Instruction(int runningModeId, double factor, long sentAtMillis) {
+			this.runningModeId = runningModeId;
+			this.factor = factor;
+			this.sentAtMillis = sentAtMillis;
+		}
+
+		/**
+		 * @param factor
+		 *            The factor, NaN for a discrete running mode
+		 */
+		boolean matches(int runningModeId, double factor) {
+			return this.runningModeId == runningModeId
+					&& Double.doubleToLongBits(this.factor) == Double.doubleToLongBits(factor);
+		}
+	}
+
+	/**
+	 * The instructions the Resource Manager of one model has not followed yet,
+	 * per actuator. Listens to the model to forget instructions which will not
+	 * be followed anymore.
+	 */
+	private static final class SentInstructions implements EfiStorageListener {
+		private final Map<Integer, Instruction> byActuator = new ConcurrentHashMap<>();
+
+		@Override
+		public void stateChanged(EfiStorageState state) {
+			final Class<? extends EfiMessage> type = state.getLastMessageType();
+			if (StorageRegistration.class.equals(type) || StorageSystemDescription.class.equals(type)
+					|| FlexibilityRevoke.class.equals(type)) {
+				// The Resource Manager has reconnected or its flexibility has changed
+				this.byActuator.clear();
+			} else if (InstructionStatusUpdate.class.equals(type)) {
+				final InstructionStatusUpdate update = state.getLastInstructionStatusUpdate();
+				if (update != null && update.getInstructionId() != null
+						&& (update.getStatus() == InstructionStatus.REJECTED
+								|| update.getStatus() == InstructionStatus.ABORTED)) {
+					this.byActuator.values().removeIf(i -> update.getInstructionId().equals(i.instructionId));
+				}
+			}
+		}
+
+		@Override
+		public void instructionSent(EfiStorageState state, StorageInstruction instruction) {
+			if (instruction.getActuatorInstructions() == null) {
+				return;
+			}
+			for (final ActuatorInstruction actuatorInstruction : instruction.getActuatorInstructions()
+					.getActuatorInstruction()) {
+				final Instruction planned = this.byActuator.get(actuatorInstruction.getActuatorId());
+				if (planned == null) {
+					continue;
+				}
+				final Double factor = actuatorInstruction.getRunningModeFactor();
+				if (planned.matches(actuatorInstruction.getRunningModeId(), factor == null ? Double.NaN : factor)) {
+					planned.instructionId = instruction.getInstructionId();
+				} else {
+					// Someone else has instructed the actuator
+					this.byActuator.remove(actuatorInstruction.getActuatorId(), planned);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,94 @@
+package org.flexiblepower.efi.storage_cem_example.optimizer;
+
+/**
+ * The result of a planning run for one actuator: a running mode for every
+ * slot of the horizon, with the fill level and power the planner expects.
+ * Instances are immutable.
+ */
+public final class Schedule {
+
+	private final int actuatorId;
+	private final long startMillis;
+	private final long slotMillis;
+	private final int[] runningModeIds;
+	private final double[] factors;
+	private final double[] fillLevels;
+	private final double[] powers;
+	private final double expectedCost;
+
+	Schedule(int actuatorId, long startMillis, long slotMillis, int[] runningModeIds, double[] factors,
+			double[] fillLevels, double[] powers, double expectedCost) {
+		this.actuatorId = actuatorId;
+		this.startMillis = startMillis;
+		this.slotMillis = slotMillis;
+		this.runningModeIds = runningModeIds;
+		this.factors = factors;
+		this.fillLevels = fillLevels;
+		this.powers = powers;
+		this.expectedCost = expectedCost;
+	}
+
+	public int getActuatorId() {
+		return this.actuatorId;
+	}
+
+	public long getStartMillis() {
+		return this.startMillis;
+	}
+
+	public long getSlotMillis() {
+		return this.slotMillis;
+	}
+
+	public int getSlotCount() {
+		return this.runningModeIds.length;
+	}
+
+	public int getRunningModeId(int slot) {
+		return this.runningModeIds[slot];
+	}
+
+	/**
+	 * @return The factor of a continuous running mode, or NaN if the running
+	 *         mode of the slot is discrete
+	 */
+	public double getRunningModeFactor(int slot) {
+		return this.factors[slot];
+	}
+
+	/**
+	 * @return The expected fill level at the end of the slot
+	 */
+	public double getFillLevel(int slot) {
+		return this.fillLevels[slot];
+	}
+
+	/**
+	 * @return The expected electrical power in watt during the slot
+	 */
+	public double getPower(int slot) {
+		return this.powers[slot];
+	}
+
+	/**
+	 * @return The expected cost of electricity, running modes and transitions
+	 *         over the whole horizon
+	 */
+	public double getExpectedCost() {
+		return this.expectedCost;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder("Schedule [actuatorId=").append(this.actuatorId)
+				.append(", expectedCost=").append(this.expectedCost).append(", runningModes=");
+		for (int i = 0; i < this.runningModeIds.length; i++) {
+			sb.append(i == 0 ? "" : " ").append(this.runningModeIds[i]);
+			if (!Double.isNaN(this.factors[i])) {
+				sb.append('@').append(this.factors[i]);
+			}
+		}
+		return sb.append(']').toString();
+	}
+
+}
@@ -0,0 +1,217 @@
+package org.flexiblepower.efi.storage_cem_example.replay;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+import org.flexiblepower.efi.storage_cem_example.log.Log;
+import org.flexiblepower.efi.storage_cem_example.log.Logging;
+import org.flexiblepower.efi.storage_cem_example.xml.EfiCompactCodec;
+
+/**
+ * Reads a trace written by {@link TraceWriter}, one record at a time, so
+ * traces of any size can be replayed with a small amount of memory. The
+ * buffer of a record is reused for the next one.
+ *
+ * <pre>
+ * try (TraceReader reader = new TraceReader(file)) {
+ * 	while (reader.next()) {
+ * 		...
+ * 	}
+ * }
+ * </pre>
+ *
+ * A record which was not written completely, because the application stopped
+ * while recording, ends the trace.
+ */
+public class TraceReader implements Closeable {
+
+	private static final Log LOG = Logging.get("replay");
+
+	private static final int BUFFER_BYTES = 64 * 1024;
+
+	/**
+	 * What a record holds.
+	 */
+	public enum Kind {
+		/** A message, see {@link TraceReader#getMessage()} */
+		MESSAGE,
+		/** The connection has been closed */
+		CLOSED
+	}
+
+	private final Path file;
+	private final DataInputStream in;
+	private final long startMillis;
+	private final List<String> connections = new ArrayList<>();
+	private Kind kind;
+	private boolean binary;
+	private int connection;
+	private long micros = 0;
+	private byte[] payload = new byte[4096];
+	private int length;
+
+	/**
+	 * @throws IOException
+	 *             When the file could not be opened or is not a trace
+	 */
+	public TraceReader(Path file) throws IOException {
+		this.file = file;
+		this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_BYTES));
+		try {
+			if (this.in.readInt() != TraceWriter.MAGIC) {
+				throw new IOException(file + " is not a trace");
+			}
+			final int version = this.in.readUnsignedByte();
+			if (version != TraceWriter.VERSION) {
+				throw new IOException("Unknown version " + version + " of trace " + file);
+			}
+			this.startMillis = this.in.readLong();
+		} catch (final IOException e) {
+			this.in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Move to the next record.
+	 *
+	 * @return false at the end of the trace
+	 * @throws IOException
+	 *             When the trace could not be read or is corrupt
+	 */
+	public boolean next() throws IOException {
+		try {
+			while (true) {
+				final int recordKind = this.in.read();
+				switch (recordKind) {
+				case -1:
+					return false;
+				case TraceWriter.CONNECTION:
+					final int id = (int) this.readVarint();
+					if (id != this.connections.size()) {
+						throw new IOException("Unexpected connection " + id + " in trace " + this.file);
+					}
+					final byte[] key = new byte[this.readLength()];
+					this.in.readFully(key);
+					this.connections.add(new String(key, StandardCharsets.UTF_8));
+					break;
+				case TraceWriter.TEXT:
+				case TraceWriter.BINARY:
+					this.readHeader();
+					this.length = this.readLength();
+					if (this.payload.length < this.length) {
+						this.payload = new byte[Math.max(this.length, this.payload.length * 2)];
+					}
+					this.in.readFully(this.payload, 0, this.length);
+					this.kind = Kind.MESSAGE;
+					this.binary = recordKind == TraceWriter.BINARY;
+					return true;
+				case TraceWriter.CLOSED:
+					this.readHeader();
+					this.length = 0;
+					this.kind = Kind.CLOSED;
+					this.binary = false;
+					return true;
+				default:
+					throw new IOException("Unknown record " + recordKind + " in trace " + this.file);
+				}
+			}
+		} catch (final EOFException e) {
+			LOG.warn("Trace ends with an incomplete record", "file", this.file);
+			return false;
+		}
+	}
+
+	private void readHeader() throws IOException {
+		this.connection = (int) this.readVarint();
+		if (this.connection < 0 || this.connection >= this.connections.size()) {
+			throw new IOException("Unknown connection " + this.connection + " in trace " + this.file);
+		}
+		this.micros += this.readVarint();
+	}
+
+	private int readLength() throws IOException {
+		final long value = this.readVarint();
+		if (value > EfiCompactCodec.MAX_MESSAGE_BYTES) {
+			throw new IOException("Record of " + value + " bytes in trace " + this.file);
+		}
+		return (int) value;
+	}
+
+	private long readVarint() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final byte b = this.in.readByte();
+			value |= (long) (b & 0x7f) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IOException("Invalid number in trace " + this.file);
+	}
+
+	/**
+	 * @return The time the trace was started, in epoch milliseconds
+	 */
+	public long getStartMillis() {
+		return this.startMillis;
+	}
+
+	public Kind getKind() {
+		return this.kind;
+	}
+
+	/**
+	 * @return The key of the connection of the current record
+	 */
+	public String getConnection() {
+		return this.connections.get(this.connection);
+	}
+
+	/**
+	 * @return When the current record arrived, in microseconds since the start
+	 *         of the trace
+	 */
+	public long getTimeMicros() {
+		return this.micros;
+	}
+
+	/**
+	 * @return true if the current message was received as a binary frame
+	 */
+	public boolean isBinary() {
+		return this.binary;
+	}
+
+	/**
+	 * @return The size of the current message as it is stored in the trace
+	 */
+	public int getPayloadLength() {
+		return this.length;
+	}
+
+	/**
+	 * @return The XML of the current message
+	 * @throws DataFormatException
+	 *             When the message could not be decoded
+	 */
+	public String getMessage() throws DataFormatException {
+		return EfiCompactCodec.decode(ByteBuffer.wrap(this.payload, 0, this.length));
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.in.close();
+	}
+
+}
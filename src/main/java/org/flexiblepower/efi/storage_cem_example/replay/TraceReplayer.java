@@ -0,0 +1,172 @@
+package org.flexiblepower.efi.storage_cem_example.replay;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import javax.xml.bind.JAXBException;
+
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageListener;
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageModel;
+import org.flexiblepower.efi.storage_cem_example.log.Log;
+import org.flexiblepower.efi.storage_cem_example.log.Logging;
+import org.flexiblepower.efi.storage_cem_example.metrics.LatencyHistogram;
+import org.flexiblepower.efi.storage_cem_example.xml.EfiStreamingDecoder;
+
+/**
+ * Replays a trace into one {@link EfiStorageModel} per connection, the way the
+ * endpoint hands the messages to its model, so a session can be reproduced
+ * without the Resource Managers. A closed connection invalidates its model.
+ *
+ * A trace is replayed as fast as possible or paced like it was recorded, see
+ * {@link #replay(TraceReader, double)}, in both cases in the order in which
+ * the messages were received. The time to decode and handle every message is
+ * recorded in microseconds.
+ *
+ * Not thread-safe, a trace is replayed on the calling thread.
+ */
+public class TraceReplayer {
+
+	private static final Log LOG = Logging.get("replay");
+
+	private static final long MAX_MICROS = TimeUnit.SECONDS.toMicros(10);
+
+	private final Map<String, EfiStorageModel> models = new LinkedHashMap<>();
+	private final List<EfiStorageListener> listeners = new ArrayList<>();
+	private final EfiStreamingDecoder decoder = new EfiStreamingDecoder();
+	private final LatencyHistogram decodeLatency = new LatencyHistogram(MAX_MICROS);
+	private final LatencyHistogram handleLatency = new LatencyHistogram(MAX_MICROS);
+	private long messages = 0;
+	private long decodeErrors = 0;
+
+	/**
+	 * Add a listener to the model of every connection, before it handles its
+	 * first message.
+	 */
+	public void addListener(EfiStorageListener listener) {
+		this.listeners.add(listener);
+		for (final EfiStorageModel model : this.models.values()) {
+			model.addListener(listener);
+		}
+	}
+
+	/**
+	 * Replay all records of a trace.
+	 *
+	 * @param speed
+	 *            How many times faster than recorded the trace is replayed, or
+	 *            {@link Double#POSITIVE_INFINITY} to replay it as fast as
+	 *            possible
+	 * @return The number of records which have been replayed
+	 * @throws IOException
+	 *             When the trace could not be read
+	 * @throws InterruptedException
+	 *             When the thread was interrupted while waiting for the next
+	 *             record
+	 */
+	public long replay(TraceReader reader, double speed) throws IOException, InterruptedException {
+		if (!(speed > 0)) {
+			throw new IllegalArgumentException("Invalid speed " + speed);
+		}
+		final boolean paced = !Double.isInfinite(speed);
+		final long start = System.nanoTime();
+		long records = 0;
+		while (reader.next()) {
+			if (paced) {
+				final long due = start + (long) (reader.getTimeMicros() * 1000 / speed);
+				final long wait = due - System.nanoTime();
+				if (wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+			}
+			final EfiStorageModel model = this.model(reader.getConnection());
+			if (reader.getKind() == TraceReader.Kind.CLOSED) {
+				model.invalidate();
+			} else {
+				this.handle(reader, model);
+			}
+			records++;
+		}
+		return records;
+	}
+
+	private EfiStorageModel model(String connection) {
+		EfiStorageModel model = this.models.get(connection);
+		if (model == null) {
+			model = new EfiStorageModel();
+			for (final EfiStorageListener listener : this.listeners) {
+				model.addListener(listener);
+			}
+			this.models.put(connection, model);
+		}
+		return model;
+	}
+
+	private void handle(TraceReader reader, EfiStorageModel model) {
+		this.messages++;
+		final long start = System.nanoTime();
+		final EfiStreamingDecoder.Kind kind;
+		try {
+			kind = this.decoder.decode(reader.getMessage());
+		} catch (final DataFormatException | JAXBException e) {
+			this.decodeErrors++;
+			LOG.warn("Could not decode message", "connection", reader.getConnection(), "micros",
+					reader.getTimeMicros(), "error", e.getMessage());
+			return;
+		}
+		final long decoded = System.nanoTime();
+		this.decodeLatency.record((decoded - start) / 1000);
+		switch (kind) {
+		case MEASUREMENT:
+			model.handleMeasurement(this.decoder.getMeasurement());
+			break;
+		case STORAGE_STATUS:
+			model.handleStorageStatus(this.decoder.getStorageStatus());
+			break;
+		default:
+			model.handleEfiMessage(this.decoder.getMessage());
+			break;
+		}
+		this.handleLatency.record((System.nanoTime() - decoded) / 1000);
+	}
+
+	/**
+	 * @return The models by the key of their connection, in the order of their
+	 *         first message
+	 */
+	public Map<String, EfiStorageModel> getModels() {
+		return Collections.unmodifiableMap(this.models);
+	}
+
+	/**
+	 * @return The number of messages which have been replayed, including the
+	 *         ones which could not be decoded
+	 */
+	public long getMessageCount() {
+		return this.messages;
+	}
+
+	public long getDecodeErrorCount() {
+		return this.decodeErrors;
+	}
+
+	/**
+	 * @return The time to decode a message, in microseconds
+	 */
+	public LatencyHistogram getDecodeLatency() {
+		return this.decodeLatency;
+	}
+
+	/**
+	 * @return The time for a model to handle a message, in microseconds
+	 */
+	public LatencyHistogram getHandleLatency() {
+		return this.handleLatency;
+	}
+
+}
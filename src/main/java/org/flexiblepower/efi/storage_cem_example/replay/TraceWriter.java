@@ -0,0 +1,180 @@
+package org.flexiblepower.efi.storage_cem_example.replay;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import org.flexiblepower.efi.storage_cem_example.log.Log;
+import org.flexiblepower.efi.storage_cem_example.log.Logging;
+import org.flexiblepower.efi.storage_cem_example.xml.EfiCompactCodec;
+
+/**
+ * Records the messages the CEM receives, with the time they arrived, in a
+ * trace file which {@link TraceReader} reads back one record at a time.
+ *
+ * The file starts with the magic number "EFIT", the version and the start time
+ * in epoch milliseconds. Every record starts with its kind and the number of
+ * its connection, followed by the microseconds since the previous record. The
+ * first record of a connection is preceded by a record which assigns the
+ * number to its key. Text messages are stored in the {@link EfiCompactCodec}
+ * encoding, binary frames as they were received. All numbers are unsigned
+ * variable length integers, so a Measurement takes about 150 bytes.
+ *
+ * A writer can be shared by many connections. Recording stops at the first
+ * write error.
+ */
+public class TraceWriter implements Closeable {
+
+	private static final Log LOG = Logging.get("replay");
+
+	static final int MAGIC = 0x45464954; // "EFIT"
+	static final int VERSION = 1;
+	static final int CONNECTION = 1;
+	static final int TEXT = 2;
+	static final int BINARY = 3;
+	static final int CLOSED = 4;
+
+	private static final int BUFFER_BYTES = 64 * 1024;
+
+	private final Path file;
+	private final DataOutputStream out;
+	private final LongSupplier nanoClock;
+	private final long startNanos;
+
+	// Guarded by this
+	private final Map<String, Integer> connections = new HashMap<>();
+	private long lastMicros = 0;
+	private long records = 0;
+	private boolean stopped = false;
+
+	/**
+	 * Create a new trace file, replacing an existing one.
+	 */
+	public TraceWriter(Path file) throws IOException {
+		this(file, System::nanoTime);
+	}
+
+	/**
+	 * @param nanoClock
+	 *            The clock of the arrival times, such as {@link System#nanoTime()}
+	 */
+	TraceWriter(Path file, LongSupplier nanoClock) throws IOException {
+		this.file = file;
+		this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), BUFFER_BYTES));
+		this.nanoClock = nanoClock;
+		this.startNanos = nanoClock.getAsLong();
+		this.out.writeInt(MAGIC);
+		this.out.writeByte(VERSION);
+		this.out.writeLong(System.currentTimeMillis());
+	}
+
+	/**
+	 * Record a text message.
+	 *
+	 * @param connection
+	 *            The key of the connection, such as the URI of the Resource
+	 *            Manager
+	 */
+	public void text(String connection, String xml) {
+		this.write(TEXT, connection, EfiCompactCodec.encode(xml));
+	}
+
+	/**
+	 * Record a binary frame in the compact encoding. The position of the frame
+	 * is not changed.
+	 */
+	public void binary(String connection, ByteBuffer frame) {
+		this.write(BINARY, connection, frame.duplicate());
+	}
+
+	/**
+	 * Record that a connection has been closed.
+	 */
+	public void closed(String connection) {
+		this.write(CLOSED, connection, null);
+	}
+
+	private synchronized void write(int kind, String connection, ByteBuffer payload) {
+		if (this.stopped) {
+			return;
+		}
+		try {
+			Integer id = this.connections.get(connection);
+			if (id == null) {
+				id = this.connections.size();
+				this.connections.put(connection, id);
+				final byte[] key = connection.getBytes(StandardCharsets.UTF_8);
+				this.out.writeByte(CONNECTION);
+				this.writeVarint(id);
+				this.writeVarint(key.length);
+				this.out.write(key);
+			}
+			final long micros = Math.max(this.lastMicros, (this.nanoClock.getAsLong() - this.startNanos) / 1000);
+			this.out.writeByte(kind);
+			this.writeVarint(id);
+			this.writeVarint(micros - this.lastMicros);
+			this.lastMicros = micros;
+			if (payload != null) {
+				this.writeVarint(payload.remaining());
+				if (payload.hasArray()) {
+					this.out.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+				} else {
+					final byte[] bytes = new byte[payload.remaining()];
+					payload.get(bytes);
+					this.out.write(bytes);
+				}
+			}
+			this.records++;
+		} catch (final IOException e) {
+			this.stopped = true;
+			LOG.error("Could not write the trace, recording stopped", "file", this.file, "error", e.getMessage());
+		}
+	}
+
+	private void writeVarint(long value) throws IOException {
+		while ((value & ~0x7fL) != 0) {
+			this.out.writeByte((int) (value & 0x7f | 0x80));
+			value >>>= 7;
+		}
+		this.out.writeByte((int) value);
+	}
+
+	/**
+	 * @return The number of messages and closed connections recorded
+	 */
+	public synchronized long getRecordCount() {
+		return this.records;
+	}
+
+	public synchronized void flush() throws IOException {
+		this.out.flush();
+	}
+
+	/**
+	 * Write the buffered records and close the file. Later records are ignored.
+	 */
+	@Override
+	public synchronized void close() {
+		final boolean complete = !this.stopped;
+		this.stopped = true;
+		try {
+			this.out.close();
+		} catch (final IOException e) {
+			LOG.error("Could not close the trace", "file", this.file, "error", e.getMessage());
+			return;
+		}
+		if (complete) {
+			LOG.info("Closed trace", "file", this.file, "records", this.records, "connections",
+					this.connections.size());
+		}
+	}
+
+}
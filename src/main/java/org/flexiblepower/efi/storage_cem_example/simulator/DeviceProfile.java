@@ -0,0 +1,68 @@
+package org.flexiblepower.efi.storage_cem_example.simulator;
+
+/**
+ * The shape and message rates of the simulated Storage devices. All devices
+ * of one simulator share a profile.
+ */
+public final class DeviceProfile {
+
+	private final int actuators;
+	private final int runningModes;
+	private final int timers;
+	private final long statusIntervalMillis;
+	private final long measurementIntervalMillis;
+
+	/**
+	 * @param actuators
+	 *            The number of actuators of every device
+	 * @param runningModes
+	 *            The number of running modes of every actuator, at least 2
+	 * @param timers
+	 *            The number of timers of every actuator, 0 for none
+	 * @param statusIntervalMillis
+	 *            The interval of the StorageStatus messages, 0 to only send
+	 *            them when something changes
+	 * @param measurementIntervalMillis
+	 *            The interval of the Measurement messages, 0 for none
+	 */
+	public DeviceProfile(int actuators, int runningModes, int timers, long statusIntervalMillis,
+			long measurementIntervalMillis) {
+		if (actuators < 1 || runningModes < 2 || timers < 0 || statusIntervalMillis < 0
+				|| measurementIntervalMillis < 0) {
+			throw new IllegalArgumentException("Invalid device profile");
+		}
+		this.actuators = actuators;
+		this.runningModes = runningModes;
+		this.timers = timers;
+		this.statusIntervalMillis = statusIntervalMillis;
+		this.measurementIntervalMillis = measurementIntervalMillis;
+	}
+
+	public int getActuators() {
+		return this.actuators;
+	}
+
+	public int getRunningModes() {
+		return this.runningModes;
+	}
+
+	public int getTimers() {
+		return this.timers;
+	}
+
+	public long getStatusIntervalMillis() {
+		return this.statusIntervalMillis;
+	}
+
+	public long getMeasurementIntervalMillis() {
+		return this.measurementIntervalMillis;
+	}
+
+	@Override
+	public String toString() {
+		return this.actuators + " actuators, " + this.runningModes + " running modes, " + this.timers
+				+ " timers, status every " + this.statusIntervalMillis + " ms, measurement every "
+				+ this.measurementIntervalMillis + " ms";
+	}
+
+}
@@ -0,0 +1,400 @@
+package org.flexiblepower.efi.storage_cem_example.simulator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.zip.DataFormatException;
+
+import javax.xml.bind.JAXBException;
+
+import org.flexiblepower.efi.storage_cem_example.CommandLineOptions;
+import org.flexiblepower.efi.storage_cem_example.cem.SerialExecutor;
+import org.flexiblepower.efi.storage_cem_example.log.Log;
+import org.flexiblepower.efi.storage_cem_example.log.Logging;
+import org.flexiblepower.efi.storage_cem_example.simulator.WebSocketServer.Connection;
+import org.flexiblepower.efi.storage_cem_example.websocket.WireEncoding;
+import org.flexiblepower.efi.storage_cem_example.xml.EfiCompactCodec;
+import org.flexiblepower.efi.storage_cem_example.xml.EfiXmlSerializer;
+import org.flexiblepower.efi.xml.EfiMessage;
+import org.flexiblepower.efi.xml.InstructionStatus;
+import org.flexiblepower.efi.xml.InstructionStatusUpdate;
+import org.flexiblepower.efi.xml.StorageInstruction;
+
+/**
+ * Simulates many Storage Resource Managers in one JVM, to load test the CEM
+ * on a single machine without external services.
+ *
+ * Every device is served on its own path, ws://localhost:port/storage/n. When
+ * the CEM connects the device sends its registration, system description and
+ * status, and then a status and a measurement at the intervals of the
+ * {@link DeviceProfile}. The periodic messages of the devices are spread
+ * evenly over the interval. Instructions are answered with ACCEPTED or
+ * REJECTED, and at their start time with STARTED and SUCCEEDED (or ABORTED
+ * when a timer blocks the transition) followed by the new status. The
+ * compact encoding is used when the CEM offers it and the simulator is
+ * created with it.
+ *
+ * All devices share one thread for the network and a pool of threads, one
+ * per processor, to create and handle the messages. The messages of one
+ * connection are handled in order. Periodic messages are skipped while more
+ * than {@link #MAX_QUEUED_BYTES} are waiting to be sent to a connection, like a
+ * real device would drop its updates to a CEM which does not keep up.
+ */
+public class RmSimulator implements Closeable {
+
+	private static final Log LOG = Logging.get("simulator");
+
+	public static final String PATH_PREFIX = "/storage/";
+	public static final long MAX_QUEUED_BYTES = 1024 * 1024;
+
+	private static final long REPORT_INTERVAL_MILLIS = 10000;
+
+	private final DeviceProfile profile;
+	private final SimulatedStorage[] devices;
+	private final ScheduledThreadPoolExecutor scheduler;
+	private final WebSocketServer server;
+
+	private final AtomicInteger connections = new AtomicInteger();
+	private final AtomicLong messagesSent = new AtomicLong();
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLong messagesSkipped = new AtomicLong();
+	private final AtomicLong messagesReceived = new AtomicLong();
+	private final AtomicLong instructionsReceived = new AtomicLong();
+	private final AtomicLong invalidMessages = new AtomicLong();
+
+	/**
+	 * Create the devices and start serving them.
+	 *
+	 * @param port
+	 *            The port, or 0 for any free port
+	 * @param deviceCount
+	 *            The number of devices
+	 * @param profile
+	 *            The shape and message rates of every device
+	 * @param compact
+	 *            Whether the compact encoding is selected when a CEM offers it
+	 */
+	public RmSimulator(int port, int deviceCount, DeviceProfile profile, boolean compact) throws IOException {
+		this.profile = profile;
+		this.devices = new SimulatedStorage[deviceCount];
+		for (int i = 0; i < deviceCount; i++) {
+			this.devices[i] = new SimulatedStorage("sim-" + i, profile, i);
+		}
+		final AtomicInteger threadCounter = new AtomicInteger();
+		this.scheduler = new ScheduledThreadPoolExecutor(Runtime.getRuntime().availableProcessors(), r -> {
+			final Thread t = new Thread(r, "simulator-" + threadCounter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		this.scheduler.setRemoveOnCancelPolicy(true);
+		this.server = new WebSocketServer(port,
+				compact ? Collections.singletonList(WireEncoding.COMPACT.getSubprotocol())
+						: Collections.<String> emptyList(),
+				new Handler());
+		LOG.info("Simulator started", "port", this.getPort(), "devices", deviceCount, "profile", profile,
+				"compact", compact);
+	}
+
+	public int getPort() {
+		return this.server.getPort();
+	}
+
+	/**
+	 * @return The WebSocket URLs of all devices
+	 */
+	public List<URI> getUris() {
+		final List<URI> uris = new ArrayList<>(this.devices.length);
+		for (int i = 0; i < this.devices.length; i++) {
+			uris.add(URI.create("ws://localhost:" + this.getPort() + PATH_PREFIX + i));
+		}
+		return uris;
+	}
+
+	public SimulatedStorage getDevice(int index) {
+		return this.devices[index];
+	}
+
+	public int getConnectionCount() {
+		return this.connections.get();
+	}
+
+	public long getMessagesSent() {
+		return this.messagesSent.get();
+	}
+
+	public long getInstructionsReceived() {
+		return this.instructionsReceived.get();
+	}
+
+	/**
+	 * @return A one line summary of the counters
+	 */
+	public String report() {
+		return "connections=" + this.connections.get() + " sent=" + this.messagesSent.get() + " sentBytes="
+				+ this.bytesSent.get() + " skipped=" + this.messagesSkipped.get() + " received="
+				+ this.messagesReceived.get() + " instructions=" + this.instructionsReceived.get() + " invalid="
+				+ this.invalidMessages.get();
+	}
+
+	@Override
+	public void close() {
+		this.server.close();
+		this.scheduler.shutdownNow();
+	}
+
+	/**
+	 * @return The index of the device of a path, or -1 if there is none
+	 */
+	private int deviceIndex(String path) {
+		if (path == null || !path.startsWith(PATH_PREFIX)) {
+			return -1;
+		}
+		try {
+			final int index = Integer.parseInt(path.substring(PATH_PREFIX.length()));
+			return index >= 0 && index < this.devices.length ? index : -1;
+		} catch (final NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private final class Handler implements WebSocketServer.Handler {
+
+		@Override
+		public boolean accepts(String path) {
+			return RmSimulator.this.deviceIndex(path) >= 0;
+		}
+
+		@Override
+		public void onOpen(Connection connection) {
+			final int index = RmSimulator.this.deviceIndex(connection.getPath());
+			final Session session = new Session(RmSimulator.this.devices[index], connection);
+			connection.setAttachment(session);
+			RmSimulator.this.connections.incrementAndGet();
+			session.executor.execute(session::open);
+		}
+
+		@Override
+		public void onText(Connection connection, String text) {
+			final Session session = (Session) connection.getAttachment();
+			session.executor.execute(() -> session.handle(text));
+		}
+
+		@Override
+		public void onBinary(Connection connection, ByteBuffer data) {
+			final Session session = (Session) connection.getAttachment();
+			session.executor.execute(() -> {
+				try {
+					session.handle(EfiCompactCodec.decode(data));
+				} catch (final DataFormatException e) {
+					RmSimulator.this.invalidMessages.incrementAndGet();
+					LOG.debug("Could not decode message", "resource", session.device.getEfiResourceId(), "error",
+							e.getMessage());
+				}
+			});
+		}
+
+		@Override
+		public void onClose(Connection connection) {
+			RmSimulator.this.connections.decrementAndGet();
+			((Session) connection.getAttachment()).close();
+		}
+	}
+
+	/**
+	 * The connection of a CEM to one device.
+	 */
+	private final class Session {
+		private final SimulatedStorage device;
+		private final Connection connection;
+		private final boolean compact;
+		private final SerialExecutor executor = new SerialExecutor(RmSimulator.this.scheduler);
+		private final List<ScheduledFuture<?>> tasks = new ArrayList<>(2);
+		private boolean closed = false;
+
+		Session(SimulatedStorage device, Connection connection) {
+			this.device = device;
+			this.connection = connection;
+			this.compact = WireEncoding.forSubprotocol(connection.getSubprotocol()) == WireEncoding.COMPACT;
+		}
+
+		void open() {
+			for (final EfiMessage message : this.device.connected(System.currentTimeMillis())) {
+				this.send(message);
+			}
+			this.schedule(RmSimulator.this.profile.getStatusIntervalMillis(),
+					() -> this.device.storageStatus(System.currentTimeMillis()));
+			this.schedule(RmSimulator.this.profile.getMeasurementIntervalMillis(),
+					() -> this.device.measurement(System.currentTimeMillis()));
+		}
+
+		private void schedule(long intervalMillis, Supplier<EfiMessage> message) {
+			if (intervalMillis <= 0) {
+				return;
+			}
+			final long initialDelay = ThreadLocalRandom.current().nextLong(intervalMillis);
+			synchronized (this) {
+				if (!this.closed) {
+					this.tasks.add(RmSimulator.this.scheduler.scheduleAtFixedRate(() -> {
+						if (this.connection.getQueuedBytes() > MAX_QUEUED_BYTES) {
+							RmSimulator.this.messagesSkipped.incrementAndGet();
+						} else {
+							this.send(message.get());
+						}
+					}, initialDelay, intervalMillis, TimeUnit.MILLISECONDS));
+				}
+			}
+		}
+
+		synchronized void close() {
+			this.closed = true;
+			for (final ScheduledFuture<?> task : this.tasks) {
+				task.cancel(false);
+			}
+		}
+
+		void send(EfiMessage message) {
+			if (!this.connection.isOpen()) {
+				return;
+			}
+			final String xml;
+			try {
+				xml = EfiXmlSerializer.serialize(message);
+			} catch (final JAXBException e) {
+				LOG.error("Could not serialize message", e, "resource", this.device.getEfiResourceId());
+				return;
+			}
+			if (this.compact) {
+				final ByteBuffer encoded = EfiCompactCodec.encode(xml);
+				RmSimulator.this.bytesSent.addAndGet(encoded.remaining());
+				this.connection.sendBinary(encoded);
+			} else {
+				RmSimulator.this.bytesSent.addAndGet(xml.length());
+				this.connection.sendText(xml);
+			}
+			RmSimulator.this.messagesSent.incrementAndGet();
+		}
+
+		void handle(String xml) {
+			RmSimulator.this.messagesReceived.incrementAndGet();
+			final EfiMessage message;
+			try {
+				message = EfiXmlSerializer.deserialize(xml);
+			} catch (final JAXBException e) {
+				RmSimulator.this.invalidMessages.incrementAndGet();
+				LOG.debug("Could not parse message", "resource", this.device.getEfiResourceId(), "error",
+						e.getMessage());
+				return;
+			}
+			if (!(message instanceof StorageInstruction)) {
+				LOG.debug("Ignoring message", "resource", this.device.getEfiResourceId(), "type",
+						message.getClass().getSimpleName());
+				return;
+			}
+			RmSimulator.this.instructionsReceived.incrementAndGet();
+			final StorageInstruction instruction = (StorageInstruction) message;
+			final long now = System.currentTimeMillis();
+			final InstructionStatusUpdate update = this.device.accept(instruction, now);
+			this.send(update);
+			if (update.getStatus() != InstructionStatus.ACCEPTED) {
+				return;
+			}
+			final long delay = this.device.startDelay(instruction, now);
+			if (delay <= 0) {
+				this.start(instruction);
+			} else {
+				RmSimulator.this.scheduler.schedule(() -> this.executor.execute(() -> this.start(instruction)), delay,
+						TimeUnit.MILLISECONDS);
+			}
+		}
+
+		private void start(StorageInstruction instruction) {
+			for (final EfiMessage message : this.device.start(instruction, System.currentTimeMillis())) {
+				this.send(message);
+			}
+		}
+	}
+
+	public static void main(String[] arguments) throws IOException, InterruptedException {
+		final List<String> args = new ArrayList<>(Arrays.asList(arguments));
+		final boolean compact = args.remove("--compact");
+		final String levels = CommandLineOptions.removeOption(args, "--log");
+		if (levels != null) {
+			Logging.getInstance().configure(levels);
+		}
+		final String config = CommandLineOptions.removeOption(args, "--write-config");
+		final int port = intOption(args, "--port", 9500);
+		final int devices = intOption(args, "--devices", 100);
+		final int actuators = intOption(args, "--actuators", 2);
+		final int runningModes = intOption(args, "--running-modes", 4);
+		final int timers = intOption(args, "--timers", 2);
+		final int statusInterval = intOption(args, "--status-interval", 5000);
+		final int measurementInterval = intOption(args, "--measurement-interval", 1000);
+		if (!args.isEmpty()) {
+			System.err.println("Usage: java RmSimulator.class [options]");
+			System.err.println("Options: --port <port>                   port to listen on, default 9500");
+			System.err.println("         --devices <n>                   number of simulated devices, default 100");
+			System.err.println("         --actuators <n>                 actuators per device, default 2");
+			System.err.println("         --running-modes <n>             running modes per actuator, default 4");
+			System.err.println("         --timers <n>                    timers per actuator, default 2");
+			System.err.println("         --status-interval <millis>      interval of the status messages, default 5000");
+			System.err.println("         --measurement-interval <millis> interval of the measurements, default 1000");
+			System.err.println("         --compact                       select the compact encoding if offered");
+			System.err.println("         --write-config <file>           write the URLs of the devices for --config");
+			System.err.println("         --log <levels>                  log levels, such as info,simulator=debug");
+			System.exit(1);
+		}
+
+		final DeviceProfile profile;
+		try {
+			profile = new DeviceProfile(actuators, runningModes, timers, statusInterval, measurementInterval);
+		} catch (final IllegalArgumentException ex) {
+			System.err.println(ex.getMessage());
+			System.exit(1);
+			return;
+		}
+		final RmSimulator simulator = new RmSimulator(port, devices, profile, compact);
+		if (config != null) {
+			final List<String> lines = new ArrayList<>();
+			lines.add("# " + devices + " simulated Storage devices");
+			for (final URI uri : simulator.getUris()) {
+				lines.add(uri.toString());
+			}
+			Files.write(Paths.get(config), lines, StandardCharsets.UTF_8);
+			LOG.info("Wrote configuration", "file", config);
+		}
+		while (true) {
+			Thread.sleep(REPORT_INTERVAL_MILLIS);
+			LOG.info(simulator.report());
+		}
+	}
+
+	private static int intOption(List<String> args, String option, int defaultValue) {
+		final String value = CommandLineOptions.removeOption(args, option);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (final NumberFormatException ex) {
+			System.err.println("Invalid value for " + option + ": " + value);
+			System.exit(1);
+			return defaultValue;
+		}
+	}
+
+}
@@ -0,0 +1,377 @@
+package org.flexiblepower.efi.storage_cem_example.simulator;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.flexiblepower.efi.storage_cem_example.xml.XmlUtil;
+import org.flexiblepower.efi.xml.Actuator;
+import org.flexiblepower.efi.xml.ActuatorBehaviour;
+import org.flexiblepower.efi.xml.ActuatorBehaviours;
+import org.flexiblepower.efi.xml.ActuatorInstruction;
+import org.flexiblepower.efi.xml.ActuatorStatus;
+import org.flexiblepower.efi.xml.ActuatorStatuses;
+import org.flexiblepower.efi.xml.Actuators;
+import org.flexiblepower.efi.xml.CommodityEnum;
+import org.flexiblepower.efi.xml.DeviceClass;
+import org.flexiblepower.efi.xml.DeviceDescription;
+import org.flexiblepower.efi.xml.EfiMessage;
+import org.flexiblepower.efi.xml.EfiMessage.Header;
+import org.flexiblepower.efi.xml.InstructionStatus;
+import org.flexiblepower.efi.xml.InstructionStatusUpdate;
+import org.flexiblepower.efi.xml.LeakageElement;
+import org.flexiblepower.efi.xml.LeakageFunction;
+import org.flexiblepower.efi.xml.Measurement;
+import org.flexiblepower.efi.xml.Measurement.ElectricityMeasurement;
+import org.flexiblepower.efi.xml.StorageContinuousRunningMode;
+import org.flexiblepower.efi.xml.StorageContinuousRunningMode.ContinuousRunningModeElement;
+import org.flexiblepower.efi.xml.StorageContinuousRunningMode.ContinuousRunningModeElement.LowerBound;
+import org.flexiblepower.efi.xml.StorageContinuousRunningMode.ContinuousRunningModeElement.UpperBound;
+import org.flexiblepower.efi.xml.StorageDiscreteRunningMode;
+import org.flexiblepower.efi.xml.StorageDiscreteRunningMode.DiscreteRunningModeElement;
+import org.flexiblepower.efi.xml.StorageInstruction;
+import org.flexiblepower.efi.xml.StorageRegistration;
+import org.flexiblepower.efi.xml.StorageRunningModes;
+import org.flexiblepower.efi.xml.StorageStatus;
+import org.flexiblepower.efi.xml.StorageSystemDescription;
+import org.flexiblepower.efi.xml.Timer;
+import org.flexiblepower.efi.xml.TimerReferences;
+import org.flexiblepower.efi.xml.TimerReferences.TimerReference;
+import org.flexiblepower.efi.xml.TimerUpdate;
+import org.flexiblepower.efi.xml.TimerUpdates;
+import org.flexiblepower.efi.xml.Timers;
+import org.flexiblepower.efi.xml.Transition;
+import org.flexiblepower.efi.xml.Transitions;
+
+/**
+ * One simulated Storage device, such as a boiler with a number of heating
+ * elements. It only creates messages and keeps the state of the device; the
+ * {@link RmSimulator} sends them.
+ *
+ * Every actuator has the running modes 0 to n-1. Running mode 0 is off, mode m
+ * fills the storage with m * 0.01 per second and uses m kW; the even modes are
+ * discrete and the odd modes continuous. Every running mode can transition to
+ * every other one. Timer t takes (t + 1) * 10 seconds. Entering running mode m
+ * starts timer m mod timers and leaving it is blocked by that same timer, so
+ * every running mode has a minimum running time.
+ */
+public class SimulatedStorage {
+
+	private static final double LEAKAGE_RATE = 0.01;
+	private static final long TIMER_STEP_MILLIS = 10000;
+
+	private final String efiResourceId;
+	private final DeviceProfile profile;
+	private final String flexibilityUpdateId;
+
+	// Guarded by this
+	private final int[] runningMode;
+	private final double[] factor;
+	private final int[] previousRunningMode;
+	private final long[] transitionTimestamp;
+	private final long[][] timerFinishedAt;
+	private double fillLevel;
+	private long fillLevelTime;
+	private final Random random;
+
+	/**
+	 * @param efiResourceId
+	 *            The ID in the header of every message
+	 * @param profile
+	 *            The actuators, running modes and timers of the device
+	 * @param seed
+	 *            Seed for the initial fill level and the measurement noise
+	 */
+	public SimulatedStorage(String efiResourceId, DeviceProfile profile, long seed) {
+		this.efiResourceId = efiResourceId;
+		this.profile = profile;
+		this.flexibilityUpdateId = efiResourceId + "-1";
+		this.runningMode = new int[profile.getActuators()];
+		this.factor = new double[profile.getActuators()];
+		this.previousRunningMode = new int[profile.getActuators()];
+		Arrays.fill(this.previousRunningMode, -1);
+		this.transitionTimestamp = new long[profile.getActuators()];
+		this.timerFinishedAt = new long[profile.getActuators()][profile.getTimers()];
+		this.random = new Random(seed);
+		this.fillLevel = 20 + 60 * this.random.nextDouble();
+	}
+
+	public String getEfiResourceId() {
+		return this.efiResourceId;
+	}
+
+	/**
+	 * @return The running mode of an actuator
+	 */
+	public synchronized int getRunningMode(int actuatorId) {
+		return this.runningMode[actuatorId];
+	}
+
+	private Header header(long now) {
+		return new Header().withEfiResourceId(this.efiResourceId).withTimestamp(XmlUtil.date(now));
+	}
+
+	private static boolean isContinuous(int runningModeId) {
+		return runningModeId % 2 == 1;
+	}
+
+	private int timer(int runningModeId) {
+		return runningModeId % this.profile.getTimers();
+	}
+
+	/**
+	 * @return The messages a Resource Manager sends when a CEM connects: the
+	 *         registration, the system description and the current status
+	 */
+	public List<EfiMessage> connected(long now) {
+		final List<EfiMessage> messages = new ArrayList<>(3);
+		messages.add(this.storageRegistration(now));
+		messages.add(this.storageSystemDescription(now));
+		messages.add(this.storageStatus(now));
+		return messages;
+	}
+
+	StorageRegistration storageRegistration(long now) {
+		final Actuators actuators = new Actuators();
+		for (int i = 0; i < this.profile.getActuators(); i++) {
+			actuators.withActuator(new Actuator().withId(i).withLabel("Heating element " + i)
+					.withSupportedCommodity(CommodityEnum.ELECTRICITY));
+		}
+		return new StorageRegistration().withEfiVersion("2.0").withHeader(this.header(now))
+				.withInstructionProcessingDelay(XmlUtil.duration(0))
+				.withDeviceDescription(
+						new DeviceDescription().withDeviceClass(DeviceClass.WATER_HEATER).withLabel("Simulated boiler"))
+				.withFillLevelLabel("Charge").withFillLevelUnit("%").withActuators(actuators);
+	}
+
+	StorageSystemDescription storageSystemDescription(long now) {
+		final ActuatorBehaviours behaviours = new ActuatorBehaviours();
+		for (int i = 0; i < this.profile.getActuators(); i++) {
+			behaviours.withActuatorBehaviour(this.actuatorBehaviour(i));
+		}
+		return new StorageSystemDescription().withEfiVersion("2.0").withHeader(this.header(now))
+				.withFlexibilityUpdateId(this.flexibilityUpdateId).withValidFrom(XmlUtil.date(now))
+				.withActuatorBehaviours(behaviours)
+				.withLeakageBehaviour(new LeakageFunction().withLeakageElement(new LeakageElement()
+						.withFillLevelLowerBound(0).withFillLevelUpperBound(100).withLeakageRate(LEAKAGE_RATE)));
+	}
+
+	private ActuatorBehaviour actuatorBehaviour(int actuatorId) {
+		final StorageRunningModes modes = new StorageRunningModes();
+		for (int rm = 0; rm < this.profile.getRunningModes(); rm++) {
+			if (isContinuous(rm)) {
+				modes.getDiscreteRunningModeOrContinuousRunningMode()
+						.add(new StorageContinuousRunningMode().withId(rm).withLabel("Continuous " + rm)
+								.withContinuousRunningModeElement(new ContinuousRunningModeElement()
+										.withFillLevelLowerBound(0).withFillLevelUpperBound(100)
+										.withLowerBound(new LowerBound().withFillingRate(0).withElectricalPower(0d))
+										.withUpperBound(new UpperBound().withFillingRate(fillingRate(rm, 1))
+												.withElectricalPower(power(rm, 1)))));
+			} else {
+				modes.getDiscreteRunningModeOrContinuousRunningMode()
+						.add(new StorageDiscreteRunningMode().withId(rm).withLabel(rm == 0 ? "Off" : "Discrete " + rm)
+								.withDiscreteRunningModeElement(new DiscreteRunningModeElement()
+										.withFillLevelLowerBound(0).withFillLevelUpperBound(100)
+										.withFillingRate(fillingRate(rm, 1)).withElectricalPower(power(rm, 1))
+										.withRunningCost(BigDecimal.valueOf(rm))));
+			}
+		}
+		final Timers timers = new Timers();
+		for (int t = 0; t < this.profile.getTimers(); t++) {
+			timers.withTimer(new Timer().withId(t).withLabel("Minimum running time " + t)
+					.withDuration(XmlUtil.duration(timerDuration(t))));
+		}
+		final Transitions transitions = new Transitions();
+		for (int from = 0; from < this.profile.getRunningModes(); from++) {
+			for (int to = 0; to < this.profile.getRunningModes(); to++) {
+				if (from == to) {
+					continue;
+				}
+				final Transition transition = new Transition().withFromRunningModeId(from).withToRunningModeId(to)
+						.withTransitionCost(1d);
+				if (this.profile.getTimers() > 0) {
+					transition
+							.withStartTimers(new TimerReferences()
+									.withTimerReference(new TimerReference().withTimerId(this.timer(to))))
+							.withBlockingTimers(new TimerReferences()
+									.withTimerReference(new TimerReference().withTimerId(this.timer(from))));
+				}
+				transitions.withTransition(transition);
+			}
+		}
+		return new ActuatorBehaviour().withActuatorId(actuatorId).withRunningModes(modes).withTimers(timers)
+				.withTransitions(transitions);
+	}
+
+	private static long timerDuration(int timerId) {
+		return (timerId + 1) * TIMER_STEP_MILLIS;
+	}
+
+	private static double fillingRate(int runningModeId, double factor) {
+		return runningModeId * 0.01 * factor;
+	}
+
+	private static double power(int runningModeId, double factor) {
+		return runningModeId * 1000d * factor;
+	}
+
+	/**
+	 * Bring the fill level up to date.
+	 */
+	private void advance(long now) {
+		if (this.fillLevelTime != 0 && now > this.fillLevelTime) {
+			double rate = -LEAKAGE_RATE;
+			for (int i = 0; i < this.runningMode.length; i++) {
+				rate += fillingRate(this.runningMode[i], this.factor[i]);
+			}
+			this.fillLevel = Math.max(0, Math.min(100, this.fillLevel + rate * (now - this.fillLevelTime) / 1000d));
+		}
+		this.fillLevelTime = now;
+	}
+
+	public synchronized StorageStatus storageStatus(long now) {
+		this.advance(now);
+		final ActuatorStatuses statuses = new ActuatorStatuses();
+		for (int i = 0; i < this.runningMode.length; i++) {
+			final ActuatorStatus status = new ActuatorStatus().withActuatorId(i)
+					.withCurrentRunningMode(this.runningMode[i]);
+			if (isContinuous(this.runningMode[i])) {
+				status.setRunningModeFactor(this.factor[i]);
+			}
+			if (this.previousRunningMode[i] >= 0) {
+				status.withPreviousRunningModeId(this.previousRunningMode[i])
+						.withTransitionTimestamp(XmlUtil.date(this.transitionTimestamp[i]));
+			}
+			if (this.profile.getTimers() > 0) {
+				final TimerUpdates updates = new TimerUpdates();
+				for (int t = 0; t < this.profile.getTimers(); t++) {
+					updates.withTimerUpdate(
+							new TimerUpdate().withTimerId(t).withFinishedAt(XmlUtil.date(this.timerFinishedAt[i][t])));
+				}
+				status.setTimerUpdates(updates);
+			}
+			statuses.withActuatorStatus(status);
+		}
+		return new StorageStatus().withEfiVersion("2.0").withHeader(this.header(now))
+				.withFlexibilityUpdateId(this.flexibilityUpdateId).withValidFrom(XmlUtil.date(now))
+				.withCurrentFillLevel(this.fillLevel).withActuatorStatuses(statuses);
+	}
+
+	/**
+	 * @return The electrical power of all actuators, with a little noise
+	 */
+	public synchronized Measurement measurement(long now) {
+		double power = 0;
+		for (int i = 0; i < this.runningMode.length; i++) {
+			power += power(this.runningMode[i], this.factor[i]);
+		}
+		if (power > 0) {
+			power += this.random.nextGaussian() * 10;
+		}
+		return new Measurement().withEfiVersion("2.0").withHeader(this.header(now))
+				.withMeasurementTimestamp(XmlUtil.date(now))
+				.withElectricityMeasurement(new ElectricityMeasurement().withPower(power));
+	}
+
+	private InstructionStatusUpdate statusUpdate(StorageInstruction instruction, InstructionStatus status,
+			String debugInformation, long now) {
+		return new InstructionStatusUpdate().withEfiVersion("2.0").withHeader(this.header(now))
+				.withInstructionId(instruction.getInstructionId()).withStatus(status)
+				.withDebugInformation(debugInformation);
+	}
+
+	/**
+	 * Check whether an instruction refers to existing actuators and running
+	 * modes. Whether the transitions are allowed is checked when the
+	 * instruction starts.
+	 *
+	 * @return An update with status ACCEPTED or REJECTED
+	 */
+	public InstructionStatusUpdate accept(StorageInstruction instruction, long now) {
+		final String problem = this.validate(instruction);
+		return this.statusUpdate(instruction, problem == null ? InstructionStatus.ACCEPTED : InstructionStatus.REJECTED,
+				problem, now);
+	}
+
+	private String validate(StorageInstruction instruction) {
+		if (!this.flexibilityUpdateId.equals(instruction.getFlexibilityUpdateId())) {
+			return "Unknown flexibility update " + instruction.getFlexibilityUpdateId();
+		}
+		if (instruction.getActuatorInstructions() == null
+				|| instruction.getActuatorInstructions().getActuatorInstruction().isEmpty()) {
+			return "No actuator instructions";
+		}
+		for (final ActuatorInstruction ai : instruction.getActuatorInstructions().getActuatorInstruction()) {
+			if (ai.getActuatorId() < 0 || ai.getActuatorId() >= this.profile.getActuators()) {
+				return "Unknown actuator " + ai.getActuatorId();
+			}
+			final int rm = ai.getRunningModeId();
+			if (rm < 0 || rm >= this.profile.getRunningModes()) {
+				return "Unknown running mode " + rm + " of actuator " + ai.getActuatorId();
+			}
+			if (isContinuous(rm)) {
+				final Double f = ai.getRunningModeFactor();
+				if (f == null || f < 0 || f > 1) {
+					return "Invalid factor " + f + " for running mode " + rm;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The milliseconds until the latest start time of the actuator
+	 *         instructions, 0 if they should start now
+	 */
+	public long startDelay(StorageInstruction instruction, long now) {
+		long start = now;
+		for (final ActuatorInstruction ai : instruction.getActuatorInstructions().getActuatorInstruction()) {
+			if (ai.getStartTime() != null) {
+				start = Math.max(start, XmlUtil.millis(ai.getStartTime()));
+			}
+		}
+		return start - now;
+	}
+
+	/**
+	 * Carry out an accepted instruction. All actuator instructions are applied,
+	 * or none when a transition is not allowed because a blocking timer is still
+	 * running.
+	 *
+	 * @return The status updates STARTED and SUCCEEDED followed by the new
+	 *         status, or only an ABORTED update
+	 */
+	public synchronized List<EfiMessage> start(StorageInstruction instruction, long now) {
+		final List<ActuatorInstruction> instructions = instruction.getActuatorInstructions().getActuatorInstruction();
+		for (final ActuatorInstruction ai : instructions) {
+			final int actuator = ai.getActuatorId();
+			final int from = this.runningMode[actuator];
+			if (from != ai.getRunningModeId() && this.profile.getTimers() > 0
+					&& this.timerFinishedAt[actuator][this.timer(from)] > now) {
+				return Arrays.asList(this.statusUpdate(instruction, InstructionStatus.ABORTED,
+						"Transition from running mode " + from + " to " + ai.getRunningModeId() + " of actuator "
+								+ actuator + " is blocked",
+						now));
+			}
+		}
+		this.advance(now);
+		for (final ActuatorInstruction ai : instructions) {
+			final int actuator = ai.getActuatorId();
+			final int to = ai.getRunningModeId();
+			if (to != this.runningMode[actuator]) {
+				this.previousRunningMode[actuator] = this.runningMode[actuator];
+				this.transitionTimestamp[actuator] = now;
+				this.runningMode[actuator] = to;
+				if (this.profile.getTimers() > 0) {
+					this.timerFinishedAt[actuator][this.timer(to)] = now + timerDuration(this.timer(to));
+				}
+			}
+			this.factor[actuator] = isContinuous(to) ? ai.getRunningModeFactor() : 1;
+		}
+		return Arrays.asList(this.statusUpdate(instruction, InstructionStatus.STARTED, null, now),
+				this.statusUpdate(instruction, InstructionStatus.SUCCEEDED, null, now), this.storageStatus(now));
+	}
+
+}
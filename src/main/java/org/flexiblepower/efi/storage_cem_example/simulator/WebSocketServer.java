@@ -0,0 +1,573 @@
+package org.flexiblepower.efi.storage_cem_example.simulator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.flexiblepower.efi.storage_cem_example.log.Log;
+import org.flexiblepower.efi.storage_cem_example.log.Logging;
+
+/**
+ * A small WebSocket server (RFC 6455), just enough to simulate Resource
+ * Managers on the local machine.
+ *
+ * All connections are served by one thread with non-blocking sockets, so
+ * thousands of connections do not need thousands of threads. The handler is
+ * called on that thread and should hand off any real work. Messages can be
+ * sent from any thread; they are queued per connection and written by the
+ * server thread. Fragmented messages, ping and close are supported, extensions
+ * are not. The server only listens on the loopback interface.
+ */
+public class WebSocketServer implements Closeable {
+
+	private static final Log LOG = Logging.get("simulator");
+
+	private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	private static final int MAX_HANDSHAKE_BYTES = 8192;
+	/** Incoming messages larger than this close the connection */
+	public static final int MAX_MESSAGE_BYTES = 16 * 1024 * 1024;
+
+	private static final int OPCODE_CONTINUATION = 0x0;
+	private static final int OPCODE_TEXT = 0x1;
+	private static final int OPCODE_BINARY = 0x2;
+	private static final int OPCODE_CLOSE = 0x8;
+	private static final int OPCODE_PING = 0x9;
+	private static final int OPCODE_PONG = 0xA;
+
+	private static final int CLOSE_PROTOCOL_ERROR = 1002;
+	private static final int CLOSE_TOO_BIG = 1009;
+
+	/**
+	 * Receives the events of all connections, on the server thread.
+	 */
+	public interface Handler {
+
+		/**
+		 * @return false to refuse a connection to a path with 404 Not Found
+		 */
+		default boolean accepts(String path) {
+			return true;
+		}
+
+		void onOpen(Connection connection);
+
+		void onText(Connection connection, String text);
+
+		/**
+		 * @param data
+		 *            The message, which is not used by the server anymore
+		 */
+		void onBinary(Connection connection, ByteBuffer data);
+
+		void onClose(Connection connection);
+	}
+
+	private final Handler handler;
+	private final List<String> subprotocols;
+	private final ServerSocketChannel serverChannel;
+	private final Selector selector;
+	private final Thread thread;
+	private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+	private final Map<SocketChannel, Connection> connections = new HashMap<>();
+	private volatile boolean running = true;
+
+	/**
+	 * Start serving.
+	 *
+	 * @param port
+	 *            The port, or 0 for any free port
+	 * @param subprotocols
+	 *            The subprotocols the server supports; of those a client offers
+	 *            the first one in this list is selected
+	 * @param handler
+	 *            Receives the events of all connections
+	 */
+	public WebSocketServer(int port, List<String> subprotocols, Handler handler) throws IOException {
+		this.handler = handler;
+		this.subprotocols = subprotocols;
+		this.selector = Selector.open();
+		this.serverChannel = ServerSocketChannel.open();
+		this.serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+		this.serverChannel.configureBlocking(false);
+		this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+		this.thread = new Thread(this::run, "simulator-io");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * @return The port the server listens on, useful when it was created with
+	 *         port 0
+	 */
+	public int getPort() {
+		return this.serverChannel.socket().getLocalPort();
+	}
+
+	private void run() {
+		while (this.running) {
+			try {
+				this.selector.select();
+				Connection connection;
+				while ((connection = this.pendingWrites.poll()) != null) {
+					connection.writeRequested = false;
+					if (connection.key.isValid()) {
+						connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+					}
+				}
+				for (final SelectionKey key : this.selector.selectedKeys()) {
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						this.accept();
+						continue;
+					}
+					final Connection c = (Connection) key.attachment();
+					try {
+						if (key.isReadable()) {
+							c.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							c.write();
+						}
+					} catch (final IOException | RuntimeException e) {
+						LOG.debug("Connection failed", "path", c.path, "error", e);
+						c.closeChannel();
+					}
+				}
+				this.selector.selectedKeys().clear();
+			} catch (final IOException e) {
+				LOG.error("Error in WebSocket server", e);
+			}
+		}
+		for (final Connection c : this.connections.values().toArray(new Connection[0])) {
+			c.closeChannel();
+		}
+		try {
+			this.selector.close();
+			this.serverChannel.close();
+		} catch (final IOException e) {
+			LOG.warn("Error while closing WebSocket server", "error", e.getMessage());
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = this.serverChannel.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			final Connection connection = new Connection(this, channel);
+			connection.key = channel.register(this.selector, SelectionKey.OP_READ, connection);
+			this.connections.put(channel, connection);
+		}
+	}
+
+	/**
+	 * Stop serving and close all connections without a close handshake.
+	 */
+	@Override
+	public void close() {
+		this.running = false;
+		this.selector.wakeup();
+	}
+
+	private static String acceptKey(String key) {
+		try {
+			final MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			return Base64.getEncoder()
+					.encodeToString(sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1)));
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not available", e);
+		}
+	}
+
+	/**
+	 * One WebSocket connection. The methods to send can be called from any
+	 * thread.
+	 */
+	public static final class Connection {
+		private final WebSocketServer server;
+		private final SocketChannel channel;
+		private SelectionKey key;
+		private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+		private final AtomicLong queuedBytes = new AtomicLong();
+		private volatile boolean writeRequested = false;
+		private volatile boolean closing = false;
+		private volatile boolean closed = false;
+		private volatile String path;
+		private volatile String subprotocol;
+		private volatile Object attachment;
+
+		// Only used by the server thread
+		private ByteBuffer in = ByteBuffer.allocate(4096);
+		private boolean open = false;
+		private int messageOpcode = -1;
+		private byte[] message = new byte[0];
+		private int messageLength = 0;
+
+		Connection(WebSocketServer server, SocketChannel channel) {
+			this.server = server;
+			this.channel = channel;
+		}
+
+		/**
+		 * @return The path of the request, such as /storage/1
+		 */
+		public String getPath() {
+			return this.path;
+		}
+
+		/**
+		 * @return The selected subprotocol, or null if there is none
+		 */
+		public String getSubprotocol() {
+			return this.subprotocol;
+		}
+
+		public Object getAttachment() {
+			return this.attachment;
+		}
+
+		public void setAttachment(Object attachment) {
+			this.attachment = attachment;
+		}
+
+		public boolean isOpen() {
+			return this.open && !this.closing && !this.closed;
+		}
+
+		/**
+		 * @return The number of bytes which have been queued but not written yet,
+		 *         which grows when the client reads slower than it is sent to
+		 */
+		public long getQueuedBytes() {
+			return this.queuedBytes.get();
+		}
+
+		public void sendText(String text) {
+			this.send(OPCODE_TEXT, ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+		}
+
+		public void sendBinary(ByteBuffer data) {
+			this.send(OPCODE_BINARY, data);
+		}
+
+		/**
+		 * Start the close handshake.
+		 */
+		public void close() {
+			this.sendClose(1000);
+		}
+
+		private void sendClose(int status) {
+			if (this.closing || this.closed) {
+				return;
+			}
+			final ByteBuffer payload = ByteBuffer.allocate(2);
+			payload.putShort((short) status).flip();
+			this.send(OPCODE_CLOSE, payload);
+			this.closing = true;
+		}
+
+		private void send(int opcode, ByteBuffer payload) {
+			if (this.closing || this.closed) {
+				return;
+			}
+			final int length = payload.remaining();
+			final ByteBuffer frame = ByteBuffer.allocate(length + 10);
+			frame.put((byte) (0x80 | opcode));
+			if (length < 126) {
+				frame.put((byte) length);
+			} else if (length < 65536) {
+				frame.put((byte) 126).putShort((short) length);
+			} else {
+				frame.put((byte) 127).putLong(length);
+			}
+			frame.put(payload).flip();
+			this.enqueue(frame);
+		}
+
+		private void enqueue(ByteBuffer bytes) {
+			this.queuedBytes.addAndGet(bytes.remaining());
+			this.outbound.add(bytes);
+			if (!this.writeRequested) {
+				this.writeRequested = true;
+				this.server.pendingWrites.add(this);
+				this.server.selector.wakeup();
+			}
+		}
+
+		void write() throws IOException {
+			ByteBuffer head;
+			while ((head = this.outbound.peek()) != null) {
+				final int written = this.channel.write(head);
+				this.queuedBytes.addAndGet(-written);
+				if (head.hasRemaining()) {
+					return;
+				}
+				this.outbound.poll();
+			}
+			this.key.interestOps(SelectionKey.OP_READ);
+			if (this.closing) {
+				this.closeChannel();
+			}
+		}
+
+		void read() throws IOException {
+			if (!this.in.hasRemaining()) {
+				final ByteBuffer larger = ByteBuffer.allocate(this.in.capacity() * 2);
+				this.in.flip();
+				this.in = larger.put(this.in);
+			}
+			final int n = this.channel.read(this.in);
+			if (n < 0) {
+				this.closeChannel();
+				return;
+			}
+			this.in.flip();
+			try {
+				if (!this.open) {
+					this.handshake();
+				}
+				if (this.open) {
+					this.frames();
+				}
+			} finally {
+				this.in.compact();
+			}
+		}
+
+		private void handshake() {
+			final int end = indexOfEmptyLine(this.in);
+			if (end < 0) {
+				if (this.in.limit() >= MAX_HANDSHAKE_BYTES) {
+					this.respond("431 Request Header Fields Too Large");
+				}
+				return;
+			}
+			final byte[] bytes = new byte[end];
+			this.in.get(bytes);
+			final String[] lines = new String(bytes, StandardCharsets.ISO_8859_1).split("\r\n");
+			final String[] requestLine = lines[0].split(" ");
+			final Map<String, String> headers = new HashMap<>();
+			for (int i = 1; i < lines.length; i++) {
+				final int colon = lines[i].indexOf(':');
+				if (colon > 0) {
+					final String name = lines[i].substring(0, colon).trim().toLowerCase();
+					final String value = lines[i].substring(colon + 1).trim();
+					headers.merge(name, value, (a, b) -> a + ", " + b);
+				}
+			}
+			final String key = headers.get("sec-websocket-key");
+			if (requestLine.length != 3 || !"GET".equals(requestLine[0]) || key == null
+					|| !"websocket".equalsIgnoreCase(headers.get("upgrade"))
+					|| !"13".equals(headers.get("sec-websocket-version"))) {
+				this.respond("400 Bad Request");
+				return;
+			}
+			this.path = requestLine[1];
+			if (!this.server.handler.accepts(this.path)) {
+				this.respond("404 Not Found");
+				return;
+			}
+			this.subprotocol = this.selectSubprotocol(headers.get("sec-websocket-protocol"));
+			final StringBuilder response = new StringBuilder("HTTP/1.1 101 Switching Protocols\r\n")
+					.append("Upgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Accept: ")
+					.append(acceptKey(key)).append("\r\n");
+			if (this.subprotocol != null) {
+				response.append("Sec-WebSocket-Protocol: ").append(this.subprotocol).append("\r\n");
+			}
+			this.enqueue(ByteBuffer.wrap(response.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1)));
+			this.open = true;
+			this.server.handler.onOpen(this);
+		}
+
+		private String selectSubprotocol(String offered) {
+			if (offered == null) {
+				return null;
+			}
+			final List<String> offers = Arrays.asList(offered.split("\\s*,\\s*"));
+			for (final String supported : this.server.subprotocols) {
+				if (offers.contains(supported)) {
+					return supported;
+				}
+			}
+			return null;
+		}
+
+		private void respond(String status) {
+			this.enqueue(ByteBuffer.wrap(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+					.getBytes(StandardCharsets.ISO_8859_1)));
+			this.closing = true;
+			this.in.position(this.in.limit());
+		}
+
+		/**
+		 * @return The position after the empty line which ends the request
+		 *         headers, or -1 if it has not been received yet
+		 */
+		private static int indexOfEmptyLine(ByteBuffer buffer) {
+			for (int i = buffer.position(); i + 3 < buffer.limit(); i++) {
+				if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n' && buffer.get(i + 2) == '\r'
+						&& buffer.get(i + 3) == '\n') {
+					return i + 4 - buffer.position();
+				}
+			}
+			return -1;
+		}
+
+		private void frames() {
+			while (!this.closed && this.in.remaining() >= 2) {
+				final int start = this.in.position();
+				final int b0 = this.in.get(start) & 0xff;
+				final int b1 = this.in.get(start + 1) & 0xff;
+				final boolean fin = (b0 & 0x80) != 0;
+				final int opcode = b0 & 0x0f;
+				if ((b1 & 0x80) == 0 || (b0 & 0x70) != 0) {
+					// Clients must mask their frames, and no extensions are negotiated
+					this.protocolError(CLOSE_PROTOCOL_ERROR);
+					return;
+				}
+				long length = b1 & 0x7f;
+				int header = 2;
+				if (length == 126) {
+					if (this.in.remaining() < 4) {
+						return;
+					}
+					length = this.in.getShort(start + 2) & 0xffff;
+					header = 4;
+				} else if (length == 127) {
+					if (this.in.remaining() < 10) {
+						return;
+					}
+					length = this.in.getLong(start + 2);
+					header = 10;
+				}
+				if (length < 0 || length + this.messageLength > MAX_MESSAGE_BYTES) {
+					this.protocolError(CLOSE_TOO_BIG);
+					return;
+				}
+				header += 4;
+				if (this.in.remaining() < header + length) {
+					if (this.in.capacity() < header + length) {
+						// Make room for the whole frame
+						final ByteBuffer larger = ByteBuffer.allocate((int) (header + length));
+						larger.put(this.in);
+						larger.flip();
+						this.in = larger;
+					}
+					return;
+				}
+				final byte[] payload = new byte[(int) length];
+				for (int i = 0; i < payload.length; i++) {
+					payload[i] = (byte) (this.in.get(start + header + i) ^ this.in.get(start + header - 4 + (i & 3)));
+				}
+				this.in.position(start + header + payload.length);
+				this.frame(fin, opcode, payload);
+			}
+		}
+
+		private void frame(boolean fin, int opcode, byte[] payload) {
+			switch (opcode) {
+			case OPCODE_PING:
+				this.send(OPCODE_PONG, ByteBuffer.wrap(payload));
+				return;
+			case OPCODE_PONG:
+				return;
+			case OPCODE_CLOSE:
+				this.sendClose(payload.length >= 2 ? ((payload[0] & 0xff) << 8 | payload[1] & 0xff) : 1000);
+				return;
+			case OPCODE_TEXT:
+			case OPCODE_BINARY:
+				if (this.messageOpcode >= 0) {
+					this.protocolError(CLOSE_PROTOCOL_ERROR);
+					return;
+				}
+				this.messageOpcode = opcode;
+				break;
+			case OPCODE_CONTINUATION:
+				if (this.messageOpcode < 0) {
+					this.protocolError(CLOSE_PROTOCOL_ERROR);
+					return;
+				}
+				break;
+			default:
+				this.protocolError(CLOSE_PROTOCOL_ERROR);
+				return;
+			}
+			final byte[] data;
+			if (fin && this.messageLength == 0) {
+				data = payload;
+			} else {
+				if (this.messageLength + payload.length > this.message.length) {
+					this.message = Arrays.copyOf(this.message,
+							Math.max(this.messageLength + payload.length, this.message.length * 2));
+				}
+				System.arraycopy(payload, 0, this.message, this.messageLength, payload.length);
+				this.messageLength += payload.length;
+				if (!fin) {
+					return;
+				}
+				data = Arrays.copyOf(this.message, this.messageLength);
+				this.message = new byte[0];
+				this.messageLength = 0;
+			}
+			final int type = this.messageOpcode;
+			this.messageOpcode = -1;
+			if (type == OPCODE_TEXT) {
+				this.server.handler.onText(this, new String(data, StandardCharsets.UTF_8));
+			} else {
+				this.server.handler.onBinary(this, ByteBuffer.wrap(data));
+			}
+		}
+
+		private void protocolError(int status) {
+			LOG.debug("Closing connection after a protocol error", "path", this.path, "status", status);
+			this.sendClose(status);
+			this.in.position(this.in.limit());
+		}
+
+		void closeChannel() {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+			this.server.connections.remove(this.channel);
+			this.key.cancel();
+			try {
+				this.channel.close();
+			} catch (final IOException e) {
+				// Nothing left to do
+			}
+			if (this.open) {
+				this.server.handler.onClose(this);
+			}
+		}
+	}
+
+	/**
+	 * @return The number of open connections, for tests
+	 */
+	int getConnectionCount() {
+		return Collections.unmodifiableMap(this.connections).size();
+	}
+
+}
@@ -0,0 +1,47 @@
+package org.flexiblepower.efi.storage_cem_example.websocket;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with jitter for reconnect attempts. The delay doubles
+ * with every attempt up to a maximum. The actual delay is chosen randomly
+ * between half and all of it, so many connections which were lost at the
+ * same moment do not reconnect all at the same moment.
+ */
+public class Backoff {
+
+	private final long initialDelayMillis;
+	private final long maxDelayMillis;
+	private int attempts = 0;
+
+	public Backoff(long initialDelayMillis, long maxDelayMillis) {
+		if (initialDelayMillis < 1 || maxDelayMillis < initialDelayMillis) {
+			throw new IllegalArgumentException("Invalid delays " + initialDelayMillis + ", " + maxDelayMillis);
+		}
+		this.initialDelayMillis = initialDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	/**
+	 * @return The delay before the next attempt, in milliseconds
+	 */
+	public synchronized long nextDelayMillis() {
+		long delay = this.initialDelayMillis;
+		for (int i = 0; i < this.attempts && delay < this.maxDelayMillis; i++) {
+			delay = delay > this.maxDelayMillis / 2 ? this.maxDelayMillis : delay * 2;
+		}
+		if (delay < this.maxDelayMillis) {
+			this.attempts++;
+		}
+		final long half = delay / 2;
+		return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+	}
+
+	/**
+	 * Start again at the initial delay, after a successful attempt.
+	 */
+	public synchronized void reset() {
+		this.attempts = 0;
+	}
+
+}
@@ -8,11 +8,35 @@ import org.flexiblepower.efi.xml.EfiMessage;
 public interface EfiMessageSender {
 
 	/**
-	 * Send an EFI message to the ResourceManager.
+	 * Send an EFI message to the ResourceManager. The message may be sent
+	 * asynchronously; this method does not wait until it has been sent.
 	 *
 	 * @param efiMessage
 	 *            The message to send
+	 * @return false if the message was rejected because too many messages are
+	 *         waiting to be sent
 	 */
-	void sendEfiMessage(EfiMessage efiMessage);
+	boolean sendEfiMessage(EfiMessage efiMessage);
+
+	/**
+	 * Send an EFI message to the ResourceManager, and report when it is
+	 * actually sent. A sender which replaces or drops messages before sending
+	 * them does not run the callback for those messages. By default the
+	 * message counts as sent when it has been accepted.
+	 *
+	 * @param efiMessage
+	 *            The message to send
+	 * @param dispatched
+	 *            Runs when the message is sent, possibly on another thread
+	 * @return false if the message was rejected because too many messages are
+	 *         waiting to be sent
+	 */
+	default boolean sendEfiMessage(EfiMessage efiMessage, Runnable dispatched) {
+		if (!this.sendEfiMessage(efiMessage)) {
+			return false;
+		}
+		dispatched.run();
+		return true;
+	}
 
 }
\ No newline at end of file
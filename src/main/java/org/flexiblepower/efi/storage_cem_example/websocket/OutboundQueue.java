@@ -0,0 +1,415 @@
+package org.flexiblepower.efi.storage_cem_example.websocket;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.xml.bind.JAXBException;
+
+import org.flexiblepower.efi.storage_cem_example.log.Log;
+import org.flexiblepower.efi.storage_cem_example.log.Logging;
+import org.flexiblepower.efi.storage_cem_example.metrics.CemMetrics;
+import org.flexiblepower.efi.storage_cem_example.xml.EfiXmlSerializer;
+import org.flexiblepower.efi.xml.ActuatorInstruction;
+import org.flexiblepower.efi.xml.EfiMessage;
+import org.flexiblepower.efi.xml.StorageInstruction;
+
+/**
+ * Bounded queue for the outgoing messages of one connection.
+ *
+ * {@link #offer(EfiMessage)} only queues the message and returns immediately.
+ * The queue is drained on an executor: all queued messages are taken in one
+ * batch, serialized and sent one after the other. The next message is only
+ * sent once the previous send has completed, so a Resource Manager which
+ * reads slowly makes the queue grow instead of the buffers of the WebSocket
+ * implementation.
+ *
+ * A StorageInstruction for a single actuator replaces a queued instruction
+ * for the same actuator which has not been sent yet, since the Resource
+ * Manager would only execute the newest one anyway. A message can carry a
+ * callback which runs when it is handed to the transport, so a message which
+ * is replaced, rejected or dropped is never reported as sent.
+ *
+ * The capacity limits the number of outstanding messages: queued messages
+ * plus messages which have been taken for sending but have not completed yet.
+ * When it is reached new messages are rejected. The queue reports backpressure
+ * when three quarters of the capacity is in use, until it has drained to a
+ * quarter.
+ *
+ * While the connection is down the queue is paused: messages are kept, and
+ * sent when the queue is resumed. Messages which have been waiting longer
+ * than the maximum age are dropped instead, since the Resource Manager has
+ * most likely moved on in the meantime.
+ */
+public class OutboundQueue {
+
+	private static final Log LOG = Logging.get("websocket");
+
+	/**
+	 * The transport of a connection. Implementations must eventually call the
+	 * handler exactly once, also when sending fails.
+	 */
+	public interface TextSink {
+		void sendText(String text, SendHandler handler);
+	}
+
+	private static final int NO_ACTUATOR = Integer.MIN_VALUE;
+
+	private final TextSink sink;
+	private final Executor executor;
+	private final int capacity;
+	private final int highWatermark;
+	private final int lowWatermark;
+	private final long maxAgeMillis;
+
+	// Guarded by this
+	private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+	private final Map<Integer, Pending> pendingByActuator = new HashMap<>();
+	private int outstanding = 0;
+	private boolean draining = false;
+	private boolean paused = false;
+	private volatile boolean backpressure = false;
+
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+
+	/**
+	 * @param sink
+	 *            Sends the serialized messages
+	 * @param executor
+	 *            Executor on which messages are serialized and sent, which can be
+	 *            shared by many queues
+	 * @param capacity
+	 *            The maximum number of outstanding messages
+	 * @param maxAgeMillis
+	 *            How long a message may wait to be sent
+	 */
+	public OutboundQueue(TextSink sink, Executor executor, int capacity, long maxAgeMillis) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		this.sink = sink;
+		this.executor = executor;
+		this.capacity = capacity;
+		this.highWatermark = Math.max(1, capacity * 3 / 4);
+		this.lowWatermark = capacity / 4;
+		this.maxAgeMillis = maxAgeMillis;
+	}
+
+	/**
+	 * Queue a message to be sent.
+	 *
+	 * @return false if the message was rejected because the queue is full
+	 */
+	public boolean offer(EfiMessage message) {
+		return this.offer(message, null);
+	}
+
+	/**
+	 * Queue a message to be sent.
+	 *
+	 * @param dispatched
+	 *            Runs on the executor just before the message is handed to the
+	 *            transport, or null. It does not run when the message is
+	 *            replaced by a newer one or dropped.
+	 * @return false if the message was rejected because the queue is full
+	 */
+	public boolean offer(EfiMessage message, Runnable dispatched) {
+		final int actuatorId = singleActuatorId(message);
+		final long now = System.currentTimeMillis();
+		final boolean startDrain;
+		synchronized (this) {
+			if (actuatorId != NO_ACTUATOR) {
+				final Pending superseded = this.pendingByActuator.get(actuatorId);
+				if (superseded != null) {
+					superseded.message = message;
+					superseded.dispatched = dispatched;
+					superseded.queuedAt = now;
+					this.coalesced.incrementAndGet();
+					return true;
+				}
+			}
+			if (this.outstanding >= this.capacity) {
+				this.rejected.incrementAndGet();
+				CemMetrics.SEND_REJECTED.increment();
+				return false;
+			}
+			final Pending pending = new Pending(message, dispatched, actuatorId, now);
+			this.queue.add(pending);
+			if (actuatorId != NO_ACTUATOR) {
+				this.pendingByActuator.put(actuatorId, pending);
+			}
+			this.outstanding++;
+			CemMetrics.OUTBOUND_OUTSTANDING.increment();
+			if (this.outstanding >= this.highWatermark && !this.backpressure) {
+				this.backpressure = true;
+				LOG.warn("Outbound queue is filling up", "outstanding", this.outstanding);
+			}
+			startDrain = this.startDrain();
+		}
+		if (startDrain) {
+			this.executor.execute(this::drain);
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the caller has to start draining the queue
+	 */
+	private boolean startDrain() {
+		if (this.draining || this.paused || this.queue.isEmpty()) {
+			return false;
+		}
+		this.draining = true;
+		return true;
+	}
+
+	/**
+	 * Stop sending messages, for example because the connection has been lost.
+	 * The message which is being sent when this method is called still
+	 * completes, successfully or not.
+	 */
+	public synchronized void pause() {
+		this.paused = true;
+	}
+
+	/**
+	 * Start sending messages again, messages which have become too old are
+	 * dropped.
+	 */
+	public void resume() {
+		final boolean startDrain;
+		synchronized (this) {
+			this.paused = false;
+			startDrain = this.startDrain();
+		}
+		if (startDrain) {
+			this.executor.execute(this::drain);
+		}
+	}
+
+	/**
+	 * @return The ID of the actuator if the message is a StorageInstruction for
+	 *         exactly one actuator, otherwise {@link #NO_ACTUATOR}
+	 */
+	private static int singleActuatorId(EfiMessage message) {
+		if (message instanceof StorageInstruction) {
+			final StorageInstruction instruction = (StorageInstruction) message;
+			if (instruction.getActuatorInstructions() != null) {
+				final List<ActuatorInstruction> list = instruction.getActuatorInstructions()
+						.getActuatorInstruction();
+				if (list.size() == 1) {
+					return list.get(0).getActuatorId();
+				}
+			}
+		}
+		return NO_ACTUATOR;
+	}
+
+	private void drain() {
+		final List<Pending> batch;
+		int dropped = 0;
+		synchronized (this) {
+			if (this.queue.isEmpty() || this.paused) {
+				this.draining = false;
+				return;
+			}
+			final long oldest = System.currentTimeMillis() - this.maxAgeMillis;
+			batch = new ArrayList<>(this.queue.size());
+			for (final Pending pending : this.queue) {
+				if (pending.queuedAt < oldest) {
+					dropped++;
+				} else {
+					batch.add(pending);
+				}
+			}
+			this.queue.clear();
+			this.pendingByActuator.clear();
+		}
+		if (dropped > 0) {
+			LOG.warn("Dropped EFI messages which have waited too long to be sent", "dropped", dropped);
+			this.expired.addAndGet(dropped);
+			CemMetrics.SEND_EXPIRED.add(dropped);
+			for (int i = 0; i < dropped; i++) {
+				this.release();
+			}
+		}
+		this.sendNext(batch, 0);
+	}
+
+	private void sendNext(List<Pending> batch, int index) {
+		if (index == batch.size()) {
+			this.drain();
+			return;
+		}
+		if (this.requeueIfPaused(batch, index)) {
+			return;
+		}
+		final Pending pending = batch.get(index);
+		final EfiMessage message = pending.message;
+		final String text;
+		final long start = System.nanoTime();
+		try {
+			text = EfiXmlSerializer.serialize(message);
+			CemMetrics.SERIALIZE.recordSince(start);
+		} catch (final JAXBException e) {
+			LOG.error("Error while serializing EFI message", e);
+			this.failed.incrementAndGet();
+			CemMetrics.SEND_FAILURES.increment();
+			this.release();
+			this.sendNext(batch, index + 1);
+			return;
+		}
+		LOG.payload(message.getHeader() == null ? null : message.getHeader().getEfiResourceId(), "sent", text);
+		if (pending.dispatched != null) {
+			try {
+				pending.dispatched.run();
+			} catch (final RuntimeException e) {
+				LOG.error("Error while reporting a sent EFI message", e);
+			}
+		}
+		final SendHandler handler = result -> {
+			this.completed(result);
+			// Continue on the executor, the handler may be called on the thread
+			// which sent the message
+			this.executor.execute(() -> this.sendNext(batch, index + 1));
+		};
+		try {
+			this.sink.sendText(text, handler);
+		} catch (final RuntimeException e) {
+			handler.onResult(new SendResult(e));
+		}
+	}
+
+	/**
+	 * Put the messages of a batch which have not been sent yet back in the
+	 * queue if the queue has been paused. Messages for which a newer message has
+	 * been queued in the meantime are dropped.
+	 *
+	 * @return true if the queue is paused
+	 */
+	private boolean requeueIfPaused(List<Pending> batch, int index) {
+		int superseded = 0;
+		synchronized (this) {
+			if (!this.paused) {
+				return false;
+			}
+			for (int i = batch.size() - 1; i >= index; i--) {
+				final Pending pending = batch.get(i);
+				if (pending.actuatorId != NO_ACTUATOR) {
+					if (this.pendingByActuator.containsKey(pending.actuatorId)) {
+						superseded++;
+						continue;
+					}
+					this.pendingByActuator.put(pending.actuatorId, pending);
+				}
+				this.queue.addFirst(pending);
+			}
+			this.draining = false;
+		}
+		if (superseded > 0) {
+			this.coalesced.addAndGet(superseded);
+			for (int i = 0; i < superseded; i++) {
+				this.release();
+			}
+		}
+		return true;
+	}
+
+	private void completed(SendResult result) {
+		if (result.isOK()) {
+			this.sent.incrementAndGet();
+			CemMetrics.SENT.increment();
+		} else {
+			this.failed.incrementAndGet();
+			CemMetrics.SEND_FAILURES.increment();
+			LOG.warn("Could not send EFI message", "error", result.getException());
+		}
+		this.release();
+	}
+
+	private synchronized void release() {
+		this.outstanding--;
+		CemMetrics.OUTBOUND_OUTSTANDING.decrement();
+		if (this.backpressure && this.outstanding <= this.lowWatermark) {
+			this.backpressure = false;
+		}
+	}
+
+	/**
+	 * @return The number of messages which have been queued but not completed
+	 */
+	public synchronized int getOutstandingCount() {
+		return this.outstanding;
+	}
+
+	/**
+	 * @return true if the Resource Manager does not keep up with the messages
+	 *         which are sent to it
+	 */
+	public boolean isBackpressure() {
+		return this.backpressure;
+	}
+
+	/**
+	 * @return The number of messages which have been sent successfully
+	 */
+	public long getSentCount() {
+		return this.sent.get();
+	}
+
+	/**
+	 * @return The number of messages which could not be serialized or sent
+	 */
+	public long getFailedCount() {
+		return this.failed.get();
+	}
+
+	/**
+	 * @return The number of messages which have been replaced by a newer message
+	 *         before they were sent
+	 */
+	public long getCoalescedCount() {
+		return this.coalesced.get();
+	}
+
+	/**
+	 * @return The number of messages which have been dropped because they waited
+	 *         too long to be sent
+	 */
+	public long getExpiredCount() {
+		return this.expired.get();
+	}
+
+	/**
+	 * @return The number of messages which have been rejected because the queue
+	 *         was full
+	 */
+	public long getRejectedCount() {
+		return this.rejected.get();
+	}
+
+	private static final class Pending {
+		private EfiMessage message;
+		private Runnable dispatched;
+		private final int actuatorId;
+		private long queuedAt;
+
+		Pending(EfiMessage message, Runnable dispatched, int actuatorId, long queuedAt) {
+			this.message = message;
+			this.dispatched = dispatched;
+			this.actuatorId = actuatorId;
+			this.queuedAt = queuedAt;
+		}
+	}
+
+}
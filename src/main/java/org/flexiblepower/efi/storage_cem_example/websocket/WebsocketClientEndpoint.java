@@ -1,48 +1,347 @@
 package org.flexiblepower.efi.storage_cem_example.websocket;
 
+import java.io.IOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
 
-import javax.websocket.ClientEndpoint;
+import javax.websocket.ClientEndpointConfig;
 import javax.websocket.CloseReason;
 import javax.websocket.ContainerProvider;
-import javax.websocket.OnClose;
-import javax.websocket.OnMessage;
-import javax.websocket.OnOpen;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
 import javax.websocket.Session;
 import javax.websocket.WebSocketContainer;
 import javax.xml.bind.JAXBException;
 
 import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageModel;
-import org.flexiblepower.efi.storage_cem_example.xml.EfiXmlSerializer;
+import org.flexiblepower.efi.storage_cem_example.journal.MessageJournal;
+import org.flexiblepower.efi.storage_cem_example.log.Log;
+import org.flexiblepower.efi.storage_cem_example.log.Logging;
+import org.flexiblepower.efi.storage_cem_example.metrics.CemMetrics;
+import org.flexiblepower.efi.storage_cem_example.replay.TraceWriter;
+import org.flexiblepower.efi.storage_cem_example.xml.EfiCompactCodec;
+import org.flexiblepower.efi.storage_cem_example.xml.EfiSchema;
+import org.flexiblepower.efi.storage_cem_example.xml.EfiStreamingDecoder;
+import org.flexiblepower.efi.storage_cem_example.xml.ValidationMode;
+import org.flexiblepower.efi.storage_cem_example.xml.ValidationPolicy;
 import org.flexiblepower.efi.xml.EfiMessage;
+import org.flexiblepower.efi.xml.Measurement;
+import org.flexiblepower.efi.xml.StorageStatus;
+import org.xml.sax.SAXException;
 
-@ClientEndpoint
+/**
+ * The connection to one Resource Manager.
+ *
+ * After {@link #start()} the endpoint keeps itself connected: when connecting
+ * fails or the connection is lost, it reconnects with a jittered exponential
+ * {@link Backoff}, until {@link #close()} is called.
+ *
+ * While the connection is down, the model has no sender, so it rejects new
+ * instructions. Messages which were already in the {@link OutboundQueue} when
+ * the connection was lost wait there, and are sent once the connection is
+ * back, unless they have become too old. The state of the model is
+ * invalidated when the connection is lost, because the Resource Manager
+ * resends its StorageSystemDescription and StorageStatus after reconnecting.
+ *
+ * Messages are sent as XML text frames, unless the compact encoding is offered
+ * with {@link #setCompactEncodingOffered(boolean)} and the Resource Manager
+ * selects it when connecting, see {@link WireEncoding}. Incoming binary frames
+ * are always decoded with the compact encoding.
+ *
+ * With a {@link MessageJournal}, every message which the model has handled and
+ * every message which is sent is journaled under the URI of the Resource
+ * Manager.
+ * With a {@link TraceWriter}, every frame which is received is recorded as it
+ * arrives, so the session can be replayed later.
+ *
+ * With a {@link ValidationPolicy}, incoming messages are validated against the
+ * EFI schema before they are decoded, in the mode of their resource.
+ */
 public class WebsocketClientEndpoint implements EfiMessageSender {
 
-	Session userSession = null;
+	private static final Log LOG = Logging.get("websocket");
+
+	/** The maximum number of outgoing messages which wait to be sent */
+	public static final int OUTBOUND_CAPACITY = 64;
+	/** How long an outgoing message may wait while the connection is down */
+	public static final long OUTBOUND_MAX_AGE_MILLIS = 30000;
+	public static final long RECONNECT_INITIAL_DELAY_MILLIS = 500;
+	public static final long RECONNECT_MAX_DELAY_MILLIS = 60000;
+
+	volatile Session userSession = null;
+	private final URI endpointURI;
+	private final WebSocketContainer container;
+	private final Executor inboundExecutor;
+	private final ScheduledExecutorService connectScheduler;
+	/** The scheduler this endpoint has created itself, shut down on close */
+	private ScheduledExecutorService ownedScheduler;
 	private EfiStorageModel storageModel;
+	private final EfiStreamingDecoder decoder = new EfiStreamingDecoder();
+	private final OutboundQueue outboundQueue;
+	private final Backoff backoff = new Backoff(RECONNECT_INITIAL_DELAY_MILLIS, RECONNECT_MAX_DELAY_MILLIS);
+	private final AtomicBoolean connecting = new AtomicBoolean();
+	private final Endpoint connection = new Connection();
+	private volatile boolean compactEncodingOffered = false;
+	private volatile MessageJournal journal;
+	private volatile TraceWriter trace;
+	private volatile ValidationPolicy validation;
+	// Only used on the inbound executor
+	private long validationCount = 0;
+	private volatile WireEncoding encoding = WireEncoding.XML;
+	private volatile boolean started = false;
+	private volatile boolean closed = false;
+	private volatile boolean everOpened = false;
 
+	/**
+	 * Create an endpoint and start connecting in the background. Incoming
+	 * messages are handled on the thread of the WebSocket container, connecting
+	 * and sending is done by a thread of this endpoint.
+	 */
 	public WebsocketClientEndpoint(URI endpointURI, EfiStorageModel storageModel) {
+		this(endpointURI, storageModel, false);
+	}
+
+	/**
+	 * Create an endpoint and start connecting in the background, see
+	 * {@link #WebsocketClientEndpoint(URI, EfiStorageModel)}.
+	 *
+	 * @param compactEncodingOffered
+	 *            Whether to offer the compact encoding, see
+	 *            {@link #setCompactEncodingOffered(boolean)}
+	 */
+	public WebsocketClientEndpoint(URI endpointURI, EfiStorageModel storageModel, boolean compactEncodingOffered) {
+		this(endpointURI, storageModel, compactEncodingOffered, null);
+	}
+
+	/**
+	 * Create an endpoint and start connecting in the background, see
+	 * {@link #WebsocketClientEndpoint(URI, EfiStorageModel)}.
+	 *
+	 * @param journal
+	 *            The journal of the messages, or null
+	 */
+	public WebsocketClientEndpoint(URI endpointURI, EfiStorageModel storageModel, boolean compactEncodingOffered,
+			MessageJournal journal) {
+		this(endpointURI, storageModel, ContainerProvider.getWebSocketContainer(), Runnable::run,
+				Executors.newSingleThreadScheduledExecutor(r -> {
+					final Thread t = new Thread(r, "efi-endpoint");
+					t.setDaemon(true);
+					return t;
+				}));
+		this.compactEncodingOffered = compactEncodingOffered;
+		this.journal = journal;
+		this.start();
+	}
+
+	private WebsocketClientEndpoint(URI endpointURI, EfiStorageModel storageModel, WebSocketContainer container,
+			Executor inboundExecutor, ScheduledExecutorService scheduler) {
+		this(endpointURI, storageModel, container, inboundExecutor, scheduler, scheduler);
+		this.ownedScheduler = scheduler;
+	}
+
+	/**
+	 * Create an endpoint without connecting it yet.
+	 *
+	 * @param endpointURI
+	 *            The URI of the Resource Manager
+	 * @param storageModel
+	 *            The model which handles the incoming messages
+	 * @param container
+	 *            The WebSocket container, which can be shared by many endpoints
+	 * @param inboundExecutor
+	 *            Executor on which incoming messages are decoded and handled. It
+	 *            must execute tasks one at a time and in order.
+	 * @param outboundExecutor
+	 *            Executor on which outgoing messages are serialized and sent. It
+	 *            can be shared by many endpoints.
+	 * @param connectScheduler
+	 *            Scheduler on which (re)connect attempts are made. Connecting
+	 *            blocks a thread of the scheduler until the handshake completes.
+	 *            It can be shared by many endpoints.
+	 */
+	public WebsocketClientEndpoint(URI endpointURI, EfiStorageModel storageModel, WebSocketContainer container,
+			Executor inboundExecutor, Executor outboundExecutor, ScheduledExecutorService connectScheduler) {
+		this.endpointURI = endpointURI;
 		this.storageModel = storageModel;
-		this.storageModel.setEfiMessageSender(this);
+		this.container = container;
+		this.inboundExecutor = inboundExecutor;
+		this.connectScheduler = connectScheduler;
+		this.outboundQueue = new OutboundQueue(this::sendText, outboundExecutor, OUTBOUND_CAPACITY,
+				OUTBOUND_MAX_AGE_MILLIS);
+		// Nothing can be sent until the connection has been opened
+		this.outboundQueue.pause();
+	}
+
+	/**
+	 * Start connecting to the Resource Manager in the background, and keep
+	 * reconnecting whenever the connection is lost. This method returns
+	 * immediately.
+	 */
+	public void start() {
+		if (!this.started) {
+			this.started = true;
+			this.scheduleConnect(0);
+		}
+	}
+
+	/**
+	 * Offer the {@link WireEncoding#COMPACT} encoding to the Resource Manager,
+	 * from the next time the endpoint connects. Resource Managers which do not
+	 * support it keep getting XML.
+	 */
+	public void setCompactEncodingOffered(boolean offered) {
+		this.compactEncodingOffered = offered;
+	}
+
+	/**
+	 * Journal the messages of this connection from now on. Set it before
+	 * {@link #start()} to journal all of them.
+	 *
+	 * @param journal
+	 *            The journal, or null to stop journaling
+	 */
+	public void setJournal(MessageJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Record the frames which are received from now on, see
+	 * {@link org.flexiblepower.efi.storage_cem_example.replay.TraceReplayer}.
+	 *
+	 * @param trace
+	 *            The trace, or null to stop recording
+	 */
+	public void setTrace(TraceWriter trace) {
+		this.trace = trace;
+	}
+
+	/**
+	 * Validate the incoming messages from now on.
+	 *
+	 * @param validation
+	 *            The validation mode of every resource, or null to stop
+	 *            validating
+	 */
+	public void setValidation(ValidationPolicy validation) {
+		this.validation = validation;
+	}
+
+	/**
+	 * @return The encoding of the current or last connection
+	 */
+	public WireEncoding getEncoding() {
+		return this.encoding;
+	}
+
+	private ClientEndpointConfig endpointConfig() {
+		final List<String> subprotocols = new ArrayList<>();
+		if (this.compactEncodingOffered) {
+			subprotocols.add(WireEncoding.COMPACT.getSubprotocol());
+		}
+		return ClientEndpointConfig.Builder.create().preferredSubprotocols(subprotocols).build();
+	}
+
+	private void scheduleConnect(long delayMillis) {
+		if (this.closed || !this.connecting.compareAndSet(false, true)) {
+			return;
+		}
 		try {
-			WebSocketContainer container = ContainerProvider.getWebSocketContainer();
-			container.connectToServer(this, endpointURI);
-		} catch (Exception e) {
-			throw new RuntimeException(e);
+			this.connectScheduler.schedule(this::connect, delayMillis, TimeUnit.MILLISECONDS);
+		} catch (final RuntimeException e) {
+			// The scheduler has been shut down
+			this.connecting.set(false);
+		}
+	}
+
+	private void connect() {
+		try {
+			if (!this.closed && !this.isOpen()) {
+				this.container.connectToServer(this.connection, this.endpointConfig(), this.endpointURI);
+			}
+		} catch (final Exception e) {
+			CemMetrics.CONNECT_FAILURES.increment();
+			LOG.warn("Could not connect", "uri", this.endpointURI, "error", e);
+		} finally {
+			this.connecting.set(false);
+		}
+		// Also covers a connection which has been closed again before
+		// connectToServer returned
+		if (!this.isOpen()) {
+			this.scheduleConnect(this.backoff.nextDelayMillis());
 		}
 	}
 
+	/**
+	 * @return true if the connection to the Resource Manager is open
+	 */
+	public boolean isOpen() {
+		final Session session = this.userSession;
+		return session != null && session.isOpen();
+	}
+
+	/**
+	 * Close the connection to the Resource Manager, if it is open, and stop
+	 * reconnecting. The thread of an endpoint which was created without
+	 * executors stops as well.
+	 */
+	public void close() {
+		this.closed = true;
+		final Session session = this.userSession;
+		if (session != null) {
+			try {
+				session.close();
+			} catch (IOException e) {
+				LOG.warn("Error while closing websocket", "uri", this.endpointURI, "error", e.getMessage());
+			}
+		}
+		if (this.ownedScheduler != null) {
+			this.ownedScheduler.shutdown();
+		}
+	}
+
+	public URI getEndpointURI() {
+		return this.endpointURI;
+	}
+
+	public EfiStorageModel getStorageModel() {
+		return this.storageModel;
+	}
+
+	public OutboundQueue getOutboundQueue() {
+		return this.outboundQueue;
+	}
+
 	/**
 	 * Callback hook for Connection open events.
 	 *
 	 * @param userSession
 	 *            the userSession which is opened.
 	 */
-	@OnOpen
 	public void onOpen(Session userSession) {
-		System.out.println("opening websocket");
+		this.encoding = WireEncoding.forSubprotocol(userSession.getNegotiatedSubprotocol());
+		LOG.info("Opened websocket", "uri", this.endpointURI, "encoding", this.encoding);
+		if (this.everOpened) {
+			CemMetrics.RECONNECTS.increment();
+		}
+		this.everOpened = true;
+		// The first message on the new connection is validated again, after the
+		// messages which have already been received
+		this.inboundExecutor.execute(() -> this.validationCount = 0);
 		this.userSession = userSession;
+		this.backoff.reset();
+		this.storageModel.setEfiMessageSender(this);
+		this.outboundQueue.resume();
 	}
 
 	/**
@@ -53,11 +352,28 @@ public class WebsocketClientEndpoint implements EfiMessageSender {
 	 * @param reason
 	 *            the reason for connection close
 	 */
-	@OnClose
 	public void onClose(Session userSession, CloseReason reason) {
-		System.out.println("closing websocket");
-		storageModel.unsetEfiMessageSender(this);
+		LOG.info("Closed websocket", "uri", this.endpointURI, "reason", reason);
+		CemMetrics.CONNECTIONS_LOST.increment();
+		this.outboundQueue.pause();
+		this.storageModel.unsetEfiMessageSender(this);
 		this.userSession = null;
+		final TraceWriter trace = this.trace;
+		if (trace != null) {
+			trace.closed(this.endpointURI.toString());
+		}
+		// After the messages which have already been received
+		this.inboundExecutor.execute(this.storageModel::invalidate);
+		if (this.started) {
+			this.scheduleConnect(this.backoff.nextDelayMillis());
+		}
+	}
+
+	public void onError(Session userSession, Throwable error) {
+		// Errors while connecting are reported by connect()
+		if (this.userSession != null) {
+			LOG.warn("Error on websocket", "uri", this.endpointURI, "error", error);
+		}
 	}
 
 	/**
@@ -67,37 +383,190 @@ public class WebsocketClientEndpoint implements EfiMessageSender {
 	 * @param message
 	 *            The text message
 	 */
-	@OnMessage
 	public void onMessage(String message) {
-		try {
-			System.out.println("Received message: " + message);
-			EfiMessage efiMessage = EfiXmlSerializer.deserialize(message);
-			this.storageModel.handleEfiMessage(efiMessage);
-		} catch (JAXBException e) {
-			System.err.println("Error while deserializing XML message " + message);
-			e.printStackTrace(System.err);
+		CemMetrics.WIRE_BYTES_RECEIVED.add(message.length());
+		final TraceWriter trace = this.trace;
+		if (trace != null) {
+			trace.text(this.endpointURI.toString(), message);
 		}
+		this.inboundExecutor.execute(() -> this.handleMessage(message));
 	}
 
 	/**
-	 * Send a message.
+	 * Callback hook for binary messages, which are encoded by
+	 * {@link EfiCompactCodec}.
 	 *
 	 * @param message
+	 *            The binary message, which is only valid during this call
 	 */
-	public void sendMessage(String message) {
-		this.userSession.getAsyncRemote().sendText(message);
+	public void onMessage(ByteBuffer message) {
+		CemMetrics.WIRE_BYTES_RECEIVED.add(message.remaining());
+		final TraceWriter trace = this.trace;
+		if (trace != null) {
+			trace.binary(this.endpointURI.toString(), message);
+		}
+		final ByteBuffer copy = ByteBuffer.allocate(message.remaining());
+		copy.put(message).flip();
+		this.inboundExecutor.execute(() -> {
+			final String xml;
+			try {
+				xml = EfiCompactCodec.decode(copy);
+			} catch (final DataFormatException e) {
+				CemMetrics.DECODE_ERRORS.increment();
+				LOG.error("Error while decoding binary message", e, "uri", this.endpointURI);
+				return;
+			}
+			this.handleMessage(xml);
+		});
 	}
 
-	@Override
-	public void sendEfiMessage(EfiMessage efiMessage) {
+	private void handleMessage(String message) {
 		try {
-			String serialized = EfiXmlSerializer.serialize(efiMessage);
-			System.out.println("Sending message: " + serialized);
-			sendMessage(serialized);
+			final String efiResourceId = this.storageModel.getState().getEfiResourceId();
+			LOG.payload(efiResourceId, "received", message);
+			final ValidationPolicy validation = this.validation;
+			if (validation != null && !this.validate(validation.getMode(efiResourceId), efiResourceId, message)) {
+				return;
+			}
+			final long start = System.nanoTime();
+			final EfiStreamingDecoder.Kind kind = this.decoder.decode(message);
+			final long decoded = System.nanoTime();
+			CemMetrics.DESERIALIZE.recordNanos(decoded - start);
+			try {
+				switch (kind) {
+				case MEASUREMENT:
+					CemMetrics.received(Measurement.class).increment();
+					this.storageModel.handleMeasurement(this.decoder.getMeasurement());
+					break;
+				case STORAGE_STATUS:
+					CemMetrics.received(StorageStatus.class).increment();
+					this.storageModel.handleStorageStatus(this.decoder.getStorageStatus());
+					break;
+				default:
+					final EfiMessage efiMessage = this.decoder.getMessage();
+					CemMetrics.received(efiMessage.getClass()).increment();
+					this.storageModel.handleEfiMessage(efiMessage);
+					break;
+				}
+			} catch (final RuntimeException e) {
+				// Such as a StorageSystemDescription with a duplicate actuatorId
+				CemMetrics.HANDLE_ERRORS.increment();
+				LOG.error("Dropped message which the model could not handle", e, "uri", this.endpointURI, "xml",
+						message);
+				return;
+			}
+			CemMetrics.HANDLE.recordSince(decoded);
+			// Only messages which the model has accepted, so they can be restored
+			final MessageJournal journal = this.journal;
+			if (journal != null) {
+				journal.append(this.endpointURI.toString(), true, message);
+			}
 		} catch (JAXBException e) {
-			System.err.println("Error while serializing EFI message");
-			e.printStackTrace(System.err);
+			CemMetrics.DECODE_ERRORS.increment();
+			LOG.error("Error while deserializing XML message", e, "uri", this.endpointURI, "xml", message);
 		}
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Validate a message, if the mode says so.
+	 *
+	 * @return false if the message is invalid and must be rejected
+	 */
+	private boolean validate(ValidationMode mode, String efiResourceId, String message) {
+		if (!mode.shouldValidate(++this.validationCount)) {
+			return true;
+		}
+		final long start = System.nanoTime();
+		try {
+			EfiSchema.validate(message);
+			return true;
+		} catch (final SAXException e) {
+			CemMetrics.INVALID_MESSAGES.increment();
+			if (mode.isStrict()) {
+				CemMetrics.REJECTED_MESSAGES.increment();
+				LOG.error("Rejected invalid message", "uri", this.endpointURI, "resource", efiResourceId, "error",
+						e.getMessage());
+				return false;
+			}
+			LOG.warn("Invalid message", "uri", this.endpointURI, "resource", efiResourceId, "mode", mode, "error",
+					e.getMessage());
+			return true;
+		} finally {
+			CemMetrics.VALIDATE.recordSince(start);
+		}
+	}
+
+	private void sendText(String text, SendHandler handler) {
+		final Session session = this.userSession;
+		if (session == null) {
+			handler.onResult(new SendResult(new IOException("Not connected to " + this.endpointURI)));
+			return;
+		}
+		final MessageJournal journal = this.journal;
+		if (journal != null) {
+			journal.append(this.endpointURI.toString(), false, text);
+		}
+		if (this.encoding == WireEncoding.COMPACT) {
+			final ByteBuffer binary = EfiCompactCodec.encode(text);
+			CemMetrics.WIRE_BYTES_SENT.add(binary.remaining());
+			session.getAsyncRemote().sendBinary(binary, handler);
+		} else {
+			CemMetrics.WIRE_BYTES_SENT.add(text.length());
+			session.getAsyncRemote().sendText(text, handler);
+		}
+	}
+
+	/**
+	 * Queue a message to be sent. It is serialized and sent on the outbound
+	 * executor.
+	 */
+	@Override
+	public boolean sendEfiMessage(EfiMessage efiMessage) {
+		return this.outboundQueue.offer(efiMessage);
+	}
+
+	/**
+	 * Queue a message to be sent, the callback runs on the outbound executor
+	 * when it is handed to the WebSocket session.
+	 */
+	@Override
+	public boolean sendEfiMessage(EfiMessage efiMessage, Runnable dispatched) {
+		return this.outboundQueue.offer(efiMessage, dispatched);
+	}
+
+	/**
+	 * Passes the events of the WebSocket container to the endpoint.
+	 */
+	private final class Connection extends Endpoint {
+
+		@Override
+		public void onOpen(Session session, EndpointConfig config) {
+			// Not lambdas, the container finds the message type through reflection
+			session.addMessageHandler(new MessageHandler.Whole<String>() {
+				@Override
+				public void onMessage(String message) {
+					WebsocketClientEndpoint.this.onMessage(message);
+				}
+			});
+			session.addMessageHandler(new MessageHandler.Whole<ByteBuffer>() {
+				@Override
+				public void onMessage(ByteBuffer message) {
+					WebsocketClientEndpoint.this.onMessage(message);
+				}
+			});
+			WebsocketClientEndpoint.this.onOpen(session);
+		}
+
+		@Override
+		public void onClose(Session session, CloseReason closeReason) {
+			WebsocketClientEndpoint.this.onClose(session, closeReason);
+		}
+
+		@Override
+		public void onError(Session session, Throwable error) {
+			WebsocketClientEndpoint.this.onError(session, error);
+		}
+
+	}
+
+}
@@ -0,0 +1,46 @@
+package org.flexiblepower.efi.storage_cem_example.websocket;
+
+import org.flexiblepower.efi.storage_cem_example.xml.EfiCompactCodec;
+
+/**
+ * How EFI messages are sent over a connection. The encoding is negotiated with
+ * the WebSocket subprotocol when connecting: a Resource Manager which does not
+ * select a subprotocol gets plain XML, so existing Resource Managers keep
+ * working.
+ */
+public enum WireEncoding {
+
+	/** XML text frames, as defined by EFI 2.0 */
+	XML(null),
+	/** Binary frames encoded by {@link EfiCompactCodec} */
+	COMPACT("efi-2.0+deflate-1");
+
+	private final String subprotocol;
+
+	private WireEncoding(String subprotocol) {
+		this.subprotocol = subprotocol;
+	}
+
+	/**
+	 * @return The subprotocol which selects this encoding, or null for plain XML
+	 */
+	public String getSubprotocol() {
+		return this.subprotocol;
+	}
+
+	/**
+	 * @param subprotocol
+	 *            The subprotocol the Resource Manager selected, which may be null
+	 *            or empty
+	 * @return The encoding selected by a subprotocol, XML if it is unknown
+	 */
+	public static WireEncoding forSubprotocol(String subprotocol) {
+		for (final WireEncoding encoding : values()) {
+			if (encoding.subprotocol != null && encoding.subprotocol.equals(subprotocol)) {
+				return encoding;
+			}
+		}
+		return XML;
+	}
+
+}
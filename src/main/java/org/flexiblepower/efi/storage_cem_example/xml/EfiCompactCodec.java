@@ -0,0 +1,185 @@
+package org.flexiblepower.efi.storage_cem_example.xml;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact binary encoding of EFI XML messages, for Resource Managers which
+ * negotiate it instead of plain XML text.
+ *
+ * A message is its UTF-8 encoded XML compressed with raw DEFLATE, using a
+ * preset dictionary with the namespace, element and attribute names that occur
+ * in almost every EFI Storage message. The dictionary is what makes small
+ * messages such as a Measurement compress well; without it DEFLATE has nothing
+ * to refer back to. Every message is compressed on its own, so messages do not
+ * depend on each other and a connection does not keep a compression context of
+ * some 300 KiB; the price is about 20 microseconds per encoded message to reset
+ * the Deflater. Decoding is much cheaper. The first byte is the version of the
+ * dictionary, so the dictionary can be improved later without breaking
+ * existing peers.
+ *
+ * The Deflater, Inflater and buffers are reused per thread, like the JAXB
+ * Marshallers in {@link EfiXmlSerializer}.
+ */
+public final class EfiCompactCodec {
+
+	/** The version of the dictionary, the first byte of every message */
+	public static final byte VERSION = 1;
+
+	/** Decoded messages larger than this are rejected */
+	public static final int MAX_MESSAGE_BYTES = 16 * 1024 * 1024;
+
+	private static final int LEVEL = Deflater.DEFAULT_COMPRESSION;
+	private static final int INITIAL_BUFFER_BYTES = 4096;
+	private static final int RETAINED_BUFFER_BYTES = 1024 * 1024;
+
+	/**
+	 * DEFLATE refers back at most 32 KiB and prefers short distances, so the
+	 * most common fragments are at the end.
+	 */
+	private static final byte[] DICTIONARY = ("ns1:StorageRegistration ns1:StorageSystemDescription"
+			+ " ns1:StorageFillLevelTargetProfile ns1:StorageUsageForecast ns1:FlexibilityRevoke"
+			+ " ns1:instructionProcessingDelay><ns1:deviceDescription><ns1:deviceClass>"
+			+ "</ns1:deviceClass><ns1:label></ns1:label></ns1:deviceDescription><ns1:fillLevelLabel>"
+			+ "</ns1:fillLevelLabel><ns1:fillLevelUnit></ns1:fillLevelUnit><ns1:actuators><ns1:actuator ns1:id=\""
+			+ "\" ns1:label=\"\"><ns1:supportedCommodity>ELECTRICITY</ns1:supportedCommodity></ns1:actuator>"
+			+ "</ns1:actuators><ns1:targetProfile><ns1:element ns1:duration=\"\"<ns1:usageForecast>"
+			+ "<ns1:usageProfile><ns1:usageRate></ns1:usageRate><ns1:leakageBehaviour><ns1:leakageElement"
+			+ " ns1:leakageRate=\"\"/></ns1:leakageBehaviour><ns1:actuatorBehaviours><ns1:actuatorBehaviour"
+			+ " ns1:actuatorId=\"\"><ns1:runningModes><ns1:discreteRunningMode ns1:id=\"\" ns1:label=\""
+			+ "Discrete \"><ns1:discreteRunningModeElement ns1:fillLevelLowerBound=\"0.0\""
+			+ " ns1:fillLevelUpperBound=\"100.0\"><ns1:fillingRate></ns1:fillingRate><ns1:runningCost>"
+			+ "</ns1:runningCost><ns1:electricalPower></ns1:electricalPower></ns1:discreteRunningModeElement>"
+			+ "</ns1:discreteRunningMode><ns1:continuousRunningMode ns1:id=\"\" ns1:label=\"Continuous \">"
+			+ "<ns1:continuousRunningModeElement ns1:fillLevelLowerBound=\"0.0\" ns1:fillLevelUpperBound=\"100.0\">"
+			+ "<ns1:lowerBound><ns1:fillingRate>0.0</ns1:fillingRate><ns1:electricalPower>0.0"
+			+ "</ns1:electricalPower></ns1:lowerBound><ns1:upperBound><ns1:fillingRate></ns1:fillingRate>"
+			+ "<ns1:electricalPower></ns1:electricalPower></ns1:upperBound></ns1:continuousRunningModeElement>"
+			+ "</ns1:continuousRunningMode></ns1:runningModes><ns1:timers><ns1:timer ns1:id=\"\" ns1:label=\""
+			+ "Timer \" ns1:duration=\"P0Y0M0DT0H1M0.000S\"/></ns1:timers><ns1:transitions><ns1:transition"
+			+ " ns1:fromRunningModeId=\"\" ns1:toRunningModeId=\"\" ns1:transitionCost=\"\">"
+			+ "<ns1:startTimers><ns1:timerReference ns1:timerId=\"\"/></ns1:startTimers><ns1:blockingTimers>"
+			+ "<ns1:timerReference ns1:timerId=\"\"/></ns1:blockingTimers></ns1:transition></ns1:transitions>"
+			+ "</ns1:actuatorBehaviour></ns1:actuatorBehaviours></ns1:StorageSystemDescription>"
+			+ "<ns1:instructionId></ns1:instructionId><ns1:isEmergencyInstruction>false"
+			+ "</ns1:isEmergencyInstruction><ns1:actuatorInstructions><ns1:actuatorInstruction ns1:actuatorId=\""
+			+ "\"><ns1:runningModeId></ns1:runningModeId><ns1:runningModeFactor></ns1:runningModeFactor>"
+			+ "<ns1:startTime></ns1:startTime></ns1:actuatorInstruction></ns1:actuatorInstructions>"
+			+ "</ns1:StorageInstruction><ns1:measurementTimestamp></ns1:measurementTimestamp>"
+			+ "<ns1:electricityMeasurement ns1:power=\"\"/></ns1:Measurement><ns1:currentFillLevel>"
+			+ "</ns1:currentFillLevel><ns1:actuatorStatuses><ns1:actuatorStatus ns1:actuatorId=\"\">"
+			+ "<ns1:currentRunningMode></ns1:currentRunningMode><ns1:previousRunningModeId>"
+			+ "</ns1:previousRunningModeId><ns1:transitionTimestamp></ns1:transitionTimestamp>"
+			+ "<ns1:timerUpdates><ns1:timerUpdate ns1:timerId=\"\"><ns1:finishedAt></ns1:finishedAt>"
+			+ "</ns1:timerUpdate></ns1:timerUpdates></ns1:actuatorStatus></ns1:actuatorStatuses>"
+			+ "</ns1:StorageStatus><?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+			+ "<ns1:StorageStatus ns1:efiVersion=\"2.0\" xmlns:ns1=\"http://www.flexiblepower.org/efi-2\">"
+			+ "<ns1:header><ns1:efiResourceId></ns1:efiResourceId><ns1:timestamp>2020-01-01T00:00:00.000Z"
+			+ "</ns1:timestamp></ns1:header><ns1:flexibilityUpdateId></ns1:flexibilityUpdateId><ns1:validFrom>"
+			+ "</ns1:validFrom>").getBytes(StandardCharsets.UTF_8);
+
+	private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(LEVEL, true));
+	private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+	private static final ThreadLocal<byte[][]> BUFFER = ThreadLocal
+			.withInitial(() -> new byte[1][INITIAL_BUFFER_BYTES]);
+
+	private EfiCompactCodec() {
+	}
+
+	/**
+	 * Encode an XML message.
+	 *
+	 * @param xml
+	 *            The serialized message
+	 * @return A new buffer with the encoded message, which can be sent as a
+	 *         binary frame
+	 */
+	public static ByteBuffer encode(String xml) {
+		final byte[] input = xml.getBytes(StandardCharsets.UTF_8);
+		final Deflater deflater = DEFLATER.get();
+		deflater.reset();
+		deflater.setDictionary(DICTIONARY);
+		deflater.setInput(input);
+		deflater.finish();
+		final byte[][] holder = BUFFER.get();
+		byte[] buffer = holder[0];
+		buffer[0] = VERSION;
+		int length = 1;
+		while (!deflater.finished()) {
+			if (length == buffer.length) {
+				buffer = holder[0] = Arrays.copyOf(buffer, buffer.length * 2);
+			}
+			length += deflater.deflate(buffer, length, buffer.length - length);
+		}
+		release(holder);
+		return ByteBuffer.wrap(Arrays.copyOf(buffer, length));
+	}
+
+	/**
+	 * Decode a message which has been encoded by {@link #encode(String)}. The
+	 * position of the buffer is moved to its limit.
+	 *
+	 * @return The XML message
+	 * @throws DataFormatException
+	 *             When the message has an unknown version, is corrupt, truncated
+	 *             or too large
+	 */
+	public static String decode(ByteBuffer message) throws DataFormatException {
+		if (!message.hasRemaining()) {
+			throw new DataFormatException("Empty message");
+		}
+		final byte version = message.get();
+		if (version != VERSION) {
+			throw new DataFormatException("Unknown version " + version);
+		}
+		final byte[] input;
+		final int offset;
+		final int inputLength = message.remaining();
+		if (message.hasArray()) {
+			input = message.array();
+			offset = message.arrayOffset() + message.position();
+		} else {
+			input = new byte[inputLength];
+			message.duplicate().get(input);
+			offset = 0;
+		}
+		message.position(message.limit());
+
+		final Inflater inflater = INFLATER.get();
+		inflater.reset();
+		inflater.setDictionary(DICTIONARY);
+		inflater.setInput(input, offset, inputLength);
+		final byte[][] holder = BUFFER.get();
+		byte[] buffer = holder[0];
+		int length = 0;
+		while (!inflater.finished()) {
+			if (length == buffer.length) {
+				if (buffer.length >= MAX_MESSAGE_BYTES) {
+					throw new DataFormatException("Message larger than " + MAX_MESSAGE_BYTES + " bytes");
+				}
+				buffer = holder[0] = Arrays.copyOf(buffer, buffer.length * 2);
+			}
+			final int n = inflater.inflate(buffer, length, buffer.length - length);
+			if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+				throw new DataFormatException("Truncated message");
+			}
+			length += n;
+		}
+		release(holder);
+		return new String(buffer, 0, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Do not keep the buffer of an exceptionally large message.
+	 */
+	private static void release(byte[][] holder) {
+		if (holder[0].length > RETAINED_BUFFER_BYTES) {
+			holder[0] = new byte[INITIAL_BUFFER_BYTES];
+		}
+	}
+
+}
@@ -0,0 +1,83 @@
+package org.flexiblepower.efi.storage_cem_example.xml;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URL;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Validates EFI messages against the efi-2.0.xsd schema, which is on the class
+ * path.
+ *
+ * The Schema is compiled once, the first time a message is validated, and
+ * shared by all threads. Compiling takes a few hundred milliseconds, while
+ * creating a Validator from it is cheap but not free. Since Validators are not
+ * thread-safe, each thread gets its own instance which is reused for every
+ * message on that thread, like the Unmarshallers of {@link EfiXmlSerializer}.
+ */
+public final class EfiSchema {
+
+	public static final String RESOURCE = "/efi-2.0.xsd";
+
+	private static final class Holder {
+		static final Schema SCHEMA;
+
+		static {
+			final URL xsd = EfiSchema.class.getResource(RESOURCE);
+			if (xsd == null) {
+				throw new ExceptionInInitializerError(RESOURCE + " is not on the class path");
+			}
+			try {
+				SCHEMA = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(xsd);
+			} catch (final SAXException e) {
+				throw new ExceptionInInitializerError(e);
+			}
+		}
+	}
+
+	private static final ThreadLocal<Validator> VALIDATOR = ThreadLocal.withInitial(() -> {
+		final Validator validator = Holder.SCHEMA.newValidator();
+		try {
+			// Messages come from the network
+			validator.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+			validator.setProperty(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+		} catch (final SAXException e) {
+			throw new IllegalStateException("Could not configure the Validator", e);
+		}
+		return validator;
+	});
+
+	private EfiSchema() {
+	}
+
+	/**
+	 * @return The compiled schema of all EFI messages
+	 */
+	public static Schema getSchema() {
+		return Holder.SCHEMA;
+	}
+
+	/**
+	 * Validate a message against the schema.
+	 *
+	 * @throws SAXException
+	 *             When the message is not well-formed or not valid, with the
+	 *             first problem which was found
+	 */
+	public static void validate(String xml) throws SAXException {
+		try {
+			VALIDATOR.get().validate(new StreamSource(new StringReader(EfiXmlSerializer.trim(xml))));
+		} catch (final IOException e) {
+			// Not thrown when reading from a string
+			throw new SAXException(e);
+		}
+	}
+
+}
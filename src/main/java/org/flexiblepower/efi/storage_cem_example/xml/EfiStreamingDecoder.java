@@ -0,0 +1,248 @@
+package org.flexiblepower.efi.storage_cem_example.xml;
+
+import java.io.StringReader;
+
+import javax.xml.XMLConstants;
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.UnmarshalException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.flexiblepower.efi.xml.EfiMessage;
+
+/**
+ * Decoder for incoming EFI messages with a fast path for the high frequency
+ * Measurement and StorageStatus messages. These two messages are read with a
+ * StAX pull parser directly into a reusable {@link MeasurementView} or
+ * {@link StorageStatusView}, without creating any JAXB or javax.xml.datatype
+ * objects. All other messages are deserialized using
+ * {@link EfiXmlSerializer#deserialize(String)}.
+ *
+ * An instance reuses its views for every message and is therefore not
+ * thread-safe. Use one decoder per connection.
+ */
+public class EfiStreamingDecoder {
+
+	/**
+	 * The result of decoding a message, determines which getter holds the
+	 * decoded message.
+	 */
+	public enum Kind {
+		/** Use {@link EfiStreamingDecoder#getMeasurement()} */
+		MEASUREMENT,
+		/** Use {@link EfiStreamingDecoder#getStorageStatus()} */
+		STORAGE_STATUS,
+		/** Use {@link EfiStreamingDecoder#getMessage()} */
+		OTHER
+	}
+
+	public static final String EFI_NAMESPACE = "http://www.flexiblepower.org/efi-2";
+
+	private static final String REUSE_INSTANCE = "reuse-instance";
+
+	private final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+	private final MeasurementView measurement = new MeasurementView();
+	private final StorageStatusView storageStatus = new StorageStatusView();
+	private EfiMessage message;
+
+	public EfiStreamingDecoder() {
+		this.inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		this.inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		this.inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		// The JDK parser can reuse its (large) internal buffers once the previous
+		// reader has been closed. Since each decoder has its own factory and is used
+		// by one thread, this is safe.
+		if (this.inputFactory.isPropertySupported(REUSE_INSTANCE)) {
+			this.inputFactory.setProperty(REUSE_INSTANCE, true);
+		}
+	}
+
+	/**
+	 * Decode an XML message.
+	 *
+	 * @param xml
+	 *            The EFI XML message
+	 * @return Which kind of message has been decoded
+	 * @throws JAXBException
+	 *             When the message could not be parsed
+	 */
+	public Kind decode(String xml) throws JAXBException {
+		this.message = null;
+		XMLStreamReader reader = null;
+		try {
+			reader = this.inputFactory.createXMLStreamReader(new StringReader(EfiXmlSerializer.trim(xml)));
+			reader.nextTag();
+			if (EFI_NAMESPACE.equals(reader.getNamespaceURI())) {
+				switch (reader.getLocalName()) {
+				case "Measurement":
+					this.readMeasurement(reader);
+					return Kind.MEASUREMENT;
+				case "StorageStatus":
+					this.readStorageStatus(reader);
+					return Kind.STORAGE_STATUS;
+				default:
+					break;
+				}
+			}
+		} catch (XMLStreamException | IllegalArgumentException | IndexOutOfBoundsException e) {
+			throw new UnmarshalException(e);
+		} finally {
+			close(reader);
+		}
+		this.message = EfiXmlSerializer.deserialize(xml);
+		return Kind.OTHER;
+	}
+
+	/**
+	 * @return The last decoded Measurement, only valid if the last call to
+	 *         {@link #decode(String)} returned {@link Kind#MEASUREMENT}
+	 */
+	public MeasurementView getMeasurement() {
+		return this.measurement;
+	}
+
+	/**
+	 * @return The last decoded StorageStatus, only valid if the last call to
+	 *         {@link #decode(String)} returned {@link Kind#STORAGE_STATUS}
+	 */
+	public StorageStatusView getStorageStatus() {
+		return this.storageStatus;
+	}
+
+	/**
+	 * @return The last decoded message, only valid if the last call to
+	 *         {@link #decode(String)} returned {@link Kind#OTHER}
+	 */
+	public EfiMessage getMessage() {
+		return this.message;
+	}
+
+	private void readMeasurement(XMLStreamReader reader) throws XMLStreamException {
+		final MeasurementView m = this.measurement;
+		m.clear();
+		while (reader.hasNext()) {
+			if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+				continue;
+			}
+			switch (reader.getLocalName()) {
+			case "efiResourceId":
+				m.setEfiResourceId(reader.getElementText());
+				break;
+			case "timestamp":
+				m.setTimestamp(XmlUtil.millis(reader.getElementText()));
+				break;
+			case "measurementTimestamp":
+				m.setMeasurementTimestamp(XmlUtil.millis(reader.getElementText()));
+				break;
+			case "electricityMeasurement":
+				m.setPower(doubleAttribute(reader, "power"));
+				break;
+			case "gasMeasurement":
+				m.setGasFlowRate(doubleAttribute(reader, "flowRate"));
+				break;
+			case "heatMeasurement":
+				m.setHeatTemperature(doubleAttribute(reader, "temperature"));
+				m.setHeatFlowRate(doubleAttribute(reader, "flowRate"));
+				m.setHeatThermalPower(doubleAttribute(reader, "thermalPower"));
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	private void readStorageStatus(XMLStreamReader reader) throws XMLStreamException {
+		final StorageStatusView s = this.storageStatus;
+		s.clear();
+		int actuator = -1;
+		while (reader.hasNext()) {
+			if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+				continue;
+			}
+			switch (reader.getLocalName()) {
+			case "efiResourceId":
+				s.setEfiResourceId(reader.getElementText());
+				break;
+			case "timestamp":
+				s.setTimestamp(XmlUtil.millis(reader.getElementText()));
+				break;
+			case "flexibilityUpdateId":
+				s.setFlexibilityUpdateId(reader.getElementText());
+				break;
+			case "validFrom":
+				s.setValidFrom(XmlUtil.millis(reader.getElementText()));
+				break;
+			case "currentFillLevel":
+				s.setCurrentFillLevel(DatatypeConverter.parseDouble(reader.getElementText()));
+				break;
+			case "actuatorStatus":
+				actuator = s.addActuator(intAttribute(reader, "actuatorId"));
+				break;
+			case "currentRunningMode":
+				s.setCurrentRunningMode(actuator, DatatypeConverter.parseInt(reader.getElementText()));
+				break;
+			case "runningModeFactor":
+				s.setRunningModeFactor(actuator, DatatypeConverter.parseDouble(reader.getElementText()));
+				break;
+			case "previousRunningModeId":
+				s.setPreviousRunningModeId(actuator, DatatypeConverter.parseInt(reader.getElementText()));
+				break;
+			case "transitionTimestamp":
+				s.setTransitionTimestamp(actuator, XmlUtil.millis(reader.getElementText()));
+				break;
+			case "timerUpdate":
+				s.addTimerUpdate(intAttribute(reader, "timerId"), StorageStatusView.NO_TIME);
+				break;
+			case "finishedAt":
+				s.setLastTimerFinishedAt(XmlUtil.millis(reader.getElementText()));
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Find an attribute by its local name. EFI qualifies attributes with its
+	 * namespace, but unqualified attributes are accepted as well.
+	 */
+	private static String attribute(XMLStreamReader reader, String localName) {
+		for (int i = 0; i < reader.getAttributeCount(); i++) {
+			if (localName.equals(reader.getAttributeLocalName(i))) {
+				final String ns = reader.getAttributeNamespace(i);
+				if (ns == null || XMLConstants.NULL_NS_URI.equals(ns) || EFI_NAMESPACE.equals(ns)) {
+					return reader.getAttributeValue(i);
+				}
+			}
+		}
+		return null;
+	}
+
+	private static double doubleAttribute(XMLStreamReader reader, String localName) {
+		final String value = attribute(reader, localName);
+		return value == null ? Double.NaN : DatatypeConverter.parseDouble(value);
+	}
+
+	private static int intAttribute(XMLStreamReader reader, String localName) throws XMLStreamException {
+		final String value = attribute(reader, localName);
+		if (value == null) {
+			throw new XMLStreamException("Missing attribute " + localName + " on " + reader.getLocalName(),
+					reader.getLocation());
+		}
+		return DatatypeConverter.parseInt(value);
+	}
+
+	private static void close(XMLStreamReader reader) {
+		if (reader != null) {
+			try {
+				reader.close();
+			} catch (final XMLStreamException e) {
+				// Nothing left to release
+			}
+		}
+	}
+
+}
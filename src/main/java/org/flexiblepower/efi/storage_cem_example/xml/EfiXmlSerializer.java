@@ -1,8 +1,7 @@
 package org.flexiblepower.efi.storage_cem_example.xml;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.nio.charset.Charset;
+import java.io.StringReader;
+import java.io.StringWriter;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
@@ -12,29 +11,90 @@ import javax.xml.bind.Unmarshaller;
 import org.flexiblepower.efi.xml.EfiMessage;
 import org.flexiblepower.efi.xml.ObjectFactory;
 
+/**
+ * Serializes and deserializes EFI messages from and to XML.
+ *
+ * The JAXBContext for the whole org.flexiblepower.efi.xml package is created
+ * once when this class is loaded. Creating a context is expensive, while
+ * creating Marshallers and Unmarshallers from it is cheap but not free. Since
+ * Marshallers and Unmarshallers are not thread-safe, each thread gets its own
+ * instance which is reused for every message on that thread.
+ */
 public class EfiXmlSerializer {
 
-	public static String serialize(final EfiMessage baseMessage) throws JAXBException {
-		final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+	private static final JAXBContext JAXB_CONTEXT;
+
+	static {
+		try {
+			JAXB_CONTEXT = JAXBContext.newInstance("org.flexiblepower.efi.xml", ObjectFactory.class.getClassLoader());
+		} catch (final JAXBException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
 
-		final JAXBContext jaxbContext = JAXBContext.newInstance(baseMessage.getClass());
-		final Marshaller marshaller = jaxbContext.createMarshaller();
-		marshaller.marshal(baseMessage, byteStream);
+	private static final ThreadLocal<Marshaller> MARSHALLER = ThreadLocal.withInitial(() -> {
+		try {
+			return JAXB_CONTEXT.createMarshaller();
+		} catch (final JAXBException e) {
+			throw new IllegalStateException("Could not create JAXB Marshaller", e);
+		}
+	});
 
-		return byteStream.toString();
+	private static final ThreadLocal<Unmarshaller> UNMARSHALLER = ThreadLocal.withInitial(() -> {
+		try {
+			return JAXB_CONTEXT.createUnmarshaller();
+		} catch (final JAXBException e) {
+			throw new IllegalStateException("Could not create JAXB Unmarshaller", e);
+		}
+	});
+
+	/**
+	 * @return The shared JAXBContext for all EFI message types
+	 */
+	public static JAXBContext getContext() {
+		return JAXB_CONTEXT;
 	}
 
-	public static EfiMessage deserialize(final String xml) throws JAXBException {
-		String trimmedXml = xml.trim().replaceFirst("^([\\W]+)<", "<");
+	public static String serialize(final EfiMessage baseMessage) throws JAXBException {
+		final StringWriter writer = new StringWriter(1024);
+		MARSHALLER.get().marshal(baseMessage, writer);
+		return writer.toString();
+	}
 
-		final ByteArrayInputStream byteStream = new ByteArrayInputStream(trimmedXml.getBytes(Charset.forName("UTF-8")));
+	public static EfiMessage deserialize(final String xml) throws JAXBException {
+		return (EfiMessage) UNMARSHALLER.get().unmarshal(new StringReader(trim(xml)));
+	}
 
-		final ClassLoader loader = ObjectFactory.class.getClassLoader();
-		final JAXBContext jaxbContext = JAXBContext.newInstance(
-				"org.flexiblepower.efi.xml", loader);
-		final Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
+	/**
+	 * Remove whitespace and other garbage (such as a byte order mark) in front of
+	 * the first element of an XML message, and whitespace after it.
+	 *
+	 * The garbage is everything in front of the last '&lt;' in the characters at
+	 * the start which are not letters, digits or underscores, as long as that
+	 * '&lt;' is not the first character. A message without garbage, which is
+	 * almost every message, is returned as it is, so nothing is allocated.
+	 */
+	static String trim(final String xml) {
+		final int length = xml.length();
+		int start = 0;
+		while (start < length && xml.charAt(start) <= ' ') {
+			start++;
+		}
+		int element = start;
+		for (int i = start; i < length && !isWordCharacter(xml.charAt(i)); i++) {
+			if (xml.charAt(i) == '<' && i > start) {
+				element = i;
+			}
+		}
+		int end = length;
+		while (end > element && xml.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		return element == 0 && end == length ? xml : xml.substring(element, end);
+	}
 
-		return (EfiMessage) unmarshaller.unmarshal(byteStream);
+	private static boolean isWordCharacter(char c) {
+		return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_';
 	}
 
 }
@@ -0,0 +1,169 @@
+package org.flexiblepower.efi.storage_cem_example.xml;
+
+import org.flexiblepower.efi.xml.Measurement;
+
+/**
+ * Reusable, primitive representation of a Measurement message. Timestamps are
+ * milliseconds since the epoch. Values which are absent in the message are
+ * represented by NaN.
+ *
+ * Instances are mutable and are typically owned and refilled by an
+ * {@link EfiStreamingDecoder}. Use {@link #copyFrom(MeasurementView)} to keep
+ * the values after the next message has been decoded.
+ */
+public class MeasurementView {
+
+	private String efiResourceId;
+	private long timestamp;
+	private long measurementTimestamp;
+	private double power;
+	private double gasFlowRate;
+	private double heatTemperature;
+	private double heatFlowRate;
+	private double heatThermalPower;
+
+	public MeasurementView() {
+		this.clear();
+	}
+
+	/**
+	 * Reset all values to absent.
+	 */
+	public void clear() {
+		this.efiResourceId = null;
+		this.timestamp = StorageStatusView.NO_TIME;
+		this.measurementTimestamp = StorageStatusView.NO_TIME;
+		this.power = Double.NaN;
+		this.gasFlowRate = Double.NaN;
+		this.heatTemperature = Double.NaN;
+		this.heatFlowRate = Double.NaN;
+		this.heatThermalPower = Double.NaN;
+	}
+
+	/**
+	 * Fill this view with the values of a JAXB Measurement.
+	 *
+	 * @param measurement
+	 *            The deserialized Measurement message
+	 * @return this view
+	 */
+	public MeasurementView setFrom(Measurement measurement) {
+		this.clear();
+		this.efiResourceId = measurement.getHeader().getEfiResourceId();
+		this.timestamp = XmlUtil.millis(measurement.getHeader().getTimestamp());
+		this.measurementTimestamp = XmlUtil.millis(measurement.getMeasurementTimestamp());
+		if (measurement.getElectricityMeasurement() != null) {
+			this.power = measurement.getElectricityMeasurement().getPower();
+		}
+		if (measurement.getGasMeasurement() != null) {
+			this.gasFlowRate = measurement.getGasMeasurement().getFlowRate();
+		}
+		if (measurement.getHeatMeasurement() != null) {
+			this.heatTemperature = valueOrNaN(measurement.getHeatMeasurement().getTemperature());
+			this.heatFlowRate = valueOrNaN(measurement.getHeatMeasurement().getFlowRate());
+			this.heatThermalPower = valueOrNaN(measurement.getHeatMeasurement().getThermalPower());
+		}
+		return this;
+	}
+
+	/**
+	 * Copy all values of another view into this view.
+	 *
+	 * @param other
+	 *            The view to copy
+	 * @return this view
+	 */
+	public MeasurementView copyFrom(MeasurementView other) {
+		this.efiResourceId = other.efiResourceId;
+		this.timestamp = other.timestamp;
+		this.measurementTimestamp = other.measurementTimestamp;
+		this.power = other.power;
+		this.gasFlowRate = other.gasFlowRate;
+		this.heatTemperature = other.heatTemperature;
+		this.heatFlowRate = other.heatFlowRate;
+		this.heatThermalPower = other.heatThermalPower;
+		return this;
+	}
+
+	private static double valueOrNaN(Double value) {
+		return value == null ? Double.NaN : value;
+	}
+
+	public String getEfiResourceId() {
+		return this.efiResourceId;
+	}
+
+	void setEfiResourceId(String efiResourceId) {
+		this.efiResourceId = efiResourceId;
+	}
+
+	/**
+	 * @return The header timestamp in milliseconds since the epoch
+	 */
+	public long getTimestamp() {
+		return this.timestamp;
+	}
+
+	void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * @return The moment of measurement in milliseconds since the epoch
+	 */
+	public long getMeasurementTimestamp() {
+		return this.measurementTimestamp;
+	}
+
+	void setMeasurementTimestamp(long measurementTimestamp) {
+		this.measurementTimestamp = measurementTimestamp;
+	}
+
+	public boolean hasElectricityMeasurement() {
+		return !Double.isNaN(this.power);
+	}
+
+	/**
+	 * @return The electrical power in watt, or NaN if not measured
+	 */
+	public double getPower() {
+		return this.power;
+	}
+
+	void setPower(double power) {
+		this.power = power;
+	}
+
+	public double getGasFlowRate() {
+		return this.gasFlowRate;
+	}
+
+	void setGasFlowRate(double gasFlowRate) {
+		this.gasFlowRate = gasFlowRate;
+	}
+
+	public double getHeatTemperature() {
+		return this.heatTemperature;
+	}
+
+	void setHeatTemperature(double heatTemperature) {
+		this.heatTemperature = heatTemperature;
+	}
+
+	public double getHeatFlowRate() {
+		return this.heatFlowRate;
+	}
+
+	void setHeatFlowRate(double heatFlowRate) {
+		this.heatFlowRate = heatFlowRate;
+	}
+
+	public double getHeatThermalPower() {
+		return this.heatThermalPower;
+	}
+
+	void setHeatThermalPower(double heatThermalPower) {
+		this.heatThermalPower = heatThermalPower;
+	}
+
+}
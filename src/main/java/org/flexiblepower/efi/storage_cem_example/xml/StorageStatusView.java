@@ -0,0 +1,315 @@
+package org.flexiblepower.efi.storage_cem_example.xml;
+
+import java.util.Arrays;
+
+import org.flexiblepower.efi.xml.ActuatorStatus;
+import org.flexiblepower.efi.xml.StorageStatus;
+import org.flexiblepower.efi.xml.TimerUpdate;
+
+/**
+ * Reusable, primitive representation of a StorageStatus message. Actuator
+ * statuses are stored in parallel arrays and addressed by their index in the
+ * message. The timer updates of all actuators are stored in one flat array,
+ * each actuator owns a consecutive range of it.
+ *
+ * Timestamps are milliseconds since the epoch. Absent timestamps are
+ * {@link #NO_TIME}, absent ids are {@link #NO_ID} and an absent running mode
+ * factor is NaN.
+ *
+ * Instances are mutable and are typically owned and refilled by an
+ * {@link EfiStreamingDecoder}. Use {@link #copyFrom(StorageStatusView)} to keep
+ * the values after the next message has been decoded.
+ */
+public class StorageStatusView {
+
+	public static final long NO_TIME = Long.MIN_VALUE;
+	public static final int NO_ID = Integer.MIN_VALUE;
+
+	private String efiResourceId;
+	private long timestamp;
+	private String flexibilityUpdateId;
+	private long validFrom;
+	private double currentFillLevel;
+
+	private int actuatorCount;
+	private int[] actuatorId = new int[4];
+	private int[] currentRunningMode = new int[4];
+	private double[] runningModeFactor = new double[4];
+	private int[] previousRunningModeId = new int[4];
+	private long[] transitionTimestamp = new long[4];
+	private int[] timerStart = new int[4];
+	private int[] timerCount = new int[4];
+
+	private int timerUpdateCount;
+	private int[] timerId = new int[16];
+	private long[] finishedAt = new long[16];
+
+	public StorageStatusView() {
+		this.clear();
+	}
+
+	/**
+	 * Remove all values and actuator statuses. The internal arrays are kept for
+	 * reuse.
+	 */
+	public void clear() {
+		this.efiResourceId = null;
+		this.timestamp = NO_TIME;
+		this.flexibilityUpdateId = null;
+		this.validFrom = NO_TIME;
+		this.currentFillLevel = Double.NaN;
+		this.actuatorCount = 0;
+		this.timerUpdateCount = 0;
+	}
+
+	/**
+	 * Fill this view with the values of a JAXB StorageStatus.
+	 *
+	 * @param storageStatus
+	 *            The deserialized StorageStatus message
+	 * @return this view
+	 */
+	public StorageStatusView setFrom(StorageStatus storageStatus) {
+		this.clear();
+		this.efiResourceId = storageStatus.getHeader().getEfiResourceId();
+		this.timestamp = XmlUtil.millis(storageStatus.getHeader().getTimestamp());
+		this.flexibilityUpdateId = storageStatus.getFlexibilityUpdateId();
+		this.validFrom = XmlUtil.millis(storageStatus.getValidFrom());
+		this.currentFillLevel = storageStatus.getCurrentFillLevel();
+		if (storageStatus.getActuatorStatuses() == null) {
+			return this;
+		}
+		for (final ActuatorStatus as : storageStatus.getActuatorStatuses().getActuatorStatus()) {
+			final int i = this.addActuator(as.getActuatorId());
+			this.currentRunningMode[i] = as.getCurrentRunningMode();
+			if (as.getRunningModeFactor() != null) {
+				this.runningModeFactor[i] = as.getRunningModeFactor();
+			}
+			if (as.getPreviousRunningModeId() != null) {
+				this.previousRunningModeId[i] = as.getPreviousRunningModeId();
+			}
+			if (as.getTransitionTimestamp() != null) {
+				this.transitionTimestamp[i] = XmlUtil.millis(as.getTransitionTimestamp());
+			}
+			if (as.getTimerUpdates() != null) {
+				for (final TimerUpdate t : as.getTimerUpdates().getTimerUpdate()) {
+					this.addTimerUpdate(t.getTimerId(), XmlUtil.millis(t.getFinishedAt()));
+				}
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Copy all values of another view into this view.
+	 *
+	 * @param other
+	 *            The view to copy
+	 * @return this view
+	 */
+	public StorageStatusView copyFrom(StorageStatusView other) {
+		this.efiResourceId = other.efiResourceId;
+		this.timestamp = other.timestamp;
+		this.flexibilityUpdateId = other.flexibilityUpdateId;
+		this.validFrom = other.validFrom;
+		this.currentFillLevel = other.currentFillLevel;
+		this.actuatorCount = 0;
+		this.timerUpdateCount = 0;
+		this.ensureActuatorCapacity(other.actuatorCount);
+		this.ensureTimerCapacity(other.timerUpdateCount);
+		final int n = other.actuatorCount;
+		System.arraycopy(other.actuatorId, 0, this.actuatorId, 0, n);
+		System.arraycopy(other.currentRunningMode, 0, this.currentRunningMode, 0, n);
+		System.arraycopy(other.runningModeFactor, 0, this.runningModeFactor, 0, n);
+		System.arraycopy(other.previousRunningModeId, 0, this.previousRunningModeId, 0, n);
+		System.arraycopy(other.transitionTimestamp, 0, this.transitionTimestamp, 0, n);
+		System.arraycopy(other.timerStart, 0, this.timerStart, 0, n);
+		System.arraycopy(other.timerCount, 0, this.timerCount, 0, n);
+		System.arraycopy(other.timerId, 0, this.timerId, 0, other.timerUpdateCount);
+		System.arraycopy(other.finishedAt, 0, this.finishedAt, 0, other.timerUpdateCount);
+		this.actuatorCount = n;
+		this.timerUpdateCount = other.timerUpdateCount;
+		return this;
+	}
+
+	/**
+	 * Start a new actuator status. Subsequent timer updates are added to this
+	 * actuator.
+	 *
+	 * @param id
+	 *            The actuator ID
+	 * @return The index of the new actuator status
+	 */
+	int addActuator(int id) {
+		this.ensureActuatorCapacity(this.actuatorCount + 1);
+		final int i = this.actuatorCount++;
+		this.actuatorId[i] = id;
+		this.currentRunningMode[i] = NO_ID;
+		this.runningModeFactor[i] = Double.NaN;
+		this.previousRunningModeId[i] = NO_ID;
+		this.transitionTimestamp[i] = NO_TIME;
+		this.timerStart[i] = this.timerUpdateCount;
+		this.timerCount[i] = 0;
+		return i;
+	}
+
+	/**
+	 * Add a timer update to the last added actuator status.
+	 */
+	void addTimerUpdate(int id, long finishedAtMillis) {
+		this.ensureTimerCapacity(this.timerUpdateCount + 1);
+		this.timerId[this.timerUpdateCount] = id;
+		this.finishedAt[this.timerUpdateCount] = finishedAtMillis;
+		this.timerUpdateCount++;
+		this.timerCount[this.actuatorCount - 1]++;
+	}
+
+	/**
+	 * Set the finishedAt of the last added timer update.
+	 */
+	void setLastTimerFinishedAt(long finishedAtMillis) {
+		this.finishedAt[this.timerUpdateCount - 1] = finishedAtMillis;
+	}
+
+	private void ensureActuatorCapacity(int capacity) {
+		if (capacity > this.actuatorId.length) {
+			final int n = Math.max(capacity, this.actuatorId.length * 2);
+			this.actuatorId = Arrays.copyOf(this.actuatorId, n);
+			this.currentRunningMode = Arrays.copyOf(this.currentRunningMode, n);
+			this.runningModeFactor = Arrays.copyOf(this.runningModeFactor, n);
+			this.previousRunningModeId = Arrays.copyOf(this.previousRunningModeId, n);
+			this.transitionTimestamp = Arrays.copyOf(this.transitionTimestamp, n);
+			this.timerStart = Arrays.copyOf(this.timerStart, n);
+			this.timerCount = Arrays.copyOf(this.timerCount, n);
+		}
+	}
+
+	private void ensureTimerCapacity(int capacity) {
+		if (capacity > this.timerId.length) {
+			final int n = Math.max(capacity, this.timerId.length * 2);
+			this.timerId = Arrays.copyOf(this.timerId, n);
+			this.finishedAt = Arrays.copyOf(this.finishedAt, n);
+		}
+	}
+
+	/**
+	 * Find the index of an actuator status.
+	 *
+	 * @param id
+	 *            The actuator ID
+	 * @return The index, or -1 if this status does not contain the actuator
+	 */
+	public int indexOfActuator(int id) {
+		for (int i = 0; i < this.actuatorCount; i++) {
+			if (this.actuatorId[i] == id) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public String getEfiResourceId() {
+		return this.efiResourceId;
+	}
+
+	void setEfiResourceId(String efiResourceId) {
+		this.efiResourceId = efiResourceId;
+	}
+
+	public long getTimestamp() {
+		return this.timestamp;
+	}
+
+	void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	public String getFlexibilityUpdateId() {
+		return this.flexibilityUpdateId;
+	}
+
+	void setFlexibilityUpdateId(String flexibilityUpdateId) {
+		this.flexibilityUpdateId = flexibilityUpdateId;
+	}
+
+	public long getValidFrom() {
+		return this.validFrom;
+	}
+
+	void setValidFrom(long validFrom) {
+		this.validFrom = validFrom;
+	}
+
+	public double getCurrentFillLevel() {
+		return this.currentFillLevel;
+	}
+
+	void setCurrentFillLevel(double currentFillLevel) {
+		this.currentFillLevel = currentFillLevel;
+	}
+
+	public int getActuatorCount() {
+		return this.actuatorCount;
+	}
+
+	public int getActuatorId(int index) {
+		return this.actuatorId[index];
+	}
+
+	public int getCurrentRunningMode(int index) {
+		return this.currentRunningMode[index];
+	}
+
+	void setCurrentRunningMode(int index, int runningModeId) {
+		this.currentRunningMode[index] = runningModeId;
+	}
+
+	/**
+	 * @return The running mode factor, or NaN if not provided
+	 */
+	public double getRunningModeFactor(int index) {
+		return this.runningModeFactor[index];
+	}
+
+	void setRunningModeFactor(int index, double factor) {
+		this.runningModeFactor[index] = factor;
+	}
+
+	/**
+	 * @return The previous running mode, or {@link #NO_ID} if not provided
+	 */
+	public int getPreviousRunningModeId(int index) {
+		return this.previousRunningModeId[index];
+	}
+
+	void setPreviousRunningModeId(int index, int runningModeId) {
+		this.previousRunningModeId[index] = runningModeId;
+	}
+
+	/**
+	 * @return The transition timestamp, or {@link #NO_TIME} if not provided
+	 */
+	public long getTransitionTimestamp(int index) {
+		return this.transitionTimestamp[index];
+	}
+
+	void setTransitionTimestamp(int index, long timestamp) {
+		this.transitionTimestamp[index] = timestamp;
+	}
+
+	/**
+	 * @return The number of timer updates of the actuator at the given index
+	 */
+	public int getTimerUpdateCount(int index) {
+		return this.timerCount[index];
+	}
+
+	public int getTimerId(int index, int timerIndex) {
+		return this.timerId[this.timerStart[index] + timerIndex];
+	}
+
+	public long getTimerFinishedAt(int index, int timerIndex) {
+		return this.finishedAt[this.timerStart[index] + timerIndex];
+	}
+
+}
@@ -0,0 +1,85 @@
+package org.flexiblepower.efi.storage_cem_example.xml;
+
+/**
+ * How the incoming messages of a resource are validated against the
+ * {@link EfiSchema}: not at all, one in every so many messages, or every
+ * message. Invalid messages are only rejected in strict mode; a sampled
+ * message which is invalid is reported and handled anyway, since most
+ * messages are not validated.
+ */
+public final class ValidationMode {
+
+	/** The default number of messages of which one is validated */
+	public static final int DEFAULT_SAMPLE_INTERVAL = 100;
+
+	public static final ValidationMode OFF = new ValidationMode("off", 0, false);
+	public static final ValidationMode STRICT = new ValidationMode("strict", 1, true);
+
+	private final String name;
+	private final int sampleInterval;
+	private final boolean strict;
+
+	private ValidationMode(String name, int sampleInterval, boolean strict) {
+		this.name = name;
+		this.sampleInterval = sampleInterval;
+		this.strict = strict;
+	}
+
+	/**
+	 * @param interval
+	 *            Validate one in every interval messages
+	 */
+	public static ValidationMode sampled(int interval) {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("Invalid sample interval " + interval);
+		}
+		return new ValidationMode("sampled:" + interval, interval, false);
+	}
+
+	/**
+	 * @param mode
+	 *            off, strict, sampled or sampled:&lt;interval&gt;
+	 * @throws IllegalArgumentException
+	 *             When the mode is unknown
+	 */
+	public static ValidationMode parse(String mode) {
+		final String trimmed = mode.trim();
+		if ("off".equals(trimmed)) {
+			return OFF;
+		} else if ("strict".equals(trimmed)) {
+			return STRICT;
+		} else if ("sampled".equals(trimmed)) {
+			return sampled(DEFAULT_SAMPLE_INTERVAL);
+		} else if (trimmed.startsWith("sampled:")) {
+			try {
+				return sampled(Integer.parseInt(trimmed.substring("sampled:".length())));
+			} catch (final NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid sample interval in " + trimmed);
+			}
+		}
+		throw new IllegalArgumentException("Unknown validation mode " + trimmed);
+	}
+
+	/**
+	 * @param messageNumber
+	 *            The number of the message on its connection, starting at 1
+	 * @return true if the message must be validated. The first message is
+	 *         always validated, unless validation is off.
+	 */
+	public boolean shouldValidate(long messageNumber) {
+		return this.sampleInterval > 0 && (messageNumber - 1) % this.sampleInterval == 0;
+	}
+
+	/**
+	 * @return true if invalid messages are rejected
+	 */
+	public boolean isStrict() {
+		return this.strict;
+	}
+
+	@Override
+	public String toString() {
+		return this.name;
+	}
+
+}
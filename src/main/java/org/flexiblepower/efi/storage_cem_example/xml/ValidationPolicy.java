@@ -0,0 +1,74 @@
+package org.flexiblepower.efi.storage_cem_example.xml;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The {@link ValidationMode} of every resource: a default mode, and other
+ * modes for some resources by their efiResourceId. Messages which arrive
+ * before the StorageRegistration are validated in the default mode.
+ *
+ * Immutable, so it can be shared by all connections.
+ */
+public final class ValidationPolicy {
+
+	private final ValidationMode defaultMode;
+	private final Map<String, ValidationMode> resourceModes;
+
+	public ValidationPolicy(ValidationMode defaultMode, Map<String, ValidationMode> resourceModes) {
+		this.defaultMode = defaultMode;
+		this.resourceModes = Collections.unmodifiableMap(new HashMap<>(resourceModes));
+	}
+
+	/**
+	 * Parse a comma separated list of modes, like the log levels: a mode without
+	 * a resource is the default, such as
+	 * <code>sampled:1000,rm-7=strict,rm-9=off</code>.
+	 *
+	 * @throws IllegalArgumentException
+	 *             When a mode is unknown
+	 * @see ValidationMode#parse(String)
+	 */
+	public static ValidationPolicy parse(String policy) {
+		ValidationMode defaultMode = ValidationMode.OFF;
+		final Map<String, ValidationMode> resourceModes = new HashMap<>();
+		for (final String part : policy.split(",")) {
+			if (part.trim().isEmpty()) {
+				continue;
+			}
+			final int separator = part.lastIndexOf('=');
+			if (separator < 0) {
+				defaultMode = ValidationMode.parse(part);
+			} else {
+				resourceModes.put(part.substring(0, separator).trim(),
+						ValidationMode.parse(part.substring(separator + 1)));
+			}
+		}
+		return new ValidationPolicy(defaultMode, resourceModes);
+	}
+
+	/**
+	 * @param efiResourceId
+	 *            The resource, or null if it is not known yet
+	 */
+	public ValidationMode getMode(String efiResourceId) {
+		if (efiResourceId != null) {
+			final ValidationMode mode = this.resourceModes.get(efiResourceId);
+			if (mode != null) {
+				return mode;
+			}
+		}
+		return this.defaultMode;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder builder = new StringBuilder(this.defaultMode.toString());
+		for (final Map.Entry<String, ValidationMode> entry : this.resourceModes.entrySet()) {
+			builder.append(',').append(entry.getKey()).append('=').append(entry.getValue());
+		}
+		return builder.toString();
+	}
+
+}
@@ -1,28 +1,43 @@
 package org.flexiblepower.efi.storage_cem_example.xml;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.Date;
-import java.util.GregorianCalendar;
 
+import javax.xml.bind.DatatypeConverter;
 import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeConstants;
 import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.XMLGregorianCalendar;
 
+import org.flexiblepower.efi.storage_cem_example.log.Log;
+import org.flexiblepower.efi.storage_cem_example.log.Logging;
+
 /**
  * Utility class to help with converting dates and durations from and to XML
  * types.
+ *
+ * The application works with times as milliseconds since the epoch and
+ * durations as milliseconds. The XML types are only created when a message is
+ * built and only read when one is received. The common forms of dateTimes and
+ * durations are converted with plain arithmetic, without a GregorianCalendar,
+ * Date or DatatypeFactory; unusual forms fall back to the JAXP implementation.
  */
 public class XmlUtil {
 
+	private static final Log LOG = Logging.get("xml");
+
+	private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+
 	private static DatatypeFactory datatypeFactory;
 
 	static {
 		try {
 			datatypeFactory = DatatypeFactory.newInstance();
 		} catch (final DatatypeConfigurationException e) {
-			System.err.println("Could not get datatypeFactory");
-			e.printStackTrace(System.err);
+			LOG.error("Could not get datatypeFactory", e);
 		}
 	}
 
@@ -48,17 +63,447 @@ public class XmlUtil {
 	 * @return The amount of milliseconds in the Duration
 	 */
 	public static long duration(javax.xml.datatype.Duration duration, Date start) {
-		return duration.getTimeInMillis(start);
+		return duration(duration, start.getTime());
+	}
+
+	/**
+	 * Get duration in milliseconds from an XML Duration. The start is only needed
+	 * for durations in years or months, whose length depends on the calendar.
+	 *
+	 * @param duration
+	 *            The XML Duration object
+	 * @param startMillis
+	 *            The start of the Duration period in milliseconds since the epoch
+	 * @return The amount of milliseconds in the Duration
+	 * @throws IllegalArgumentException
+	 *             When the amount of milliseconds does not fit in a long
+	 */
+	public static long duration(javax.xml.datatype.Duration duration, long startMillis) {
+		if (duration.getYears() != 0 || duration.getMonths() != 0) {
+			return duration.getTimeInMillis(new Date(startMillis));
+		}
+		final Number seconds = duration.getField(DatatypeConstants.SECONDS);
+		try {
+			// The int getters of Duration silently truncate large fields
+			long millis = Math.multiplyExact(field(duration, DatatypeConstants.DAYS), MILLIS_PER_DAY);
+			millis = Math.addExact(millis, Math.multiplyExact(field(duration, DatatypeConstants.HOURS), 3600000L));
+			millis = Math.addExact(millis, Math.multiplyExact(field(duration, DatatypeConstants.MINUTES), 60000L));
+			millis = Math.addExact(millis, seconds instanceof BigDecimal
+					? ((BigDecimal) seconds).movePointRight(3).toBigInteger().longValueExact()
+					: Math.multiplyExact(field(duration, DatatypeConstants.SECONDS), 1000L));
+			return duration.getSign() < 0 ? -millis : millis;
+		} catch (final ArithmeticException e) {
+			throw new IllegalArgumentException("Duration " + duration + " does not fit in milliseconds");
+		}
+	}
+
+	private static long field(javax.xml.datatype.Duration duration, DatatypeConstants.Field field) {
+		final Number value = duration.getField(field);
+		return value == null ? 0 : ((BigInteger) value).longValueExact();
 	}
 
 	public static XMLGregorianCalendar date(Date date) {
-		final GregorianCalendar c = new GregorianCalendar();
-		c.setTime(date);
-		return datatypeFactory.newXMLGregorianCalendar(c);
+		return date(date.getTime());
+	}
+
+	/**
+	 * Create an XML dateTime in UTC.
+	 *
+	 * @param millis
+	 *            Milliseconds since the epoch
+	 */
+	public static XMLGregorianCalendar date(long millis) {
+		final long epochDay = Math.floorDiv(millis, MILLIS_PER_DAY);
+		final int millisOfDay = (int) Math.floorMod(millis, MILLIS_PER_DAY);
+		final long date = civilFromDays(epochDay);
+		return datatypeFactory.newXMLGregorianCalendar((int) (date >> 9), (int) (date >> 5 & 0xf),
+				(int) (date & 0x1f), millisOfDay / 3600000, millisOfDay / 60000 % 60, millisOfDay / 1000 % 60,
+				millisOfDay % 1000, 0);
 	}
 
 	public static Date date(XMLGregorianCalendar xmlCalendar) {
-		return xmlCalendar.toGregorianCalendar().getTime();
+		return new Date(millis(xmlCalendar));
+	}
+
+	/**
+	 * Get the number of milliseconds since the epoch from an XML dateTime. A
+	 * dateTime without time zone is in the default time zone.
+	 *
+	 * @param xmlCalendar
+	 *            The XML dateTime
+	 * @return Milliseconds since the epoch
+	 */
+	public static long millis(XMLGregorianCalendar xmlCalendar) {
+		final int year = xmlCalendar.getYear();
+		final int timezone = xmlCalendar.getTimezone();
+		final int hour = xmlCalendar.getHour();
+		if (year == DatatypeConstants.FIELD_UNDEFINED || xmlCalendar.getEon() != null
+				|| timezone == DatatypeConstants.FIELD_UNDEFINED || hour == DatatypeConstants.FIELD_UNDEFINED) {
+			return xmlCalendar.toGregorianCalendar().getTimeInMillis();
+		}
+		final int millisecond = xmlCalendar.getMillisecond();
+		return ((epochDay(year, xmlCalendar.getMonth(), xmlCalendar.getDay()) * 24 + hour) * 60
+				+ xmlCalendar.getMinute() - timezone) * 60000L + xmlCalendar.getSecond() * 1000L
+				+ (millisecond == DatatypeConstants.FIELD_UNDEFINED ? 0 : millisecond);
+	}
+
+	/**
+	 * Parse the lexical representation of an XML dateTime, e.g.
+	 * 2018-05-03T12:00:00.000Z, to the number of milliseconds since the epoch.
+	 *
+	 * The common form with a four digit year and an explicit time zone is parsed
+	 * without creating any objects. Other forms are parsed using the
+	 * DatatypeConverter, dateTimes without time zone use the default time zone
+	 * just like {@link #date(XMLGregorianCalendar)} does.
+	 *
+	 * @param lexical
+	 *            The lexical XML dateTime
+	 * @return Milliseconds since the epoch
+	 * @throws IllegalArgumentException
+	 *             When the dateTime is not valid, such as 2023-02-29T12:00:00Z
+	 */
+	public static long millis(CharSequence lexical) {
+		int start = 0;
+		int end = lexical.length();
+		while (start < end && lexical.charAt(start) <= ' ') {
+			start++;
+		}
+		while (end > start && lexical.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		final long millis = parseDateTime(lexical, start, end);
+		if (millis != Long.MIN_VALUE) {
+			return millis;
+		}
+		return DatatypeConverter.parseDateTime(lexical.subSequence(start, end).toString()).getTimeInMillis();
+	}
+
+	/**
+	 * Parse YYYY-MM-DDThh:mm:ss[.s+](Z|(+|-)hh:mm).
+	 *
+	 * @return Milliseconds since the epoch, or Long.MIN_VALUE if the input does
+	 *         not have this exact form
+	 * @throws IllegalArgumentException
+	 *             When the day does not exist in its month
+	 */
+	private static long parseDateTime(CharSequence s, int start, int end) {
+		// The shortest form is YYYY-MM-DDThh:mm:ssZ
+		if (end - start < 20 || s.charAt(start + 4) != '-' || s.charAt(start + 7) != '-'
+				|| s.charAt(start + 10) != 'T' || s.charAt(start + 13) != ':' || s.charAt(start + 16) != ':') {
+			return Long.MIN_VALUE;
+		}
+		final int year = digits(s, start, 4);
+		final int month = digits(s, start + 5, 2);
+		final int day = digits(s, start + 8, 2);
+		final int hour = digits(s, start + 11, 2);
+		final int minute = digits(s, start + 14, 2);
+		final int second = digits(s, start + 17, 2);
+		if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23 || minute < 0
+				|| minute > 59 || second < 0 || second > 59) {
+			return Long.MIN_VALUE;
+		}
+		if (day > daysInMonth(year, month)) {
+			throw new IllegalArgumentException("Invalid day in dateTime " + s.subSequence(start, end));
+		}
+		int i = start + 19;
+		int millis = 0;
+		if (s.charAt(i) == '.') {
+			i++;
+			int scale = 100;
+			final int fractionStart = i;
+			while (i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+				// Digits beyond milliseconds are truncated
+				millis += (s.charAt(i) - '0') * scale;
+				scale /= 10;
+				i++;
+			}
+			if (i == fractionStart) {
+				return Long.MIN_VALUE;
+			}
+		}
+		final int offsetMinutes;
+		if (i == end - 1 && s.charAt(i) == 'Z') {
+			offsetMinutes = 0;
+		} else if (i == end - 6 && (s.charAt(i) == '+' || s.charAt(i) == '-') && s.charAt(i + 3) == ':') {
+			final int offsetHours = digits(s, i + 1, 2);
+			final int offsetMins = digits(s, i + 4, 2);
+			if (offsetHours < 0 || offsetHours > 14 || offsetMins < 0 || offsetMins > 59) {
+				return Long.MIN_VALUE;
+			}
+			offsetMinutes = (s.charAt(i) == '-' ? -1 : 1) * (offsetHours * 60 + offsetMins);
+		} else {
+			// No time zone, or something unexpected
+			return Long.MIN_VALUE;
+		}
+		final long epochDay = epochDay(year, month, day);
+		return ((epochDay * 24 + hour) * 60 + minute - offsetMinutes) * 60000L + second * 1000L + millis;
+	}
+
+	/**
+	 * @return The value of count decimal digits, or -1 if not all are digits
+	 */
+	private static int digits(CharSequence s, int offset, int count) {
+		int value = 0;
+		for (int i = offset; i < offset + count; i++) {
+			final char c = s.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	private static int daysInMonth(int year, int month) {
+		if (month == 2) {
+			return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0) ? 29 : 28;
+		}
+		return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+	}
+
+	/**
+	 * Days since 1970-01-01 in the proleptic Gregorian calendar.
+	 */
+	static long epochDay(int year, int month, int day) {
+		final int y = month <= 2 ? year - 1 : year;
+		final int era = Math.floorDiv(y, 400);
+		final int yearOfEra = y - era * 400;
+		final int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097L + dayOfEra - 719468;
+	}
+
+	/**
+	 * The inverse of {@link #epochDay(int, int, int)}.
+	 *
+	 * @return The year, month and day packed as year &lt;&lt; 9 | month &lt;&lt;
+	 *         5 | day, so no object has to be created
+	 */
+	static long civilFromDays(long epochDay) {
+		final long z = epochDay + 719468;
+		final long era = Math.floorDiv(z, 146097);
+		final long dayOfEra = z - era * 146097;
+		final long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		final long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		final long mp = (5 * dayOfYear + 2) / 153;
+		final long day = dayOfYear - (153 * mp + 2) / 5 + 1;
+		final long month = mp < 10 ? mp + 3 : mp - 9;
+		final long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+		return year << 9 | month << 5 | day;
+	}
+
+	/**
+	 * Append a time as an XML dateTime in UTC with milliseconds, e.g.
+	 * 2018-05-03T12:00:00.000Z.
+	 *
+	 * @param millis
+	 *            Milliseconds since the epoch, from year 0 until year 9999
+	 * @return The builder
+	 */
+	public static StringBuilder appendDateTime(StringBuilder sb, long millis) {
+		final long epochDay = Math.floorDiv(millis, MILLIS_PER_DAY);
+		final int millisOfDay = (int) Math.floorMod(millis, MILLIS_PER_DAY);
+		final long date = civilFromDays(epochDay);
+		pad(sb, (int) (date >> 9), 4).append('-');
+		pad(sb, (int) (date >> 5 & 0xf), 2).append('-');
+		pad(sb, (int) (date & 0x1f), 2).append('T');
+		pad(sb, millisOfDay / 3600000, 2).append(':');
+		pad(sb, millisOfDay / 60000 % 60, 2).append(':');
+		pad(sb, millisOfDay / 1000 % 60, 2).append('.');
+		return pad(sb, millisOfDay % 1000, 3).append('Z');
+	}
+
+	/**
+	 * @return The time as an XML dateTime in UTC with milliseconds
+	 */
+	public static String formatDateTime(long millis) {
+		return appendDateTime(new StringBuilder(24), millis).toString();
+	}
+
+	private static StringBuilder pad(StringBuilder sb, int value, int width) {
+		for (int limit = 10, i = 1; i < width; i++, limit *= 10) {
+			if (value < limit) {
+				sb.append('0');
+			}
+		}
+		return sb.append(value);
+	}
+
+	/**
+	 * Append a number of milliseconds as an XML duration in days, hours, minutes
+	 * and seconds, e.g. P1DT2H0.5S.
+	 *
+	 * @return The builder
+	 */
+	public static StringBuilder appendDuration(StringBuilder sb, long millis) {
+		if (millis < 0) {
+			sb.append('-');
+		}
+		// Long.MIN_VALUE cannot be negated, but is far beyond any sensible duration
+		long rest = Math.abs(Math.max(millis, -Long.MAX_VALUE));
+		sb.append('P');
+		final long days = rest / MILLIS_PER_DAY;
+		rest -= days * MILLIS_PER_DAY;
+		if (days > 0) {
+			sb.append(days).append('D');
+		}
+		if (rest == 0 && days > 0) {
+			return sb;
+		}
+		sb.append('T');
+		final long hours = rest / 3600000;
+		final long minutes = rest / 60000 % 60;
+		final long seconds = rest / 1000 % 60;
+		final int fraction = (int) (rest % 1000);
+		if (hours > 0) {
+			sb.append(hours).append('H');
+		}
+		if (minutes > 0) {
+			sb.append(minutes).append('M');
+		}
+		if (seconds > 0 || fraction > 0 || rest == 0) {
+			sb.append(seconds);
+			if (fraction > 0) {
+				sb.append('.');
+				// Trailing zeros are left out
+				int digits = fraction;
+				int width = 3;
+				while (digits % 10 == 0) {
+					digits /= 10;
+					width--;
+				}
+				pad(sb, digits, width);
+			}
+			sb.append('S');
+		}
+		return sb;
+	}
+
+	/**
+	 * @return The duration in milliseconds as an XML duration
+	 */
+	public static String formatDuration(long millis) {
+		return appendDuration(new StringBuilder(16), millis).toString();
+	}
+
+	/**
+	 * Parse the lexical representation of an XML duration, e.g. PT15M, to
+	 * milliseconds.
+	 *
+	 * Durations in days, hours, minutes and seconds are parsed without creating
+	 * any objects. Durations in years or months are parsed by the
+	 * DatatypeFactory, since their length depends on the start.
+	 *
+	 * @param lexical
+	 *            The lexical XML duration
+	 * @param startMillis
+	 *            The start of the duration in milliseconds since the epoch
+	 * @return The amount of milliseconds in the duration
+	 */
+	public static long durationMillis(CharSequence lexical, long startMillis) {
+		int start = 0;
+		int end = lexical.length();
+		while (start < end && lexical.charAt(start) <= ' ') {
+			start++;
+		}
+		while (end > start && lexical.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		final long millis = parseDuration(lexical, start, end);
+		if (millis != Long.MIN_VALUE) {
+			return millis;
+		}
+		return duration(datatypeFactory.newDuration(lexical.subSequence(start, end).toString()), startMillis);
+	}
+
+	/**
+	 * Parse [-]P[nD][T[nH][nM][n[.n+]S]].
+	 *
+	 * @return Milliseconds, or Long.MIN_VALUE if the input does not have this
+	 *         form, for example because it has years or months, or if it does
+	 *         not fit in a long
+	 */
+	private static long parseDuration(CharSequence s, int start, int end) {
+		int i = start;
+		final boolean negative = i < end && s.charAt(i) == '-';
+		if (negative) {
+			i++;
+		}
+		if (i >= end - 1 || s.charAt(i) != 'P') {
+			return Long.MIN_VALUE;
+		}
+		i++;
+		long millis = 0;
+		boolean time = false;
+		// Designators must appear in this order: D, T, H, M, S
+		int order = 0;
+		while (i < end) {
+			if (s.charAt(i) == 'T') {
+				if (time || i == end - 1) {
+					return Long.MIN_VALUE;
+				}
+				time = true;
+				order = 1;
+				i++;
+				continue;
+			}
+			final int numberStart = i;
+			long value = 0;
+			while (i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+				if (value > Long.MAX_VALUE / 100) {
+					return Long.MIN_VALUE;
+				}
+				value = value * 10 + (s.charAt(i) - '0');
+				i++;
+			}
+			int fraction = 0;
+			if (i < end && s.charAt(i) == '.') {
+				i++;
+				int scale = 100;
+				final int fractionStart = i;
+				while (i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+					// Digits beyond milliseconds are truncated
+					fraction += (s.charAt(i) - '0') * scale;
+					scale /= 10;
+					i++;
+				}
+				if (i == fractionStart || i >= end || s.charAt(i) != 'S') {
+					return Long.MIN_VALUE;
+				}
+			}
+			if (i == numberStart || i >= end) {
+				return Long.MIN_VALUE;
+			}
+			final char designator = s.charAt(i++);
+			final long unit;
+			final int designatorOrder;
+			if (!time && designator == 'D') {
+				unit = MILLIS_PER_DAY;
+				designatorOrder = 1;
+			} else if (time && designator == 'H') {
+				unit = 3600000;
+				designatorOrder = 2;
+			} else if (time && designator == 'M') {
+				unit = 60000;
+				designatorOrder = 3;
+			} else if (time && designator == 'S') {
+				unit = 1000;
+				designatorOrder = 4;
+			} else {
+				// Years, months or something unexpected
+				return Long.MIN_VALUE;
+			}
+			if (designatorOrder <= order) {
+				return Long.MIN_VALUE;
+			}
+			order = designatorOrder;
+			try {
+				millis = Math.addExact(millis, Math.addExact(Math.multiplyExact(value, unit), fraction));
+			} catch (final ArithmeticException e) {
+				return Long.MIN_VALUE;
+			}
+		}
+		return negative ? -millis : millis;
 	}
 
 	public static LocalDateTime localDateTimeFrom(XMLGregorianCalendar xmlCalendar) {
@@ -73,7 +518,7 @@ public class XmlUtil {
 	 * @return
 	 */
 	public static long duration(javax.xml.datatype.Duration duration, XMLGregorianCalendar timestamp) {
-		return duration(duration, date(timestamp));
+		return duration(duration, millis(timestamp));
 	}
 
 }
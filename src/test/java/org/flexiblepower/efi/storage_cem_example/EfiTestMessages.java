@@ -0,0 +1,65 @@
+package org.flexiblepower.efi.storage_cem_example;
+
+import java.util.Date;
+
+import org.flexiblepower.efi.storage_cem_example.xml.XmlUtil;
+import org.flexiblepower.efi.xml.ActuatorBehaviour;
+import org.flexiblepower.efi.xml.ActuatorBehaviours;
+import org.flexiblepower.efi.xml.ActuatorStatus;
+import org.flexiblepower.efi.xml.ActuatorStatuses;
+import org.flexiblepower.efi.xml.EfiMessage.Header;
+import org.flexiblepower.efi.xml.InstructionStatus;
+import org.flexiblepower.efi.xml.InstructionStatusUpdate;
+import org.flexiblepower.efi.xml.StorageStatus;
+import org.flexiblepower.efi.xml.StorageSystemDescription;
+import org.flexiblepower.efi.xml.TimerReferences;
+import org.flexiblepower.efi.xml.TimerReferences.TimerReference;
+
+/**
+ * The parts of EFI messages which every test needs, so the tests only spell
+ * out what they are about. All messages are from resource rm-1 and sent now,
+ * unless stated otherwise.
+ */
+public final class EfiTestMessages {
+
+	public static final String RESOURCE_ID = "rm-1";
+
+	private EfiTestMessages() {
+	}
+
+	public static Header header() {
+		return header(RESOURCE_ID);
+	}
+
+	public static Header header(String efiResourceId) {
+		return new Header().withEfiResourceId(efiResourceId).withTimestamp(XmlUtil.date(new Date()));
+	}
+
+	/**
+	 * @return A system description with flexibilityUpdateId fu-1, valid from now
+	 */
+	public static StorageSystemDescription systemDescription(ActuatorBehaviour... behaviours) {
+		return new StorageSystemDescription().withEfiVersion("2.0").withHeader(header())
+				.withFlexibilityUpdateId("fu-1").withValidFrom(XmlUtil.date(new Date()))
+				.withActuatorBehaviours(new ActuatorBehaviours().withActuatorBehaviour(behaviours));
+	}
+
+	/**
+	 * @return A status with flexibilityUpdateId fu-2, valid from now
+	 */
+	public static StorageStatus storageStatus(double currentFillLevel, ActuatorStatus... statuses) {
+		return new StorageStatus().withEfiVersion("2.0").withHeader(header()).withFlexibilityUpdateId("fu-2")
+				.withValidFrom(XmlUtil.date(new Date())).withCurrentFillLevel(currentFillLevel)
+				.withActuatorStatuses(new ActuatorStatuses().withActuatorStatus(statuses));
+	}
+
+	public static InstructionStatusUpdate statusUpdate(String instructionId, InstructionStatus status) {
+		return new InstructionStatusUpdate().withEfiVersion("2.0").withHeader(header())
+				.withInstructionId(instructionId).withStatus(status);
+	}
+
+	public static TimerReferences timerReference(int timerId) {
+		return new TimerReferences().withTimerReference(new TimerReference().withTimerId(timerId));
+	}
+
+}
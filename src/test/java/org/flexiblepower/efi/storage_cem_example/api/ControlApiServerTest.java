@@ -0,0 +1,169 @@
+package org.flexiblepower.efi.storage_cem_example.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.efi.storage_cem_example.EfiTestMessages;
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageModel;
+import org.flexiblepower.efi.storage_cem_example.xml.XmlUtil;
+import org.flexiblepower.efi.xml.ActuatorBehaviour;
+import org.flexiblepower.efi.xml.ActuatorStatus;
+import org.flexiblepower.efi.xml.EfiMessage;
+import org.flexiblepower.efi.xml.RunningMode;
+import org.flexiblepower.efi.xml.StorageContinuousRunningMode;
+import org.flexiblepower.efi.xml.StorageDiscreteRunningMode;
+import org.flexiblepower.efi.xml.StorageInstruction;
+import org.flexiblepower.efi.xml.StorageRegistration;
+import org.flexiblepower.efi.xml.StorageRunningModes;
+import org.flexiblepower.efi.xml.StorageStatus;
+import org.flexiblepower.efi.xml.Timer;
+import org.flexiblepower.efi.xml.TimerUpdate;
+import org.flexiblepower.efi.xml.TimerUpdates;
+import org.flexiblepower.efi.xml.Timers;
+import org.flexiblepower.efi.xml.Transition;
+import org.flexiblepower.efi.xml.Transitions;
+
+public class ControlApiServerTest extends TestCase {
+
+	private final List<EfiMessage> sent = new ArrayList<>();
+	private EfiStorageModel model;
+	private ControlApiServer server;
+
+	/**
+	 * Running mode 0 is active; 1 is reachable, continuous running mode 2 is
+	 * blocked by a timer and 3 cannot be reached.
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		this.model = new EfiStorageModel();
+		this.model.setEfiMessageSender(message -> this.sent.add(message));
+		this.model.handleEfiMessage(
+				new StorageRegistration().withEfiVersion("2.0").withHeader(EfiTestMessages.header()));
+		final StorageRunningModes modes = new StorageRunningModes();
+		final List<RunningMode> list = modes.getDiscreteRunningModeOrContinuousRunningMode();
+		list.add(new StorageDiscreteRunningMode().withId(0).withLabel("off"));
+		list.add(new StorageDiscreteRunningMode().withId(1).withLabel("on"));
+		list.add(new StorageContinuousRunningMode().withId(2).withLabel("partial"));
+		list.add(new StorageDiscreteRunningMode().withId(3).withLabel("boost"));
+		final Transitions transitions = new Transitions().withTransition(
+				new Transition().withFromRunningModeId(0).withToRunningModeId(1),
+				new Transition().withFromRunningModeId(0).withToRunningModeId(2)
+						.withBlockingTimers(EfiTestMessages.timerReference(1)));
+		this.model.handleEfiMessage(EfiTestMessages.systemDescription(new ActuatorBehaviour().withActuatorId(1)
+				.withRunningModes(modes).withTransitions(transitions).withTimers(new Timers().withTimer(
+						new Timer().withId(1).withLabel("minimum off").withDuration(XmlUtil.duration(60000))))));
+		this.model.handleEfiMessage(EfiTestMessages.storageStatus(50, new ActuatorStatus().withActuatorId(1)
+				.withCurrentRunningMode(0).withTimerUpdates(new TimerUpdates().withTimerUpdate(new TimerUpdate()
+						.withTimerId(1).withFinishedAt(XmlUtil.date(new Date(System.currentTimeMillis() + 60000)))))));
+		this.server = new ControlApiServer(() -> Collections.singleton(this.model), 0, "secret");
+	}
+
+	@Override
+	protected void tearDown() {
+		this.server.close();
+	}
+
+	private HttpURLConnection request(String method, String path) throws Exception {
+		final HttpURLConnection connection = (HttpURLConnection) new URL(
+				"http://localhost:" + this.server.getPort() + path).openConnection();
+		connection.setRequestMethod(method);
+		if ("POST".equals(method)) {
+			connection.setRequestProperty("Authorization", "Bearer secret");
+		}
+		return connection;
+	}
+
+	private static String body(HttpURLConnection connection) throws Exception {
+		final InputStream in = connection.getResponseCode() < 400 ? connection.getInputStream()
+				: connection.getErrorStream();
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			out.write(buffer, 0, n);
+		}
+		in.close();
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	public void testResources() throws Exception {
+		final HttpURLConnection connection = this.request("GET", "/resources");
+		assertEquals(200, connection.getResponseCode());
+		assertEquals("[\"rm-1\"]", body(connection));
+	}
+
+	public void testState() throws Exception {
+		final HttpURLConnection connection = this.request("GET", "/resources/rm-1");
+		assertEquals(200, connection.getResponseCode());
+		final String json = body(connection);
+		assertTrue(json, json.startsWith("{\"efiResourceId\":\"rm-1\",\"lastMessage\":\"StorageStatus\","
+				+ "\"fillLevel\":50.0,\"power\":null,\"measuredAt\":null,\"actuators\":[{\"id\":1,"
+				+ "\"activeRunningMode\":0,\"runningModeFactor\":null,\"runningModes\":["));
+		assertTrue(json, json.contains("{\"id\":0,\"label\":\"off\",\"type\":\"discrete\",\"status\":\"active\"}"));
+		assertTrue(json, json.contains("{\"id\":1,\"label\":\"on\",\"type\":\"discrete\",\"status\":\"reachable\"}"));
+		assertTrue(json, json.contains(
+				"{\"id\":2,\"label\":\"partial\",\"type\":\"continuous\",\"status\":\"blocked\",\"blockedUntil\":\""));
+		assertTrue(json,
+				json.contains("{\"id\":3,\"label\":\"boost\",\"type\":\"discrete\",\"status\":\"unreachable\"}"));
+	}
+
+	public void testActivate() throws Exception {
+		final HttpURLConnection connection = this.request("POST",
+				"/resources/rm-1/actuators/1/running-modes/1/activate");
+		assertEquals(202, connection.getResponseCode());
+		assertEquals(1, this.sent.size());
+		final StorageInstruction instruction = (StorageInstruction) this.sent.get(0);
+		assertEquals(1, instruction.getActuatorInstructions().getActuatorInstruction().get(0).getRunningModeId());
+	}
+
+	public void testErrors() throws Exception {
+		assertEquals(404, this.request("GET", "/resources/rm-2").getResponseCode());
+		assertEquals(404, this.request("GET", "/resources/rm-1/actuators/2").getResponseCode());
+		assertEquals(405, this.request("POST", "/resources/rm-1").getResponseCode());
+		assertEquals(405, this.request("GET", "/resources/rm-1/actuators/1/running-modes/1/activate")
+				.getResponseCode());
+		assertEquals(404, this.request("POST", "/resources/rm-1/actuators/1/running-modes/9/activate")
+				.getResponseCode());
+		// Blocked by the timer, and without a factor
+		assertEquals(409, this.request("POST", "/resources/rm-1/actuators/1/running-modes/2/activate?factor=0.5")
+				.getResponseCode());
+		assertEquals(400, this.request("POST", "/resources/rm-1/actuators/1/running-modes/2/activate")
+				.getResponseCode());
+		final HttpURLConnection unreachable = this.request("POST",
+				"/resources/rm-1/actuators/1/running-modes/3/activate");
+		assertEquals(409, unreachable.getResponseCode());
+		assertEquals("{\"error\":\"Running mode 3 is unreachable\"}", body(unreachable));
+		assertTrue(this.sent.isEmpty());
+	}
+
+	public void testAuthorization() throws Exception {
+		final String activate = "/resources/rm-1/actuators/1/running-modes/1/activate";
+		final HttpURLConnection withoutToken = this.request("POST", activate);
+		withoutToken.setRequestProperty("Authorization", null);
+		assertEquals(401, withoutToken.getResponseCode());
+		final HttpURLConnection wrongToken = this.request("POST", activate);
+		wrongToken.setRequestProperty("Authorization", "Bearer guess");
+		assertEquals(401, wrongToken.getResponseCode());
+		assertTrue(this.sent.isEmpty());
+
+		// HttpURLConnection does not send other Host and Origin headers
+		assertTrue(ControlApiServer.isLoopbackHost("localhost:9401"));
+		assertTrue(ControlApiServer.isLoopbackHost("127.0.0.1"));
+		assertTrue(ControlApiServer.isLoopbackHost("[::1]:9401"));
+		assertFalse(ControlApiServer.isLoopbackHost("attacker.example.com:9401"));
+		assertFalse(ControlApiServer.isLoopbackHost(null));
+		assertTrue(ControlApiServer.isLoopbackOrigin("http://localhost:9401"));
+		assertFalse(ControlApiServer.isLoopbackOrigin("http://example.com"));
+		assertFalse(ControlApiServer.isLoopbackOrigin("null"));
+	}
+
+}
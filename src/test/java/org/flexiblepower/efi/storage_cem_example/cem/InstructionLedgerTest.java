@@ -0,0 +1,76 @@
+package org.flexiblepower.efi.storage_cem_example.cem;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.efi.storage_cem_example.EfiTestMessages;
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageModel;
+import org.flexiblepower.efi.xml.InstructionStatus;
+import org.flexiblepower.efi.xml.StorageInstruction;
+
+public class InstructionLedgerTest extends TestCase {
+
+	private final AtomicLong now = new AtomicLong(1000);
+	private final InstructionLedger ledger = new InstructionLedger(this.now::get, 2);
+	private final EfiStorageModel model = new EfiStorageModel();
+
+	@Override
+	protected void setUp() {
+		this.model.addListener(this.ledger);
+	}
+
+	private void send(String instructionId) {
+		this.ledger.instructionSent(this.model.getState(),
+				new StorageInstruction().withEfiVersion("2.0").withHeader(EfiTestMessages.header())
+						.withInstructionId(instructionId));
+	}
+
+	private void update(String instructionId, InstructionStatus status) {
+		this.model.handleEfiMessage(EfiTestMessages.statusUpdate(instructionId, status));
+	}
+
+	public void testLatencies() {
+		this.send("i-1");
+		this.now.addAndGet(40);
+		this.update("i-1", InstructionStatus.ACCEPTED);
+		assertEquals(InstructionStatus.ACCEPTED, this.ledger.getStatus("rm-1", "i-1"));
+		this.now.addAndGet(60);
+		this.update("i-1", InstructionStatus.STARTED);
+		this.update("i-1", InstructionStatus.SUCCEEDED);
+
+		assertEquals(1, this.ledger.getSentCount("rm-1"));
+		assertEquals(40, this.ledger.getAcknowledgeLatency("rm-1").getMax());
+		assertEquals(1, this.ledger.getAcknowledgeLatency("rm-1").getCount());
+		assertEquals(100, this.ledger.getStartLatency("rm-1").getMax());
+		assertEquals(1, this.ledger.getStatusCount("rm-1", InstructionStatus.SUCCEEDED));
+		// Finished instructions are forgotten
+		assertNull(this.ledger.getStatus("rm-1", "i-1"));
+		this.update("i-1", InstructionStatus.ABORTED);
+		assertEquals(1, this.ledger.getUnknownUpdateCount("rm-1"));
+	}
+
+	public void testRejectedInstructionDoesNotStart() {
+		this.send("i-1");
+		this.now.addAndGet(5);
+		this.update("i-1", InstructionStatus.REJECTED);
+
+		assertEquals(5, this.ledger.getAcknowledgeLatency("rm-1").getMax());
+		assertEquals(0, this.ledger.getStartLatency("rm-1").getCount());
+		assertEquals(1, this.ledger.getStatusCount("rm-1", InstructionStatus.REJECTED));
+	}
+
+	public void testOldestOpenInstructionsAreForgotten() {
+		this.send("i-1");
+		this.send("i-2");
+		this.send("i-3");
+
+		assertEquals(1, this.ledger.getUnansweredCount("rm-1"));
+		this.update("i-1", InstructionStatus.ACCEPTED);
+		this.update("i-3", InstructionStatus.ACCEPTED);
+		assertEquals(1, this.ledger.getUnknownUpdateCount("rm-1"));
+		assertEquals(InstructionStatus.ACCEPTED, this.ledger.getStatus("rm-1", "i-3"));
+		assertNull(this.ledger.getStatus("rm-1", "i-2"));
+	}
+
+}
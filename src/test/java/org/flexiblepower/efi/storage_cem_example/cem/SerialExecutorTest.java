@@ -0,0 +1,66 @@
+package org.flexiblepower.efi.storage_cem_example.cem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class SerialExecutorTest extends TestCase {
+
+	private ExecutorService pool;
+
+	@Override
+	protected void setUp() {
+		this.pool = Executors.newFixedThreadPool(2);
+	}
+
+	@Override
+	protected void tearDown() {
+		this.pool.shutdownNow();
+	}
+
+	public void testTasksRunInOrder() throws Exception {
+		final SerialExecutor executor = new SerialExecutor(this.pool);
+		final List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+		final CountDownLatch done = new CountDownLatch(1000);
+		for (int i = 0; i < 1000; i++) {
+			final int n = i;
+			executor.execute(() -> {
+				order.add(n);
+				done.countDown();
+			});
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(Integer.valueOf(i), order.get(i));
+		}
+	}
+
+	public void testSlowResourceDoesNotBlockOthers() throws Exception {
+		final SerialExecutor slow = new SerialExecutor(this.pool);
+		final SerialExecutor fast = new SerialExecutor(this.pool);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch fastDone = new CountDownLatch(100);
+		for (int i = 0; i < 10; i++) {
+			slow.execute(() -> {
+				try {
+					release.await();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+		}
+		for (int i = 0; i < 100; i++) {
+			fast.execute(fastDone::countDown);
+		}
+		assertTrue(fastDone.await(10, TimeUnit.SECONDS));
+		assertEquals(9, slow.getQueueSize());
+		release.countDown();
+	}
+
+}
@@ -0,0 +1,313 @@
+package org.flexiblepower.efi.storage_cem_example.efi_model;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.efi.storage_cem_example.EfiTestMessages;
+import org.flexiblepower.efi.storage_cem_example.xml.StorageStatusView;
+import org.flexiblepower.efi.storage_cem_example.xml.XmlUtil;
+import org.flexiblepower.efi.xml.ActuatorBehaviour;
+import org.flexiblepower.efi.xml.ActuatorStatus;
+import org.flexiblepower.efi.xml.FlexibilityRevoke;
+import org.flexiblepower.efi.xml.InstructionStatus;
+import org.flexiblepower.efi.xml.ProbabilityAttributesWithDuration;
+import org.flexiblepower.efi.xml.StorageDiscreteRunningMode;
+import org.flexiblepower.efi.xml.StorageDiscreteRunningMode.DiscreteRunningModeElement;
+import org.flexiblepower.efi.xml.StorageFillLevelTargetProfile;
+import org.flexiblepower.efi.xml.StorageInstruction;
+import org.flexiblepower.efi.xml.StorageRegistration;
+import org.flexiblepower.efi.xml.StorageRunningModes;
+import org.flexiblepower.efi.xml.StorageStatus;
+import org.flexiblepower.efi.xml.StorageSystemDescription;
+import org.flexiblepower.efi.xml.StorageUsageForecast;
+import org.flexiblepower.efi.xml.StorageUsageForecast.UsageForecast;
+import org.flexiblepower.efi.xml.StorageUsageProbabilityProfile;
+import org.flexiblepower.efi.xml.StorageUsageProfile;
+import org.flexiblepower.efi.xml.TargetProfile;
+import org.flexiblepower.efi.xml.Timer;
+import org.flexiblepower.efi.xml.TimerUpdate;
+import org.flexiblepower.efi.xml.TimerUpdates;
+import org.flexiblepower.efi.xml.Timers;
+import org.flexiblepower.efi.xml.Transition;
+import org.flexiblepower.efi.xml.Transitions;
+
+public class EfiStorageModelTest extends TestCase {
+
+	private static final int RUNNING_MODES = 40;
+
+	/**
+	 * Two actuators with a chain of running modes 0 -> 1 -> ... -> 39. The
+	 * transition to an odd running mode is blocked by timer 1.
+	 */
+	static StorageSystemDescription systemDescription() {
+		final ActuatorBehaviour[] behaviours = new ActuatorBehaviour[2];
+		for (int a = 1; a <= 2; a++) {
+			final StorageRunningModes modes = new StorageRunningModes();
+			final Transitions transitions = new Transitions();
+			for (int rm = 0; rm < RUNNING_MODES; rm++) {
+				modes.getDiscreteRunningModeOrContinuousRunningMode()
+						.add(new StorageDiscreteRunningMode().withId(rm).withLabel("rm" + rm)
+								.withDiscreteRunningModeElement(new DiscreteRunningModeElement()
+										.withFillLevelLowerBound(0).withFillLevelUpperBound(100).withFillingRate(rm)));
+				if (rm > 0) {
+					final Transition t = new Transition().withFromRunningModeId(rm - 1).withToRunningModeId(rm);
+					if (rm % 2 == 1) {
+						t.withBlockingTimers(EfiTestMessages.timerReference(1));
+					}
+					transitions.withTransition(t);
+				}
+			}
+			behaviours[a - 1] = new ActuatorBehaviour().withActuatorId(a).withRunningModes(modes)
+					.withTimers(new Timers().withTimer(
+							new Timer().withId(1).withLabel("minimum off").withDuration(XmlUtil.duration(60000))))
+					.withTransitions(transitions);
+		}
+		return EfiTestMessages.systemDescription(behaviours);
+	}
+
+	static StorageStatus storageStatus(long timerFinishedAt) {
+		return EfiTestMessages.storageStatus(50,
+				new ActuatorStatus().withActuatorId(2).withCurrentRunningMode(0)
+						.withTimerUpdates(new TimerUpdates().withTimerUpdate(new TimerUpdate().withTimerId(1)
+								.withFinishedAt(XmlUtil.date(new Date(timerFinishedAt))))),
+				new ActuatorStatus().withActuatorId(1).withCurrentRunningMode(3));
+	}
+
+	public void testLookups() {
+		final EfiStorageModel model = new EfiStorageModel();
+		model.handleEfiMessage(systemDescription());
+
+		assertEquals(2, model.getState().getActuatorBehaviourById(2).getActuatorId());
+		assertNull(model.getState().getActuatorBehaviourById(3));
+		assertEquals("rm17", model.getState().getRunningMode(1, 17).getLabel());
+		assertNull(model.getState().getRunningMode(1, RUNNING_MODES));
+		assertEquals(1, model.getState().getOutgoingTransitions(1, 5).size());
+		assertEquals(6, model.getState().getOutgoingTransitions(1, 5).get(0).getToRunningModeId());
+		assertTrue(model.getState().getOutgoingTransitions(1, RUNNING_MODES - 1).isEmpty());
+		assertNull(model.getState().getOutgoingTransitions(3, 0));
+		assertEquals(8, model.getState().getTransition(2, 7, 8).getToRunningModeId());
+		assertNull(model.getState().getTransition(2, 8, 7));
+		assertEquals("minimum off", model.getState().getTimer(1, 1).getLabel());
+		assertNull(model.getState().getTimer(1, 2));
+	}
+
+	public void testTimers() {
+		final EfiStorageModel model = new EfiStorageModel();
+		model.handleEfiMessage(systemDescription());
+		model.handleEfiMessage(storageStatus(System.currentTimeMillis() + 60000));
+
+		assertEquals(Integer.valueOf(0), model.getState().getActiveRunningMode(2));
+		assertEquals(Integer.valueOf(3), model.getState().getActiveRunningMode(1));
+		assertTrue(model.getState().isTransitionBlocked(2, model.getState().getTransition(2, 0, 1)));
+		assertFalse(model.getState().isTransitionBlocked(2, model.getState().getTransition(2, 1, 2)));
+		// Timer 1 of actuator 1 never received an update
+		assertFalse(model.getState().isTransitionBlocked(1, model.getState().getTransition(1, 0, 1)));
+
+		// A new system description keeps the timer state
+		model.handleEfiMessage(systemDescription());
+		assertTrue(model.getState().isTransitionBlocked(2, model.getState().getTransition(2, 0, 1)));
+	}
+
+	public void testStatusBeforeSystemDescription() {
+		final EfiStorageModel model = new EfiStorageModel();
+		model.handleEfiMessage(storageStatus(System.currentTimeMillis() + 60000));
+		model.handleEfiMessage(systemDescription());
+		assertTrue(model.getState().isTransitionBlocked(2, model.getState().getTransition(2, 0, 1)));
+	}
+
+	public void testDuplicateActuatorIsRejected() {
+		final EfiStorageModel model = new EfiStorageModel();
+		model.handleEfiMessage(systemDescription());
+		final EfiStorageState before = model.getState();
+		final StorageSystemDescription duplicate = systemDescription();
+		duplicate.getActuatorBehaviours().getActuatorBehaviour().get(1).setActuatorId(1);
+		try {
+			model.handleEfiMessage(duplicate);
+			fail("Duplicate actuator accepted");
+		} catch (final IllegalArgumentException e) {
+			assertEquals("Duplicate actuatorId 1 in StorageSystemDescription fu-1", e.getMessage());
+		}
+		assertSame(before, model.getState());
+	}
+
+	public void testRevokeInvalidatesIndex() {
+		final EfiStorageModel model = new EfiStorageModel();
+		model.handleEfiMessage(systemDescription());
+		model.handleEfiMessage(storageStatus(System.currentTimeMillis() + 60000));
+		model.handleEfiMessage(new FlexibilityRevoke().withEfiVersion("2.0").withHeader(EfiTestMessages.header()));
+
+		assertNull(model.getState().getActuatorBehaviourById(1));
+		assertNull(model.getState().getRunningMode(1, 0));
+		assertNull(model.getState().getOutgoingTransitions(1, 0));
+		assertNull(model.getState().getActiveRunningMode(1));
+	}
+
+	public void testSnapshotsAreImmutable() {
+		final EfiStorageModel model = new EfiStorageModel();
+		model.handleEfiMessage(systemDescription());
+		final EfiStorageState before = model.getState();
+		model.handleEfiMessage(storageStatus(System.currentTimeMillis() + 60000));
+		final EfiStorageState after = model.getState();
+
+		assertNotSame(before, after);
+		assertNull(before.getActiveRunningMode(2));
+		assertFalse(before.isTransitionBlocked(2, before.getTransition(2, 0, 1)));
+		assertEquals(Integer.valueOf(0), after.getActiveRunningMode(2));
+		assertTrue(after.isTransitionBlocked(2, after.getTransition(2, 0, 1)));
+
+		model.handleEfiMessage(new FlexibilityRevoke().withEfiVersion("2.0").withHeader(EfiTestMessages.header()));
+		assertTrue(after.isTransitionBlocked(2, after.getTransition(2, 0, 1)));
+	}
+
+	public void testListenersReceiveSnapshot() {
+		final EfiStorageModel model = new EfiStorageModel();
+		final List<EfiStorageState> received = new ArrayList<>();
+		model.addListener(received::add);
+		model.handleEfiMessage(systemDescription());
+		model.handleEfiMessage(storageStatus(System.currentTimeMillis() + 60000));
+
+		assertEquals(2, received.size());
+		assertEquals(StorageSystemDescription.class, received.get(0).getLastMessageType());
+		assertEquals(StorageStatus.class, received.get(1).getLastMessageType());
+		assertSame(model.getState(), received.get(1));
+	}
+
+	public void testHandleStorageStatusCopiesView() {
+		final EfiStorageModel model = new EfiStorageModel();
+		final StorageStatusView view = new StorageStatusView()
+				.setFrom(storageStatus(System.currentTimeMillis() + 60000));
+		model.handleStorageStatus(view);
+		view.clear();
+
+		assertNotSame(view, model.getState().getStorageStatus());
+		assertEquals(Integer.valueOf(3), model.getState().getActiveRunningMode(1));
+	}
+
+	public void testInvalidateKeepsRegistrationOnly() {
+		final EfiStorageModel model = new EfiStorageModel();
+		model.handleEfiMessage(new StorageRegistration().withEfiVersion("2.0").withHeader(EfiTestMessages.header()));
+		model.handleEfiMessage(systemDescription());
+		model.handleEfiMessage(storageStatus(System.currentTimeMillis() + 60000));
+		model.invalidate();
+
+		final EfiStorageState state = model.getState();
+		assertEquals("rm-1", state.getEfiResourceId());
+		assertNull(state.getLastMessageType());
+		assertNull(state.getStorageSystemDescription());
+		assertNull(state.getFillLevel());
+		assertNull(state.getActiveRunningMode(1));
+
+		model.handleEfiMessage(systemDescription());
+		model.handleEfiMessage(storageStatus(System.currentTimeMillis() + 60000));
+		assertTrue(model.getState().isTransitionBlocked(2, model.getState().getTransition(2, 0, 1)));
+	}
+
+	public void testForecasts() {
+		final EfiStorageModel model = new EfiStorageModel();
+		final long now = System.currentTimeMillis();
+		model.handleEfiMessage(new StorageFillLevelTargetProfile().withEfiVersion("2.0")
+				.withHeader(EfiTestMessages.header()).withFlexibilityUpdateId("fu-3")
+				.withValidFrom(XmlUtil.date(new Date(now)))
+				.withTargetProfile(new TargetProfile().withElement(
+						new TargetProfile.Element().withDuration(XmlUtil.duration(60000)).withFillLevelLowerBound(10)
+								.withFillLevelUpperBound(20),
+						new TargetProfile.Element().withDuration(XmlUtil.duration(60000)).withFillLevelLowerBound(80)
+								.withFillLevelUpperBound(90))));
+		model.handleEfiMessage(new StorageUsageForecast().withEfiVersion("2.0")
+				.withHeader(EfiTestMessages.header()).withFlexibilityUpdateId("fu-4")
+				.withValidFrom(XmlUtil.date(new Date(now)))
+				.withUsageForecast(new UsageForecast().withUsageProfile(new StorageUsageProfile().withElement(
+						new StorageUsageProfile.Element().withDuration(XmlUtil.duration(60000)).withUsageRate(1)))));
+
+		EfiStorageState state = model.getState();
+		assertEquals(StorageUsageForecast.class, state.getLastMessageType());
+		assertEquals(10.0, state.getTargetLowerBounds().valueAt(now), 0.0);
+		assertEquals(90.0, state.getTargetUpperBounds().valueAt(now + 60000), 0.0);
+		assertEquals(30.0, state.getUsageForecast().integral(now, now + 30000), 1e-9);
+
+		// A newer forecast replaces the old one from its start on
+		model.handleEfiMessage(new StorageUsageForecast().withEfiVersion("2.0")
+				.withHeader(EfiTestMessages.header()).withFlexibilityUpdateId("fu-5")
+				.withValidFrom(XmlUtil.date(new Date(now + 30000)))
+				.withUsageForecast(new UsageForecast().withUsageProbabilityProfile(
+						new StorageUsageProbabilityProfile().withUsageRateElement(new ProbabilityAttributesWithDuration()
+								.withDuration(XmlUtil.duration(60000)).withExpected(2).withThe68PPRLower(1)
+								.withThe68PPRUpper(3).withThe95PPRLower(0).withThe95PPRUpper(4)))));
+		state = model.getState();
+		assertEquals(now + 90000, state.getUsageForecast().getEnd());
+		assertEquals(30.0 + 120.0, state.getUsageForecast().integral(now, now + 90000), 1e-9);
+
+		model.handleEfiMessage(EfiTestMessages.statusUpdate("i-1", InstructionStatus.ACCEPTED));
+		assertEquals("i-1", model.getState().getLastInstructionStatusUpdate().getInstructionId());
+
+		model.handleEfiMessage(new FlexibilityRevoke().withEfiVersion("2.0").withHeader(EfiTestMessages.header()));
+		assertNull(model.getState().getTargetLowerBounds());
+		assertNull(model.getState().getUsageForecast());
+	}
+
+	public void testListenersSeeSentInstructions() {
+		final EfiStorageModel model = new EfiStorageModel();
+		final List<StorageInstruction> sent = new ArrayList<>();
+		model.addListener(new EfiStorageListener() {
+			@Override
+			public void stateChanged(EfiStorageState state) {
+			}
+
+			@Override
+			public void instructionSent(EfiStorageState state, StorageInstruction instruction) {
+				sent.add(instruction);
+			}
+		});
+		model.setEfiMessageSender(message -> true);
+		model.handleEfiMessage(systemDescription());
+		model.handleEfiMessage(storageStatus(System.currentTimeMillis() - 1));
+
+		assertTrue(model.activateDiscreteRunningMode(1, 4));
+		assertEquals(1, sent.size());
+		assertEquals(4, sent.get(0).getActuatorInstructions().getActuatorInstruction().get(0).getRunningModeId());
+		assertNotNull(sent.get(0).getInstructionId());
+	}
+
+	public void testTransitionUnblocked() throws Exception {
+		final EfiStorageModel model = new EfiStorageModel();
+		final List<Transition> unblocked = new CopyOnWriteArrayList<>();
+		// Timer 1 blocks the transitions to the 20 odd running modes
+		final CountDownLatch done = new CountDownLatch(RUNNING_MODES / 2);
+		final long[] firstAt = new long[1];
+		model.addListener(new EfiStorageListener() {
+			@Override
+			public void stateChanged(EfiStorageState state) {
+			}
+
+			@Override
+			public void transitionUnblocked(EfiStorageState state, int actuatorId, Transition transition) {
+				if (unblocked.isEmpty()) {
+					firstAt[0] = System.currentTimeMillis();
+				}
+				assertEquals(2, actuatorId);
+				assertFalse(state.isTransitionBlocked(actuatorId, transition));
+				unblocked.add(transition);
+				done.countDown();
+			}
+		});
+		model.handleEfiMessage(systemDescription());
+		final long now = System.currentTimeMillis();
+		model.handleEfiMessage(storageStatus(now + 50));
+		// The timer is restarted before it finishes
+		final long finishedAt = now + 150;
+		model.handleEfiMessage(storageStatus(finishedAt));
+
+		assertTrue(done.await(2, TimeUnit.SECONDS));
+		assertTrue(firstAt[0] >= finishedAt);
+		assertEquals(1, unblocked.get(0).getToRunningModeId() % 2);
+		Thread.sleep(50);
+		assertEquals(RUNNING_MODES / 2, unblocked.size());
+	}
+
+}
@@ -0,0 +1,65 @@
+package org.flexiblepower.efi.storage_cem_example.efi_model;
+
+import junit.framework.TestCase;
+
+public class TimeProfileTest extends TestCase {
+
+	private static TimeProfile profile() {
+		// 2 per second for 10 s, 0 for 5 s, 1 per second for 5 s
+		return TimeProfile.of(1000, new long[] { 10000, 5000, 0, 5000 }, new double[] { 2, 0, 7, 1 });
+	}
+
+	public void testValueAt() {
+		final TimeProfile profile = profile();
+		assertEquals(4, profile.size());
+		assertEquals(1000, profile.getStart());
+		assertEquals(21000, profile.getEnd());
+		assertTrue(Double.isNaN(profile.valueAt(999)));
+		assertEquals(2.0, profile.valueAt(1000), 0.0);
+		assertEquals(2.0, profile.valueAt(10999), 0.0);
+		assertEquals(0.0, profile.valueAt(11000), 0.0);
+		// The empty element is skipped
+		assertEquals(1.0, profile.valueAt(16000), 0.0);
+		assertEquals(1.0, profile.valueAt(20999), 0.0);
+		assertTrue(Double.isNaN(profile.valueAt(21000)));
+	}
+
+	public void testIntegral() {
+		final TimeProfile profile = profile();
+		assertEquals(25.0, profile.integral(Long.MIN_VALUE, Long.MAX_VALUE), 1e-9);
+		assertEquals(20.0, profile.integral(0, 11000), 1e-9);
+		assertEquals(5.0, profile.integral(9500, 18000), 1e-9);
+		assertEquals(0.0, profile.integral(12000, 12000), 0.0);
+		assertEquals(0.0, profile.integral(30000, 40000), 0.0);
+		assertEquals(0.5, profile.average(10000, 14000), 1e-9);
+		assertTrue(Double.isNaN(profile.average(30000, 40000)));
+
+		final double[] averages = profile.averages(1000, 5000, 5);
+		assertEquals(2.0, averages[0], 1e-9);
+		assertEquals(0.0, averages[2], 1e-9);
+		assertEquals(1.0, averages[3], 1e-9);
+		assertTrue(Double.isNaN(averages[4]));
+	}
+
+	public void testReplaceFrom() {
+		final TimeProfile newer = TimeProfile.of(13000, new long[] { 4000 }, new double[] { 5 });
+		final TimeProfile combined = profile().replaceFrom(newer, 6000);
+		// The first element is still running at 6000, so it is kept
+		assertEquals(1000, combined.getStart());
+		assertEquals(17000, combined.getEnd());
+		assertEquals(2.0, combined.valueAt(5000), 0.0);
+		assertEquals(0.0, combined.valueAt(12999), 0.0);
+		assertEquals(5.0, combined.valueAt(13000), 0.0);
+		assertEquals(20.0 + 20.0, combined.integral(0, 20000), 1e-9);
+
+		// Elements which ended are dropped
+		final TimeProfile later = profile().replaceFrom(newer, 12000);
+		assertEquals(11000, later.getStart());
+		assertEquals(2, later.size());
+
+		// A newer profile which does not connect replaces everything
+		final TimeProfile gap = TimeProfile.of(30000, new long[] { 1000 }, new double[] { 1 });
+		assertSame(gap, profile().replaceFrom(gap, 0));
+	}
+
+}
@@ -0,0 +1,58 @@
+package org.flexiblepower.efi.storage_cem_example.efi_model;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.efi.storage_cem_example.efi_model.TimerWheel.Timeout;
+
+public class TimerWheelTest extends TestCase {
+
+	public void testOrderAndDeadlines() throws Exception {
+		// A small wheel, so the later tasks need more than one round
+		try (final TimerWheel wheel = new TimerWheel(5, 8, "test-wheel")) {
+			final List<Integer> fired = new CopyOnWriteArrayList<>();
+			final CountDownLatch done = new CountDownLatch(4);
+			final long now = System.currentTimeMillis();
+			final long[] deadlines = { now + 120, now + 30, now - 1000, now + 70 };
+			final long[] firedAt = new long[deadlines.length];
+			for (int i = 0; i < deadlines.length; i++) {
+				final int task = i;
+				wheel.schedule(deadlines[i], () -> {
+					firedAt[task] = System.currentTimeMillis();
+					fired.add(task);
+					done.countDown();
+				});
+			}
+			assertTrue(done.await(2, TimeUnit.SECONDS));
+			assertEquals(2, (int) fired.get(0));
+			assertEquals(1, (int) fired.get(1));
+			assertEquals(3, (int) fired.get(2));
+			assertEquals(0, (int) fired.get(3));
+			for (int i = 0; i < deadlines.length; i++) {
+				assertTrue("Task " + i + " ran early", firedAt[i] >= deadlines[i]);
+			}
+		}
+	}
+
+	public void testCancel() throws Exception {
+		try (final TimerWheel wheel = new TimerWheel(5, 8, "test-wheel")) {
+			final CountDownLatch cancelledRan = new CountDownLatch(1);
+			final CountDownLatch laterRan = new CountDownLatch(1);
+			final long now = System.currentTimeMillis();
+			final Timeout cancelled = wheel.schedule(now + 20, cancelledRan::countDown);
+			final Timeout later = wheel.schedule(now + 60, laterRan::countDown);
+			assertTrue(cancelled.cancel());
+			assertFalse(cancelled.cancel());
+			assertTrue(laterRan.await(2, TimeUnit.SECONDS));
+			assertEquals(1, cancelledRan.getCount());
+			assertTrue(cancelled.isCancelled());
+			assertTrue(later.isExpired());
+			assertFalse(later.cancel());
+		}
+	}
+
+}
@@ -0,0 +1,106 @@
+package org.flexiblepower.efi.storage_cem_example.efi_model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.efi.storage_cem_example.xml.XmlUtil;
+import org.flexiblepower.efi.xml.RunningMode;
+import org.flexiblepower.efi.xml.StorageDiscreteRunningMode;
+import org.flexiblepower.efi.xml.Timer;
+import org.flexiblepower.efi.xml.TimerReferences;
+import org.flexiblepower.efi.xml.TimerReferences.TimerReference;
+import org.flexiblepower.efi.xml.Transition;
+
+public class TransitionGraphTest extends TestCase {
+
+	private static final long NOW = 1000000000000L;
+
+	private static TimerReferences timer(int timerId) {
+		return new TimerReferences().withTimerReference(new TimerReference().withTimerId(timerId));
+	}
+
+	/**
+	 * 0 -> 1 takes a second and starts timer 2 (10 seconds), which blocks 1 ->
+	 * 2. Timer 1 (a minute) blocks 0 -> 2. Running modes 3 and 4 cannot be
+	 * reached from the others.
+	 */
+	private static TransitionGraph graph() {
+		final List<RunningMode> modes = new ArrayList<>();
+		for (int rm = 0; rm < 5; rm++) {
+			modes.add(new StorageDiscreteRunningMode().withId(rm).withLabel("rm" + rm));
+		}
+		final List<Timer> timers = Arrays.asList(
+				new Timer().withId(1).withLabel("long").withDuration(XmlUtil.duration(60000)),
+				new Timer().withId(2).withLabel("short").withDuration(XmlUtil.duration(10000)));
+		final List<Transition> transitions = Arrays.asList(
+				new Transition().withFromRunningModeId(0).withToRunningModeId(1)
+						.withTransitionDuration(XmlUtil.duration(1000)).withStartTimers(timer(2)),
+				new Transition().withFromRunningModeId(1).withToRunningModeId(2).withBlockingTimers(timer(2)),
+				new Transition().withFromRunningModeId(0).withToRunningModeId(2).withBlockingTimers(timer(1)),
+				new Transition().withFromRunningModeId(2).withToRunningModeId(0),
+				new Transition().withFromRunningModeId(3).withToRunningModeId(4),
+				// A duplicate is ignored
+				new Transition().withFromRunningModeId(3).withToRunningModeId(4).withBlockingTimers(timer(1)));
+		return new TransitionGraph(modes, timers, transitions);
+	}
+
+	public void testStructure() {
+		final TransitionGraph graph = graph();
+		assertEquals(5, graph.size());
+		assertEquals(3, graph.indexOf(3));
+		assertEquals(-1, graph.indexOf(7));
+		assertNotNull(graph.getTransition(0, 1));
+		assertNull(graph.getTransition(1, 0));
+		assertNull(graph.getTransition(3, 4).getBlockingTimers());
+		assertTrue(graph.canEverReach(0, 2));
+		assertTrue(graph.canEverReach(2, 1));
+		assertTrue(graph.canEverReach(0, 0));
+		assertFalse(graph.canEverReach(0, 3));
+		assertFalse(graph.canEverReach(4, 3));
+	}
+
+	public void testReachableNow() {
+		final TransitionGraph graph = graph();
+		final long[] timers = { NOW + 60000, Long.MIN_VALUE };
+		assertTrue(graph.isReachableNow(0, 1, timers, NOW));
+		assertFalse(graph.isReachableNow(0, 2, timers, NOW));
+		assertTrue(graph.isReachableNow(0, 2, timers, NOW + 60000));
+		assertTrue(graph.isReachableNow(1, 2, timers, NOW));
+		assertFalse(graph.isReachableNow(0, 3, timers, NOW));
+	}
+
+	public void testEarliestArrival() {
+		final TransitionGraph graph = graph();
+		final long[] timers = { NOW + 60000, Long.MIN_VALUE };
+		// Through 1, waiting for the timer started by 0 -> 1
+		assertEquals(NOW + 10000, graph.earliestArrival(0, 2, timers, NOW));
+		assertTrue(Arrays.equals(new int[] { 0, 1, 2 }, graph.fastestPath(0, 2, timers, NOW)));
+		// The direct transition is sooner when timer 1 almost finished
+		final long[] almost = { NOW + 5000, Long.MIN_VALUE };
+		assertEquals(NOW + 5000, graph.earliestArrival(0, 2, almost, NOW));
+		assertTrue(Arrays.equals(new int[] { 0, 2 }, graph.fastestPath(0, 2, almost, NOW)));
+
+		assertEquals(NOW, graph.earliestArrival(0, 0, timers, NOW));
+		assertEquals(NOW + 1000, graph.earliestArrival(2, 1, timers, NOW));
+		assertEquals(Long.MAX_VALUE, graph.earliestArrival(0, 3, timers, NOW));
+		assertNull(graph.fastestPath(0, 3, timers, NOW));
+	}
+
+	public void testStateQueries() {
+		final EfiStorageModel model = new EfiStorageModel();
+		model.handleEfiMessage(EfiStorageModelTest.systemDescription());
+		model.handleEfiMessage(EfiStorageModelTest.storageStatus(System.currentTimeMillis() + 60000));
+		final EfiStorageState state = model.getState();
+		// Actuator 2 is in running mode 0 and timer 1 blocks the odd running modes
+		assertFalse(state.canActivateNow(2, 1));
+		assertFalse(state.canActivateNow(2, 2));
+		assertTrue(state.canActivateNow(1, 4));
+		assertTrue(state.earliestReachableMillis(2, 5) >= state.transitionBlockedUntilMillis(2,
+				state.getTransition(2, 0, 1)));
+		assertEquals(Long.MAX_VALUE, state.earliestReachableMillis(1, 2));
+	}
+
+}
@@ -0,0 +1,145 @@
+package org.flexiblepower.efi.storage_cem_example.fleet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageModel;
+import org.flexiblepower.efi.storage_cem_example.simulator.DeviceProfile;
+import org.flexiblepower.efi.storage_cem_example.simulator.SimulatedStorage;
+import org.flexiblepower.efi.storage_cem_example.xml.XmlUtil;
+import org.flexiblepower.efi.xml.ActuatorInstruction;
+import org.flexiblepower.efi.xml.ActuatorInstructions;
+import org.flexiblepower.efi.xml.EfiMessage;
+import org.flexiblepower.efi.xml.StorageInstruction;
+
+public class FleetAggregatorTest extends TestCase {
+
+	private static final long MINUTE = 60 * 1000;
+	/** At the start of a minute */
+	private static final long START = 26666667 * MINUTE;
+
+	private final AtomicLong now = new AtomicLong(START);
+	private final ForkJoinPool pool = new ForkJoinPool(4);
+	private final FleetAggregator aggregator = new FleetAggregator(MINUTE, 60, this.now::get, this.pool);
+
+	@Override
+	protected void tearDown() {
+		this.pool.shutdown();
+	}
+
+	private EfiStorageModel connect(SimulatedStorage device) {
+		final EfiStorageModel model = new EfiStorageModel();
+		model.addListener(this.aggregator);
+		for (final EfiMessage message : device.connected(this.now.get())) {
+			model.handleEfiMessage(message);
+		}
+		return model;
+	}
+
+	private void instruct(SimulatedStorage device, EfiStorageModel model, int actuatorId, int runningModeId,
+			Double factor) {
+		final StorageInstruction instruction = new StorageInstruction().withInstructionId("i")
+				.withActuatorInstructions(new ActuatorInstructions()
+						.withActuatorInstruction(new ActuatorInstruction().withActuatorId(actuatorId)
+								.withRunningModeId(runningModeId).withRunningModeFactor(factor)
+								.withStartTime(XmlUtil.date(this.now.get()))));
+		for (final EfiMessage message : device.start(instruction, this.now.get())) {
+			model.handleEfiMessage(message);
+		}
+	}
+
+	public void testWithoutTimers() {
+		// Running modes of 0, up to 1000, 2000 and up to 3000 W
+		final SimulatedStorage device = new SimulatedStorage("rm-1", new DeviceProfile(1, 4, 0, 0, 0), 1);
+		final EfiStorageModel model = this.connect(device);
+		final double fill = model.getState().getFillLevel();
+
+		FleetFlexibility flexibility = this.aggregator.getFlexibility();
+		assertEquals(START, flexibility.getStartMillis());
+		assertEquals(1, flexibility.getDeviceCount());
+		assertEquals(0d, flexibility.getBaselinePower());
+		assertEquals(3000d, flexibility.getUpPower(0));
+		assertEquals(0d, flexibility.getDownPower(0));
+		// At 3000 W the storage fills by 0.03 and leaks 0.01 per second, until it is full
+		final long full = (long) ((100 - fill) / 0.02 * 1000);
+		assertEquals(full / MINUTE * MINUTE, flexibility.getUpDurationMillis(3000));
+		// At 1000 W the storage fills as fast as it leaks, so that lasts
+		assertEquals(60 * MINUTE, flexibility.getUpDurationMillis(1000));
+		// For the whole hour it can take the most power it does not fill up with
+		final double hour = 60 * MINUTE / 1000d;
+		assertEquals((100 - fill) / 0.02 >= hour ? 3000d : (100 - fill) / 0.01 >= hour ? 2000d : 1000d,
+				flexibility.getSustainableUpPower(60 * MINUTE));
+
+		this.instruct(device, model, 0, 3, 1d);
+		flexibility = this.aggregator.getFlexibility();
+		assertEquals(3000d, flexibility.getBaselinePower());
+		assertEquals(0d, flexibility.getUpPower(0));
+		assertEquals(3000d, flexibility.getDownPower(0));
+		assertEquals(3000d, flexibility.getSustainableDownPower(15 * MINUTE));
+	}
+
+	public void testBlockingTimers() {
+		final SimulatedStorage device = new SimulatedStorage("rm-1", new DeviceProfile(1, 4, 2, 0, 0), 1);
+		final EfiStorageModel model = this.connect(device);
+		// Running mode 2 must be kept for 10 seconds
+		this.instruct(device, model, 0, 2, null);
+		final FleetFlexibility flexibility = this.aggregator.getFlexibility();
+		assertEquals(2000d, flexibility.getBaselinePower());
+		assertEquals(0d, flexibility.getUpPower(0));
+		assertEquals(0d, flexibility.getDownPower(0));
+		assertEquals(1000d, flexibility.getUpPower(1));
+		assertEquals(2000d, flexibility.getDownPower(1));
+		assertEquals(0, flexibility.getDownDurationMillis(1));
+		try {
+			flexibility.getSustainableUpPower(61 * MINUTE);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	public void testIncrementalUpdates() {
+		final Random random = new Random(42);
+		final DeviceProfile profile = new DeviceProfile(2, 4, 2, 0, 0);
+		final List<SimulatedStorage> devices = new ArrayList<>();
+		final List<EfiStorageModel> models = new ArrayList<>();
+		for (int i = 0; i < 300; i++) {
+			devices.add(new SimulatedStorage("rm-" + i, profile, i));
+			models.add(this.connect(devices.get(i)));
+		}
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 100; i++) {
+				final int d = random.nextInt(devices.size());
+				final int mode = random.nextInt(4);
+				this.instruct(devices.get(d), models.get(d), random.nextInt(2), mode,
+						mode % 2 == 1 ? random.nextDouble() : null);
+			}
+			// The flexibility of every storage was determined when its last message
+			// arrived, at the same time as the rebuild
+			final FleetFlexibility incremental = this.aggregator.getFlexibility();
+			final FleetFlexibility rebuilt = this.aggregator.rebuild();
+			assertEquals(300, rebuilt.getDeviceCount());
+			assertEquals(rebuilt.getBaselinePower(), incremental.getBaselinePower());
+			for (int s = 0; s < rebuilt.getSlotCount(); s++) {
+				assertEquals(rebuilt.getUpPower(s), incremental.getUpPower(s));
+				assertEquals(rebuilt.getDownPower(s), incremental.getDownPower(s));
+			}
+		}
+
+		// The horizon moves with the time
+		this.now.addAndGet(MINUTE);
+		assertEquals((START / MINUTE + 1) * MINUTE, this.aggregator.getFlexibility().getStartMillis());
+
+		// A lost connection removes the flexibility of a storage
+		models.get(0).invalidate();
+		assertEquals(299, this.aggregator.getFlexibility().getDeviceCount());
+		this.aggregator.remove("rm-1");
+		assertEquals(298, this.aggregator.getFlexibility().getDeviceCount());
+	}
+
+}
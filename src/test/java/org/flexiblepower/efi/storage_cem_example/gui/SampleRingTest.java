@@ -0,0 +1,31 @@
+package org.flexiblepower.efi.storage_cem_example.gui;
+
+import junit.framework.TestCase;
+
+public class SampleRingTest extends TestCase {
+
+	public void testOrderBeforeAndAfterWrapping() {
+		final SampleRing ring = new SampleRing(4);
+		final long[] times = new long[4];
+		final double[] values = new double[4];
+		assertEquals(0, ring.copyTo(times, values));
+
+		ring.add(1000, 1);
+		ring.add(2000, 2);
+		assertEquals(2, ring.copyTo(times, values));
+		assertEquals(1000, times[0]);
+		assertEquals(2.0, values[1]);
+
+		for (int i = 3; i <= 7; i++) {
+			ring.add(i * 1000, i);
+		}
+		// The oldest samples have been overwritten
+		assertEquals(4, ring.copyTo(times, values));
+		for (int i = 0; i < 4; i++) {
+			assertEquals((i + 4) * 1000L, times[i]);
+			assertEquals(i + 4.0, values[i]);
+		}
+		assertEquals(7, ring.getAddedCount());
+	}
+
+}
@@ -0,0 +1,149 @@
+package org.flexiblepower.efi.storage_cem_example.history;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.efi.storage_cem_example.xml.StorageStatusView;
+import org.flexiblepower.efi.storage_cem_example.xml.XmlUtil;
+import org.flexiblepower.efi.xml.ActuatorStatus;
+import org.flexiblepower.efi.xml.ActuatorStatuses;
+import org.flexiblepower.efi.xml.EfiMessage.Header;
+import org.flexiblepower.efi.xml.StorageStatus;
+
+public class TimeSeriesTest extends TestCase {
+
+	private Path directory;
+
+	@Override
+	protected void setUp() throws IOException {
+		this.directory = Files.createTempDirectory("efi-history");
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		Files.walkFileTree(this.directory, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private static List<Long> times(TimeSeries series, long from, long to) {
+		final List<Long> times = new ArrayList<>();
+		series.forEach(from, to, (time, value) -> times.add(time));
+		return times;
+	}
+
+	public void testRangeQueriesAcrossSegments() throws IOException {
+		final TimeSeries series = new TimeSeries(null, 4);
+		assertTrue(series.isEmpty());
+		assertTrue(Double.isNaN(series.valueAt(0)));
+		for (int i = 0; i < 10; i++) {
+			assertTrue(series.append(i * 10, i));
+		}
+		assertFalse(series.append(85, 0));
+		assertTrue(series.append(90, 9.5));
+
+		assertEquals(11, series.size());
+		assertEquals(0, series.getFirstTime());
+		assertEquals(90, series.getLastTime());
+		assertEquals(3.0, series.valueAt(35), 0.0);
+		assertEquals(4.0, series.valueAt(40), 0.0);
+		assertEquals(9.5, series.valueAt(1000), 0.0);
+		assertTrue(Double.isNaN(series.valueAt(-1)));
+
+		final List<Long> range = times(series, 25, 75);
+		assertEquals(5, range.size());
+		assertEquals(Long.valueOf(30), range.get(0));
+		assertEquals(Long.valueOf(70), range.get(4));
+		assertEquals(5, series.count(25, 75));
+		assertEquals(11, series.count(Long.MIN_VALUE, Long.MAX_VALUE));
+		assertEquals(2, series.count(90, 91));
+		assertEquals(0, series.count(91, 1000));
+		assertTrue(times(series, 91, 1000).isEmpty());
+	}
+
+	public void testReload() throws IOException {
+		final Path path = this.directory.resolve("series");
+		final TimeSeries series = new TimeSeries(path, 3);
+		for (int i = 0; i < 8; i++) {
+			series.append(i, i * 0.5);
+		}
+		series.close();
+
+		final TimeSeries reloaded = new TimeSeries(path, 3);
+		assertEquals(8, reloaded.size());
+		assertEquals(7, reloaded.getLastTime());
+		assertEquals(2.5, reloaded.valueAt(5), 0.0);
+		assertFalse(reloaded.append(6, 0));
+		assertTrue(reloaded.append(8, 4));
+		assertTrue(reloaded.append(9, 4.5));
+		assertEquals(10, new TimeSeries(path, 3).size());
+	}
+
+	public void testCorruptCapacity() throws IOException {
+		final Path path = this.directory.resolve("series");
+		final TimeSeries series = new TimeSeries(path, 3);
+		series.append(1, 1);
+		series.close();
+		// A capacity whose file size does not fit in an int
+		try (FileChannel channel = FileChannel.open(path.resolve("00000000.seg"), StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.allocate(4).putInt(0, TimeSeries.MAX_SEGMENT_CAPACITY + 1), 8);
+		}
+		try {
+			new TimeSeries(path, 3);
+			fail("Corrupt segment accepted");
+		} catch (final IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().endsWith("is corrupt"));
+		}
+		try {
+			new TimeSeries(null, TimeSeries.MAX_SEGMENT_CAPACITY + 1);
+			fail("Too large capacity accepted");
+		} catch (final IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	public void testHistoryStoreReload() throws IOException {
+		final StorageStatus message = new StorageStatus().withEfiVersion("2.0")
+				.withHeader(new Header().withEfiResourceId("rm/1").withTimestamp(XmlUtil.date(new Date(1000))))
+				.withFlexibilityUpdateId("fu-1").withValidFrom(XmlUtil.date(new Date(1000)))
+				.withCurrentFillLevel(42)
+				.withActuatorStatuses(new ActuatorStatuses().withActuatorStatus(
+						new ActuatorStatus().withActuatorId(7).withCurrentRunningMode(3).withRunningModeFactor(0.5)));
+
+		final HistoryStore store = new HistoryStore(this.directory, 16);
+		store.getOrCreate("rm/1").record(new StorageStatusView().setFrom(message));
+		store.close();
+
+		final HistoryStore reloaded = new HistoryStore(this.directory, 16);
+		final ResourceHistory history = reloaded.get("rm/1");
+		assertNotNull(history);
+		assertEquals(42.0, history.getFillLevel().valueAt(1000), 0.0);
+		assertEquals(3.0, history.getRunningMode(7).valueAt(1000), 0.0);
+		assertEquals(0.5, history.getRunningModeFactor(7).valueAt(1000), 0.0);
+		assertEquals(1, history.getActuatorIds().size());
+		assertTrue(history.getPower().isEmpty());
+	}
+
+}
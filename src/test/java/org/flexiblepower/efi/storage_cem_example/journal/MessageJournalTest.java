@@ -0,0 +1,252 @@
+package org.flexiblepower.efi.storage_cem_example.journal;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.xml.bind.JAXBException;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageModel;
+import org.flexiblepower.efi.storage_cem_example.simulator.DeviceProfile;
+import org.flexiblepower.efi.storage_cem_example.simulator.SimulatedStorage;
+import org.flexiblepower.efi.storage_cem_example.xml.EfiXmlSerializer;
+import org.flexiblepower.efi.xml.EfiMessage;
+import org.flexiblepower.efi.xml.StorageInstruction;
+import org.flexiblepower.efi.xml.StorageSystemDescription;
+
+public class MessageJournalTest extends TestCase {
+
+	private static final long START = 1500000000000L;
+
+	private Path directory;
+
+	@Override
+	protected void setUp() throws IOException {
+		this.directory = Files.createTempDirectory("efi-journal");
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		Files.walkFileTree(this.directory, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Journal a message and let a model handle it, like the endpoint does.
+	 */
+	private static void receive(MessageJournal journal, String key, EfiStorageModel model, EfiMessage message)
+			throws JAXBException {
+		journal.append(key, true, EfiXmlSerializer.serialize(message));
+		model.handleEfiMessage(message);
+	}
+
+	private static void assertSameState(EfiStorageModel expected, EfiStorageModel actual) {
+		assertEquals(expected.getState().getEfiResourceId(), actual.getState().getEfiResourceId());
+		assertNotNull(actual.getState().getStorageSystemDescription());
+		assertEquals(expected.getState().getActuatorBehaviours().size(),
+				actual.getState().getActuatorBehaviours().size());
+		assertEquals(expected.getState().getFillLevel(), actual.getState().getFillLevel());
+		assertEquals(expected.getState().getStorageStatus().getTimestamp(),
+				actual.getState().getStorageStatus().getTimestamp());
+		assertEquals(expected.getState().getActiveRunningMode(0), actual.getState().getActiveRunningMode(0));
+	}
+
+	private List<Path> files(String prefix) throws IOException {
+		try (Stream<Path> files = Files.list(this.directory)) {
+			return files.filter(p -> p.getFileName().toString().startsWith(prefix)).collect(Collectors.toList());
+		}
+	}
+
+	public void testRestore() throws Exception {
+		final DeviceProfile profile = new DeviceProfile(1, 4, 2, 0, 0);
+		final SimulatedStorage a = new SimulatedStorage("rm-a", profile, 1);
+		final SimulatedStorage b = new SimulatedStorage("rm-b", profile, 2);
+		final EfiStorageModel modelA = new EfiStorageModel();
+		final EfiStorageModel modelB = new EfiStorageModel();
+		try (MessageJournal journal = new MessageJournal(this.directory)) {
+			assertTrue(journal.getRestoredKeys().isEmpty());
+			for (final EfiMessage message : a.connected(START)) {
+				receive(journal, "ws://a", modelA, message);
+			}
+			for (final EfiMessage message : b.connected(START)) {
+				receive(journal, "ws://b", modelB, message);
+			}
+			final StorageInstruction instruction = new StorageInstruction().withInstructionId("i");
+			journal.append("ws://a", false, EfiXmlSerializer.serialize(instruction));
+			for (int i = 1; i <= 10; i++) {
+				receive(journal, "ws://a", modelA, a.measurement(START + i * 1000));
+				receive(journal, "ws://a", modelA, a.storageStatus(START + i * 1000));
+			}
+			journal.flush();
+			assertTrue(journal.getLastSequence() > 20);
+		}
+
+		try (MessageJournal journal = new MessageJournal(this.directory)) {
+			assertEquals(new HashSet<>(Arrays.asList("ws://a", "ws://b")), journal.getRestoredKeys());
+			final EfiStorageModel restoredA = new EfiStorageModel();
+			assertTrue(journal.restore("ws://a", restoredA) >= 4);
+			assertSameState(modelA, restoredA);
+			assertEquals(modelA.getState().getLastMeasurement().getPower(),
+					restoredA.getState().getLastMeasurement().getPower());
+			final EfiStorageModel restoredB = new EfiStorageModel();
+			journal.restore("ws://b", restoredB);
+			assertSameState(modelB, restoredB);
+			assertEquals(0, journal.restore("ws://c", new EfiStorageModel()));
+		}
+		// Only the snapshot is left
+		assertEquals(1, this.files("snapshot-").size());
+	}
+
+	public void testIncompleteRecord() throws Exception {
+		final SimulatedStorage device = new SimulatedStorage("rm-1", new DeviceProfile(1, 4, 0, 0, 0), 1);
+		final EfiStorageModel model = new EfiStorageModel();
+		final Path copy = Files.createTempDirectory("efi-journal-copy");
+		try {
+			final List<EfiMessage> connected = device.connected(START);
+			try (MessageJournal journal = new MessageJournal(this.directory)) {
+				for (final EfiMessage message : connected) {
+					receive(journal, "ws://1", model, message);
+				}
+				journal.flush();
+				journal.append("ws://1", true, EfiXmlSerializer.serialize(device.storageStatus(START + 60000)));
+				journal.flush();
+				// The application stops while the last record is being written
+				final Path segment = this.files("journal-").get(0);
+				final byte[] bytes = Files.readAllBytes(segment);
+				Files.write(copy.resolve(segment.getFileName()), Arrays.copyOf(bytes, bytes.length - 3));
+			}
+
+			try (MessageJournal journal = new MessageJournal(copy)) {
+				final EfiStorageModel restored = new EfiStorageModel();
+				journal.restore("ws://1", restored);
+				assertSameState(model, restored);
+				// New records follow the last complete one
+				assertEquals(connected.size(), journal.getLastSequence());
+			}
+		} finally {
+			try (Stream<Path> files = Files.list(copy)) {
+				for (final Path path : files.collect(Collectors.toList())) {
+					Files.delete(path);
+				}
+			}
+			Files.delete(copy);
+		}
+	}
+
+	public void testRejectedMessageIsSkipped() throws Exception {
+		final SimulatedStorage device = new SimulatedStorage("rm-1", new DeviceProfile(2, 4, 0, 0, 0), 1);
+		final EfiStorageModel model = new EfiStorageModel();
+		final List<EfiMessage> connected = device.connected(START);
+		// A journal written before rejected messages were left out
+		final StorageSystemDescription duplicate = (StorageSystemDescription) EfiXmlSerializer
+				.deserialize(EfiXmlSerializer.serialize(connected.get(1)));
+		duplicate.getActuatorBehaviours().getActuatorBehaviour().get(1).setActuatorId(0);
+		try (MessageJournal journal = new MessageJournal(this.directory)) {
+			receive(journal, "ws://1", model, connected.get(0));
+			receive(journal, "ws://1", model, connected.get(1));
+			journal.append("ws://1", true, EfiXmlSerializer.serialize(duplicate));
+			receive(journal, "ws://1", model, connected.get(2));
+			journal.flush();
+		}
+
+		// It replaced the accepted StorageSystemDescription in the journal, but the
+		// other messages are still restored
+		try (MessageJournal journal = new MessageJournal(this.directory)) {
+			final EfiStorageModel restored = new EfiStorageModel();
+			assertEquals(2, journal.restore("ws://1", restored));
+			assertEquals("rm-1", restored.getState().getEfiResourceId());
+			assertNull(restored.getState().getStorageSystemDescription());
+			assertEquals(model.getState().getFillLevel(), restored.getState().getFillLevel());
+		}
+	}
+
+	public void testSnapshotReplacesSegments() throws Exception {
+		final SimulatedStorage device = new SimulatedStorage("rm-1", new DeviceProfile(2, 4, 2, 0, 0), 1);
+		final EfiStorageModel model = new EfiStorageModel();
+		try (MessageJournal journal = new MessageJournal(this.directory, 4096)) {
+			for (final EfiMessage message : device.connected(START)) {
+				receive(journal, "ws://1", model, message);
+			}
+			for (int i = 1; i <= 200; i++) {
+				receive(journal, "ws://1", model, device.storageStatus(START + i * 1000));
+				if (i % 10 == 0) {
+					// Several segments are filled
+					journal.flush();
+				}
+			}
+			journal.flush();
+			assertEquals(1, this.files("snapshot-").size());
+			assertEquals(1, this.files("journal-").size());
+		}
+
+		try (MessageJournal journal = new MessageJournal(this.directory, 4096)) {
+			final EfiStorageModel restored = new EfiStorageModel();
+			assertEquals(3, journal.restore("ws://1", restored));
+			assertSameState(model, restored);
+		}
+	}
+
+	public void testFailedWrite() throws Exception {
+		final SimulatedStorage device = new SimulatedStorage("rm-1", new DeviceProfile(1, 4, 0, 0, 0), 1);
+		final EfiStorageModel model = new EfiStorageModel();
+		final List<FileChannel> segments = new ArrayList<>();
+		try (MessageJournal journal = new MessageJournal(this.directory, MessageJournal.DEFAULT_SEGMENT_BYTES,
+				path -> {
+					final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+							StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+					segments.add(channel);
+					return channel;
+				})) {
+			for (final EfiMessage message : device.connected(START)) {
+				receive(journal, "ws://1", model, message);
+			}
+			journal.flush();
+
+			// The disk fails
+			segments.get(segments.size() - 1).close();
+			journal.append("ws://1", true, EfiXmlSerializer.serialize(device.storageStatus(START + 1000)));
+			try {
+				journal.flush();
+				fail("The lost record was not reported");
+			} catch (final IOException e) {
+				// Expected
+			}
+
+			// The journal continues in a new segment
+			receive(journal, "ws://1", model, device.storageStatus(START + 2000));
+			journal.flush();
+			assertEquals(2, segments.size());
+		}
+
+		try (MessageJournal journal = new MessageJournal(this.directory)) {
+			final EfiStorageModel restored = new EfiStorageModel();
+			journal.restore("ws://1", restored);
+			assertSameState(model, restored);
+		}
+	}
+
+}
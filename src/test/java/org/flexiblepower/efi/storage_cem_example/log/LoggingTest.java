@@ -0,0 +1,83 @@
+package org.flexiblepower.efi.storage_cem_example.log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import junit.framework.TestCase;
+
+public class LoggingTest extends TestCase {
+
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	private final ByteArrayOutputStream err = new ByteArrayOutputStream();
+	private final Logging logging = new Logging(
+			new AsyncAppender(new PrintStream(this.out, true), new PrintStream(this.err, true), 1024));
+
+	private String out() {
+		this.logging.close();
+		return this.out.toString();
+	}
+
+	private static int count(String text, String part) {
+		int n = 0;
+		for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+			n++;
+		}
+		return n;
+	}
+
+	public void testLevels() {
+		this.logging.configure("warn, websocket=debug");
+		final Log model = this.logging.getLog("model");
+		final Log websocket = this.logging.getLog("websocket");
+		model.info("Not logged");
+		model.error("Failed", "resource", "rm-1");
+		websocket.debug("Received", "type", "StorageStatus");
+		websocket.trace("Not logged");
+
+		final String out = this.out();
+		assertFalse(out, out.contains("Not logged"));
+		assertTrue(out, out.contains("DEBUG [websocket] Received type=StorageStatus"));
+		assertTrue(this.err.toString(), this.err.toString().contains("ERROR [model] Failed resource=rm-1"));
+	}
+
+	public void testLevelOfExistingLogChanges() {
+		final Log log = this.logging.getLog("model");
+		assertFalse(log.isEnabled(Level.DEBUG));
+		this.logging.setDefaultLevel(Level.DEBUG);
+		assertTrue(log.isEnabled(Level.DEBUG));
+		this.logging.setLevel("model", Level.OFF);
+		assertFalse(log.isEnabled(Level.ERROR));
+	}
+
+	public void testPayloadCapture() {
+		final Log log = this.logging.getLog("websocket");
+		this.logging.capturePayloads("rm-1");
+		log.payload("rm-1", "received", "<StorageStatus/>");
+		log.payload("rm-2", "received", "<Measurement/>");
+
+		final String out = this.out();
+		assertTrue(out, out.contains("direction=received resource=rm-1 xml=<StorageStatus/>"));
+		assertFalse(out, out.contains("Measurement"));
+	}
+
+	public void testPayloadsAreRateLimited() {
+		this.logging.setLevel("websocket", Level.DEBUG);
+		this.logging.setPayloadsPerSecond(2);
+		final Log log = this.logging.getLog("websocket");
+		final StringBuilder xml = new StringBuilder();
+		for (int i = 0; i < 300; i++) {
+			xml.append('x');
+		}
+		for (int i = 0; i < 10; i++) {
+			log.payload("rm-1", "sent", xml.toString());
+		}
+
+		final String out = this.out();
+		// At most two per second, the loop may just cross a second
+		final int logged = count(out, "Payload");
+		assertTrue(out, logged >= 2 && logged <= 4);
+		assertTrue(out, out.contains("length=300"));
+		assertFalse(out, out.contains(xml));
+	}
+
+}
@@ -0,0 +1,64 @@
+package org.flexiblepower.efi.storage_cem_example.metrics;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase {
+
+	public void testSmallValuesAreExact() {
+		final LatencyHistogram histogram = new LatencyHistogram(3600000);
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i);
+		}
+		assertEquals(100, histogram.getCount());
+		assertEquals(50, histogram.getValueAtPercentile(50));
+		assertEquals(99, histogram.getValueAtPercentile(99));
+		assertEquals(100, histogram.getValueAtPercentile(100));
+		assertEquals(1, histogram.getValueAtPercentile(0));
+		assertEquals(50.5, histogram.getMean(), 1e-9);
+	}
+
+	public void testLargeValuesWithinPrecision() {
+		for (long value = 1; value < 3600000; value = value * 3 + 1) {
+			final LatencyHistogram histogram = new LatencyHistogram(3600000);
+			histogram.record(value);
+			final long p = histogram.getValueAtPercentile(50);
+			assertTrue(value + " -> " + p, p <= value && p >= value - value / 64);
+		}
+	}
+
+	public void testValuesAboveHighestAreClamped() {
+		final LatencyHistogram histogram = new LatencyHistogram(1000);
+		histogram.record(-5);
+		histogram.record(5000);
+		assertEquals(0, histogram.getValueAtPercentile(50));
+		assertEquals(1000, histogram.getMax());
+		assertTrue(histogram.getValueAtPercentile(100) <= 1000);
+		assertTrue(histogram.getValueAtPercentile(100) >= 1000 - 1000 / 64);
+	}
+
+	public void testConcurrentRecording() throws InterruptedException {
+		final LatencyHistogram histogram = new LatencyHistogram(1000);
+		final Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 100000; i++) {
+					histogram.record(i % 10);
+				}
+			});
+			threads[t].start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(400000, histogram.getCount());
+		assertEquals(400000 * 4.5, histogram.getSum(), 0);
+		assertEquals(9, histogram.getMax());
+	}
+
+	public void testEmpty() {
+		final LatencyHistogram histogram = new LatencyHistogram(1000);
+		assertEquals(0, histogram.getValueAtPercentile(99));
+		assertTrue(Double.isNaN(histogram.getMean()));
+	}
+
+}
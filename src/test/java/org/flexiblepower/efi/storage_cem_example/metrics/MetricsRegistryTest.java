@@ -0,0 +1,74 @@
+package org.flexiblepower.efi.storage_cem_example.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class MetricsRegistryTest extends TestCase {
+
+	public void testPrometheusFormat() {
+		final MetricsRegistry registry = new MetricsRegistry();
+		registry.counter("efi_messages_total", "Messages", "type", "StorageStatus").add(3);
+		registry.counter("efi_messages_total", "Messages", "type", "Measurement").increment();
+		registry.gauge("efi_queue", "Queue depth").add(2);
+		final Timer timer = registry.timer("efi_handle_seconds", "Handle time");
+		timer.recordNanos(2000000);
+
+		final String text = registry.toPrometheus();
+		assertTrue(text, text.contains("# TYPE efi_messages_total counter\n"
+				+ "efi_messages_total{type=\"Measurement\"} 1\n" + "efi_messages_total{type=\"StorageStatus\"} 3\n"));
+		assertTrue(text, text.contains("# TYPE efi_queue gauge\nefi_queue 2\n"));
+		assertTrue(text, text.contains("efi_handle_seconds{quantile=\"0.5\"} 0.002\n"));
+		assertTrue(text, text.contains("efi_handle_seconds_count 1\n"));
+		// HELP and TYPE only once per name
+		assertEquals(text.indexOf("# HELP efi_messages_total"), text.lastIndexOf("# HELP efi_messages_total"));
+	}
+
+	public void testSameMetricIsReturned() {
+		final MetricsRegistry registry = new MetricsRegistry();
+		final Counter counter = registry.counter("c", "help", "a", "1");
+		assertSame(counter, registry.counter("c", "help", "a", "1"));
+		assertNotSame(counter, registry.counter("c", "help", "a", "2"));
+		try {
+			registry.gauge("c", "help", "a", "1");
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	public void testValues() {
+		final MetricsRegistry registry = new MetricsRegistry();
+		registry.counter("efi_messages_total", "Messages", "type", "StorageStatus").add(3);
+		registry.timer("efi_handle_seconds", "Handle time").recordNanos(5000);
+
+		final Map<String, Number> values = registry.getValues();
+		assertEquals(3L, values.get("efi_messages_total_StorageStatus"));
+		assertEquals(1L, values.get("efi_handle_seconds_count"));
+		assertEquals(5L, values.get("efi_handle_seconds_max_us"));
+	}
+
+	public void testHttpServer() throws Exception {
+		final MetricsRegistry registry = new MetricsRegistry();
+		registry.counter("efi_test_total", "Test").increment();
+		try (final MetricsHttpServer server = new MetricsHttpServer(registry, 0)) {
+			final HttpURLConnection connection = (HttpURLConnection) new URL(
+					"http://localhost:" + server.getPort() + "/metrics").openConnection();
+			assertEquals(200, connection.getResponseCode());
+			final ByteArrayOutputStream body = new ByteArrayOutputStream();
+			try (InputStream in = connection.getInputStream()) {
+				final byte[] buffer = new byte[1024];
+				for (int n; (n = in.read(buffer)) > 0;) {
+					body.write(buffer, 0, n);
+				}
+			}
+			assertTrue(new String(body.toByteArray(), StandardCharsets.UTF_8).contains("efi_test_total 1\n"));
+		}
+	}
+
+}
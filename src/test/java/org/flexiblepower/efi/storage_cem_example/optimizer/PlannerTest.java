@@ -0,0 +1,208 @@
+package org.flexiblepower.efi.storage_cem_example.optimizer;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.efi.storage_cem_example.EfiTestMessages;
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageModel;
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageState;
+import org.flexiblepower.efi.storage_cem_example.xml.XmlUtil;
+import org.flexiblepower.efi.xml.ActuatorBehaviour;
+import org.flexiblepower.efi.xml.ActuatorStatus;
+import org.flexiblepower.efi.xml.LeakageElement;
+import org.flexiblepower.efi.xml.LeakageFunction;
+import org.flexiblepower.efi.xml.StorageContinuousRunningMode;
+import org.flexiblepower.efi.xml.StorageContinuousRunningMode.ContinuousRunningModeElement;
+import org.flexiblepower.efi.xml.StorageContinuousRunningMode.ContinuousRunningModeElement.LowerBound;
+import org.flexiblepower.efi.xml.StorageContinuousRunningMode.ContinuousRunningModeElement.UpperBound;
+import org.flexiblepower.efi.xml.StorageDiscreteRunningMode;
+import org.flexiblepower.efi.xml.StorageDiscreteRunningMode.DiscreteRunningModeElement;
+import org.flexiblepower.efi.xml.StorageRunningModes;
+import org.flexiblepower.efi.xml.StorageSystemDescription;
+import org.flexiblepower.efi.xml.Timer;
+import org.flexiblepower.efi.xml.TimerUpdate;
+import org.flexiblepower.efi.xml.TimerUpdates;
+import org.flexiblepower.efi.xml.Timers;
+import org.flexiblepower.efi.xml.Transition;
+import org.flexiblepower.efi.xml.Transitions;
+
+public class PlannerTest extends TestCase {
+
+	private static final long SLOT = 15 * 60 * 1000;
+	private static final int OFF = 0;
+	private static final int ON = 1;
+	private static final int MODULATING = 2;
+	private static final int MINIMUM_ON = 1;
+	private static final int MINIMUM_OFF = 2;
+
+	/**
+	 * A storage from 0 to 100 with an off mode, an on mode which fills 9 per
+	 * slot with 1 kW and optionally a continuous mode in between. Switching on
+	 * starts a minimum on timer of one hour, switching off a minimum off timer
+	 * of half an hour.
+	 */
+	static StorageSystemDescription systemDescription(boolean modulating, boolean timers, double leakageRate) {
+		final StorageRunningModes modes = new StorageRunningModes();
+		modes.getDiscreteRunningModeOrContinuousRunningMode().add(new StorageDiscreteRunningMode().withId(OFF)
+				.withLabel("off").withDiscreteRunningModeElement(new DiscreteRunningModeElement()
+						.withFillLevelLowerBound(0).withFillLevelUpperBound(100).withFillingRate(0)
+						.withElectricalPower(0d)));
+		modes.getDiscreteRunningModeOrContinuousRunningMode()
+				.add(new StorageDiscreteRunningMode().withId(ON).withLabel("on")
+						.withDiscreteRunningModeElement(new DiscreteRunningModeElement().withFillLevelLowerBound(0)
+								.withFillLevelUpperBound(100).withFillingRate(0.01).withElectricalPower(1000d)
+								.withRunningCost(BigDecimal.ZERO)));
+		if (modulating) {
+			modes.getDiscreteRunningModeOrContinuousRunningMode().add(new StorageContinuousRunningMode()
+					.withId(MODULATING).withLabel("modulating")
+					.withContinuousRunningModeElement(new ContinuousRunningModeElement().withFillLevelLowerBound(0)
+							.withFillLevelUpperBound(100)
+							.withLowerBound(new LowerBound().withFillingRate(0).withElectricalPower(0d))
+							.withUpperBound(new UpperBound().withFillingRate(0.01).withElectricalPower(1100d))));
+		}
+
+		final Transitions transitions = new Transitions();
+		final int[] ids = modulating ? new int[] { OFF, ON, MODULATING } : new int[] { OFF, ON };
+		for (final int from : ids) {
+			for (final int to : ids) {
+				if (from == to) {
+					continue;
+				}
+				final Transition transition = new Transition().withFromRunningModeId(from).withToRunningModeId(to);
+				if (timers && from == OFF && to == ON) {
+					transition.withStartTimers(EfiTestMessages.timerReference(MINIMUM_ON))
+							.withBlockingTimers(EfiTestMessages.timerReference(MINIMUM_OFF));
+				} else if (timers && from == ON && to == OFF) {
+					transition.withStartTimers(EfiTestMessages.timerReference(MINIMUM_OFF))
+							.withBlockingTimers(EfiTestMessages.timerReference(MINIMUM_ON));
+				}
+				transitions.withTransition(transition);
+			}
+		}
+		return EfiTestMessages
+				.systemDescription(new ActuatorBehaviour().withActuatorId(1).withRunningModes(modes)
+						.withTimers(new Timers().withTimer(
+								new Timer().withId(MINIMUM_ON).withLabel("minimum on")
+										.withDuration(XmlUtil.duration(60 * 60 * 1000)),
+								new Timer().withId(MINIMUM_OFF).withLabel("minimum off")
+										.withDuration(XmlUtil.duration(30 * 60 * 1000))))
+						.withTransitions(transitions))
+				.withLeakageBehaviour(new LeakageFunction().withLeakageElement(new LeakageElement()
+						.withFillLevelLowerBound(0).withFillLevelUpperBound(100).withLeakageRate(leakageRate)));
+	}
+
+	/**
+	 * A model of the storage, which is off and half full.
+	 */
+	static EfiStorageModel model(boolean modulating, boolean timers, double leakageRate, long minimumOffFinishedAt) {
+		final EfiStorageModel model = new EfiStorageModel();
+		model.handleEfiMessage(systemDescription(modulating, timers, leakageRate));
+		model.handleEfiMessage(EfiTestMessages.storageStatus(50, new ActuatorStatus().withActuatorId(1)
+				.withCurrentRunningMode(OFF).withTimerUpdates(new TimerUpdates().withTimerUpdate(new TimerUpdate()
+						.withTimerId(MINIMUM_OFF).withFinishedAt(XmlUtil.date(new Date(minimumOffFinishedAt)))))));
+		return model;
+	}
+
+	private static EfiStorageState state(boolean modulating, boolean timers, double leakageRate,
+			long minimumOffFinishedAt) {
+		return model(modulating, timers, leakageRate, minimumOffFinishedAt).getState();
+	}
+
+	private static double[] prices(double... prices) {
+		return prices;
+	}
+
+	private static double[] bound(int slots, int slot, double value) {
+		final double[] bounds = new double[slots];
+		Arrays.fill(bounds, Double.NaN);
+		bounds[slot] = value;
+		return bounds;
+	}
+
+	private static void assertRunningModes(Schedule schedule, int... expected) {
+		final int[] actual = new int[schedule.getSlotCount()];
+		for (int i = 0; i < actual.length; i++) {
+			actual[i] = schedule.getRunningModeId(i);
+		}
+		assertEquals(schedule.toString(), Arrays.toString(expected), Arrays.toString(actual));
+	}
+
+	public void testFillsWhenElectricityIsCheap() {
+		final long now = System.currentTimeMillis();
+		final EfiStorageState state = state(false, false, 0, now);
+		final PlanningProblem problem = new PlanningProblem(now, SLOT, prices(5, 5, 5, 5, 1, 1, 1, 1))
+				.withTargetProfile(bound(8, 7, 80), null);
+
+		final Schedule schedule = new Planner().plan(state, 1, problem);
+		assertRunningModes(schedule, OFF, OFF, OFF, OFF, ON, ON, ON, ON);
+		assertEquals(50.0, schedule.getFillLevel(3), 1e-9);
+		assertEquals(86.0, schedule.getFillLevel(7), 1e-9);
+		assertEquals(1000.0, schedule.getPower(4), 0.0);
+		assertEquals(1.0, schedule.getExpectedCost(), 1e-9);
+	}
+
+	public void testRunningTimerBlocksTransition() {
+		final long now = System.currentTimeMillis();
+		// Switching on is blocked for the first two slots
+		final EfiStorageState state = state(false, true, 0, now + 20 * 60 * 1000);
+		final PlanningProblem problem = new PlanningProblem(now, SLOT, prices(1, 1, 1, 1, 1, 1))
+				.withTargetProfile(bound(6, 3, 75), null);
+
+		final Schedule schedule = new Planner().plan(state, 1, problem);
+		assertEquals(OFF, schedule.getRunningModeId(0));
+		assertEquals(OFF, schedule.getRunningModeId(1));
+		assertEquals(ON, schedule.getRunningModeId(2));
+		assertEquals(ON, schedule.getRunningModeId(3));
+	}
+
+	public void testMinimumOnTime() {
+		final long now = System.currentTimeMillis();
+		final EfiStorageState state = state(false, true, 0, now - 1);
+		// Only the first slot is cheap, but the minimum on timer keeps the
+		// storage on for four slots
+		final PlanningProblem problem = new PlanningProblem(now, SLOT, prices(1, 9, 9, 9, 9, 9, 9, 9))
+				.withTargetProfile(bound(8, 0, 59), null);
+
+		final Schedule schedule = new Planner().plan(state, 1, problem);
+		assertRunningModes(schedule, ON, ON, ON, ON, OFF, OFF, OFF, OFF);
+	}
+
+	public void testContinuousFactor() {
+		final long now = System.currentTimeMillis();
+		final EfiStorageState state = state(true, false, 0, now);
+		final PlanningProblem problem = new PlanningProblem(now, SLOT, prices(1, 1, 1, 1))
+				.withTargetProfile(bound(4, 0, 54.5), null);
+
+		// The continuous mode uses more power, but the discrete mode would
+		// overshoot the target
+		final Schedule schedule = new Planner(201, 5, 1000).plan(state, 1, problem);
+		assertEquals(MODULATING, schedule.getRunningModeId(0));
+		assertEquals(0.5, schedule.getRunningModeFactor(0), 0.0);
+		assertEquals(54.5, schedule.getFillLevel(0), 1e-9);
+		assertTrue(Double.isNaN(schedule.getRunningModeFactor(3)) || schedule.getRunningModeFactor(3) == 0);
+	}
+
+	public void testLeakageAndUsage() {
+		final long now = System.currentTimeMillis();
+		final EfiStorageState state = state(true, false, 0.001, now);
+		final PlanningProblem problem = new PlanningProblem(now, SLOT, prices(1, 1, 1, 1))
+				.withUsageForecast(new double[] { 0, 0.01, 0, 0 });
+
+		final Schedule schedule = new Planner().plan(state, 1, problem);
+		assertRunningModes(schedule, OFF, OFF, OFF, OFF);
+		assertEquals(49.1, schedule.getFillLevel(0), 1e-9);
+		assertEquals(39.2, schedule.getFillLevel(1), 1e-9);
+		assertEquals(37.4, schedule.getFillLevel(3), 1e-9);
+	}
+
+	public void testIncompleteState() {
+		final EfiStorageModel model = new EfiStorageModel();
+		model.handleEfiMessage(systemDescription(false, false, 0));
+		assertNull(new Planner().plan(model.getState(), 1,
+				new PlanningProblem(System.currentTimeMillis(), SLOT, prices(1))));
+	}
+
+}
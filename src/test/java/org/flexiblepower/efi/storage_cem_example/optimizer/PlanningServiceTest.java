@@ -0,0 +1,56 @@
+package org.flexiblepower.efi.storage_cem_example.optimizer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.efi.storage_cem_example.EfiTestMessages;
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageModel;
+import org.flexiblepower.efi.storage_cem_example.optimizer.PlanningService.PriceForecast;
+import org.flexiblepower.efi.xml.EfiMessage;
+import org.flexiblepower.efi.xml.InstructionStatus;
+import org.flexiblepower.efi.xml.StorageInstruction;
+
+public class PlanningServiceTest extends TestCase {
+
+	private static final long SLOT = 15 * 60 * 1000;
+
+	private final List<EfiMessage> sent = new ArrayList<>();
+	private EfiStorageModel model;
+	private PlanningService service;
+
+	@Override
+	protected void setUp() {
+		this.model = PlannerTest.model(false, false, 0, System.currentTimeMillis());
+		this.model.setEfiMessageSender(this.sent::add);
+		// Switching on is paid for, so the storage is planned on right away
+		this.service = new PlanningService(() -> Collections.singleton(this.model), PriceForecast.flat(-1),
+				new Planner(), SLOT, 4, 1);
+	}
+
+	@Override
+	protected void tearDown() {
+		this.service.close();
+	}
+
+	public void testInstructionIsRepeatedAfterRejection() {
+		this.service.replan(this.model);
+		assertEquals(1, this.sent.size());
+		// The Resource Manager has not reported the new running mode yet
+		this.service.replan(this.model);
+		assertEquals(1, this.sent.size());
+
+		final String instructionId = ((StorageInstruction) this.sent.get(0)).getInstructionId();
+		this.model.handleEfiMessage(EfiTestMessages.statusUpdate(instructionId, InstructionStatus.REJECTED));
+		this.service.replan(this.model);
+		assertEquals(2, this.sent.size());
+
+		// The Resource Manager describes its flexibility again
+		this.model.handleEfiMessage(PlannerTest.systemDescription(false, false, 0));
+		this.service.replan(this.model);
+		assertEquals(3, this.sent.size());
+	}
+
+}
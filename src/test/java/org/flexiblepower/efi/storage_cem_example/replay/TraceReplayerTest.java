@@ -0,0 +1,163 @@
+package org.flexiblepower.efi.storage_cem_example.replay;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.bind.JAXBException;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageModel;
+import org.flexiblepower.efi.storage_cem_example.simulator.DeviceProfile;
+import org.flexiblepower.efi.storage_cem_example.simulator.SimulatedStorage;
+import org.flexiblepower.efi.storage_cem_example.xml.EfiCompactCodec;
+import org.flexiblepower.efi.storage_cem_example.xml.EfiXmlSerializer;
+import org.flexiblepower.efi.xml.EfiMessage;
+
+public class TraceReplayerTest extends TestCase {
+
+	private static final long START = 1500000000000L;
+
+	private final AtomicLong nanos = new AtomicLong();
+	private Path file;
+
+	@Override
+	protected void setUp() throws IOException {
+		this.file = Files.createTempFile("efi-trace", ".bin");
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		Files.delete(this.file);
+	}
+
+	/**
+	 * Record a message as text or as a binary frame, and let a model handle it.
+	 */
+	private static void receive(TraceWriter trace, String key, EfiStorageModel model, EfiMessage message,
+			boolean binary) throws JAXBException {
+		final String xml = EfiXmlSerializer.serialize(message);
+		if (binary) {
+			trace.binary(key, EfiCompactCodec.encode(xml));
+		} else {
+			trace.text(key, xml);
+		}
+		model.handleEfiMessage(message);
+	}
+
+	private void advance(long millis) {
+		this.nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+	}
+
+	public void testReplay() throws Exception {
+		final DeviceProfile profile = new DeviceProfile(2, 4, 2, 0, 0);
+		final SimulatedStorage a = new SimulatedStorage("rm-a", profile, 1);
+		final SimulatedStorage b = new SimulatedStorage("rm-b", profile, 2);
+		final EfiStorageModel modelA = new EfiStorageModel();
+		final EfiStorageModel modelB = new EfiStorageModel();
+		try (TraceWriter trace = new TraceWriter(this.file, this.nanos::get)) {
+			for (final EfiMessage message : a.connected(START)) {
+				receive(trace, "ws://a", modelA, message, false);
+			}
+			for (final EfiMessage message : b.connected(START)) {
+				receive(trace, "ws://b", modelB, message, true);
+			}
+			for (int i = 1; i <= 20; i++) {
+				this.advance(1000);
+				receive(trace, "ws://a", modelA, a.measurement(START + i * 1000), false);
+				receive(trace, "ws://b", modelB, b.storageStatus(START + i * 1000), true);
+			}
+			assertEquals(6 + 40, trace.getRecordCount());
+		}
+
+		final TraceReplayer replayer = new TraceReplayer();
+		try (TraceReader reader = new TraceReader(this.file)) {
+			assertEquals(46, replayer.replay(reader, Double.POSITIVE_INFINITY));
+			assertEquals(20000000, reader.getTimeMicros());
+		}
+		assertEquals(Arrays.asList("ws://a", "ws://b"), Arrays.asList(replayer.getModels().keySet().toArray()));
+		assertEquals(46, replayer.getMessageCount());
+		assertEquals(0, replayer.getDecodeErrorCount());
+		assertEquals(46, replayer.getDecodeLatency().getCount());
+		for (final String key : Arrays.asList("ws://a", "ws://b")) {
+			final EfiStorageModel expected = key.equals("ws://a") ? modelA : modelB;
+			final EfiStorageModel actual = replayer.getModels().get(key);
+			assertEquals(expected.getState().getEfiResourceId(), actual.getState().getEfiResourceId());
+			assertNotNull(actual.getState().getStorageSystemDescription());
+			assertEquals(expected.getState().getFillLevel(), actual.getState().getFillLevel());
+			assertEquals(expected.getState().getStorageStatus().getTimestamp(),
+					actual.getState().getStorageStatus().getTimestamp());
+			assertEquals(expected.getState().getActiveRunningMode(0), actual.getState().getActiveRunningMode(0));
+		}
+		assertEquals(modelA.getState().getLastMeasurement().getPower(),
+				replayer.getModels().get("ws://a").getState().getLastMeasurement().getPower());
+	}
+
+	public void testPacedReplay() throws Exception {
+		final SimulatedStorage device = new SimulatedStorage("rm-1", new DeviceProfile(1, 4, 0, 0, 0), 1);
+		try (TraceWriter trace = new TraceWriter(this.file, this.nanos::get)) {
+			for (final EfiMessage message : device.connected(START)) {
+				receive(trace, "ws://1", new EfiStorageModel(), message, false);
+			}
+			for (int i = 1; i <= 4; i++) {
+				this.advance(100);
+				trace.text("ws://1", EfiXmlSerializer.serialize(device.storageStatus(START + i * 100)));
+			}
+		}
+
+		// 400 ms of trace at twice the recorded speed
+		final long start = System.nanoTime();
+		try (TraceReader reader = new TraceReader(this.file)) {
+			new TraceReplayer().replay(reader, 2);
+		}
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+	}
+
+	public void testClosedConnection() throws Exception {
+		final SimulatedStorage device = new SimulatedStorage("rm-1", new DeviceProfile(1, 4, 0, 0, 0), 1);
+		try (TraceWriter trace = new TraceWriter(this.file, this.nanos::get)) {
+			for (final EfiMessage message : device.connected(START)) {
+				receive(trace, "ws://1", new EfiStorageModel(), message, false);
+			}
+			this.advance(10);
+			trace.closed("ws://1");
+		}
+
+		final TraceReplayer replayer = new TraceReplayer();
+		try (TraceReader reader = new TraceReader(this.file)) {
+			assertTrue(reader.next());
+			assertEquals("ws://1", reader.getConnection());
+			assertEquals(TraceReader.Kind.MESSAGE, reader.getKind());
+		}
+		try (TraceReader reader = new TraceReader(this.file)) {
+			replayer.replay(reader, Double.POSITIVE_INFINITY);
+			assertEquals(TraceReader.Kind.CLOSED, reader.getKind());
+			assertEquals(10000, reader.getTimeMicros());
+		}
+		assertNull(replayer.getModels().get("ws://1").getState().getStorageSystemDescription());
+	}
+
+	public void testIncompleteRecord() throws Exception {
+		final SimulatedStorage device = new SimulatedStorage("rm-1", new DeviceProfile(1, 4, 0, 0, 0), 1);
+		final int messages;
+		try (TraceWriter trace = new TraceWriter(this.file, this.nanos::get)) {
+			for (final EfiMessage message : device.connected(START)) {
+				receive(trace, "ws://1", new EfiStorageModel(), message, false);
+			}
+			messages = (int) trace.getRecordCount();
+			trace.text("ws://1", EfiXmlSerializer.serialize(device.storageStatus(START + 1000)));
+		}
+		// The application stops while the last record is being written
+		final byte[] bytes = Files.readAllBytes(this.file);
+		Files.write(this.file, Arrays.copyOf(bytes, bytes.length - 3));
+
+		try (TraceReader reader = new TraceReader(this.file)) {
+			assertEquals(messages, new TraceReplayer().replay(reader, Double.POSITIVE_INFINITY));
+		}
+	}
+
+}
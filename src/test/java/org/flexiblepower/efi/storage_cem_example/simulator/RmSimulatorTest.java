@@ -0,0 +1,75 @@
+package org.flexiblepower.efi.storage_cem_example.simulator;
+
+import java.util.function.BooleanSupplier;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.efi.storage_cem_example.cem.ConnectionManager;
+import org.flexiblepower.efi.storage_cem_example.cem.InstructionLedger;
+import org.flexiblepower.efi.storage_cem_example.cem.ResourceRegistry;
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageModel;
+import org.flexiblepower.efi.storage_cem_example.websocket.WebsocketClientEndpoint;
+import org.flexiblepower.efi.storage_cem_example.websocket.WireEncoding;
+import org.flexiblepower.efi.xml.InstructionStatus;
+
+public class RmSimulatorTest extends TestCase {
+
+	private static final int DEVICES = 20;
+
+	private static void await(String what, BooleanSupplier condition) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 20000;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("Timed out waiting for " + what);
+			}
+			Thread.sleep(20);
+		}
+	}
+
+	private void connect(boolean compact) throws Exception {
+		final DeviceProfile profile = new DeviceProfile(2, 4, 2, 200, 100);
+		try (RmSimulator simulator = new RmSimulator(0, DEVICES, profile, compact)) {
+			final ResourceRegistry registry = new ResourceRegistry();
+			final InstructionLedger ledger = new InstructionLedger();
+			registry.addListener(ledger);
+			try (ConnectionManager connections = new ConnectionManager(registry, 2)) {
+				connections.setCompactEncodingOffered(true);
+				connections.open(simulator.getUris());
+				await("system descriptions", () -> registry.size() == DEVICES && registry.getModels().stream()
+						.allMatch(m -> m.getState().getStorageSystemDescription() != null
+								&& m.getState().getStorageStatus() != null));
+				assertEquals(DEVICES, simulator.getConnectionCount());
+				for (final WebsocketClientEndpoint endpoint : connections.getEndpoints()) {
+					assertEquals(compact ? WireEncoding.COMPACT : WireEncoding.XML, endpoint.getEncoding());
+				}
+
+				final EfiStorageModel model = registry.get("sim-3");
+				assertTrue(model.activateContinuousRunningMode(1, 3, 0.5));
+				await("instruction started", () -> ledger.getStatusCount("sim-3", InstructionStatus.STARTED) == 1);
+				await("running mode", () -> simulator.getDevice(3).getRunningMode(1) == 3);
+				await("status", () -> model.getState().getStorageStatus()
+						.getCurrentRunningMode(model.getState().getStorageStatus().indexOfActuator(1)) == 3);
+
+				// Leaving running mode 3 is blocked by its timer for 20 seconds
+				assertTrue(model.activateDiscreteRunningMode(1, 0));
+				await("instruction aborted", () -> ledger.getStatusCount("sim-3", InstructionStatus.ABORTED) == 1);
+				assertEquals(3, simulator.getDevice(3).getRunningMode(1));
+
+				// Periodic measurements keep coming
+				final long sent = simulator.getMessagesSent();
+				await("measurements", () -> simulator.getMessagesSent() > sent + DEVICES);
+				assertEquals(2, simulator.getInstructionsReceived());
+			}
+			await("disconnect", () -> simulator.getConnectionCount() == 0);
+		}
+	}
+
+	public void testXml() throws Exception {
+		this.connect(false);
+	}
+
+	public void testCompact() throws Exception {
+		this.connect(true);
+	}
+
+}
@@ -0,0 +1,35 @@
+package org.flexiblepower.efi.storage_cem_example.websocket;
+
+import junit.framework.TestCase;
+
+public class BackoffTest extends TestCase {
+
+	public void testDelayDoublesUpToMaximum() {
+		final Backoff backoff = new Backoff(100, 1000);
+		final long[] bases = { 100, 200, 400, 800, 1000, 1000, 1000 };
+		for (final long base : bases) {
+			final long delay = backoff.nextDelayMillis();
+			assertTrue("Delay " + delay + " for base " + base, delay >= base / 2 && delay <= base);
+		}
+		for (int i = 0; i < 100; i++) {
+			assertTrue(backoff.nextDelayMillis() <= 1000);
+		}
+	}
+
+	public void testReset() {
+		final Backoff backoff = new Backoff(100, 1000);
+		for (int i = 0; i < 10; i++) {
+			backoff.nextDelayMillis();
+		}
+		backoff.reset();
+		assertTrue(backoff.nextDelayMillis() <= 100);
+	}
+
+	public void testLargeMaximumDoesNotOverflow() {
+		final Backoff backoff = new Backoff(1, Long.MAX_VALUE);
+		for (int i = 0; i < 200; i++) {
+			assertTrue(backoff.nextDelayMillis() >= 0);
+		}
+	}
+
+}
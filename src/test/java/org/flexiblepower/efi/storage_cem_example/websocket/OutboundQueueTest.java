@@ -0,0 +1,164 @@
+package org.flexiblepower.efi.storage_cem_example.websocket;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.efi.storage_cem_example.xml.XmlUtil;
+import org.flexiblepower.efi.xml.ActuatorInstruction;
+import org.flexiblepower.efi.xml.ActuatorInstructions;
+import org.flexiblepower.efi.xml.EfiMessage.Header;
+import org.flexiblepower.efi.xml.StorageInstruction;
+
+public class OutboundQueueTest extends TestCase {
+
+	/**
+	 * Records the sent messages and completes them when the test says so.
+	 */
+	private static class RecordingSink implements OutboundQueue.TextSink {
+		private final List<String> texts = new ArrayList<>();
+		private final List<SendHandler> handlers = new ArrayList<>();
+
+		@Override
+		public void sendText(String text, SendHandler handler) {
+			this.texts.add(text);
+			this.handlers.add(handler);
+		}
+
+		void complete(int index) {
+			this.handlers.get(index).onResult(new SendResult());
+		}
+	}
+
+	private static StorageInstruction instruction(int actuatorId, int runningModeId) {
+		return new StorageInstruction().withEfiVersion("2.0")
+				.withHeader(new Header().withEfiResourceId("rm-1").withTimestamp(XmlUtil.date(new Date())))
+				.withFlexibilityUpdateId("fu-1").withInstructionId("i-" + actuatorId + "-" + runningModeId)
+				.withIsEmergencyInstruction(false)
+				.withActuatorInstructions(new ActuatorInstructions().withActuatorInstruction(new ActuatorInstruction()
+						.withActuatorId(actuatorId).withRunningModeId(runningModeId)
+						.withStartTime(XmlUtil.date(new Date()))));
+	}
+
+	public void testNewerInstructionReplacesQueuedInstruction() {
+		final RecordingSink sink = new RecordingSink();
+		final OutboundQueue queue = new OutboundQueue(sink, Runnable::run, 16, 60000);
+
+		assertTrue(queue.offer(instruction(1, 1)));
+		// The first instruction is being sent, the others have to wait
+		assertTrue(queue.offer(instruction(1, 2)));
+		assertTrue(queue.offer(instruction(2, 1)));
+		assertTrue(queue.offer(instruction(1, 3)));
+		assertEquals(1, sink.texts.size());
+		assertEquals(1, queue.getCoalescedCount());
+		assertEquals(3, queue.getOutstandingCount());
+
+		sink.complete(0);
+		assertEquals(2, sink.texts.size());
+		assertTrue(sink.texts.get(1).contains("i-1-3"));
+		sink.complete(1);
+		assertEquals(3, sink.texts.size());
+		assertTrue(sink.texts.get(2).contains("i-2-1"));
+		sink.complete(2);
+
+		assertEquals(3, queue.getSentCount());
+		assertEquals(0, queue.getOutstandingCount());
+	}
+
+	public void testOnlySentInstructionsAreReported() {
+		final RecordingSink sink = new RecordingSink();
+		final OutboundQueue queue = new OutboundQueue(sink, Runnable::run, 2, 60000);
+		final List<String> dispatched = new ArrayList<>();
+
+		assertTrue(queue.offer(instruction(1, 1), () -> dispatched.add("i-1-1")));
+		assertTrue(queue.offer(instruction(1, 2), () -> dispatched.add("i-1-2")));
+		assertTrue(queue.offer(instruction(1, 3), () -> dispatched.add("i-1-3")));
+		assertFalse(queue.offer(instruction(2, 1), () -> dispatched.add("i-2-1")));
+		assertEquals(1, dispatched.size());
+
+		sink.complete(0);
+		// The replaced and the rejected instruction are not reported
+		assertEquals(2, dispatched.size());
+		assertEquals("i-1-1", dispatched.get(0));
+		assertEquals("i-1-3", dispatched.get(1));
+	}
+
+	public void testBackpressureAndRejection() {
+		final RecordingSink sink = new RecordingSink();
+		final OutboundQueue queue = new OutboundQueue(sink, Runnable::run, 4, 60000);
+
+		for (int a = 0; a < 4; a++) {
+			assertTrue(queue.offer(instruction(a, 0)));
+		}
+		assertTrue(queue.isBackpressure());
+		assertFalse(queue.offer(instruction(4, 0)));
+		assertEquals(1, queue.getRejectedCount());
+
+		sink.complete(0);
+		sink.complete(1);
+		assertTrue(queue.isBackpressure());
+		sink.complete(2);
+		assertFalse(queue.isBackpressure());
+		sink.complete(3);
+		assertEquals(4, queue.getSentCount());
+		assertTrue(queue.offer(instruction(4, 0)));
+	}
+
+	public void testFailedSendsAreCounted() {
+		final OutboundQueue queue = new OutboundQueue(
+				(text, handler) -> handler.onResult(new SendResult(new IOException("closed"))), Runnable::run, 4, 60000);
+		assertTrue(queue.offer(instruction(1, 0)));
+		assertTrue(queue.offer(instruction(2, 0)));
+		assertEquals(2, queue.getFailedCount());
+		assertEquals(0, queue.getSentCount());
+		assertEquals(0, queue.getOutstandingCount());
+	}
+
+	public void testPausedQueueKeepsMessages() {
+		final RecordingSink sink = new RecordingSink();
+		final OutboundQueue queue = new OutboundQueue(sink, Runnable::run, 16, 60000);
+
+		assertTrue(queue.offer(instruction(1, 0)));
+		assertTrue(queue.offer(instruction(2, 0)));
+		assertTrue(queue.offer(instruction(3, 0)));
+		sink.complete(0);
+		assertEquals(2, sink.texts.size());
+
+		// The connection is lost while the second message is being sent
+		queue.pause();
+		assertTrue(queue.offer(instruction(3, 1)));
+		sink.handlers.get(1).onResult(new SendResult(new IOException("closed")));
+		assertEquals(2, sink.texts.size());
+		// The unsent instruction for actuator 3 has been superseded
+		assertEquals(1, queue.getOutstandingCount());
+		assertEquals(1, queue.getCoalescedCount());
+
+		queue.resume();
+		assertEquals(3, sink.texts.size());
+		assertTrue(sink.texts.get(2).contains("i-3-1"));
+		sink.complete(2);
+		assertEquals(1, queue.getFailedCount());
+		assertEquals(2, queue.getSentCount());
+		assertEquals(0, queue.getOutstandingCount());
+	}
+
+	public void testOldMessagesExpire() throws InterruptedException {
+		final RecordingSink sink = new RecordingSink();
+		final OutboundQueue queue = new OutboundQueue(sink, Runnable::run, 16, 1);
+		queue.pause();
+		assertTrue(queue.offer(instruction(1, 0)));
+		Thread.sleep(10);
+		queue.resume();
+
+		assertTrue(sink.texts.isEmpty());
+		assertEquals(1, queue.getExpiredCount());
+		assertEquals(0, queue.getOutstandingCount());
+	}
+
+}
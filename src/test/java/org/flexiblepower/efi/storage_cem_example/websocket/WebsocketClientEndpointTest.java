@@ -0,0 +1,58 @@
+package org.flexiblepower.efi.storage_cem_example.websocket;
+
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.efi.storage_cem_example.efi_model.EfiStorageModel;
+import org.flexiblepower.efi.storage_cem_example.journal.MessageJournal;
+import org.flexiblepower.efi.storage_cem_example.metrics.CemMetrics;
+import org.flexiblepower.efi.storage_cem_example.simulator.DeviceProfile;
+import org.flexiblepower.efi.storage_cem_example.simulator.SimulatedStorage;
+import org.flexiblepower.efi.storage_cem_example.xml.EfiXmlSerializer;
+import org.flexiblepower.efi.xml.EfiMessage;
+import org.flexiblepower.efi.xml.StorageSystemDescription;
+
+public class WebsocketClientEndpointTest extends TestCase {
+
+	public void testMessageWhichTheModelRejectsIsDropped() throws Exception {
+		final EfiStorageModel model = new EfiStorageModel();
+		// Not started, so it never connects; messages are handled on the caller
+		final WebsocketClientEndpoint endpoint = new WebsocketClientEndpoint(URI.create("ws://rm-1"), model, null,
+				Runnable::run, Runnable::run, null);
+		final List<EfiMessage> connected = new SimulatedStorage("rm-1", new DeviceProfile(2, 4, 0, 0, 0), 1)
+				.connected(1500000000000L);
+		final String accepted = EfiXmlSerializer.serialize(connected.get(1));
+		final StorageSystemDescription duplicate = (StorageSystemDescription) EfiXmlSerializer.deserialize(accepted);
+		duplicate.getActuatorBehaviours().getActuatorBehaviour().get(1).setActuatorId(0);
+
+		final Path directory = Files.createTempDirectory("efi-journal");
+		try {
+			try (MessageJournal journal = new MessageJournal(directory)) {
+				endpoint.setJournal(journal);
+				endpoint.onMessage(accepted);
+				final long errors = CemMetrics.HANDLE_ERRORS.get();
+				endpoint.onMessage(EfiXmlSerializer.serialize(duplicate));
+
+				assertEquals(errors + 1, CemMetrics.HANDLE_ERRORS.get());
+				assertEquals(2, model.getState().getActuatorBehaviours().size());
+				assertNotNull(model.getState().getActuatorBehaviourById(1));
+				// Only the accepted message is journaled
+				assertEquals(1, journal.getLastSequence());
+			}
+		} finally {
+			try (Stream<Path> files = Files.list(directory)) {
+				for (final Path path : files.collect(Collectors.toList())) {
+					Files.delete(path);
+				}
+			}
+			Files.delete(directory);
+		}
+	}
+
+}
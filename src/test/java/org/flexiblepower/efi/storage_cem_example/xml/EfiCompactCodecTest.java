@@ -0,0 +1,65 @@
+package org.flexiblepower.efi.storage_cem_example.xml;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.efi.storage_cem_example.websocket.WireEncoding;
+import org.flexiblepower.efi.xml.EfiMessage.Header;
+import org.flexiblepower.efi.xml.Measurement;
+import org.flexiblepower.efi.xml.Measurement.ElectricityMeasurement;
+
+public class EfiCompactCodecTest extends TestCase {
+
+	private static String measurement() throws Exception {
+		return EfiXmlSerializer.serialize(new Measurement().withEfiVersion("2.0")
+				.withHeader(new Header().withEfiResourceId("rm-1").withTimestamp(XmlUtil.date(1525348800123L)))
+				.withMeasurementTimestamp(XmlUtil.date(1525348800000L))
+				.withElectricityMeasurement(new ElectricityMeasurement().withPower(1234.5)));
+	}
+
+	public void testRoundTrip() throws Exception {
+		final String xml = measurement();
+		final ByteBuffer encoded = EfiCompactCodec.encode(xml);
+		assertEquals(EfiCompactCodec.VERSION, encoded.get(0));
+		// The dictionary covers almost all of the markup
+		assertTrue(encoded.remaining() + " bytes", encoded.remaining() * 4 < xml.length());
+		assertEquals(xml, EfiCompactCodec.decode(encoded));
+		assertFalse(encoded.hasRemaining());
+
+		// Non-ASCII text, a direct buffer and a message larger than the buffer
+		final StringBuilder large = new StringBuilder("<label>W\u00e4rmepumpe ");
+		for (int i = 0; i < 20000; i++) {
+			large.append(i).append(' ');
+		}
+		final ByteBuffer encodedLarge = EfiCompactCodec.encode(large.toString());
+		final ByteBuffer direct = ByteBuffer.allocateDirect(encodedLarge.remaining());
+		direct.put(encodedLarge).flip();
+		assertEquals(large.toString(), EfiCompactCodec.decode(direct));
+	}
+
+	public void testInvalidMessages() throws Exception {
+		final byte[] encoded = EfiCompactCodec.encode(measurement()).array();
+		final byte[][] invalid = { {}, { 42, 1, 2, 3 }, Arrays.copyOf(encoded, encoded.length / 2), { 1, -1, -1 } };
+		for (final byte[] message : invalid) {
+			try {
+				EfiCompactCodec.decode(ByteBuffer.wrap(message));
+				fail(Arrays.toString(message));
+			} catch (final DataFormatException e) {
+				// Expected
+			}
+		}
+		// The codec can still be used after a failure
+		assertEquals(measurement(), EfiCompactCodec.decode(ByteBuffer.wrap(encoded)));
+	}
+
+	public void testNegotiation() {
+		assertEquals(WireEncoding.COMPACT, WireEncoding.forSubprotocol(WireEncoding.COMPACT.getSubprotocol()));
+		assertEquals(WireEncoding.XML, WireEncoding.forSubprotocol(""));
+		assertEquals(WireEncoding.XML, WireEncoding.forSubprotocol(null));
+		assertEquals(WireEncoding.XML, WireEncoding.forSubprotocol("efi-3.0"));
+	}
+
+}
@@ -0,0 +1,87 @@
+package org.flexiblepower.efi.storage_cem_example.xml;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.efi.storage_cem_example.simulator.DeviceProfile;
+import org.flexiblepower.efi.storage_cem_example.simulator.SimulatedStorage;
+import org.flexiblepower.efi.xml.EfiMessage;
+import org.flexiblepower.efi.xml.StorageInstruction;
+import org.xml.sax.SAXException;
+
+public class EfiSchemaTest extends TestCase {
+
+	private static final long START = 1500000000000L;
+
+	public void testMessagesOfTheSimulatorAreValid() throws Exception {
+		final SimulatedStorage device = new SimulatedStorage("rm-1", new DeviceProfile(2, 4, 2, 0, 0), 1);
+		final List<EfiMessage> messages = new ArrayList<>(device.connected(START));
+		messages.add(device.storageStatus(START + 1000));
+		messages.add(device.measurement(START + 1000));
+		for (final EfiMessage message : messages) {
+			EfiSchema.validate(EfiXmlSerializer.serialize(message));
+		}
+		// With the garbage the decoders accept as well
+		EfiSchema.validate("\uFEFF  " + EfiXmlSerializer.serialize(device.measurement(START + 2000)));
+	}
+
+	public void testInvalidMessage() throws Exception {
+		final SimulatedStorage device = new SimulatedStorage("rm-1", new DeviceProfile(1, 4, 0, 0, 0), 1);
+		final String xml = EfiXmlSerializer.serialize(device.measurement(START));
+		// Well-formed, but the measurement timestamp is missing
+		final String invalid = xml.replaceAll("<ns1:measurementTimestamp>[^<]*</ns1:measurementTimestamp>", "");
+		assertFalse(invalid.equals(xml));
+		try {
+			EfiSchema.validate(invalid);
+			fail("Missing element accepted");
+		} catch (final SAXException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("measurementTimestamp"));
+		}
+		try {
+			EfiSchema.validate(xml.substring(0, xml.length() / 2));
+			fail("Incomplete message accepted");
+		} catch (final SAXException e) {
+			// Expected
+		}
+		try {
+			// An instruction without its required elements
+			EfiSchema.validate(EfiXmlSerializer.serialize(new StorageInstruction().withInstructionId("i")));
+			fail("Empty instruction accepted");
+		} catch (final SAXException e) {
+			// Expected
+		}
+	}
+
+	public void testPolicy() {
+		final ValidationPolicy policy = ValidationPolicy.parse("sampled:10, rm-7=strict,rm-9=off");
+		assertEquals(ValidationMode.STRICT, policy.getMode("rm-7"));
+		assertEquals(ValidationMode.OFF, policy.getMode("rm-9"));
+		final ValidationMode sampled = policy.getMode("rm-1");
+		assertSame(sampled, policy.getMode(null));
+		assertFalse(sampled.isStrict());
+		int validated = 0;
+		for (int i = 1; i <= 100; i++) {
+			if (sampled.shouldValidate(i)) {
+				validated++;
+			}
+		}
+		assertEquals(10, validated);
+		assertTrue(sampled.shouldValidate(1));
+		assertTrue(ValidationMode.STRICT.shouldValidate(2));
+		assertFalse(ValidationMode.OFF.shouldValidate(1));
+		assertEquals(ValidationMode.OFF, ValidationPolicy.parse("rm-1=strict").getMode("rm-2"));
+		assertEquals("sampled:" + ValidationMode.DEFAULT_SAMPLE_INTERVAL,
+				ValidationPolicy.parse("sampled").getMode("rm-1").toString());
+		for (final String invalid : new String[] { "on", "sampled:0", "sampled:x", "rm-1=" }) {
+			try {
+				ValidationPolicy.parse(invalid);
+				fail(invalid + " accepted");
+			} catch (final IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+
+}
@@ -0,0 +1,142 @@
+package org.flexiblepower.efi.storage_cem_example.xml;
+
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.efi.storage_cem_example.EfiTestMessages;
+import org.flexiblepower.efi.storage_cem_example.xml.EfiStreamingDecoder.Kind;
+import org.flexiblepower.efi.xml.ActuatorStatus;
+import org.flexiblepower.efi.xml.ActuatorStatuses;
+import org.flexiblepower.efi.xml.FlexibilityRevoke;
+import org.flexiblepower.efi.xml.Measurement;
+import org.flexiblepower.efi.xml.Measurement.ElectricityMeasurement;
+import org.flexiblepower.efi.xml.Measurement.GasMeasurement;
+import org.flexiblepower.efi.xml.Measurement.HeatMeasurement;
+import org.flexiblepower.efi.xml.StorageStatus;
+import org.flexiblepower.efi.xml.TimerUpdate;
+import org.flexiblepower.efi.xml.TimerUpdates;
+
+/**
+ * Checks that the StAX fast path produces exactly the same values as JAXB.
+ */
+public class EfiStreamingDecoderTest extends TestCase {
+
+	private static final String NS = "xmlns:efi=\"http://www.flexiblepower.org/efi-2\"";
+
+	private final EfiStreamingDecoder decoder = new EfiStreamingDecoder();
+
+	private static StorageStatus storageStatus() {
+		final long now = System.currentTimeMillis();
+		return new StorageStatus().withEfiVersion("2.0").withHeader(EfiTestMessages.header())
+				.withFlexibilityUpdateId("fu-1").withValidFrom(XmlUtil.date(new Date(now))).withCurrentFillLevel(63.25)
+				.withActuatorStatuses(new ActuatorStatuses().withActuatorStatus(
+						new ActuatorStatus().withActuatorId(3).withCurrentRunningMode(2).withRunningModeFactor(0.75)
+								.withPreviousRunningModeId(1).withTransitionTimestamp(XmlUtil.date(new Date(now - 1000)))
+								.withTimerUpdates(new TimerUpdates().withTimerUpdate(
+										new TimerUpdate().withTimerId(1).withFinishedAt(XmlUtil.date(new Date(now + 5000))),
+										new TimerUpdate().withTimerId(2).withFinishedAt(XmlUtil.date(new Date(now - 5000))))),
+						new ActuatorStatus().withActuatorId(7).withCurrentRunningMode(0),
+						new ActuatorStatus().withActuatorId(9).withCurrentRunningMode(4)
+								.withTimerUpdates(new TimerUpdates().withTimerUpdate(
+										new TimerUpdate().withTimerId(1).withFinishedAt(XmlUtil.date(new Date(now)))))));
+	}
+
+	public void testStorageStatusConformance() throws Exception {
+		this.assertStorageStatusConforms(EfiXmlSerializer.serialize(storageStatus()));
+	}
+
+	public void testStorageStatusWithoutActuatorStatuses() throws Exception {
+		final StorageStatus status = storageStatus().withActuatorStatuses(null);
+		this.assertStorageStatusConforms(EfiXmlSerializer.serialize(status));
+	}
+
+	public void testHandWrittenStorageStatusConformance() throws Exception {
+		final String xml = "\n  <efi:StorageStatus " + NS + " efi:efiVersion=\"2.0\">"
+				+ "<efi:header><efi:efiResourceId> rm-2 </efi:efiResourceId>"
+				+ "<efi:timestamp>2018-05-03T12:00:00+02:00</efi:timestamp></efi:header>"
+				+ "<efi:flexibilityUpdateId>fu-2</efi:flexibilityUpdateId>"
+				+ "<efi:validFrom>2018-05-03T10:00:00.5Z</efi:validFrom>"
+				+ "<efi:currentFillLevel> 1e2 </efi:currentFillLevel>" + "<efi:actuatorStatuses>"
+				+ "<efi:actuatorStatus efi:actuatorId=\"1\"><efi:currentRunningMode>+5</efi:currentRunningMode>"
+				+ "<efi:timerUpdates/></efi:actuatorStatus>" + "</efi:actuatorStatuses></efi:StorageStatus>";
+		this.assertStorageStatusConforms(xml);
+	}
+
+	public void testMeasurementConformance() throws Exception {
+		final Measurement electricity = new Measurement().withEfiVersion("2.0").withHeader(EfiTestMessages.header())
+				.withMeasurementTimestamp(XmlUtil.date(new Date()))
+				.withElectricityMeasurement(new ElectricityMeasurement().withPower(-1500.5));
+		this.assertMeasurementConforms(EfiXmlSerializer.serialize(electricity));
+
+		final Measurement gasAndHeat = new Measurement().withEfiVersion("2.0").withHeader(EfiTestMessages.header())
+				.withMeasurementTimestamp(XmlUtil.date(new Date()))
+				.withGasMeasurement(new GasMeasurement().withFlowRate(2.5))
+				.withHeatMeasurement(new HeatMeasurement().withTemperature(60d).withThermalPower(1000d));
+		this.assertMeasurementConforms(EfiXmlSerializer.serialize(gasAndHeat));
+	}
+
+	public void testOtherMessagesFallBackToJaxb() throws Exception {
+		final String xml = EfiXmlSerializer
+				.serialize(new FlexibilityRevoke().withEfiVersion("2.0").withHeader(EfiTestMessages.header()));
+		assertEquals(Kind.OTHER, this.decoder.decode(xml));
+		assertTrue(this.decoder.getMessage() instanceof FlexibilityRevoke);
+	}
+
+	public void testViewIsReused() throws Exception {
+		this.decoder.decode(EfiXmlSerializer.serialize(storageStatus()));
+		final StorageStatusView view = this.decoder.getStorageStatus();
+		this.decoder.decode(EfiXmlSerializer.serialize(storageStatus().withActuatorStatuses(null)));
+		assertSame(view, this.decoder.getStorageStatus());
+		assertEquals(0, view.getActuatorCount());
+	}
+
+	private void assertStorageStatusConforms(String xml) throws Exception {
+		assertEquals(Kind.STORAGE_STATUS, this.decoder.decode(xml));
+		final StorageStatusView expected = new StorageStatusView()
+				.setFrom((StorageStatus) EfiXmlSerializer.deserialize(xml));
+		final StorageStatusView actual = this.decoder.getStorageStatus();
+
+		assertEquals(expected.getEfiResourceId(), actual.getEfiResourceId());
+		assertEquals(expected.getTimestamp(), actual.getTimestamp());
+		assertEquals(expected.getFlexibilityUpdateId(), actual.getFlexibilityUpdateId());
+		assertEquals(expected.getValidFrom(), actual.getValidFrom());
+		assertSameValue(expected.getCurrentFillLevel(), actual.getCurrentFillLevel());
+		assertEquals(expected.getActuatorCount(), actual.getActuatorCount());
+		for (int i = 0; i < expected.getActuatorCount(); i++) {
+			assertEquals(expected.getActuatorId(i), actual.getActuatorId(i));
+			assertEquals(expected.getCurrentRunningMode(i), actual.getCurrentRunningMode(i));
+			assertSameValue(expected.getRunningModeFactor(i), actual.getRunningModeFactor(i));
+			assertEquals(expected.getPreviousRunningModeId(i), actual.getPreviousRunningModeId(i));
+			assertEquals(expected.getTransitionTimestamp(i), actual.getTransitionTimestamp(i));
+			assertEquals(expected.getTimerUpdateCount(i), actual.getTimerUpdateCount(i));
+			for (int t = 0; t < expected.getTimerUpdateCount(i); t++) {
+				assertEquals(expected.getTimerId(i, t), actual.getTimerId(i, t));
+				assertEquals(expected.getTimerFinishedAt(i, t), actual.getTimerFinishedAt(i, t));
+			}
+		}
+	}
+
+	/**
+	 * Like assertEquals, but NaN equals NaN
+	 */
+	private static void assertSameValue(double expected, double actual) {
+		assertEquals(Double.valueOf(expected), Double.valueOf(actual));
+	}
+
+	private void assertMeasurementConforms(String xml) throws Exception {
+		assertEquals(Kind.MEASUREMENT, this.decoder.decode(xml));
+		final MeasurementView expected = new MeasurementView().setFrom((Measurement) EfiXmlSerializer.deserialize(xml));
+		final MeasurementView actual = this.decoder.getMeasurement();
+
+		assertEquals(expected.getEfiResourceId(), actual.getEfiResourceId());
+		assertEquals(expected.getTimestamp(), actual.getTimestamp());
+		assertEquals(expected.getMeasurementTimestamp(), actual.getMeasurementTimestamp());
+		assertSameValue(expected.getPower(), actual.getPower());
+		assertSameValue(expected.getGasFlowRate(), actual.getGasFlowRate());
+		assertSameValue(expected.getHeatTemperature(), actual.getHeatTemperature());
+		assertSameValue(expected.getHeatFlowRate(), actual.getHeatFlowRate());
+		assertSameValue(expected.getHeatThermalPower(), actual.getHeatThermalPower());
+	}
+
+}
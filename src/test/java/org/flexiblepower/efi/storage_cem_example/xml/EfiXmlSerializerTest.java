@@ -0,0 +1,71 @@
+package org.flexiblepower.efi.storage_cem_example.xml;
+
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.efi.xml.EfiMessage;
+import org.flexiblepower.efi.xml.EfiMessage.Header;
+import org.flexiblepower.efi.xml.Measurement;
+import org.flexiblepower.efi.xml.Measurement.ElectricityMeasurement;
+
+/**
+ * Round trip tests for the cached JAXB serializer.
+ */
+public class EfiXmlSerializerTest extends TestCase {
+
+	private static Measurement measurement(double power) {
+		return new Measurement().withEfiVersion("2.0")
+				.withHeader(new Header().withEfiResourceId("rm-1").withTimestamp(XmlUtil.date(new Date())))
+				.withMeasurementTimestamp(XmlUtil.date(new Date()))
+				.withElectricityMeasurement(new ElectricityMeasurement().withPower(power));
+	}
+
+	public void testRoundTrip() throws Exception {
+		final String xml = EfiXmlSerializer.serialize(measurement(1234.5));
+		final EfiMessage message = EfiXmlSerializer.deserialize(xml);
+		assertTrue(message instanceof Measurement);
+		assertEquals(1234.5, ((Measurement) message).getElectricityMeasurement().getPower(), 0.0);
+		assertEquals("rm-1", message.getHeader().getEfiResourceId());
+	}
+
+	public void testLeadingGarbageIsStripped() throws Exception {
+		final String xml = EfiXmlSerializer.serialize(measurement(1));
+		assertTrue(EfiXmlSerializer.deserialize("\uFEFF  " + xml) instanceof Measurement);
+	}
+
+	public void testTrimLikeTheRegularExpression() {
+		for (final String xml : new String[] { "<a/>", "  <a/>  ", "\uFEFF<a/>", "\uFEFF \n<a/>\n", "?!<<a/>", "<<a/>",
+				"x<a/>", "<?xml version=\"1.0\"?><a/>", "\uFEFF<?xml version=\"1.0\"?><a/>", "<!-- c --><a/>", "", "   ",
+				"<", "\uFEFF", "\u00e9<a/>" }) {
+			assertEquals(xml, xml.trim().replaceFirst("^([\\W]+)<", "<"), EfiXmlSerializer.trim(xml));
+		}
+		final String xml = "<a/>";
+		assertSame(xml, EfiXmlSerializer.trim(xml));
+	}
+
+	public void testConcurrentUse() throws Exception {
+		final Thread[] threads = new Thread[4];
+		final Throwable[] failure = new Throwable[1];
+		for (int i = 0; i < threads.length; i++) {
+			final double power = i;
+			threads[i] = new Thread(() -> {
+				try {
+					for (int j = 0; j < 200; j++) {
+						final Measurement m = (Measurement) EfiXmlSerializer
+								.deserialize(EfiXmlSerializer.serialize(measurement(power)));
+						assertEquals(power, m.getElectricityMeasurement().getPower(), 0.0);
+					}
+				} catch (final Throwable t) {
+					failure[0] = t;
+				}
+			});
+			threads[i].start();
+		}
+		for (final Thread t : threads) {
+			t.join();
+		}
+		assertNull(failure[0]);
+	}
+
+}
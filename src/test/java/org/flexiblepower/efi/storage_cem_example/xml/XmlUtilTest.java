@@ -0,0 +1,109 @@
+package org.flexiblepower.efi.storage_cem_example.xml;
+
+import java.util.Date;
+
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import junit.framework.TestCase;
+
+public class XmlUtilTest extends TestCase {
+
+	private static final long[] TIMES = { 0, 1, -1, 951782400000L, 1525348800123L, -62135596800000L,
+			253402300799999L, 1709164800000L - 1 };
+
+	public void testDateTimeRoundTrip() {
+		for (final long time : TIMES) {
+			final String formatted = XmlUtil.formatDateTime(time);
+			assertEquals(formatted, time, DatatypeConverter.parseDateTime(formatted).getTimeInMillis());
+			assertEquals(formatted, time, XmlUtil.millis(formatted));
+
+			final XMLGregorianCalendar calendar = XmlUtil.date(time);
+			assertEquals(time, XmlUtil.millis(calendar));
+			assertEquals(time, calendar.toGregorianCalendar().getTimeInMillis());
+			assertEquals(time, XmlUtil.date(new Date(time)).toGregorianCalendar().getTimeInMillis());
+		}
+		assertEquals("2018-05-03T12:00:00.123Z", XmlUtil.formatDateTime(1525348800123L));
+		assertEquals("1969-12-31T23:59:59.999Z", XmlUtil.formatDateTime(-1));
+	}
+
+	public void testDayOfMonth() {
+		assertEquals(1709164800000L, XmlUtil.millis("2024-02-29T00:00:00Z"));
+		assertEquals(951782400000L, XmlUtil.millis("2000-02-29T00:00:00Z"));
+		assertEquals(1525046400000L, XmlUtil.millis("2018-04-30T00:00:00Z"));
+		for (final String lexical : new String[] { "2024-02-30T12:00:00Z", "2023-02-29T12:00:00Z",
+				"1900-02-29T12:00:00+01:00", "2018-04-31T12:00:00.5Z", "2018-06-31T12:00:00Z" }) {
+			try {
+				XmlUtil.millis(lexical);
+				fail(lexical);
+			} catch (final IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+
+	public void testCalendarMillis() throws Exception {
+		final DatatypeFactory factory = DatatypeFactory.newInstance();
+		for (final String lexical : new String[] { "2018-05-03T14:00:00+02:00", "2018-05-03T12:00:00.5Z",
+				"2018-05-03T12:00:00", "2016-02-29T23:30:00-05:30" }) {
+			final XMLGregorianCalendar calendar = factory.newXMLGregorianCalendar(lexical);
+			assertEquals(lexical, calendar.toGregorianCalendar().getTimeInMillis(), XmlUtil.millis(calendar));
+		}
+	}
+
+	public void testDuration() throws Exception {
+		final DatatypeFactory factory = DatatypeFactory.newInstance();
+		final long start = 1525348800000L;
+		for (final String lexical : new String[] { "PT15M", "P1DT2H3M4.5S", "-PT1S", "PT0.001S", "P2D", "PT36H",
+				"P1Y2M", "P0Y0M0DT0H15M0.000S" }) {
+			final long expected = factory.newDuration(lexical).getTimeInMillis(new Date(start));
+			assertEquals(lexical, expected, XmlUtil.durationMillis(lexical, start));
+			assertEquals(lexical, expected, XmlUtil.duration(factory.newDuration(lexical), start));
+		}
+		for (final long millis : new long[] { 0, 1, 999, 1000, 60000, 930500, 86400000, 90061001, -1500 }) {
+			final String formatted = XmlUtil.formatDuration(millis);
+			assertEquals(formatted, millis, factory.newDuration(formatted).getTimeInMillis(new Date(start)));
+			assertEquals(formatted, millis, XmlUtil.durationMillis(formatted, start));
+			assertEquals(millis, XmlUtil.duration(XmlUtil.duration(millis), start));
+		}
+		assertEquals("PT15M30.5S", XmlUtil.formatDuration(930500));
+		assertEquals("PT0S", XmlUtil.formatDuration(0));
+		assertEquals("P1D", XmlUtil.formatDuration(86400000));
+	}
+
+	public void testDurationOverflow() throws Exception {
+		final DatatypeFactory factory = DatatypeFactory.newInstance();
+		// The largest number of days which fits, and one more
+		final long days = Long.MAX_VALUE / 86400000;
+		assertEquals(days * 86400000, XmlUtil.durationMillis("P" + days + "D", 0));
+		assertEquals(days * 86400000 + 1000, XmlUtil.durationMillis("P" + days + "DT1S", 0));
+		for (final String lexical : new String[] { "P" + (days + 1) + "D", "P200000000000D", "PT9999999999999999H",
+				"-P" + days + "DT24H" }) {
+			try {
+				XmlUtil.durationMillis(lexical, 0);
+				fail(lexical);
+			} catch (final IllegalArgumentException e) {
+				// Expected
+			}
+			try {
+				XmlUtil.duration(factory.newDuration(lexical), 0);
+				fail(lexical);
+			} catch (final IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+
+	public void testInvalidDuration() {
+		for (final String lexical : new String[] { "P", "PT", "15M", "PT1H2H", "PT1M1H", "P1S" }) {
+			try {
+				XmlUtil.durationMillis(lexical, 0);
+				fail(lexical);
+			} catch (final IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+
+}